@@ -0,0 +1,92 @@
+package ie.atu.sw.benchmarks;
+
+import ie.atu.sw.SentimentScoreMapLoader;
+import ie.atu.sw.TweetSentimentAnalyzer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast TweetSentimentAnalyzer scores single tweets (processTweet, through
+ * scoreTweet) and whole lists of tweets (analyzeTweets).
+ *
+ * The analyzer scores straight from the lexicon, without the simulated latency of the
+ * scoring service. Run with -t to see how scoreTweet scales with the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyzerBenchmark {
+    /**
+     * The number of scored words of the lexicon.
+     */
+    @Param({"1000", "100000"})
+    public int lexiconWords;
+
+    private List<String> tweets;
+    private TweetSentimentAnalyzer analyzer;
+
+    /**
+     * Loads the tweets and the lexicon, generating them unless they were generated before.
+     *
+     * @throws IOException if the files couldn't be read or written.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        CorpusGenerator.Corpus corpus = CorpusGenerator.generate(100_000, lexiconWords);
+
+        tweets = Files.readAllLines(corpus.corpus());
+        analyzer = new TweetSentimentAnalyzer(SentimentScoreMapLoader.loadLexicon(
+                corpus.sentimentMap().toString(), corpus.stopwords().toString()), null);
+    }
+
+    /**
+     * The tweet each thread scores next.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+    }
+
+    /**
+     * Scores the next tweet of the corpus.
+     *
+     * @param cursor the tweet to score next.
+     * @return the score of the tweet.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int scoreTweet(Cursor cursor) {
+        String tweet = tweets.get(cursor.next);
+        cursor.next = cursor.next + 1 == tweets.size() ? 0 : cursor.next + 1;
+
+        return analyzer.scoreTweet(tweet);
+    }
+
+    /**
+     * Scores all the tweets of the corpus on the calling thread.
+     *
+     * @return the total score.
+     */
+    @Benchmark
+    public float analyzeTweets() {
+        return analyzer.analyzeTweets(tweets);
+    }
+}
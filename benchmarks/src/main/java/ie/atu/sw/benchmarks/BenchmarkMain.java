@@ -0,0 +1,43 @@
+package ie.atu.sw.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options, always adding the
+ * GC profiler so that the allocation rate is reported next to the throughput.
+ */
+public class BenchmarkMain {
+    /**
+     * The driver method.
+     *
+     * @param args the JMH command line options, for example a regular expression of the benchmarks to run.
+     * @throws Exception if the benchmarks couldn't be run.
+     */
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+
+        // listing and help are left to JMH itself
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        boolean hasGcProfiler = commandLine.getProfilers().stream()
+                .anyMatch(profiler -> profiler.getKlass().equals("gc")
+                        || profiler.getKlass().equals(GCProfiler.class.getName()));
+
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        if (!hasGcProfiler) {
+            options.addProfiler(GCProfiler.class);
+        }
+
+        Options built = options.build();
+        new Runner(built).run();
+    }
+}
@@ -0,0 +1,237 @@
+package ie.atu.sw.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ * Generates synthetic inputs for the benchmarks: a sentiment map (lexicon), a stopwords
+ * file, and a corpus of tweets of the requested size.
+ *
+ * The vocabulary is made of the scored words, the stopwords, and as many again unscored
+ * words. Tweets pick their words with a skewed (roughly Zipfian) distribution, so that
+ * a few words are very common like in real text, and some words are capitalised to
+ * exercise the case folding of the lookups.
+ *
+ * The same seed always gives the same files.
+ */
+public class CorpusGenerator {
+    /**
+     * The seed used by the benchmarks.
+     */
+    public static final long DEFAULT_SEED = 42;
+
+    /**
+     * The directory the benchmarks generate their inputs into, unless the
+     * benchmark.corpus system property names another one.
+     */
+    public static final String DEFAULT_DIRECTORY = "sentiment-benchmark-corpus";
+
+    /**
+     * The number of stopwords generated.
+     */
+    private static final int STOPWORDS = 200;
+
+    /**
+     * The generated files.
+     *
+     * @param sentimentMap the sentiment map file.
+     * @param stopwords    the stopwords file.
+     * @param corpus       the corpus file, one tweet per line.
+     */
+    public record Corpus(Path sentimentMap, Path stopwords, Path corpus) {
+    }
+
+    /**
+     * Generates the files with the given number of tweets and scored words into the
+     * directory used by the benchmarks, with the default seed.
+     *
+     * @param tweets       the number of tweets.
+     * @param lexiconWords the number of scored words.
+     * @return the files.
+     * @throws IOException if the files couldn't be written.
+     */
+    public static Corpus generate(int tweets, int lexiconWords) throws IOException {
+        Path dir = Paths.get(System.getProperty("benchmark.corpus",
+                Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY).toString()));
+
+        return generate(dir, tweets, lexiconWords, DEFAULT_SEED);
+    }
+
+    /**
+     * Generates the files with the given number of tweets and scored words into the directory.
+     * Files generated before with the same sizes and seed are reused.
+     *
+     * @param dir          the directory of the files.
+     * @param tweets       the number of tweets.
+     * @param lexiconWords the number of scored words.
+     * @param seed         the seed of the random words and tweets.
+     * @return the files.
+     * @throws IOException if the files couldn't be written.
+     */
+    public static Corpus generate(Path dir, int tweets, int lexiconWords, long seed) throws IOException {
+        Files.createDirectories(dir);
+
+        String suffix = lexiconWords + "-" + seed;
+        Corpus corpus = new Corpus(dir.resolve("lexicon-" + suffix + ".csv"),
+                dir.resolve("stopwords-" + suffix + ".txt"),
+                dir.resolve("tweets-" + tweets + "-" + suffix + ".txt"));
+
+        SplittableRandom random = new SplittableRandom(seed);
+        List<String> vocabulary = vocabulary(random, lexiconWords * 2 + STOPWORDS);
+
+        SplittableRandom lexiconRandom = random.split();
+        SplittableRandom tweetsRandom = random.split();
+
+        if (!Files.exists(corpus.sentimentMap()) || !Files.exists(corpus.stopwords())) {
+            writeLexicon(corpus, vocabulary, lexiconWords, lexiconRandom);
+        }
+        if (!Files.exists(corpus.corpus())) {
+            writeTweets(corpus.corpus(), vocabulary, tweets, tweetsRandom);
+        }
+
+        return corpus;
+    }
+
+    /**
+     * Generates the given number of distinct lower-case words.
+     *
+     * @param random the random numbers.
+     * @param count  the number of words.
+     * @return the words.
+     */
+    private static List<String> vocabulary(SplittableRandom random, int count) {
+        Set<String> words = new LinkedHashSet<>(count * 2);
+
+        while (words.size() < count) {
+            int length = random.nextInt(2, 11);
+            StringBuilder word = new StringBuilder(length);
+
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+
+            words.add(word.toString());
+        }
+
+        return new ArrayList<>(words);
+    }
+
+    /**
+     * Writes the sentiment map and stopwords files. The first words of the vocabulary
+     * (the most common ones in the tweets) are the stopwords, followed by the scored words.
+     *
+     * @param corpus       the files.
+     * @param vocabulary   the words.
+     * @param lexiconWords the number of scored words.
+     * @param random       the random numbers.
+     * @throws IOException if the files couldn't be written.
+     */
+    private static void writeLexicon(Corpus corpus, List<String> vocabulary, int lexiconWords,
+                                     SplittableRandom random) throws IOException {
+        Path stopwords = temporary(corpus.stopwords());
+        try (BufferedWriter out = Files.newBufferedWriter(stopwords, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < STOPWORDS; i++) {
+                out.write(vocabulary.get(i));
+                out.newLine();
+            }
+        }
+
+        // every other word after the stopwords is scored, so scored and unscored words are equally common
+        Path sentimentMap = temporary(corpus.sentimentMap());
+        try (BufferedWriter out = Files.newBufferedWriter(sentimentMap, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lexiconWords; i++) {
+                out.write(vocabulary.get(STOPWORDS + i * 2));
+                out.write(',');
+                out.write(Integer.toString(random.nextInt(-5, 6)));
+                out.newLine();
+            }
+        }
+
+        Files.move(stopwords, corpus.stopwords(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(sentimentMap, corpus.sentimentMap(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes the tweets, one per line, each with 5 to 30 words.
+     *
+     * @param file       the corpus file.
+     * @param vocabulary the words.
+     * @param tweets     the number of tweets.
+     * @param random     the random numbers.
+     * @throws IOException if the file couldn't be written.
+     */
+    private static void writeTweets(Path file, List<String> vocabulary, int tweets,
+                                    SplittableRandom random) throws IOException {
+        Path temporary = temporary(file);
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            StringBuilder tweet = new StringBuilder(256);
+
+            for (int t = 0; t < tweets; t++) {
+                tweet.setLength(0);
+                int words = random.nextInt(5, 31);
+
+                for (int w = 0; w < words; w++) {
+                    // cubing a uniform number skews the picks towards the first words
+                    double skew = random.nextDouble();
+                    String word = vocabulary.get((int) (skew * skew * skew * vocabulary.size()));
+
+                    if (w > 0) {
+                        tweet.append(' ');
+                    }
+                    if (random.nextInt(10) == 0) {
+                        tweet.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+                    } else {
+                        tweet.append(word);
+                    }
+                }
+
+                out.write(tweet.toString());
+                out.newLine();
+            }
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the temporary file a file is written to before it's moved into place,
+     * so that a half-written file is never reused.
+     *
+     * @param file the file.
+     * @return the temporary file.
+     */
+    private static Path temporary(Path file) {
+        return file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    /**
+     * Generates the benchmark inputs from the command line.
+     *
+     * @param args the directory, the number of tweets, the number of scored words, and optionally the seed.
+     * @throws IOException if the files couldn't be written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: CorpusGenerator <dir> <tweets> <lexicon words> [seed]");
+            System.exit(2);
+        }
+
+        Corpus corpus = generate(Paths.get(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+                args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_SEED);
+
+        System.out.printf(Locale.ROOT, "Generated %s, %s and %s%n",
+                corpus.sentimentMap(), corpus.stopwords(), corpus.corpus());
+    }
+}
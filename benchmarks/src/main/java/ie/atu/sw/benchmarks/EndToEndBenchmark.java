@@ -0,0 +1,73 @@
+package ie.atu.sw.benchmarks;
+
+import ie.atu.sw.CorpusParser;
+import ie.atu.sw.SentimentScoreMapLoader;
+import ie.atu.sw.TweetSentimentAnalyzer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a whole analysis the way the application runs it: the lexicon is loaded,
+ * and the corpus is parsed and scored batch by batch, without the simulated latency.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark {
+    /**
+     * The number of scoring threads used by the application.
+     */
+    private static final int PARALLELISM = 64;
+
+    /**
+     * The number of tweets of the corpus.
+     */
+    @Param({"10000", "100000", "1000000"})
+    public int tweets;
+
+    private String corpus;
+    private String sentimentMap;
+    private String stopwords;
+
+    /**
+     * Generates the files, unless they were generated before.
+     *
+     * @throws Exception if the files couldn't be written.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        CorpusGenerator.Corpus files = CorpusGenerator.generate(tweets, 10_000);
+
+        corpus = files.corpus().toString();
+        sentimentMap = files.sentimentMap().toString();
+        stopwords = files.stopwords().toString();
+    }
+
+    /**
+     * Loads the lexicon, and parses and scores the corpus.
+     *
+     * @return the total score.
+     * @throws Exception if the analysis failed.
+     */
+    @Benchmark
+    public float analyze() throws Exception {
+        TweetSentimentAnalyzer analyzer = new TweetSentimentAnalyzer(
+                SentimentScoreMapLoader.loadLexicon(sentimentMap, stopwords), null);
+
+        return analyzer.analyzeStream(CorpusParser.forFile(corpus), corpus, PARALLELISM, null);
+    }
+}
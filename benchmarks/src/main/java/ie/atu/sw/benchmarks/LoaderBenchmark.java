@@ -0,0 +1,74 @@
+package ie.atu.sw.benchmarks;
+
+import ie.atu.sw.Lexicon;
+import ie.atu.sw.SentimentScoreMapLoader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast SentimentScoreMapLoader loads sentiment maps of several sizes,
+ * into a map, and into a Lexicon together with the stopwords.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoaderBenchmark {
+    /**
+     * The number of scored words of the sentiment map.
+     */
+    @Param({"1000", "10000", "100000"})
+    public int lexiconWords;
+
+    private String sentimentMap;
+    private String stopwords;
+
+    /**
+     * Generates the sentiment map and stopwords files, unless they were generated before.
+     *
+     * @throws IOException if the files couldn't be written.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        CorpusGenerator.Corpus corpus = CorpusGenerator.generate(1, lexiconWords);
+        sentimentMap = corpus.sentimentMap().toString();
+        stopwords = corpus.stopwords().toString();
+    }
+
+    /**
+     * Loads the sentiment map into a map.
+     *
+     * @return the map.
+     * @throws IOException if the file couldn't be read.
+     */
+    @Benchmark
+    public Map<String, Integer> loadSentimentScoreMap() throws IOException {
+        return SentimentScoreMapLoader.loadSentimentScoreMap(sentimentMap);
+    }
+
+    /**
+     * Loads the sentiment map and the stopwords into a Lexicon.
+     *
+     * @return the lexicon.
+     * @throws IOException if the files couldn't be read.
+     */
+    @Benchmark
+    public Lexicon loadLexicon() throws IOException {
+        return SentimentScoreMapLoader.loadLexicon(sentimentMap, stopwords);
+    }
+}
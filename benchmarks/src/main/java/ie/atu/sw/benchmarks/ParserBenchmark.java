@@ -0,0 +1,90 @@
+package ie.atu.sw.benchmarks;
+
+import ie.atu.sw.VirtualThreadFileParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how fast VirtualThreadFileParser parses corpora of several sizes,
+ * both keeping all the words and tweets (go), streaming the words batch by batch
+ * (stream), and streaming the tweets in order through the reordering stage (streamTweets).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ParserBenchmark {
+    /**
+     * The number of tweets of the corpus.
+     */
+    @Param({"10000", "100000"})
+    public int tweets;
+
+    private String corpus;
+
+    /**
+     * Generates the corpus, unless it was generated before.
+     *
+     * @throws Exception if the corpus couldn't be written.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        corpus = CorpusGenerator.generate(tweets, 10_000).corpus().toString();
+    }
+
+    /**
+     * Parses the corpus into a list of all its words.
+     *
+     * @return the number of words.
+     * @throws Exception if the corpus couldn't be parsed.
+     */
+    @Benchmark
+    public int go() throws Exception {
+        VirtualThreadFileParser parser = new VirtualThreadFileParser();
+        parser.go(corpus);
+
+        return parser.getWords().size();
+    }
+
+    /**
+     * Parses the corpus, only counting the words of each batch.
+     *
+     * @return the number of words.
+     * @throws Exception if the corpus couldn't be parsed.
+     */
+    @Benchmark
+    public long stream() throws Exception {
+        LongAdder words = new LongAdder();
+        new VirtualThreadFileParser().stream(corpus, batch -> words.add(batch.size()));
+
+        return words.sum();
+    }
+
+    /**
+     * Parses the corpus into tweets, passed on in the order of the lines, only counting them.
+     *
+     * @return the number of tweets.
+     * @throws Exception if the corpus couldn't be parsed.
+     */
+    @Benchmark
+    public long streamTweets() throws Exception {
+        long[] count = {0};
+        new VirtualThreadFileParser().streamTweets(corpus, batch -> count[0] += batch.size());
+
+        return count[0];
+    }
+}
@@ -0,0 +1,84 @@
+package ie.atu.sw.benchmarks;
+
+import ie.atu.sw.SentimentScoreMapLoader;
+import ie.atu.sw.TweetSentimentAnalyzer;
+import ie.atu.sw.VirtualThreadFileParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how the parser and the analyzer scale with the number of threads
+ * they are given, over the same corpus.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScalingBenchmark {
+    /**
+     * The number of threads (the parallelism of the analyzer, the workers of the parser).
+     */
+    @Param({"1", "2", "4", "8", "16"})
+    public int threads;
+
+    private String corpus;
+    private List<String> tweets;
+    private TweetSentimentAnalyzer analyzer;
+
+    /**
+     * Loads the tweets and the lexicon, generating them unless they were generated before.
+     *
+     * @throws Exception if the files couldn't be read or written.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        CorpusGenerator.Corpus files = CorpusGenerator.generate(100_000, 10_000);
+
+        corpus = files.corpus().toString();
+        tweets = Files.readAllLines(files.corpus());
+        analyzer = new TweetSentimentAnalyzer(SentimentScoreMapLoader.loadLexicon(
+                files.sentimentMap().toString(), files.stopwords().toString()), null);
+    }
+
+    /**
+     * Scores all the tweets in chunks, on the given number of virtual threads.
+     *
+     * @return the total score.
+     * @throws Exception if the analysis was interrupted.
+     */
+    @Benchmark
+    public float analyzeTweets() throws Exception {
+        return analyzer.analyzeTweets(tweets, threads, null);
+    }
+
+    /**
+     * Parses the corpus with the given number of workers, only counting the words.
+     *
+     * @return the number of words.
+     * @throws Exception if the corpus couldn't be parsed.
+     */
+    @Benchmark
+    public long parse() throws Exception {
+        LongAdder words = new LongAdder();
+        new VirtualThreadFileParser(VirtualThreadFileParser.DEFAULT_BATCH_SIZE, threads)
+                .stream(corpus, batch -> words.add(batch.size()));
+
+        return words.sum();
+    }
+}
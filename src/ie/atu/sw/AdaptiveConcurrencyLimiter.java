@@ -0,0 +1,153 @@
+package ie.atu.sw;
+
+import java.time.Duration;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of calls in flight to a backend, adapting the limit
+ * with AIMD (additive increase, multiplicative decrease).
+ *
+ * Every call that succeeds within the latency target raises the limit by
+ * 1 / limit, so the limit grows by about one per round of calls. A call that
+ * fails, or is slower than the target, cuts the limit by the backoff factor.
+ * This finds the concurrency the backend can take without overwhelming it,
+ * however many virtual threads are waiting to call it.
+ *
+ * Uses a ReentrantLock rather than synchronized, so waiting virtual threads
+ * don't pin their carrier threads.
+ */
+public class AdaptiveConcurrencyLimiter {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyTargetNanos;
+    private final double backoff;
+
+    private double limit;
+    private int inFlight = 0;
+
+    /**
+     * Constructs a limiter.
+     *
+     * @param initialLimit  the limit to start with.
+     * @param minLimit      the lowest the limit can go.
+     * @param maxLimit      the highest the limit can go.
+     * @param latencyTarget calls slower than this count as overload.
+     * @param backoff       the factor the limit is multiplied by on overload, between 0 and 1.
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit,
+                                      Duration latencyTarget, double backoff) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 1 <= min <= initial <= max");
+        }
+        if (backoff <= 0 || backoff >= 1) {
+            throw new IllegalArgumentException("Backoff must be between 0 and 1");
+        }
+
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTargetNanos = latencyTarget.toNanos();
+        this.backoff = backoff;
+    }
+
+    /**
+     * Waits until a call can be made, and counts it as in flight.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void acquire() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                available.await();
+            }
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts a call as in flight, if it can be made right away.
+     *
+     * @return true, if the call can be made, false otherwise.
+     */
+    public boolean tryAcquire() {
+        lock.lock();
+        try {
+            if (inFlight >= (int) limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a finished call and adapts the limit to how it went.
+     *
+     * @param latencyNanos how long the call took.
+     * @param succeeded    whether the call succeeded.
+     */
+    public void release(long latencyNanos, boolean succeeded) {
+        lock.lock();
+        try {
+            inFlight--;
+
+            if (succeeded && latencyNanos <= latencyTargetNanos) {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            } else {
+                limit = Math.max(minLimit, limit * backoff);
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a call that was cancelled, without adapting the limit.
+     */
+    public void releaseIgnored() {
+        lock.lock();
+        try {
+            inFlight--;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current limit.
+     *
+     * @return the limit.
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of calls in flight.
+     *
+     * @return the number of calls.
+     */
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
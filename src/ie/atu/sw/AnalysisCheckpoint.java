@@ -0,0 +1,606 @@
+package ie.atu.sw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The progress of a long analysis of a single file, saved to a small checkpoint file so
+ * that a restarted analysis resumes where the last one stopped.
+ *
+ * The file is split into byte ranges once, when the analysis starts; the ranges are kept
+ * in the checkpoint, so a resumed analysis splits the file the same way whatever its
+ * parallelism. For each range the checkpoint holds the offset of the first line not scored
+ * yet and the totals of the lines before it - the totals are sums of whole tweet scores,
+ * so a resumed analysis ends with exactly the totals of an uninterrupted one.
+ *
+ * The checkpoint also holds what the scored tweets were aggregated into, if anything: their
+ * groups (TweetGroups) and their ranking (a TweetRanking.Part, with the number of tweets per
+ * score in place of the scores). Each range aggregates the tweets it scored since its last
+ * report on its own, and adds them to the aggregates of the checkpoint when it reports its
+ * progress, so the saved aggregates always hold exactly the tweets before the saved offsets.
+ *
+ * The ranges report their progress as they go, and the checkpoint is saved at most once
+ * per interval, by whichever range reports after the interval is up. Only a copy of the
+ * progress and the aggregates is taken while the ranges are held up; the binary file is
+ * written from the copy, forced to the disk, and moved over the previous one atomically, so
+ * a crash (even of the whole machine) leaves either the previous or the new checkpoint. A
+ * checkpoint is only resumed for the same input file (same path,
+ * identity, size and modification time), the same lexicon files (same paths, sizes and
+ * modification times), and the same kinds of aggregates.
+ */
+public final class AnalysisCheckpoint {
+    /**
+     * The first bytes of a checkpoint file ("TSCP"), and the version of its format.
+     */
+    private static final int MAGIC = 0x54534350;
+    private static final int VERSION = 1;
+
+    private final Path checkpointFile;
+    private final Path input;
+    private final String lexicon;
+    private final String identity;
+    private final String aggregates;
+    private final long interval;
+
+    private final long[] starts;
+    private final long[] ends;
+    private final long[] next;
+    private final long[] tweets;
+    private final long[] scores;
+    private final boolean resumed;
+
+    private final TweetGroups groups;
+    private final TweetRanking ranking;
+    private final TweetRanking.Part ranked;
+
+    private final ReentrantLock saving = new ReentrantLock();
+    private volatile long lastSaved = System.nanoTime();
+
+    /**
+     * Opens the checkpoint of an analysis: loads it if the checkpoint file is for the same
+     * input, lexicon and aggregates, or splits the input into new ranges otherwise.
+     *
+     * @param checkpointFile the checkpoint file.
+     * @param input          the input file.
+     * @param lexiconFiles   the files of the lexicon of the analysis (its sentiment map and stopwords files).
+     * @param ranges         the number of ranges a new analysis splits the input into.
+     * @param interval       the least time between two saves of the checkpoint.
+     * @param groups         the empty groups the scored tweets are added to, or null for none.
+     * @param ranking        the ranking the scored tweets are added to, or null for none.
+     * @return the checkpoint.
+     * @throws IOException if the input, a lexicon file or the checkpoint file couldn't be read.
+     */
+    public static AnalysisCheckpoint open(Path checkpointFile, Path input, List<Path> lexiconFiles, int ranges,
+                                          Duration interval, TweetGroups groups, TweetRanking ranking)
+            throws IOException {
+        Path file = input.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        String identity = attributes.fileKey() + "," + attributes.size() + "," + attributes.lastModifiedTime();
+
+        // a lexicon edited in place changes the scores, so its size and modification time are checked too
+        StringBuilder lexiconIdentity = new StringBuilder();
+        for (Path lexiconFile : lexiconFiles) {
+            Path path = lexiconFile.toAbsolutePath().normalize();
+            BasicFileAttributes lexiconAttributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!lexiconIdentity.isEmpty()) {
+                lexiconIdentity.append(';');
+            }
+            lexiconIdentity.append(path).append(',').append(lexiconAttributes.size()).append(',')
+                    .append(lexiconAttributes.lastModifiedTime());
+        }
+        String lexicon = lexiconIdentity.toString();
+
+        StringJoiner kinds = new StringJoiner(";");
+        if (groups != null) {
+            kinds.add("groups=" + groups.getBucket().getSeconds());
+        }
+        if (ranking != null) {
+            kinds.add("top=" + ranking.getTop() + (ranking.keepsScores() ? ",scores" : ""));
+        }
+        String aggregates = kinds.toString();
+
+        if (Files.exists(checkpointFile)) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(checkpointFile)))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION
+                        && file.toString().equals(in.readUTF())
+                        && identity.equals(in.readUTF())
+                        && lexicon.equals(in.readUTF())
+                        && aggregates.equals(in.readUTF())) {
+                    return new AnalysisCheckpoint(checkpointFile, file, lexicon, identity, aggregates, interval,
+                            groups, ranking, in);
+                }
+            } catch (EOFException e) {
+                // too short for a header, so not a checkpoint of this version
+            }
+
+            System.out.println("The checkpoint " + checkpointFile + " is for another file, version, lexicon"
+                    + " or aggregates - analysing from the start");
+        }
+
+        long[] bounds;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            bounds = MemoryMappedFileParser.splitRanges(channel, ranges);
+        }
+
+        return new AnalysisCheckpoint(checkpointFile, file, lexicon, identity, aggregates, interval,
+                groups, ranking, bounds);
+    }
+
+    /**
+     * Constructs the checkpoint of a new analysis.
+     */
+    private AnalysisCheckpoint(Path checkpointFile, Path input, String lexicon, String identity, String aggregates,
+                               Duration interval, TweetGroups groups, TweetRanking ranking, long[] bounds) {
+        this.checkpointFile = checkpointFile;
+        this.input = input;
+        this.lexicon = lexicon;
+        this.identity = identity;
+        this.aggregates = aggregates;
+        this.interval = interval.toNanos();
+        this.groups = groups;
+        this.ranking = ranking;
+        this.ranked = ranking == null ? null : ranking.part();
+
+        int ranges = bounds.length - 1;
+        this.starts = new long[ranges];
+        this.ends = new long[ranges];
+        this.next = new long[ranges];
+        this.tweets = new long[ranges];
+        this.scores = new long[ranges];
+        this.resumed = false;
+
+        for (int r = 0; r < ranges; r++) {
+            starts[r] = bounds[r];
+            next[r] = bounds[r];
+            ends[r] = bounds[r + 1];
+        }
+    }
+
+    /**
+     * Constructs the checkpoint of a resumed analysis, from the rest of the checkpoint file
+     * after its header.
+     */
+    private AnalysisCheckpoint(Path checkpointFile, Path input, String lexicon, String identity, String aggregates,
+                               Duration interval, TweetGroups groups, TweetRanking ranking, DataInputStream in)
+            throws IOException {
+        this.checkpointFile = checkpointFile;
+        this.input = input;
+        this.lexicon = lexicon;
+        this.identity = identity;
+        this.aggregates = aggregates;
+        this.interval = interval.toNanos();
+        this.groups = groups;
+        this.ranking = ranking;
+        this.ranked = ranking == null ? null : ranking.part();
+
+        try {
+            int ranges = in.readInt();
+            this.starts = new long[ranges];
+            this.ends = new long[ranges];
+            this.next = new long[ranges];
+            this.tweets = new long[ranges];
+            this.scores = new long[ranges];
+
+            for (int r = 0; r < ranges; r++) {
+                starts[r] = in.readLong();
+                ends[r] = in.readLong();
+                next[r] = in.readLong();
+                tweets[r] = in.readLong();
+                scores[r] = in.readLong();
+
+                if (next[r] < starts[r] || next[r] > ends[r]) {
+                    throw new IllegalArgumentException("Offset out of its range: " + next[r]);
+                }
+            }
+
+            if (groups != null) {
+                loadGroups(in);
+            }
+            if (ranking != null) {
+                loadRanking(in);
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new IOException("Invalid checkpoint file: " + checkpointFile, e);
+        }
+        this.resumed = true;
+    }
+
+    /**
+     * Adds the groups saved to the checkpoint file to the groups of the analysis. For each
+     * kind there's the number of groups, then each group: its key, whether it has a name and
+     * the name, its number of tweets, its score, and its histogram.
+     *
+     * @param in the checkpoint file.
+     * @throws IOException if the checkpoint file couldn't be read.
+     */
+    private void loadGroups(DataInputStream in) throws IOException {
+        for (TweetGroups.Kind kind : TweetGroups.Kind.values()) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long key = in.readLong();
+                String name = in.readBoolean() ? in.readUTF() : null;
+                long groupTweets = in.readLong();
+                long score = in.readLong();
+                long[] histogram = new long[GroupTable.BINS];
+                for (int b = 0; b < GroupTable.BINS; b++) {
+                    histogram[b] = in.readLong();
+                }
+                groups.add(kind, key, name, groupTweets, score, histogram);
+            }
+        }
+    }
+
+    /**
+     * Adds the ranked tweets and the counts of the scores saved to the checkpoint file to
+     * the ranked part of the analysis: the number and then the tweets (tweetId, offset, score,
+     * matches) at each end, the number of tweets, and the number of scores and then each score
+     * with its count.
+     *
+     * @param in the checkpoint file.
+     * @throws IOException if the checkpoint file couldn't be read.
+     */
+    private void loadRanking(DataInputStream in) throws IOException {
+        for (int end = 0; end < 2; end++) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ranked.add(new TweetRanking.RankedTweet(in.readLong(), in.readLong(), in.readInt(), in.readInt()));
+            }
+        }
+
+        long rankedTweets = in.readLong();
+        int counts = in.readInt();
+        for (int i = 0; i < counts; i++) {
+            ranked.add(in.readInt(), in.readLong());
+        }
+        if (!ranking.keepsScores()) {
+            // only the number of tweets is kept, not their scores
+            ranked.add(0, rankedTweets);
+        }
+    }
+
+    /**
+     * Returns whether the checkpoint was loaded from an earlier analysis.
+     *
+     * @return true if the analysis is resumed.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Returns the input file, as it's identified in the checkpoint.
+     *
+     * @return the absolute path of the input file.
+     */
+    public Path getInput() {
+        return input;
+    }
+
+    /**
+     * Returns the number of ranges of the input.
+     *
+     * @return the number of ranges.
+     */
+    public int getRanges() {
+        return starts.length;
+    }
+
+    /**
+     * Returns the offset of the first line of a range not scored yet.
+     *
+     * @param range the index of the range.
+     * @return the offset, or the end of the range if the whole range is scored.
+     */
+    public synchronized long getNext(int range) {
+        return next[range];
+    }
+
+    /**
+     * Returns the start of a range.
+     *
+     * @param range the index of the range.
+     * @return the start of the range (inclusive).
+     */
+    public long getStart(int range) {
+        return starts[range];
+    }
+
+    /**
+     * Returns the number of tweets of a range scored so far.
+     *
+     * @param range the index of the range.
+     * @return the number of tweets.
+     */
+    public synchronized long getTweets(int range) {
+        return tweets[range];
+    }
+
+    /**
+     * Returns the end of a range.
+     *
+     * @param range the index of the range.
+     * @return the end of the range (exclusive).
+     */
+    public long getEnd(int range) {
+        return ends[range];
+    }
+
+    /**
+     * Returns the number of bytes of the input scored so far.
+     *
+     * @return the number of bytes.
+     */
+    public synchronized long getScoredBytes() {
+        long bytes = 0;
+        for (int r = 0; r < starts.length; r++) {
+            bytes += next[r] - starts[r];
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of tweets scored so far.
+     *
+     * @return the number of tweets.
+     */
+    public synchronized long getTweets() {
+        long total = 0;
+        for (long count : tweets) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the total score of the tweets scored so far.
+     *
+     * @return the total score.
+     */
+    public synchronized long getScore() {
+        long total = 0;
+        for (long score : scores) {
+            total += score;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the ranking of the analysis.
+     *
+     * @return the ranking, or null if the tweets aren't ranked.
+     */
+    public TweetRanking getRanking() {
+        return ranking;
+    }
+
+    /**
+     * Creates the empty groups a range adds its tweets to between two reports.
+     *
+     * @return the groups, or null if the tweets aren't grouped.
+     */
+    public TweetGroups newGroups() {
+        return groups == null ? null : new TweetGroups(groups.getBucket());
+    }
+
+    /**
+     * Creates the empty part of the ranking a range adds its tweets to between two reports.
+     *
+     * @return the part, or null if the tweets aren't ranked.
+     */
+    public TweetRanking.Part newRanked() {
+        return ranking == null ? null : ranking.part();
+    }
+
+    /**
+     * Adds the ranked tweets of every range to the ranking, and closes it - once every range
+     * is scored.
+     *
+     * @throws IOException if the scores couldn't be merged.
+     */
+    public void closeRanking() throws IOException {
+        if (ranking != null) {
+            ranking.add(ranked);
+            ranking.close();
+        }
+    }
+
+    /**
+     * Records the progress of a range, and saves the checkpoint if the interval is up
+     * (and no other range is saving it already). The groups and the ranked part of the
+     * tweets scored since the last progress are added to the aggregates of the checkpoint,
+     * and emptied.
+     *
+     * @param range     the index of the range.
+     * @param nextLine  the offset of the first line of the range not scored yet.
+     * @param newTweets the number of tweets scored since the last progress of the range.
+     * @param newScore  the total score of those tweets.
+     * @param newGroups the groups of those tweets, or null if the tweets aren't grouped.
+     * @param newRanked the ranked part of those tweets, or null if the tweets aren't ranked.
+     * @throws IOException if the checkpoint couldn't be saved.
+     */
+    public void progress(int range, long nextLine, long newTweets, long newScore, TweetGroups newGroups,
+                         TweetRanking.Part newRanked) throws IOException {
+        synchronized (this) {
+            next[range] = nextLine;
+            tweets[range] += newTweets;
+            scores[range] += newScore;
+
+            if (newGroups != null) {
+                groups.addAll(newGroups);
+                newGroups.clear();
+            }
+            if (newRanked != null) {
+                ranked.addAll(newRanked);
+                newRanked.clear();
+            }
+        }
+
+        if (System.nanoTime() - lastSaved >= interval && saving.tryLock()) {
+            try {
+                if (System.nanoTime() - lastSaved >= interval) {
+                    save();
+                }
+            } finally {
+                saving.unlock();
+            }
+        }
+    }
+
+    /**
+     * Saves the checkpoint now. The file is forced to the disk, and replaces the previous
+     * one atomically.
+     *
+     * @throws IOException if the checkpoint couldn't be saved.
+     */
+    public void save() throws IOException {
+        // the progress is read while saving, so an older checkpoint never replaces a newer one
+        saving.lock();
+        try {
+            long[] savedNext;
+            long[] savedTweets;
+            long[] savedScores;
+            TweetGroups savedGroups = null;
+            TweetRanking.Part savedRanked = null;
+
+            // only copies are taken while the ranges are held up; the groups are merged and written from the copy
+            synchronized (this) {
+                savedNext = next.clone();
+                savedTweets = tweets.clone();
+                savedScores = scores.clone();
+
+                if (groups != null) {
+                    savedGroups = groups.copy();
+                }
+                if (ranking != null) {
+                    savedRanked = ranking.part();
+                    savedRanked.addAll(ranked);
+                }
+            }
+
+            Path parent = checkpointFile.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+
+            Path temporary = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                 DataOutputStream out = new DataOutputStream(
+                         new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(input.toString());
+                out.writeUTF(identity);
+                out.writeUTF(lexicon);
+                out.writeUTF(aggregates);
+
+                out.writeInt(starts.length);
+                for (int r = 0; r < starts.length; r++) {
+                    out.writeLong(starts[r]);
+                    out.writeLong(ends[r]);
+                    out.writeLong(savedNext[r]);
+                    out.writeLong(savedTweets[r]);
+                    out.writeLong(savedScores[r]);
+                }
+
+                if (savedGroups != null) {
+                    saveGroups(savedGroups, out);
+                }
+                if (savedRanked != null) {
+                    saveRanking(savedRanked, out);
+                }
+
+                // on the disk before it replaces the previous checkpoint, or a crash could leave neither
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            lastSaved = System.nanoTime();
+        } finally {
+            saving.unlock();
+        }
+    }
+
+    /**
+     * Writes groups to the checkpoint file, in the format of loadGroups.
+     *
+     * @param savedGroups the copy of the groups of the analysis.
+     * @param out         the checkpoint file.
+     * @throws IOException if the checkpoint file couldn't be written.
+     */
+    private static void saveGroups(TweetGroups savedGroups, DataOutputStream out) throws IOException {
+        Map<TweetGroups.Kind, GroupTable> merged = savedGroups.merge();
+        for (TweetGroups.Kind kind : TweetGroups.Kind.values()) {
+            GroupTable table = merged.get(kind);
+            out.writeInt(table.size());
+
+            try {
+                table.forEach((key, name, count, score, histogram) -> {
+                    try {
+                        out.writeLong(key);
+                        out.writeBoolean(name != null);
+                        if (name != null) {
+                            out.writeUTF(name);
+                        }
+                        out.writeLong(count);
+                        out.writeLong(score);
+                        for (long bin : histogram) {
+                            out.writeLong(bin);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Writes a ranked part to the checkpoint file, in the format of loadRanking.
+     *
+     * @param savedRanked the copy of the ranked part of the analysis.
+     * @param out         the checkpoint file.
+     * @throws IOException if the checkpoint file couldn't be written.
+     */
+    private static void saveRanking(TweetRanking.Part savedRanked, DataOutputStream out) throws IOException {
+        for (List<TweetRanking.RankedTweet> end : List.of(savedRanked.getMostPositive(),
+                savedRanked.getMostNegative())) {
+            out.writeInt(end.size());
+            for (TweetRanking.RankedTweet tweet : end) {
+                out.writeLong(tweet.tweetId());
+                out.writeLong(tweet.offset());
+                out.writeInt(tweet.score());
+                out.writeInt(tweet.matches());
+            }
+        }
+
+        out.writeLong(savedRanked.getTweets());
+        Map<Integer, Long> counts = savedRanked.getScoreCounts();
+        out.writeInt(counts.size());
+        for (Map.Entry<Integer, Long> count : counts.entrySet()) {
+            out.writeInt(count.getKey());
+            out.writeLong(count.getValue());
+        }
+    }
+}
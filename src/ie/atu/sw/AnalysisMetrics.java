@@ -0,0 +1,328 @@
+package ie.atu.sw;
+
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide metrics of the analyses: the time spent in each stage, the lines and
+ * tokens parsed, the lexicon hit rate, the depths of the queues between the stages,
+ * and the latencies of the scoring calls.
+ *
+ * The stages record their own time, so when stages overlap (the words of one batch are
+ * scored while the next batch is being parsed) each stage's time is the time spent in it
+ * summed over all the threads, and the ANALYSIS stage holds the wall time of whole runs.
+ *
+ * The counters (the queue depths included) are only updated while the metrics are enabled
+ * (with setEnabled, or the sentiment.metrics system property); while they're disabled,
+ * recording costs a single read of a volatile flag. Independently of that, every stage and
+ * scoring call is also recorded as a JFR event (StageEvent, ScoringCallEvent), which JFR
+ * only commits while a recording has the event enabled. A stage or call is timed by the
+ * Timer started when it starts, so its event has the duration of the stage in JFR.
+ * The periodic QueueDepthEvent reports the queue depths counted while the metrics are enabled.
+ *
+ * It's thread-safe.
+ */
+public final class AnalysisMetrics {
+    /**
+     * A stage of an analysis.
+     */
+    public enum Stage {
+        PARSE, LEXICON_LOAD, SCORING, WRITE, ANALYSIS
+    }
+
+    /**
+     * The metrics at a point in time.
+     *
+     * @param nanoTime        the System.nanoTime of the snapshot.
+     * @param stageNanos      the time spent in each stage, indexed by Stage.ordinal.
+     * @param stageCalls      the number of times each stage has run.
+     * @param stageItems      the number of items each stage has handled.
+     * @param lines           the number of lines parsed.
+     * @param tokens          the number of tokens (words) parsed.
+     * @param lookups         the number of words looked up in a lexicon.
+     * @param hits            the number of looked up words that had a score.
+     * @param parserBatches   the number of parsed batches waiting for or being handled by the consumer.
+     * @param scoringCalls    the number of scoring calls in flight.
+     * @param outputRecords   the number of output records waiting to be written.
+     * @param scoringLatency  the number of scoring calls, and their mean, p50, p90, p99 and maximum
+     *                        latencies in nanoseconds.
+     */
+    public record Snapshot(long nanoTime, long[] stageNanos, long[] stageCalls, long[] stageItems,
+                           long lines, long tokens, long lookups, long hits,
+                           long parserBatches, long scoringCalls, long outputRecords,
+                           long[] scoringLatency) {
+        /**
+         * Returns the share of the looked up words that had a score.
+         *
+         * @return the hit rate, from 0 to 1.
+         */
+        public double hitRate() {
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+    }
+
+    /**
+     * Whether the counters are updated.
+     */
+    private static volatile boolean enabled = Boolean.getBoolean("sentiment.metrics");
+
+    private static final AnalysisMetrics shared = new AnalysisMetrics();
+
+    private final LongAdder[] stageNanos = adders(Stage.values().length);
+    private final LongAdder[] stageCalls = adders(Stage.values().length);
+    private final LongAdder[] stageItems = adders(Stage.values().length);
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder parserBatches = new LongAdder();
+    private final LongAdder scoringCalls = new LongAdder();
+    private final LongAdder outputRecords = new LongAdder();
+    private final LatencyHistogram scoringLatency = new LatencyHistogram();
+
+    static {
+        // the hook only runs while a recording has the event enabled
+        FlightRecorder.addPeriodicEvent(QueueDepthEvent.class, () -> {
+            QueueDepthEvent event = new QueueDepthEvent();
+            event.parserBatches = shared.parserBatches.sum();
+            event.scoringCalls = shared.scoringCalls.sum();
+            event.outputRecords = shared.outputRecords.sum();
+            event.commit();
+        });
+    }
+
+    /**
+     * The start of a stage or a scoring call: its System.nanoTime, and its JFR event,
+     * begun if a recording has the event enabled.
+     */
+    public static final class Timer {
+        private final Event event;
+        private final long startNanos;
+
+        private Timer(Event event) {
+            if (event.isEnabled()) {
+                event.begin();
+                this.event = event;
+            } else {
+                this.event = null;
+            }
+            this.startNanos = System.nanoTime();
+        }
+    }
+
+    private AnalysisMetrics() {
+    }
+
+    /**
+     * Returns the metrics of the whole process.
+     *
+     * @return the shared metrics.
+     */
+    public static AnalysisMetrics shared() {
+        return shared;
+    }
+
+    /**
+     * Checks whether the counters are updated.
+     *
+     * @return true, if the metrics are enabled, false otherwise.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables updating the counters. The JFR events don't depend on it.
+     *
+     * @param enabled whether the counters are updated.
+     */
+    public static void setEnabled(boolean enabled) {
+        AnalysisMetrics.enabled = enabled;
+    }
+
+    /**
+     * Starts timing a stage.
+     *
+     * @return the timer, to be passed to recordStage once the stage has finished.
+     */
+    public Timer startStage() {
+        return new Timer(new StageEvent());
+    }
+
+    /**
+     * Records that a stage has finished.
+     *
+     * @param stage  the stage.
+     * @param source the file the stage worked on, or null if unknown.
+     * @param timer  the timer started when the stage started.
+     * @param items  the number of items the stage handled.
+     */
+    public void recordStage(Stage stage, String source, Timer timer, long items) {
+        if (enabled) {
+            stageNanos[stage.ordinal()].add(System.nanoTime() - timer.startNanos);
+            stageCalls[stage.ordinal()].increment();
+            stageItems[stage.ordinal()].add(items);
+        }
+
+        if (timer.event instanceof StageEvent event) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = stage.name();
+                event.source = source;
+                event.items = items;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Records parsed lines and their tokens.
+     *
+     * @param lineCount  the number of lines.
+     * @param tokenCount the number of tokens.
+     */
+    public void recordParsed(long lineCount, long tokenCount) {
+        if (enabled) {
+            lines.add(lineCount);
+            tokens.add(tokenCount);
+        }
+    }
+
+    /**
+     * Records words looked up in a lexicon.
+     *
+     * @param lookupCount the number of words looked up.
+     * @param hitCount    the number of them that had a score.
+     */
+    public void recordLookups(long lookupCount, long hitCount) {
+        if (enabled) {
+            lookups.add(lookupCount);
+            hits.add(hitCount);
+        }
+    }
+
+    /**
+     * Starts timing a scoring call.
+     *
+     * @return the timer, to be passed to recordScoringCall once the call has finished.
+     */
+    public Timer startScoringCall() {
+        return new Timer(new ScoringCallEvent());
+    }
+
+    /**
+     * Records a finished scoring call.
+     *
+     * @param timer     the timer started when the call started.
+     * @param words     the number of words of the call.
+     * @param requests  the number of requests sent for the call.
+     * @param succeeded whether the call succeeded.
+     */
+    public void recordScoringCall(Timer timer, int words, int requests, boolean succeeded) {
+        if (enabled) {
+            scoringLatency.record(System.nanoTime() - timer.startNanos);
+        }
+
+        if (timer.event instanceof ScoringCallEvent event) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.words = words;
+                event.requests = requests;
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Changes the number of parsed batches waiting for or being handled by the consumer.
+     *
+     * @param delta the change.
+     */
+    public void addParserBatches(long delta) {
+        if (enabled) {
+            parserBatches.add(delta);
+        }
+    }
+
+    /**
+     * Changes the number of scoring calls in flight.
+     *
+     * @param delta the change.
+     */
+    public void addScoringCalls(long delta) {
+        if (enabled) {
+            scoringCalls.add(delta);
+        }
+    }
+
+    /**
+     * Changes the number of output records waiting to be written.
+     *
+     * @param delta the change.
+     */
+    public void addOutputRecords(long delta) {
+        if (enabled) {
+            outputRecords.add(delta);
+        }
+    }
+
+    /**
+     * Returns the current metrics.
+     *
+     * @return the snapshot.
+     */
+    public Snapshot snapshot() {
+        int stages = Stage.values().length;
+        long[] nanos = new long[stages];
+        long[] calls = new long[stages];
+        long[] items = new long[stages];
+
+        for (int i = 0; i < stages; i++) {
+            nanos[i] = stageNanos[i].sum();
+            calls[i] = stageCalls[i].sum();
+            items[i] = stageItems[i].sum();
+        }
+
+        long[] latency = {scoringLatency.getCount(), Math.round(scoringLatency.getMean()),
+                scoringLatency.getPercentile(50), scoringLatency.getPercentile(90),
+                scoringLatency.getPercentile(99), scoringLatency.getMax()};
+
+        return new Snapshot(System.nanoTime(), nanos, calls, items, lines.sum(), tokens.sum(),
+                lookups.sum(), hits.sum(), parserBatches.sum(), scoringCalls.sum(), outputRecords.sum(), latency);
+    }
+
+    /**
+     * Resets the counters and the latency histogram. The queue depths are kept,
+     * as they describe work that is still in progress.
+     */
+    public void reset() {
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i].reset();
+            stageCalls[i].reset();
+            stageItems[i].reset();
+        }
+        lines.reset();
+        tokens.reset();
+        lookups.reset();
+        hits.reset();
+        scoringLatency.reset();
+    }
+
+    /**
+     * Creates the given number of adders.
+     *
+     * @param count the number of adders.
+     * @return the adders.
+     */
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+
+        return adders;
+    }
+}
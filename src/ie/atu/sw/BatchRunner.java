@@ -0,0 +1,1032 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+/**
+ * The non-interactive (headless) driver class.
+ *
+ * Runs one analysis given on the command line, or many analyses listed in a job
+ * manifest, in a single JVM - without the menu, and without touching Swing/AWT,
+ * so it starts fast and works on servers without a display.
+ *
+ * Usage:
+ * <pre>
+ *   BatchRunner --input tweets.txt --lexicon lexicon.csv --stopwords stop.txt [options]
+ *   BatchRunner --manifest jobs.csv [options]
+ *   BatchRunner --compile --lexicon lexicon.csv --stopwords stop.txt --output lexicon.bin
+ *   BatchRunner --follow --input tweets.txt --lexicon lexicon.csv --stopwords stop.txt [options]
+ *   BatchRunner --serve --lexicon lexicon.csv --stopwords stop.txt [--port 8080] [options]
+ *   BatchRunner --worker [--port 9000] [options]
+ * </pre>
+ *
+ * Each line of a manifest is one analysis: input,lexicon,stopwords[,output[,tweet-scores[,format]]].
+ * An input may also be a directory or a glob pattern (e.g. "shards/*.txt"), to analyze many files
+ * at once - see MultiFileAnalyzer.
+ * Empty lines and lines starting with '#' are skipped.
+ *
+ * With --workers N (or --connect to running workers), the analyses are split into shards
+ * that are scored by worker JVMs - see ShardCoordinator.
+ */
+public class BatchRunner {
+    /**
+     * The analyses succeeded.
+     */
+    public static final int EXIT_OK = 0;
+    /**
+     * At least one analysis failed.
+     */
+    public static final int EXIT_FAILED = 1;
+    /**
+     * The command line or the manifest is invalid.
+     */
+    public static final int EXIT_USAGE = 2;
+    /**
+     * An input file is missing or couldn't be read.
+     */
+    public static final int EXIT_IO = 3;
+
+    /**
+     * The default output file, the same one the menu writes to.
+     */
+    private static final String DEFAULT_OUTPUT = "Output/out.txt";
+
+    private static final String USAGE = """
+            Usage:
+              BatchRunner --input <file> --lexicon <file> [--stopwords <file>] [options]
+              BatchRunner --manifest <file> [options]
+              BatchRunner --compile --lexicon <file> --stopwords <file> --output <file>
+              BatchRunner --follow --input <file> --lexicon <file> [--stopwords <file>] [options]
+              BatchRunner --serve --lexicon <file> [--stopwords <file>] [--port <n>] [options]
+              BatchRunner --worker [--port <n>] [options]
+
+            Options:
+              --output <file>         the file the total scores are appended to (default Output/out.txt)
+              --tweet-scores <file>   also write the score of every tweet to this file
+              --format binary|csv     the format of the tweet scores file (default binary)
+              --parallelism <n>       the number of threads scoring each batch or file (default 64)
+              --jobs <n>              the number of manifest analyses run at the same time (default 4)
+              --no-latency            score straight from the lexicon, without the simulated service
+              --cache <n>             score duplicate tweets (e.g. retweets) once, caching up to n tweets
+              --groups <file>         also write the scores grouped by hashtag, mention and time bucket
+              --bucket <s>            with --groups, the seconds of each time bucket (default 3600)
+              --top <n>               also print the n most positive and n most negative tweets
+              --percentiles <p,...>   also print the exact percentiles of the tweet scores (e.g. 50,90,99)
+              --spill-after <n>       with --percentiles, the scores held in memory before sorted runs
+                                      are spilled to disk (default an eighth of the heap)
+              --checkpoint <file>     with --follow, where the read offset is saved (default <input>.checkpoint);
+                                      with a single --input, save the progress to (and resume from) this file
+              --checkpoint-interval <s>  with --checkpoint, the seconds between two saves (default 10)
+              --window <s>            with --follow, the seconds of each reported window (default 60)
+              --port <n>              with --serve or --worker, the local port to listen on
+                                      (default 8080 for --serve, any free port for --worker)
+              --workers <n>           split the analyses into shards scored by n worker JVMs
+              --connect <host:port,...>  split the analyses into shards scored by running workers
+              --metrics text|json     dump the stage metrics periodically and when done
+              --metrics-interval <s>  the seconds between two metrics dumps (default 10)
+              --metrics-file <file>   append the metrics dumps to this file (default standard error)
+
+            A manifest has one analysis per line:
+              input,lexicon,stopwords[,output[,tweet-scores[,format]]]
+
+            An input may be a directory or a glob pattern (e.g. "shards/*.txt"): the total of
+            every file and the overall total are written.
+
+            Exit codes: 0 success, 1 analysis failed, 2 invalid usage, 3 missing or unreadable file
+            """;
+
+    /**
+     * A single analysis to run.
+     */
+    private record Analysis(String input, String lexicon, String stopwords, String output,
+                            String tweetScores, TweetScoreOutput.Format format) {
+    }
+
+    /**
+     * The driver method.
+     *
+     * @param args the command line arguments (see the class description).
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs the analyses given by the command line arguments.
+     *
+     * @param args the command line arguments (see the class description).
+     * @return the exit code.
+     */
+    public static int run(String[] args) {
+        Map<String, String> options;
+        try {
+            options = parseOptions(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            return EXIT_USAGE;
+        }
+
+        MetricsReporter reporter = null;
+
+        try {
+            if (options.containsKey("--compile")) {
+                return compile(options);
+            }
+            if (options.containsKey("--worker")) {
+                return worker(options);
+            }
+            if (options.containsKey("--serve")) {
+                reporter = startMetrics(options);
+                return serve(options);
+            }
+
+            List<Analysis> analyses = options.containsKey("--manifest")
+                    ? readManifest(options.get("--manifest"), options)
+                    : List.of(analysisFromOptions(options));
+
+            reporter = startMetrics(options);
+
+            if (options.containsKey("--follow")) {
+                return follow(analyses.get(0), options);
+            }
+
+            return runAll(analyses, options);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            return EXIT_USAGE;
+        } catch (IOException e) {
+            System.err.println("Error reading or writing files: " + e);
+            return EXIT_IO;
+        } finally {
+            // writes the final dump
+            if (reporter != null) {
+                reporter.close();
+            }
+        }
+    }
+
+    /**
+     * Starts dumping the metrics, if asked to by the options or the system properties.
+     *
+     * @param options the options.
+     * @return the reporter, or null if the metrics aren't dumped.
+     * @throws IOException if the metrics file couldn't be opened.
+     */
+    private static MetricsReporter startMetrics(Map<String, String> options) throws IOException {
+        if (!options.containsKey("--metrics")) {
+            return MetricsReporter.fromSystemProperties();
+        }
+
+        MetricsReporter.Format format;
+        try {
+            format = MetricsReporter.Format.valueOf(options.get("--metrics").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown metrics format: " + options.get("--metrics"));
+        }
+
+        Duration interval = Duration.ofSeconds(positive(options.getOrDefault("--metrics-interval", "10"),
+                "--metrics-interval"));
+        String file = options.get("--metrics-file");
+
+        return file == null
+                ? new MetricsReporter(AnalysisMetrics.shared(), interval, format, System.err)
+                : MetricsReporter.toFile(AnalysisMetrics.shared(), interval, format, Paths.get(file));
+    }
+
+    /**
+     * Parses the command line arguments into a map of options to values.
+     * Flags (options without a value) are mapped to an empty String.
+     *
+     * @param args the command line arguments.
+     * @return the options.
+     * @throws IllegalArgumentException if an option is unknown or has no value.
+     */
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+
+            switch (option) {
+                case "--compile", "--no-latency", "--follow", "--serve", "--worker" -> options.put(option, "");
+                case "--input", "--lexicon", "--stopwords", "--output", "--tweet-scores", "--format",
+                        "--parallelism", "--jobs", "--manifest", "--metrics", "--metrics-interval",
+                        "--metrics-file", "--checkpoint", "--window", "--cache", "--port", "--workers", "--connect",
+                        "--parent-pid", "--groups", "--bucket", "--top", "--percentiles", "--spill-after",
+                        "--checkpoint-interval" -> {
+                    if (i + 1 >= args.length) {
+                        throw new IllegalArgumentException("Missing value for " + option);
+                    }
+                    options.put(option, args[++i]);
+                }
+                default -> throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+
+        return options;
+    }
+
+    /**
+     * Compiles the lexicon given by the options.
+     *
+     * @param options the options.
+     * @return the exit code.
+     * @throws IOException if the files couldn't be read or written.
+     */
+    private static int compile(Map<String, String> options) throws IOException {
+        String lexicon = required(options, "--lexicon");
+        String stopwords = required(options, "--stopwords");
+        String output = required(options, "--output");
+
+        int words = SentimentScoreMapLoader.compileLexicon(lexicon, stopwords, output);
+        System.out.printf("Compiled %,d words into %s%n", words, output);
+
+        return EXIT_OK;
+    }
+
+    /**
+     * Creates the single analysis given by the options.
+     *
+     * @param options the options.
+     * @return the analysis.
+     */
+    private static Analysis analysisFromOptions(Map<String, String> options) {
+        return new Analysis(required(options, "--input"), required(options, "--lexicon"),
+                options.getOrDefault("--stopwords", ""), options.getOrDefault("--output", DEFAULT_OUTPUT),
+                options.get("--tweet-scores"), format(options.getOrDefault("--format", "binary")));
+    }
+
+    /**
+     * Reads the analyses listed in a manifest file.
+     *
+     * @param manifest the name of the manifest file.
+     * @param options  the options, for the default output file.
+     * @return the analyses.
+     * @throws IOException if the manifest couldn't be read.
+     */
+    private static List<Analysis> readManifest(String manifest, Map<String, String> options) throws IOException {
+        List<Analysis> analyses = new ArrayList<>();
+        int lineNumber = 0;
+
+        for (String line : Files.readAllLines(Paths.get(manifest))) {
+            lineNumber++;
+            line = line.trim();
+
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] parts = line.split(",", -1);
+            if (parts.length < 3 || parts.length > 6) {
+                throw new IllegalArgumentException("Invalid manifest line " + lineNumber + ": " + line);
+            }
+
+            analyses.add(new Analysis(parts[0].trim(), parts[1].trim(), parts[2].trim(),
+                    parts.length > 3 && !parts[3].isBlank()
+                            ? parts[3].trim() : options.getOrDefault("--output", DEFAULT_OUTPUT),
+                    parts.length > 4 && !parts[4].isBlank() ? parts[4].trim() : null,
+                    format(parts.length > 5 ? parts[5].trim() : "binary")));
+        }
+
+        if (analyses.isEmpty()) {
+            throw new IllegalArgumentException("The manifest has no analyses: " + manifest);
+        }
+
+        return analyses;
+    }
+
+    /**
+     * Runs the analyses as jobs, and waits for all of them to finish.
+     *
+     * @param analyses the analyses.
+     * @param options  the options.
+     * @return the exit code.
+     * @throws IOException if an input file is missing.
+     */
+    private static int runAll(List<Analysis> analyses, Map<String, String> options) throws IOException {
+        int parallelism = positive(options.getOrDefault("--parallelism", "64"), "--parallelism");
+        int maxJobs = positive(options.getOrDefault("--jobs", "4"), "--jobs");
+        boolean noLatency = options.containsKey("--no-latency");
+        int cacheSize = options.containsKey("--cache") ? positive(options.get("--cache"), "--cache") : 0;
+        TweetGroups groups = null;
+
+        if (options.containsKey("--groups")) {
+            if (options.containsKey("--manifest") || options.containsKey("--workers")
+                    || options.containsKey("--connect")) {
+                throw new IllegalArgumentException("--groups takes a single --input, without --workers or --connect");
+            }
+            groups = new TweetGroups(Duration.ofSeconds(positive(options.getOrDefault("--bucket",
+                    String.valueOf(TweetGroups.DEFAULT_BUCKET.getSeconds())), "--bucket")));
+        }
+
+        Supplier<TweetRanking> rankings = rankings(options);
+
+        if (options.containsKey("--checkpoint") && (options.containsKey("--manifest")
+                || MultiFileAnalyzer.isMultiFile(analyses.get(0).input()) || analyses.get(0).tweetScores() != null
+                || options.containsKey("--workers") || options.containsKey("--connect"))) {
+            throw new IllegalArgumentException("--checkpoint takes a single --input file, without --tweet-scores,"
+                    + " --workers or --connect");
+        }
+        Duration checkpointInterval = Duration.ofSeconds(positive(options.getOrDefault("--checkpoint-interval",
+                "10"), "--checkpoint-interval"));
+
+        // these read the input files by byte offset, which a compressed file hasn't got
+        boolean byOffset = rankings != null || options.containsKey("--checkpoint")
+                || options.containsKey("--workers") || options.containsKey("--connect");
+
+        // fail fast, before any analysis starts, if an input file is missing
+        for (Analysis analysis : analyses) {
+            List<Path> files;
+            if (MultiFileAnalyzer.isMultiFile(analysis.input())) {
+                if (analysis.tweetScores() != null || rankings != null) {
+                    throw new IllegalArgumentException("Tweet scores can't be written or ranked for many files: "
+                            + analysis.input());
+                }
+                files = MultiFileAnalyzer.resolve(analysis.input());
+            } else if (!Files.isReadable(Paths.get(analysis.input()))) {
+                throw new NoSuchFileException(analysis.input());
+            } else {
+                files = List.of(Paths.get(analysis.input()));
+            }
+
+            if (byOffset || analysis.tweetScores() != null) {
+                for (Path file : files) {
+                    if (GzipFileParser.isCompressed(file)) {
+                        throw new IllegalArgumentException("A compressed input can't be used with --tweet-scores,"
+                                + " --top, --percentiles, --checkpoint, --workers or --connect: " + file);
+                    }
+                }
+            }
+
+            if (!Files.isReadable(Paths.get(analysis.lexicon()))) {
+                throw new NoSuchFileException(analysis.lexicon());
+            }
+
+            // a compiled lexicon already holds the stopwords
+            if (analysis.stopwords().isEmpty() && !SentimentScoreMapLoader.isCompiledLexicon(analysis.lexicon())) {
+                throw new IllegalArgumentException("A stopwords file is needed with " + analysis.lexicon());
+            }
+        }
+
+        Map<Path, ResultsWriter> writers = new HashMap<>();
+        // the scores depend on the lexicon, so the analyses over the same lexicon share a cache
+        Map<List<String>, TweetScoreCache> caches = new HashMap<>();
+        List<JobScheduler.Job> jobs = new ArrayList<>();
+        int exitCode = EXIT_OK;
+
+        try (ShardCoordinator coordinator = startCoordinator(options, parallelism, noLatency, cacheSize);
+             JobScheduler scheduler = new JobScheduler(maxJobs, analyses.size())) {
+            for (Analysis analysis : analyses) {
+                Path outputPath = Paths.get(analysis.output()).toAbsolutePath();
+                ResultsWriter writer = writers.get(outputPath);
+                if (writer == null) {
+                    writer = openWriter(outputPath);
+                    writers.put(outputPath, writer);
+                }
+                ResultsWriter analysisWriter = writer;
+                TweetScoreCache cache = cacheSize == 0 ? null : caches.computeIfAbsent(
+                        List.of(analysis.lexicon(), analysis.stopwords()), k -> new TweetScoreCache(cacheSize));
+
+                TweetGroups analysisGroups = groups;
+                jobs.add(scheduler.submit(analysis.input(),
+                        () -> options.containsKey("--checkpoint")
+                                ? analyzeResumable(analysis, analysisWriter, parallelism, noLatency, cache,
+                                        analysisGroups, rankings, Paths.get(options.get("--checkpoint")),
+                                        checkpointInterval)
+                                : analyze(analysis, analysisWriter, parallelism, noLatency, cache, analysisGroups,
+                                        rankings, coordinator)));
+            }
+
+            for (JobScheduler.Job job : jobs) {
+                JobScheduler.Status status = awaitFinished(job);
+
+                if (status == JobScheduler.Status.SUCCEEDED) {
+                    System.out.println(job.getResult());
+                } else if (status != JobScheduler.Status.FAILED) {
+                    System.err.println("Analysis of " + job.getDescription() + " was " + status);
+                    exitCode = Math.max(exitCode, EXIT_FAILED);
+                } else {
+                    System.err.println("Analysis of " + job.getDescription() + " failed: " + job.getFailure());
+                    exitCode = job.getFailure() instanceof IOException ? Math.max(exitCode, EXIT_IO)
+                            : Math.max(exitCode, EXIT_FAILED);
+                }
+            }
+
+            for (Map.Entry<List<String>, TweetScoreCache> cache : caches.entrySet()) {
+                System.err.println("Score cache of " + cache.getKey().get(0) + ": " + cache.getValue());
+            }
+
+            if (groups != null && exitCode == EXIT_OK) {
+                Map<TweetGroups.Kind, Integer> sizes = groups.write(Paths.get(options.get("--groups")));
+                System.out.printf("Grouped into %,d hashtags, %,d mentions and %,d time buckets (%s)%n",
+                        sizes.get(TweetGroups.Kind.HASHTAG), sizes.get(TweetGroups.Kind.MENTION),
+                        sizes.get(TweetGroups.Kind.TIME), options.get("--groups"));
+            }
+        } finally {
+            for (ResultsWriter writer : writers.values()) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    System.err.println("Error writing results: " + e.getMessage());
+                    exitCode = EXIT_IO;
+                }
+            }
+        }
+
+        return exitCode;
+    }
+
+    /**
+     * Follows the input file of the analysis, scoring the lines appended to it, until the
+     * process is stopped (e.g. with Ctrl+C). The totals of each window are printed and
+     * appended to the output file.
+     *
+     * @param analysis the analysis.
+     * @param options  the options.
+     * @return the exit code.
+     * @throws IOException if the files couldn't be read, or the checkpoint couldn't be saved.
+     */
+    private static int follow(Analysis analysis, Map<String, String> options) throws IOException {
+        if (options.containsKey("--manifest") || analysis.tweetScores() != null
+                || MultiFileAnalyzer.isMultiFile(analysis.input())) {
+            throw new IllegalArgumentException("--follow takes a single --input file, without --tweet-scores");
+        }
+        if (GzipFileParser.isCompressed(Paths.get(analysis.input()))) {
+            throw new IllegalArgumentException("A compressed input can't be followed: " + analysis.input());
+        }
+
+        int parallelism = positive(options.getOrDefault("--parallelism", "64"), "--parallelism");
+        Duration window = Duration.ofSeconds(positive(options.getOrDefault("--window", "60"), "--window"));
+        String checkpoint = options.getOrDefault("--checkpoint", analysis.input() + ".checkpoint");
+
+        if (!Files.isReadable(Paths.get(analysis.lexicon()))) {
+            throw new NoSuchFileException(analysis.lexicon());
+        }
+        if (analysis.stopwords().isEmpty() && !SentimentScoreMapLoader.isCompiledLexicon(analysis.lexicon())) {
+            throw new IllegalArgumentException("A stopwords file is needed with " + analysis.lexicon());
+        }
+
+        Lexicon lexicon = LexiconCache.shared().get(analysis.lexicon(), analysis.stopwords());
+        TweetSentimentAnalyzer analyzer = newAnalyzer(lexicon, options.containsKey("--no-latency"),
+                options.containsKey("--cache") ? new TweetScoreCache(positive(options.get("--cache"), "--cache"))
+                        : null);
+
+        // on Ctrl+C, stop following, and wait until the checkpoint and the output are saved
+        CountDownLatch stopped = new CountDownLatch(1);
+
+        // the writer is closed even if the follower can't be created
+        try (ResultsWriter writer = new ResultsWriter(Paths.get(analysis.output()))) {
+            TweetFollower follower = new TweetFollower(analysis.input(), checkpoint, analyzer, window, parallelism,
+                    w -> {
+                        String windowData = String.format(
+                                "Window %s - %s: %,d tweets, score %,d (total: %,d tweets, score %,d) (%s)",
+                                w.start(), w.end(), w.tweets(), w.score(), w.totalTweets(), w.totalScore(),
+                                analysis.input());
+                        System.out.println(windowData);
+                        writer.write(windowData);
+                    });
+
+            Thread hook = new Thread(() -> {
+                follower.close();
+                try {
+                    stopped.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            Runtime.getRuntime().addShutdownHook(hook);
+
+            System.out.printf("Following %s from byte %,d (%,d tweets scored before)%n", analysis.input(),
+                    follower.getOffset(), follower.getTotalTweets());
+
+            try (follower) {
+                follower.run();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_FAILED;
+        } finally {
+            stopped.countDown();
+        }
+
+        return EXIT_OK;
+    }
+
+    /**
+     * Runs the scoring service until the process is stopped (e.g. with Ctrl+C).
+     * The lexicon is loaded once, and shared by all the requests.
+     *
+     * @param options the options.
+     * @return the exit code.
+     * @throws IOException if the lexicon couldn't be read, or the port couldn't be listened on.
+     */
+    private static int serve(Map<String, String> options) throws IOException {
+        if (options.containsKey("--input") || options.containsKey("--manifest")) {
+            throw new IllegalArgumentException("--serve takes no --input or --manifest; submit files to /jobs");
+        }
+
+        String lexiconFile = required(options, "--lexicon");
+        String stopwordsFile = options.getOrDefault("--stopwords", "");
+        int port = port(options.getOrDefault("--port", String.valueOf(ScoringServer.DEFAULT_PORT)));
+        int parallelism = positive(options.getOrDefault("--parallelism", "64"), "--parallelism");
+        int maxJobs = positive(options.getOrDefault("--jobs", "4"), "--jobs");
+
+        if (!Files.isReadable(Paths.get(lexiconFile))) {
+            throw new NoSuchFileException(lexiconFile);
+        }
+        if (stopwordsFile.isEmpty() && !SentimentScoreMapLoader.isCompiledLexicon(lexiconFile)) {
+            throw new IllegalArgumentException("A stopwords file is needed with " + lexiconFile);
+        }
+
+        Lexicon lexicon = LexiconCache.shared().get(lexiconFile, stopwordsFile);
+        TweetSentimentAnalyzer analyzer = newAnalyzer(lexicon, options.containsKey("--no-latency"),
+                options.containsKey("--cache") ? new TweetScoreCache(positive(options.get("--cache"), "--cache"))
+                        : null);
+
+        ScoringServer server = new ScoringServer(port, analyzer, lexiconFile, stopwordsFile, parallelism, maxJobs);
+        System.out.printf("Serving %s on http://localhost:%d/ (press Ctrl+C to stop)%n", lexiconFile,
+                server.getPort());
+
+        // on Ctrl+C, stop the server, and print the final stats
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(Duration.ofSeconds(5));
+            System.err.println(server.statsJson());
+            stopped.countDown();
+        }));
+
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return EXIT_FAILED;
+        }
+
+        return EXIT_OK;
+    }
+
+    /**
+     * Runs a shard worker until the process is stopped, or until the coordinator that
+     * started it (--parent-pid) exits.
+     *
+     * @param options the options.
+     * @return the exit code.
+     * @throws IOException if the port couldn't be listened on.
+     */
+    private static int worker(Map<String, String> options) throws IOException {
+        ShardWorker worker = new ShardWorker(port(options.getOrDefault("--port", "0")),
+                options.containsKey("--no-latency"),
+                positive(options.getOrDefault("--parallelism", "64"), "--parallelism"),
+                options.containsKey("--cache") ? positive(options.get("--cache"), "--cache") : 0);
+
+        // the coordinator reads the port from this line
+        System.out.println(ShardWorker.LISTENING + worker.getPort());
+        System.out.flush();
+
+        if (options.containsKey("--parent-pid")) {
+            long parent = positive(options.get("--parent-pid"), "--parent-pid");
+            ProcessHandle.of(parent).ifPresentOrElse(p -> p.onExit().thenRun(worker::close), worker::close);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(worker::close));
+
+        worker.run();
+        return EXIT_OK;
+    }
+
+    /**
+     * Starts the workers given by the options (--workers), or connects to them (--connect).
+     *
+     * @param options     the options.
+     * @param parallelism the number of threads scoring each batch of a shard.
+     * @param noLatency   whether to score straight from the lexicon.
+     * @param cacheSize   the number of tweet scores cached by each worker, or 0 for no cache.
+     * @return the coordinator of the workers, or null if the analyses aren't sharded.
+     * @throws IOException if a worker couldn't be started.
+     */
+    private static ShardCoordinator startCoordinator(Map<String, String> options, int parallelism,
+                                                     boolean noLatency, int cacheSize) throws IOException {
+        if (options.containsKey("--workers") && options.containsKey("--connect")) {
+            throw new IllegalArgumentException("--workers and --connect can't be used together");
+        }
+
+        if (options.containsKey("--connect")) {
+            List<InetSocketAddress> addresses = new ArrayList<>();
+            for (String address : options.get("--connect").split(",")) {
+                int colon = address.lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Invalid worker address (host:port): " + address);
+                }
+                addresses.add(new InetSocketAddress(address.substring(0, colon).trim(),
+                        port(address.substring(colon + 1).trim())));
+            }
+
+            return ShardCoordinator.connect(addresses, ShardCoordinator.DEFAULT_CONNECTIONS_PER_WORKER,
+                    ShardCoordinator.DEFAULT_SHARD_SIZE);
+        }
+
+        if (!options.containsKey("--workers")) {
+            return null;
+        }
+
+        List<String> workerOptions = new ArrayList<>(List.of("--parallelism", String.valueOf(parallelism)));
+        if (noLatency) {
+            workerOptions.add("--no-latency");
+        }
+        if (cacheSize > 0) {
+            workerOptions.addAll(List.of("--cache", String.valueOf(cacheSize)));
+        }
+
+        return ShardCoordinator.spawn(positive(options.get("--workers"), "--workers"), workerOptions,
+                ShardCoordinator.DEFAULT_CONNECTIONS_PER_WORKER, ShardCoordinator.DEFAULT_SHARD_SIZE);
+    }
+
+    /**
+     * Runs a single analysis, and queues its score to be written to its output file.
+     *
+     * @param analysis    the analysis.
+     * @param writer      the writer of the output file.
+     * @param parallelism the number of threads scoring each batch or file.
+     * @param noLatency   whether to score straight from the lexicon.
+     * @param cache       the cache of the tweet scores, or null for none.
+     * @param groups      the groups the scored tweets are added to, or null for none.
+     * @param rankings    creates the ranking of the tweets of the analysis, or null for none.
+     * @param coordinator the coordinator of the workers that score the shards, or null to score them here.
+     * @return the score message.
+     * @throws Exception if the analysis failed.
+     */
+    private static String analyze(Analysis analysis, ResultsWriter writer, int parallelism, boolean noLatency,
+                                  TweetScoreCache cache, TweetGroups groups, Supplier<TweetRanking> rankings,
+                                  ShardCoordinator coordinator) throws Exception {
+        if (coordinator != null) {
+            return analyzeSharded(analysis, coordinator, writer);
+        }
+
+        Lexicon lexicon = LexiconCache.shared().get(analysis.lexicon(), analysis.stopwords());
+        TweetSentimentAnalyzer analyzer = new TweetSentimentAnalyzer(lexicon,
+                noLatency ? null : TweetSentimentAnalyzer.simulatedScoringClient(lexicon), cache, groups);
+
+        if (MultiFileAnalyzer.isMultiFile(analysis.input())) {
+            // without the latency, each batch is scored on the worker, not on virtual threads
+            return writeFileScores(analysis,
+                    new MultiFileAnalyzer(analyzer, noLatency ? 1 : parallelism).analyze(analysis.input()), writer);
+        }
+
+        TweetRanking ranking = rankings == null ? null : rankings.get();
+        float totalScore = analysis.tweetScores() != null || ranking != null
+                ? analyzer.analyzeTweetScores(analysis.input(), analysis.tweetScores(), analysis.format(), parallelism,
+                        ranking)
+                : analyzer.analyzeStream(CorpusParser.forFile(analysis.input()), analysis.input(), parallelism, null);
+
+        String scoreData = String.format("Total score: %,.2f (%s, %s, %s)", totalScore,
+                analysis.input(), analysis.lexicon(), analysis.stopwords());
+        writer.write(scoreData);
+
+        String rankingData = ranking == null ? "" : describeRanking(analysis.input(), ranking);
+        if (!rankingData.isEmpty()) {
+            rankingData.lines().forEach(writer::write);
+            scoreData += System.lineSeparator() + rankingData;
+        }
+
+        return scoreData;
+    }
+
+    /**
+     * Runs a single analysis from its checkpoint (or from the start, if there's none for it),
+     * saving its progress as it goes, and queues its score to be written to its output file.
+     *
+     * @param analysis       the analysis, of a single input file.
+     * @param writer         the writer of the output file.
+     * @param parallelism    the number of ranges a new analysis splits the file into, and of chunks of a batch.
+     * @param noLatency      whether to score straight from the lexicon.
+     * @param cache          the cache of the tweet scores, or null for none.
+     * @param groups         the groups the scored tweets are added to (and saved with the checkpoint), or null.
+     * @param rankings       creates the ranking of the tweets of the analysis, or null for none.
+     * @param checkpointFile the checkpoint file.
+     * @param interval       the least time between two saves of the checkpoint.
+     * @return the score message.
+     * @throws Exception if the analysis failed.
+     */
+    private static String analyzeResumable(Analysis analysis, ResultsWriter writer, int parallelism,
+                                           boolean noLatency, TweetScoreCache cache, TweetGroups groups,
+                                           Supplier<TweetRanking> rankings, Path checkpointFile,
+                                           Duration interval) throws Exception {
+        Lexicon lexicon = LexiconCache.shared().get(analysis.lexicon(), analysis.stopwords());
+        TweetSentimentAnalyzer analyzer = newAnalyzer(lexicon, noLatency, cache);
+
+        List<Path> lexiconFiles = analysis.stopwords().isEmpty() ? List.of(Paths.get(analysis.lexicon()))
+                : List.of(Paths.get(analysis.lexicon()), Paths.get(analysis.stopwords()));
+        TweetRanking ranking = rankings == null ? null : rankings.get();
+        AnalysisCheckpoint checkpoint = AnalysisCheckpoint.open(checkpointFile, Paths.get(analysis.input()),
+                lexiconFiles, parallelism, interval, groups, ranking);
+        if (checkpoint.isResumed()) {
+            System.out.printf("Resuming from %s: %,d bytes and %,d tweets already scored%n", checkpointFile,
+                    checkpoint.getScoredBytes(), checkpoint.getTweets());
+        }
+
+        // without the latency, each batch is scored on the thread of its range, not on virtual threads
+        float totalScore = analyzer.analyzeResumable(checkpoint, noLatency ? 1 : parallelism);
+
+        String scoreData = String.format("Total score: %,.2f (%s, %s, %s)", totalScore,
+                analysis.input(), analysis.lexicon(), analysis.stopwords());
+        writer.write(scoreData);
+
+        String rankingData = ranking == null ? "" : describeRanking(analysis.input(), ranking);
+        if (!rankingData.isEmpty()) {
+            rankingData.lines().forEach(writer::write);
+            scoreData += System.lineSeparator() + rankingData;
+        }
+
+        return scoreData;
+    }
+
+    /**
+     * Creates the rankings given by the options (--top, --percentiles, --spill-after).
+     *
+     * @param options the options.
+     * @return creates a new ranking for each analysis, or null if no ranking is wanted.
+     * @throws IllegalArgumentException if an option is invalid, or the analyses are sharded.
+     */
+    private static Supplier<TweetRanking> rankings(Map<String, String> options) {
+        if (!options.containsKey("--top") && !options.containsKey("--percentiles")) {
+            return null;
+        }
+        if (options.containsKey("--workers") || options.containsKey("--connect")) {
+            throw new IllegalArgumentException("--top and --percentiles can't be used with --workers or --connect");
+        }
+
+        int top = options.containsKey("--top") ? positive(options.get("--top"), "--top") : 0;
+        double[] percentiles = new double[0];
+
+        if (options.containsKey("--percentiles")) {
+            String[] values = options.get("--percentiles").split(",");
+            percentiles = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                try {
+                    percentiles[i] = Double.parseDouble(values[i].trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid percentile: " + values[i]);
+                }
+            }
+        }
+
+        long spillAfter = options.containsKey("--spill-after")
+                ? positive(options.get("--spill-after"), "--spill-after")
+                : Runtime.getRuntime().maxMemory() / 8 / Integer.BYTES;
+
+        // checks the values once, before any analysis starts
+        double[] wanted = percentiles;
+        new TweetRanking(top, wanted, null, spillAfter);
+        return () -> new TweetRanking(top, wanted, null, spillAfter);
+    }
+
+    /**
+     * Describes a ranking: the most positive and most negative tweets, with their text read
+     * back from the input file, and the percentiles of the scores.
+     *
+     * @param input   the input file of the analysis.
+     * @param ranking the closed ranking.
+     * @return the description, one item per line.
+     * @throws IOException if the tweets couldn't be read back.
+     */
+    private static String describeRanking(String input, TweetRanking ranking) throws IOException {
+        StringBuilder data = new StringBuilder();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(input), StandardOpenOption.READ)) {
+            describeTweets(data, "Most positive tweets", input, ranking.getMostPositive(), channel);
+            describeTweets(data, "Most negative tweets", input, ranking.getMostNegative(), channel);
+        }
+
+        if (!ranking.getPercentiles().isEmpty()) {
+            data.append(String.format("Score percentiles of %s over %,d tweets:", input, ranking.getTweets()));
+            for (TweetRanking.Percentile percentile : ranking.getPercentiles()) {
+                data.append(String.format(Locale.ROOT, " p%s=%d",
+                        BigDecimal.valueOf(percentile.percentile()).stripTrailingZeros().toPlainString(),
+                        percentile.score()));
+            }
+            if (ranking.getSpilledRuns() > 0) {
+                data.append(String.format(" (sorted in %,d runs on disk)", ranking.getSpilledRuns()));
+            }
+            data.append(System.lineSeparator());
+        }
+
+        return data.toString().stripTrailing();
+    }
+
+    /**
+     * Appends a list of ranked tweets, one per line.
+     *
+     * @param data    the description to append to.
+     * @param title   the title of the list.
+     * @param input   the input file of the analysis.
+     * @param tweets  the ranked tweets.
+     * @param channel the channel of the input file.
+     * @throws IOException if the tweets couldn't be read back.
+     */
+    private static void describeTweets(StringBuilder data, String title, String input,
+                                       List<TweetRanking.RankedTweet> tweets, FileChannel channel)
+            throws IOException {
+        if (tweets.isEmpty()) {
+            return;
+        }
+
+        data.append(title).append(" of ").append(input).append(':').append(System.lineSeparator());
+        for (TweetRanking.RankedTweet tweet : tweets) {
+            data.append(String.format("  %+d (tweet %,d): %s", tweet.score(), tweet.tweetId(), tweet.text(channel)))
+                    .append(System.lineSeparator());
+        }
+    }
+
+    /**
+     * Creates the analyzer of an analysis.
+     *
+     * @param lexicon   the lexicon.
+     * @param noLatency whether to score straight from the lexicon, without the simulated service.
+     * @param cache     the cache of the tweet scores, or null for none.
+     * @return the analyzer.
+     */
+    private static TweetSentimentAnalyzer newAnalyzer(Lexicon lexicon, boolean noLatency, TweetScoreCache cache) {
+        return new TweetSentimentAnalyzer(lexicon,
+                noLatency ? null : TweetSentimentAnalyzer.simulatedScoringClient(lexicon), cache);
+    }
+
+    /**
+     * Runs an analysis on the workers of the coordinator, and queues its score (or the score
+     * of every file and the overall score) to be written to its output file.
+     *
+     * @param analysis    the analysis.
+     * @param coordinator the coordinator of the workers.
+     * @param writer      the writer of the output file.
+     * @return the score message (or messages, one per line).
+     * @throws Exception if the analysis failed.
+     */
+    private static String analyzeSharded(Analysis analysis, ShardCoordinator coordinator,
+                                         ResultsWriter writer) throws Exception {
+        boolean multiFile = MultiFileAnalyzer.isMultiFile(analysis.input());
+        List<Path> files = multiFile
+                ? MultiFileAnalyzer.resolve(analysis.input()) : List.of(Paths.get(analysis.input()));
+
+        // the workers may run in other directories
+        MultiFileAnalyzer.Result result = coordinator.analyze(files,
+                Paths.get(analysis.lexicon()).toAbsolutePath().toString(),
+                analysis.stopwords().isEmpty() ? "" : Paths.get(analysis.stopwords()).toAbsolutePath().toString(),
+                analysis.tweetScores() == null ? null : Paths.get(analysis.tweetScores()), analysis.format());
+
+        if (multiFile) {
+            return writeFileScores(analysis, result, writer);
+        }
+
+        String scoreData = String.format("Total score: %,.2f (%s, %s, %s)", (float) result.score(),
+                analysis.input(), analysis.lexicon(), analysis.stopwords());
+        writer.write(scoreData);
+
+        return scoreData;
+    }
+
+    /**
+     * Queues the score of every file of an analysis of many files, and the overall score,
+     * to be written to its output file.
+     *
+     * @param analysis the analysis, whose input is a directory or a glob pattern.
+     * @param result   the result of the analysis.
+     * @param writer   the writer of the output file.
+     * @return the score messages, one per line.
+     */
+    private static String writeFileScores(Analysis analysis, MultiFileAnalyzer.Result result,
+                                          ResultsWriter writer) {
+        StringBuilder scoreData = new StringBuilder();
+
+        for (MultiFileAnalyzer.FileScore file : result.files()) {
+            String fileData = String.format("Total score: %,.2f (%s, %s, %s)", (float) file.score(),
+                    file.file(), analysis.lexicon(), analysis.stopwords());
+            writer.write(fileData);
+            scoreData.append(fileData).append(System.lineSeparator());
+        }
+
+        String totalData = String.format("Overall score: %,d over %,d files and %,d tweets (%s, %s, %s)",
+                result.score(), result.files().size(), result.tweets(), analysis.input(), analysis.lexicon(),
+                analysis.stopwords());
+        writer.write(totalData);
+
+        return scoreData.append(totalData).toString();
+    }
+
+    /**
+     * Waits for the job to finish.
+     *
+     * @param job the job.
+     * @return the final status of the job.
+     */
+    private static JobScheduler.Status awaitFinished(JobScheduler.Job job) {
+        try {
+            return job.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return job.getStatus();
+        }
+    }
+
+    /**
+     * Opens the writer of an output file.
+     *
+     * @param path the output file.
+     * @return the writer.
+     * @throws IOException if the file couldn't be opened.
+     */
+    private static ResultsWriter openWriter(Path path) throws IOException {
+        try {
+            return new ResultsWriter(path);
+        } catch (IOException e) {
+            throw new IOException("Can't open the output file " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the value of a required option.
+     *
+     * @param options the options.
+     * @param option  the name of the option.
+     * @return the value.
+     * @throws IllegalArgumentException if the option is missing.
+     */
+    private static String required(Map<String, String> options, String option) {
+        String value = options.get(option);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing required option " + option);
+        }
+
+        return value;
+    }
+
+    /**
+     * Parses a port option.
+     *
+     * @param value the value of the option.
+     * @return the port, or 0 for any free port.
+     * @throws IllegalArgumentException if the value isn't a port.
+     */
+    private static int port(String value) {
+        try {
+            int port = Integer.parseInt(value);
+            if (port >= 0 && port <= 65535) {
+                return port;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+
+        throw new IllegalArgumentException("--port must be a port number: " + value);
+    }
+
+    /**
+     * Parses a positive whole number option.
+     *
+     * @param value  the value of the option.
+     * @param option the name of the option.
+     * @return the number.
+     * @throws IllegalArgumentException if the value isn't a positive number.
+     */
+    private static int positive(String value, String option) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+
+        throw new IllegalArgumentException(option + " must be a positive number: " + value);
+    }
+
+    /**
+     * Parses the format of the tweet scores file.
+     *
+     * @param value the name of the format.
+     * @return the format.
+     * @throws IllegalArgumentException if the format is unknown.
+     */
+    private static TweetScoreOutput.Format format(String value) {
+        try {
+            return TweetScoreOutput.Format.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown tweet scores format: " + value);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes per-tweet scores to a fixed-width, columnar binary file.
+ *
+ * The file starts with a 64-byte header: the magic number "TSCO", the version,
+ * the number of tweets, and the byte offsets of the four columns. The columns follow:
+ * the tweet ids (longs), the line offsets (longs), the scores (ints) and the
+ * numbers of matched words (ints), all little-endian. Tweet i (its id is i + 1)
+ * is at index i of every column, so a reader can map the file and index it directly.
+ *
+ * The total number of tweets is known up front, so every section writes its rows
+ * straight to their final positions with positional writes, one chunk at a time.
+ */
+public class ColumnarTweetScoreOutput implements TweetScoreOutput {
+    /**
+     * The first four bytes of the file - "TSCO".
+     */
+    public static final int MAGIC = 0x4F435354;
+    /**
+     * The version of the file format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The size of the header, in bytes.
+     */
+    public static final int HEADER_BYTES = 64;
+    /**
+     * The number of rows a section buffers before writing them.
+     */
+    private static final int CHUNK_ROWS = 8192;
+
+    private final FileChannel channel;
+    private final long tweets;
+    private final long idsOffset;
+    private final long offsetsOffset;
+    private final long scoresOffset;
+    private final long matchesOffset;
+
+    /**
+     * Creates the output file, and writes its header.
+     *
+     * @param path   the output file.
+     * @param tweets the total number of tweets.
+     * @throws IOException if the file couldn't be created.
+     */
+    public ColumnarTweetScoreOutput(Path path, long tweets) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.tweets = tweets;
+        this.idsOffset = HEADER_BYTES;
+        this.offsetsOffset = idsOffset + tweets * Long.BYTES;
+        this.scoresOffset = offsetsOffset + tweets * Long.BYTES;
+        this.matchesOffset = scoresOffset + tweets * Integer.BYTES;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(tweets)
+                .putLong(idsOffset).putLong(offsetsOffset).putLong(scoresOffset).putLong(matchesOffset);
+        header.clear();
+
+        try {
+            writeFully(header, 0);
+
+            // the file has its final size straight away, so sections can be written in any order
+            long size = matchesOffset + tweets * Integer.BYTES;
+            if (size > HEADER_BYTES) {
+                writeFully(ByteBuffer.allocate(1), size - 1);
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Section section(int index, long firstTweet, long tweets) {
+        if (firstTweet < 1 || firstTweet - 1 + tweets > this.tweets) {
+            throw new IllegalArgumentException("Section is outside of the file: " + firstTweet + "+" + tweets);
+        }
+
+        return new ColumnarSection(firstTweet - 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes the whole buffer at the given position.
+     *
+     * @param buffer   the bytes to write.
+     * @param position the position in the file.
+     * @throws IOException if the bytes couldn't be written.
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Buffers a chunk of rows in one buffer per column, and writes each column
+     * of the chunk to its place in the file.
+     */
+    private class ColumnarSection implements Section {
+        private final ByteBuffer ids = column(Long.BYTES);
+        private final ByteBuffer offsets = column(Long.BYTES);
+        private final ByteBuffer scores = column(Integer.BYTES);
+        private final ByteBuffer matches = column(Integer.BYTES);
+        private long nextRow;
+        private int buffered = 0;
+
+        private ColumnarSection(long firstRow) {
+            this.nextRow = firstRow;
+        }
+
+        private static ByteBuffer column(int width) {
+            return ByteBuffer.allocate(CHUNK_ROWS * width).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public void write(long tweetId, long offset, int score, int matches) throws IOException {
+            ids.putLong(tweetId);
+            offsets.putLong(offset);
+            scores.putInt(score);
+            this.matches.putInt(matches);
+
+            if (++buffered == CHUNK_ROWS) {
+                flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        /**
+         * Writes the buffered rows to their place in each column.
+         *
+         * @throws IOException if the rows couldn't be written.
+         */
+        private void flush() throws IOException {
+            if (buffered == 0) {
+                return;
+            }
+
+            if (nextRow + buffered > tweets) {
+                throw new IOException("More tweets written than the file was created for");
+            }
+
+            writeFully(ids.flip(), idsOffset + nextRow * Long.BYTES);
+            writeFully(offsets.flip(), offsetsOffset + nextRow * Long.BYTES);
+            writeFully(scores.flip(), scoresOffset + nextRow * Integer.BYTES);
+            writeFully(matches.flip(), matchesOffset + nextRow * Integer.BYTES);
+
+            ids.clear();
+            offsets.clear();
+            scores.clear();
+            matches.clear();
+            nextRow += buffered;
+            buffered = 0;
+        }
+    }
+}
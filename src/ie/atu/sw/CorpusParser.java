@@ -0,0 +1,69 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Is used to parse a corpus file into batches of words.
+ *
+ * Implementations read the file in their own way, but must produce
+ * exactly the same words for the same file.
+ */
+public interface CorpusParser {
+    /**
+     * The size (in bytes) from which input files are parsed by the memory-mapped parser.
+     */
+    long MAPPED_PARSER_THRESHOLD = 64L * 1024 * 1024;
+
+    /**
+     * Creates the parser for the given input file.
+     *
+     * Gzip files are inflated on their own threads as they're read, large files are
+     * memory-mapped and parsed one byte range per core, smaller files are read line by line.
+     *
+     * @param book the name of the file with the tweets.
+     * @return the parser.
+     * @throws IOException if the size of the file couldn't be read.
+     */
+    static CorpusParser forFile(String book) throws IOException {
+        Path path = Paths.get(book);
+
+        if (GzipFileParser.isCompressed(path)) {
+            return new GzipFileParser();
+        }
+        if (Files.isRegularFile(path) && Files.size(path) >= MAPPED_PARSER_THRESHOLD) {
+            return new MemoryMappedFileParser();
+        }
+
+        return new VirtualThreadFileParser();
+    }
+
+    /**
+     * Parses the specified file without storing the words, passing the words
+     * to the sink one batch at a time.
+     *
+     * The sink may be called from several threads at the same time, so it must be thread-safe.
+     *
+     * @param book The path to the file to be parsed.
+     * @param sink Receives the words of each batch.
+     * @throws Exception if an I/O error occurs, if an interrupt occurs, or if the sink fails.
+     */
+    void stream(String book, Consumer<List<String>> sink) throws Exception;
+
+    /**
+     * Parses the specified file without storing the lines, passing whole lines (tweets)
+     * to the sink one batch at a time, without splitting them into words. The batches
+     * may be passed on in any order.
+     *
+     * The sink may be called from several threads at the same time, so it must be thread-safe.
+     *
+     * @param book The path to the file to be parsed.
+     * @param sink Receives the lines of each batch.
+     * @throws Exception if an I/O error occurs, if an interrupt occurs, or if the sink fails.
+     */
+    void streamLines(String book, Consumer<List<String>> sink) throws Exception;
+}
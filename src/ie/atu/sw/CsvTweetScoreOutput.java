@@ -0,0 +1,94 @@
+package ie.atu.sw;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes per-tweet scores to a CSV file, with the header line
+ * "tweet_id,line_offset,score,matched_words".
+ *
+ * Lines have different lengths, so a section can't know where its lines go in the file.
+ * Each section is streamed to its own part file instead, and the part files are
+ * appended to the output file in the order of their indexes when the output is closed.
+ */
+public class CsvTweetScoreOutput implements TweetScoreOutput {
+    /**
+     * The header line of the file.
+     */
+    public static final String HEADER = "tweet_id,line_offset,score,matched_words";
+
+    private final Path path;
+    private final Path[] parts;
+
+    /**
+     * Creates the output file, and writes its header.
+     *
+     * @param path     the output file.
+     * @param sections the number of sections.
+     * @throws IOException if the file couldn't be created.
+     */
+    public CsvTweetScoreOutput(Path path, int sections) throws IOException {
+        this.path = path;
+        this.parts = new Path[sections];
+
+        Files.writeString(path, HEADER + System.lineSeparator(), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Section section(int index, long firstTweet, long tweets) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Path part = Files.createTempFile(parent, path.getFileName().toString(), ".part" + index);
+        parts[index] = part;
+
+        BufferedWriter out = Files.newBufferedWriter(part, StandardCharsets.UTF_8);
+
+        return new Section() {
+            @Override
+            public void write(long tweetId, long offset, int score, int matches) throws IOException {
+                out.write(tweetId + "," + offset + "," + score + "," + matches);
+                out.newLine();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
+    /**
+     * Appends the part files to the output file, in order, and deletes them.
+     *
+     * @throws IOException if the part files couldn't be appended.
+     */
+    @Override
+    public void close() throws IOException {
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (Path part : parts) {
+                if (part == null) {
+                    continue;
+                }
+
+                try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+                    long size = in.size();
+                    long position = 0;
+
+                    while (position < size) {
+                        position += in.transferTo(position, size - position, out);
+                    }
+                }
+            }
+        } finally {
+            for (Path part : parts) {
+                if (part != null) {
+                    Files.deleteIfExists(part);
+                }
+            }
+        }
+    }
+}
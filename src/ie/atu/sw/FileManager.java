@@ -1,15 +1,13 @@
 package ie.atu.sw;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.concurrent.Executors;
+import java.nio.file.Paths;
 
 /**
  * This class is used to write to an output file.
  *
- * It's thread-safe.
+ * It's thread-safe. The scores are written by a single long-lived ResultsWriter,
+ * which keeps the output file open and appends the queued scores in batches.
  */
 public class FileManager {
     /**
@@ -17,32 +15,76 @@ public class FileManager {
      */
     private static final String OUTPUT_PATH = "Output/out.txt";
     /**
-     * Ensures that only one thread at a time writes to a file.
+     * Ensures that only one writer is opened for the output file.
      */
     private static final Object fileOutputLock = new Object();
+    /**
+     * The writer of the output file, opened on the first write.
+     */
+    private static ResultsWriter writer;
+    /**
+     * Whether the file manager is closed, after which the output file isn't opened again.
+     */
+    private static boolean closed;
 
     /**
      * Writes the given score message to the output file.
      *
+     * Only queues the message - it's written together with the other queued
+     * messages shortly after, or when the file manager is closed. A message that
+     * comes once the file manager is closed (or while it's closing) isn't written,
+     * and is reported instead.
+     *
      * @param scoreData the score message.
      */
     public void writeScoreToFile(String scoreData) {
+        try {
+            getWriter().write(scoreData);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            System.err.println("The output file is closed, so this score wasn't written: " + scoreData);
+        }
+    }
+
+    /**
+     * Writes the queued score messages, and closes the output file for good.
+     */
+    public void close() {
+        synchronized (fileOutputLock) {
+            closed = true;
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                writer = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the writer of the output file, opening it if it isn't open yet.
+     *
+     * @return the writer.
+     * @throws IOException if the output file couldn't be opened.
+     * @throws IllegalStateException if the file manager is closed.
+     */
+    private static ResultsWriter getWriter() throws IOException {
         /*
-         only one thread at a time can access this method - because the
+         only one thread at a time can open the writer - because the
          output file is a shared resource
          */
         synchronized (fileOutputLock) {
-            try (var pool = Executors.newVirtualThreadPerTaskExecutor()) {
-                pool.execute(() -> {
-                    try (PrintWriter out = new PrintWriter(new BufferedWriter(
-                            new FileWriter(OUTPUT_PATH, true)))) {
-                        out.println(scoreData);
-                        out.flush();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
+            if (closed) {
+                throw new IllegalStateException("The output file is closed");
             }
+            if (writer == null) {
+                writer = new ResultsWriter(Paths.get(OUTPUT_PATH));
+            }
+
+            return writer;
         }
     }
-}
\ No newline at end of file
+}
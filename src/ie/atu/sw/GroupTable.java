@@ -0,0 +1,417 @@
+package ie.atu.sw;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A hash table of groups of tweets keyed by a long - the sum of their scores, their
+ * number, and a histogram of their scores - with an optional name per group.
+ *
+ * The table is open-addressing with linear probing, and both the entries and the names
+ * are kept off the heap in direct buffers, so millions of groups cost no objects and
+ * nothing for the garbage collector to trace. A table is not thread-safe: each thread
+ * fills its own table, and the tables are merged at the end.
+ */
+public final class GroupTable {
+    /**
+     * The lowest score with its own bin; lower scores go into the first bin.
+     */
+    public static final int MIN_BIN_SCORE = -3;
+
+    /**
+     * The number of bins of the histograms - one per score from MIN_BIN_SCORE to
+     * -MIN_BIN_SCORE, and higher scores go into the last bin.
+     */
+    public static final int BINS = 1 - 2 * MIN_BIN_SCORE;
+
+    /**
+     * The largest number of slots of a table, so the entries fit in a single buffer.
+     */
+    private static final int MAX_CAPACITY = 1 << 24;
+
+    /**
+     * The longest name kept, in chars.
+     */
+    private static final int MAX_NAME_LENGTH = 255;
+
+    /*
+     * The layout of an entry, in longs: the key, the sum of the scores, the number of
+     * tweets (0 for an empty slot), the name (its offset in the names buffer << 8 | its length),
+     * and the bins of the histogram.
+     */
+    private static final int KEY = 0;
+    private static final int SUM = 1;
+    private static final int COUNT = 2;
+    private static final int NAME = 3;
+    private static final int FIRST_BIN = 4;
+    private static final int ENTRY_BYTES = (FIRST_BIN + BINS) * Long.BYTES;
+
+    /**
+     * Mixed into the slots of the keys, so that merging a table in the order of its slots
+     * doesn't fill long runs of neighbouring slots of the other table.
+     */
+    private final long seed;
+
+    private ByteBuffer entries;
+    private int capacity;
+    private int size;
+
+    private ByteBuffer names;
+    private int namesUsed;
+
+    /**
+     * Constructs an empty table.
+     */
+    public GroupTable() {
+        this(1024);
+    }
+
+    /**
+     * Constructs an empty table with room for about the given number of groups.
+     *
+     * @param expected the number of groups expected.
+     */
+    public GroupTable(int expected) {
+        // the smallest power of two that holds the groups within the load factor
+        long slots = Math.max(16, (expected * 4L + 2) / 3);
+        this.seed = ThreadLocalRandom.current().nextLong() | 1;
+        this.capacity = (int) Math.min(MAX_CAPACITY, Long.highestOneBit(slots - 1) * 2);
+        this.entries = allocate((long) capacity * ENTRY_BYTES);
+        this.names = allocate(0);
+    }
+
+    /**
+     * Constructs a copy of a table, slot for slot.
+     *
+     * @param other the table.
+     */
+    private GroupTable(GroupTable other) {
+        this.seed = other.seed;
+        this.capacity = other.capacity;
+        this.size = other.size;
+        this.entries = allocate((long) capacity * ENTRY_BYTES);
+        entries.put(0, other.entries, 0, capacity * ENTRY_BYTES);
+        this.namesUsed = other.namesUsed;
+        this.names = allocate(namesUsed);
+        names.put(0, other.names, 0, namesUsed);
+    }
+
+    /**
+     * Adds a tweet to the group of the given key, creating the group the first time.
+     *
+     * @param key   the key of the group.
+     * @param name  the text holding the name of the group, or null for none.
+     * @param start the start of the name in the text.
+     * @param end   the end of the name in the text (exclusive).
+     * @param score the score of the tweet.
+     */
+    public void add(long key, CharSequence name, int start, int end, int score) {
+        int bin = Math.min(Math.max(score, MIN_BIN_SCORE), -MIN_BIN_SCORE) - MIN_BIN_SCORE;
+        int base = slot(key, name, start, end);
+
+        addLong(base, SUM, score);
+        addLong(base, COUNT, 1);
+        addLong(base, FIRST_BIN + bin, 1);
+    }
+
+    /**
+     * Adds a whole group to the group of the given key, e.g. a group saved to a checkpoint.
+     *
+     * @param key       the key of the group.
+     * @param name      the name of the group, or null for none.
+     * @param tweets    the number of tweets of the group.
+     * @param score     the sum of the scores of the tweets.
+     * @param histogram the number of tweets per score, from MIN_BIN_SCORE up.
+     */
+    public void add(long key, String name, long tweets, long score, long[] histogram) {
+        int base = slot(key, name, 0, name == null ? 0 : name.length());
+
+        addLong(base, SUM, score);
+        addLong(base, COUNT, tweets);
+        for (int b = 0; b < BINS; b++) {
+            addLong(base, FIRST_BIN + b, histogram[b]);
+        }
+    }
+
+    /**
+     * Removes every group, keeping the buffers for the next ones.
+     */
+    public void clear() {
+        for (int s = 0; s < capacity; s++) {
+            int base = s * ENTRY_BYTES;
+            if (getLong(base, COUNT) != 0) {
+                for (int field = 0; field < FIRST_BIN + BINS; field++) {
+                    entries.putLong(base + field * Long.BYTES, 0);
+                }
+            }
+        }
+        size = 0;
+        namesUsed = 0;
+    }
+
+    /**
+     * Adds all the groups of another table to this one.
+     *
+     * @param other the other table.
+     */
+    public void merge(GroupTable other) {
+        // grow once, rather than step by step
+        while ((size + (long) other.size) * 4 > capacity * 3L && capacity < MAX_CAPACITY) {
+            grow();
+        }
+
+        for (int s = 0; s < other.capacity; s++) {
+            int from = s * ENTRY_BYTES;
+            if (other.getLong(from, COUNT) == 0) {
+                continue;
+            }
+
+            int base = slot(other.getLong(from, KEY), null, 0, 0);
+            if (getLong(base, NAME) == 0 && other.getLong(from, NAME) != 0) {
+                entries.putLong(base + NAME * Long.BYTES, copyName(other, other.getLong(from, NAME)));
+            }
+
+            addLong(base, SUM, other.getLong(from, SUM));
+            addLong(base, COUNT, other.getLong(from, COUNT));
+            for (int b = 0; b < BINS; b++) {
+                addLong(base, FIRST_BIN + b, other.getLong(from, FIRST_BIN + b));
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the table. The buffers are copied in bulk, without going through
+     * the groups one by one, so it's much quicker than merging the table into an empty one.
+     *
+     * @return the copy.
+     */
+    public GroupTable copy() {
+        return new GroupTable(this);
+    }
+
+    /**
+     * Returns the number of groups.
+     *
+     * @return the number of groups.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Is used to visit every group of a table.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * Visits a single group.
+         *
+         * @param key       the key of the group.
+         * @param name      the name of the group, or null if it has none.
+         * @param tweets    the number of tweets of the group.
+         * @param score     the sum of the scores of the tweets of the group.
+         * @param histogram the number of tweets per score, from MIN_BIN_SCORE up - only valid during the call.
+         */
+        void visit(long key, String name, long tweets, long score, long[] histogram);
+    }
+
+    /**
+     * Visits every group, in no particular order.
+     *
+     * @param visitor the visitor.
+     */
+    public void forEach(Visitor visitor) {
+        long[] histogram = new long[BINS];
+
+        for (int s = 0; s < capacity; s++) {
+            int base = s * ENTRY_BYTES;
+            long count = getLong(base, COUNT);
+            if (count == 0) {
+                continue;
+            }
+
+            for (int b = 0; b < BINS; b++) {
+                histogram[b] = getLong(base, FIRST_BIN + b);
+            }
+
+            long name = getLong(base, NAME);
+            int length = (int) (name & 0xFF);
+            visitor.visit(getLong(base, KEY), length == 0 ? null : nameText((int) (name >>> 8), length).toString(),
+                    count, getLong(base, SUM), histogram);
+        }
+    }
+
+    /**
+     * Finds the slot of the key, creating the group (with its name) if it's new.
+     *
+     * @param key   the key of the group.
+     * @param name  the text holding the name of the group, or null for none.
+     * @param start the start of the name in the text.
+     * @param end   the end of the name in the text (exclusive).
+     * @return the byte offset of the entry of the group.
+     */
+    private int slot(long key, CharSequence name, int start, int end) {
+        int mask = capacity - 1;
+        int s = (int) mix(key ^ seed) & mask;
+
+        while (true) {
+            int base = s * ENTRY_BYTES;
+
+            if (getLong(base, COUNT) == 0) {
+                if ((size + 1) * 4L > capacity * 3L) {
+                    grow();
+                    return slot(key, name, start, end);
+                }
+
+                size++;
+                entries.putLong(base + KEY * Long.BYTES, key);
+                entries.putLong(base + NAME * Long.BYTES, name == null ? 0 : addName(name, start, end));
+                return base;
+            }
+            if (getLong(base, KEY) == key) {
+                return base;
+            }
+
+            s = (s + 1) & mask;
+        }
+    }
+
+    /**
+     * Doubles the number of slots, and moves every group to its new slot.
+     */
+    private void grow() {
+        if (capacity == MAX_CAPACITY) {
+            throw new IllegalStateException("Too many groups: " + size);
+        }
+
+        ByteBuffer old = entries;
+        int oldCapacity = capacity;
+
+        capacity *= 2;
+        entries = allocate((long) capacity * ENTRY_BYTES);
+        int mask = capacity - 1;
+
+        for (int s = 0; s < oldCapacity; s++) {
+            int from = s * ENTRY_BYTES;
+            if (old.getLong(from + COUNT * Long.BYTES) == 0) {
+                continue;
+            }
+
+            int to = (int) mix(old.getLong(from + KEY * Long.BYTES) ^ seed) & mask;
+            while (getLong(to * ENTRY_BYTES, COUNT) != 0) {
+                to = (to + 1) & mask;
+            }
+
+            entries.put(to * ENTRY_BYTES, old, from, ENTRY_BYTES);
+        }
+    }
+
+    /**
+     * Stores a name in the names buffer, lower-cased.
+     *
+     * @param text  the text holding the name.
+     * @param start the start of the name.
+     * @param end   the end of the name (exclusive).
+     * @return the offset of the name << 8 | its length, or 0 if the name is empty.
+     */
+    private long addName(CharSequence text, int start, int end) {
+        int length = Math.min(end - start, MAX_NAME_LENGTH);
+        if (length == 0) {
+            return 0;
+        }
+
+        reserveNames(length);
+        int offset = namesUsed / Character.BYTES;
+        for (int i = 0; i < length; i++) {
+            names.putChar(namesUsed, Character.toLowerCase(text.charAt(start + i)));
+            namesUsed += Character.BYTES;
+        }
+
+        return (long) offset << 8 | length;
+    }
+
+    /**
+     * Copies a name of another table into the names buffer, as it is.
+     *
+     * @param other the other table.
+     * @param name  the offset of the name in the other table << 8 | its length.
+     * @return the offset of the copy << 8 | its length.
+     */
+    private long copyName(GroupTable other, long name) {
+        int length = (int) (name & 0xFF);
+        int from = (int) (name >>> 8) * Character.BYTES;
+
+        reserveNames(length);
+        int offset = namesUsed / Character.BYTES;
+        names.put(namesUsed, other.names, from, length * Character.BYTES);
+        namesUsed += length * Character.BYTES;
+
+        return (long) offset << 8 | length;
+    }
+
+    /**
+     * Makes room for a name of the given length in the names buffer.
+     *
+     * @param length the length of the name, in chars.
+     */
+    private void reserveNames(int length) {
+        if (names.capacity() - namesUsed >= length * Character.BYTES) {
+            return;
+        }
+
+        long needed = (long) namesUsed + length * Character.BYTES;
+        long doubled = Math.min(Integer.MAX_VALUE - 8, Math.max(4096, 2L * names.capacity()));
+        ByteBuffer larger = allocate(Math.max(needed, doubled));
+        larger.put(0, names, 0, namesUsed);
+        names = larger;
+    }
+
+    /**
+     * Returns a stored name, without copying it.
+     *
+     * @param offset the offset of the name, in chars.
+     * @param length the length of the name, in chars.
+     * @return the name.
+     */
+    private CharSequence nameText(int offset, int length) {
+        return names.asCharBuffer().subSequence(offset, offset + length);
+    }
+
+    private long getLong(int base, int field) {
+        return entries.getLong(base + field * Long.BYTES);
+    }
+
+    private void addLong(int base, int field, long delta) {
+        int index = base + field * Long.BYTES;
+        entries.putLong(index, entries.getLong(index) + delta);
+    }
+
+    /**
+     * Allocates a zeroed direct buffer in the native byte order.
+     *
+     * @param bytes the size of the buffer.
+     * @return the buffer.
+     */
+    private static ByteBuffer allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The table is too large: " + bytes + " bytes");
+        }
+
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Spreads the bits of a key, so that keys that differ only in their high bits
+     * don't all probe the same slots.
+     *
+     * @param key the key.
+     * @return the mixed key.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+}
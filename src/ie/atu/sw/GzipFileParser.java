@@ -0,0 +1,91 @@
+package ie.atu.sw;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class is responsible for parsing gzip-compressed text files, without writing the
+ * inflated text anywhere.
+ *
+ * The file is inflated by a ParallelGzipInputStream, on its own threads (in parallel if
+ * the file has many members), and the inflated lines are batched and tokenized on virtual
+ * threads exactly as VirtualThreadFileParser does with a plain file - so a compressed file
+ * gives the same words, tweets and scores as the file it was compressed from.
+ */
+public class GzipFileParser extends VirtualThreadFileParser {
+    /**
+     * The default number of threads inflating a file.
+     */
+    public static final int DEFAULT_INFLATERS = Runtime.getRuntime().availableProcessors();
+
+    private final int inflaters;
+
+    /**
+     * Constructs a parser with the default batch size, number of workers and number of
+     * inflating threads.
+     */
+    public GzipFileParser() {
+        this(DEFAULT_BATCH_SIZE, DEFAULT_MAX_WORKERS, DEFAULT_INFLATERS);
+    }
+
+    /**
+     * Constructs a parser with the given batch size, number of workers and number of
+     * inflating threads.
+     *
+     * @param batchSize  the number of lines in a single batch.
+     * @param maxWorkers the maximum number of batches being tokenized at the same time.
+     * @param inflaters  the number of threads inflating the regions of a file.
+     */
+    public GzipFileParser(int batchSize, int maxWorkers, int inflaters) {
+        super(batchSize, maxWorkers);
+
+        if (inflaters < 1) {
+            throw new IllegalArgumentException("The number of inflating threads must be positive");
+        }
+        this.inflaters = inflaters;
+    }
+
+    /**
+     * Opens the specified gzip file, to be read line by line as the UTF-8 text it inflates to.
+     *
+     * @param book the path to the file.
+     * @return the reader of the inflated lines.
+     * @throws IOException if the file couldn't be opened.
+     */
+    @Override
+    protected BufferedReader openReader(String book) throws IOException {
+        InputStream in = new ParallelGzipInputStream(Paths.get(book), inflaters);
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8.newDecoder()));
+    }
+
+    /**
+     * Checks whether a file is gzip-compressed, from its first two bytes (so whatever
+     * its name).
+     *
+     * @param file the file.
+     * @return true if the file is a regular file starting with the gzip magic number.
+     * @throws IOException if the file couldn't be read.
+     */
+    public static boolean isCompressed(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // reads both bytes, if the file has them
+            }
+            return magic.position() == 2 && magic.get(0) == (byte) 0x1f && magic.get(1) == (byte) 0x8b;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+package ie.atu.sw;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules jobs (analyses) to run on virtual threads.
+ *
+ * Submitted jobs wait in a bounded queue; once the queue is full, new jobs are rejected
+ * (backpressure). A dispatcher thread blocks on the queue, and starts each job as soon
+ * as fewer than the maximum number of jobs are running. Every job has an id and a status,
+ * and can be queried or cancelled by its id.
+ *
+ * Finished jobs are kept for the retention period, and at most the given number of them,
+ * so a long-lived scheduler doesn't keep every job it ever ran.
+ *
+ * It's thread-safe.
+ */
+public class JobScheduler implements AutoCloseable {
+    /**
+     * The default time a finished job is kept, to be queried by its id.
+     */
+    public static final Duration DEFAULT_RETENTION = Duration.ofMinutes(10);
+    /**
+     * The default maximum number of finished jobs kept.
+     */
+    public static final int DEFAULT_MAX_FINISHED = 1000;
+    /**
+     * The time the interrupted jobs are given to stop, once the grace period of a shutdown is over.
+     */
+    private static final Duration INTERRUPT_WAIT = Duration.ofSeconds(10);
+
+    /**
+     * The status of a job.
+     */
+    public enum Status {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        /**
+         * Checks whether a job with this status has finished.
+         *
+         * @return true, if the job has finished, false otherwise.
+         */
+        public boolean isFinished() {
+            return this == SUCCEEDED || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    /**
+     * A submitted job.
+     */
+    public static final class Job {
+        private final long id;
+        private final String description;
+        private final Callable<String> task;
+        private final Instant submitted = Instant.now();
+        private volatile Status status = Status.QUEUED;
+        private volatile Thread thread;
+        private volatile boolean cancelRequested = false;
+        private volatile String result;
+        private volatile Throwable failure;
+        private volatile long finishedNanos;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private Job(long id, String description, Callable<String> task) {
+            this.id = id;
+            this.description = description;
+            this.task = task;
+        }
+
+        /**
+         * Returns the id of the job.
+         *
+         * @return the id.
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Returns the description of the job.
+         *
+         * @return the description.
+         */
+        public String getDescription() {
+            return description;
+        }
+
+        /**
+         * Returns the time the job was submitted.
+         *
+         * @return the time.
+         */
+        public Instant getSubmitted() {
+            return submitted;
+        }
+
+        /**
+         * Returns the current status of the job.
+         *
+         * @return the status.
+         */
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * Waits until the job has finished.
+         *
+         * @return the final status of the job.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        public Status await() throws InterruptedException {
+            done.await();
+            return status;
+        }
+
+        /**
+         * Returns the result of the job, once it has succeeded.
+         *
+         * @return the result, or null if the job hasn't succeeded.
+         */
+        public String getResult() {
+            return result;
+        }
+
+        /**
+         * Returns the failure of the job, once it has failed.
+         *
+         * @return the failure, or null if the job hasn't failed.
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            String details = switch (status) {
+                case SUCCEEDED -> " - " + result;
+                case FAILED -> " - " + failure;
+                default -> "";
+            };
+
+            return String.format("Job %d [%s] %s%s", id, status, description, details);
+        }
+    }
+
+    private final BlockingQueue<Job> queue;
+    private final Semaphore runningSlots;
+    private final int maxRunning;
+    private final Map<Long, Job> jobs = new ConcurrentSkipListMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Thread dispatcher;
+    private volatile boolean accepting = true;
+
+    /**
+     * The finished jobs, in the order they finished, and their number.
+     */
+    private final Queue<Job> finished = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger finishedCount = new AtomicInteger();
+    private final long retentionNanos;
+    private final int maxFinished;
+
+    /**
+     * Constructs a scheduler with the default retention of the finished jobs,
+     * and starts its dispatcher thread.
+     *
+     * @param maxRunning    the maximum number of jobs running at the same time.
+     * @param queueCapacity the maximum number of jobs waiting to run.
+     */
+    public JobScheduler(int maxRunning, int queueCapacity) {
+        this(maxRunning, queueCapacity, DEFAULT_RETENTION, DEFAULT_MAX_FINISHED);
+    }
+
+    /**
+     * Constructs a scheduler, and starts its dispatcher thread.
+     *
+     * @param maxRunning    the maximum number of jobs running at the same time.
+     * @param queueCapacity the maximum number of jobs waiting to run.
+     * @param retention     the time a finished job is kept.
+     * @param maxFinished   the maximum number of finished jobs kept.
+     */
+    public JobScheduler(int maxRunning, int queueCapacity, Duration retention, int maxFinished) {
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.runningSlots = new Semaphore(maxRunning);
+        this.maxRunning = maxRunning;
+        this.retentionNanos = retention.toNanos();
+        this.maxFinished = maxFinished;
+        this.dispatcher = Thread.ofVirtual().name("job-dispatcher").start(this::dispatch);
+    }
+
+    /**
+     * Submits a job.
+     *
+     * @param description the description of the job.
+     * @param task        the work of the job, returning the result of the job.
+     * @return the job.
+     * @throws RejectedExecutionException if the queue is full, or the scheduler is closed.
+     */
+    public Job submit(String description, Callable<String> task) {
+        if (!accepting) {
+            throw new RejectedExecutionException("The scheduler is shutting down");
+        }
+
+        prune();
+
+        Job job = new Job(nextId.getAndIncrement(), description, task);
+        jobs.put(job.id, job);
+
+        if (!queue.offer(job)) {
+            jobs.remove(job.id);
+            throw new RejectedExecutionException("Too many jobs are waiting - try again later");
+        }
+
+        return job;
+    }
+
+    /**
+     * Returns the job with the given id.
+     *
+     * @param id the id of the job.
+     * @return the job, or null if there's no such job.
+     */
+    public Job get(long id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * Returns all the jobs, in the order they were submitted.
+     *
+     * @return the jobs.
+     */
+    public List<Job> list() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * Cancels the job with the given id. A queued job is removed from the queue,
+     * and a running job is interrupted.
+     *
+     * @param id the id of the job.
+     * @return true, if the job was found and hadn't finished yet, false otherwise.
+     */
+    public boolean cancel(long id) {
+        Job job = jobs.get(id);
+        if (job == null) {
+            return false;
+        }
+
+        synchronized (job) {
+            if (job.status == Status.QUEUED) {
+                queue.remove(job);
+                finish(job, Status.CANCELLED);
+                return true;
+            }
+            if (job.status == Status.RUNNING) {
+                job.cancelRequested = true;
+                job.thread.interrupt();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Is run by the dispatcher thread: takes the next job from the queue, and starts it
+     * once there's a free slot, until the scheduler is closed.
+     */
+    private void dispatch() {
+        try {
+            while (true) {
+                Job job = queue.take();
+                runningSlots.acquire();
+
+                synchronized (job) {
+                    // the job could have been cancelled while it was waiting for a slot
+                    if (job.status != Status.QUEUED) {
+                        runningSlots.release();
+                        continue;
+                    }
+
+                    job.status = Status.RUNNING;
+                    job.thread = Thread.ofVirtual().name("job-" + job.id).unstarted(() -> run(job));
+                    job.thread.start();
+                }
+            }
+        } catch (InterruptedException e) {
+            // the scheduler is closed
+        }
+    }
+
+    /**
+     * Runs the job, and records how it finished.
+     *
+     * @param job the job.
+     */
+    private void run(Job job) {
+        Status status;
+        try {
+            job.result = job.task.call();
+            status = Status.SUCCEEDED;
+        } catch (InterruptedException | CancellationException e) {
+            status = Status.CANCELLED;
+        } catch (Throwable t) {
+            // a cancelled job may fail in other ways on its way out
+            if (job.cancelRequested || Thread.currentThread().isInterrupted()) {
+                status = Status.CANCELLED;
+            } else {
+                job.failure = t;
+                status = Status.FAILED;
+            }
+        }
+
+        // the job has its final status by the time its slot is free
+        finish(job, status);
+        runningSlots.release();
+    }
+
+    /**
+     * Records that the job has finished, so it's dropped once it's past the retention.
+     *
+     * @param job    the job.
+     * @param status the final status of the job.
+     */
+    private void finish(Job job, Status status) {
+        job.finishedNanos = System.nanoTime();
+        job.status = status;
+        finished.add(job);
+        finishedCount.incrementAndGet();
+        job.done.countDown();
+    }
+
+    /**
+     * Drops the finished jobs that are past the retention period, and the oldest
+     * finished jobs over the maximum number.
+     */
+    private void prune() {
+        long now = System.nanoTime();
+        Job oldest;
+
+        while ((oldest = finished.peek()) != null
+                && (finishedCount.get() > maxFinished || now - oldest.finishedNanos > retentionNanos)) {
+            if (finished.remove(oldest)) {
+                finishedCount.decrementAndGet();
+                jobs.remove(oldest.id);
+            }
+        }
+    }
+
+    /**
+     * Shuts the scheduler down gracefully: new jobs are rejected, the queued jobs are
+     * cancelled, and the running jobs are given the grace period to finish before they're
+     * interrupted. The interrupted jobs are then given a few more seconds to stop, so
+     * the files they write aren't closed under them.
+     *
+     * @param grace the time the running jobs are given to finish.
+     * @return true, if all the running jobs finished within the grace period, false otherwise.
+     * @throws InterruptedException if interrupted while waiting for the jobs.
+     */
+    public boolean shutdown(Duration grace) throws InterruptedException {
+        accepting = false;
+        dispatcher.interrupt();
+        dispatcher.join();
+
+        for (Job job : jobs.values()) {
+            synchronized (job) {
+                if (job.status == Status.QUEUED) {
+                    finish(job, Status.CANCELLED);
+                }
+            }
+        }
+        queue.clear();
+
+        // all the slots are free once all the running jobs have finished
+        if (runningSlots.tryAcquire(maxRunning, grace.toNanos(), TimeUnit.NANOSECONDS)) {
+            runningSlots.release(maxRunning);
+            return true;
+        }
+
+        for (Job job : jobs.values()) {
+            if (job.status == Status.RUNNING) {
+                job.cancelRequested = true;
+                job.thread.interrupt();
+            }
+        }
+
+        if (runningSlots.tryAcquire(maxRunning, INTERRUPT_WAIT.toNanos(), TimeUnit.NANOSECONDS)) {
+            runningSlots.release(maxRunning);
+        }
+        return false;
+    }
+
+    /**
+     * Shuts the scheduler down, giving the running jobs a minute to finish.
+     */
+    @Override
+    public void close() {
+        try {
+            shutdown(Duration.ofMinutes(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
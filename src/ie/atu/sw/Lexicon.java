@@ -0,0 +1,554 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable, thread-safe lexicon that holds both the sentiment scores and the stopwords.
+ *
+ * The words are stored lower-cased in an open-addressing hash table, and are looked up
+ * straight from a range of characters of the text: the range is lower-cased while it's
+ * hashed and compared, so no substring or lower-case copy is made per word.
+ * A single lookup tells whether the word is a stopword and what its score is.
+ *
+ * Every slot of the table takes four ints: the hash of the word, the offset of the word
+ * in the character pool, the length of the word (shifted left by two) combined with the
+ * flags, and the score. A slot whose length-and-flags int is zero is empty.
+ *
+ * An entry may be a phrase of several words, e.g. "not good". Phrases are stored with
+ * their words separated by single spaces, and are found in tweets by the PhraseMatcher
+ * of the lexicon, which is compiled from them the first time it's needed.
+ *
+ * A lexicon can be compiled into a binary file, and memory-mapped back from it,
+ * so the table is used straight from the file without being parsed or copied.
+ * The file starts with a header of eight ints (magic number, version, number of
+ * words, number of slots, number of characters in the pool, and three unused ints),
+ * followed by the slots and then the character pool, all little-endian.
+ */
+public final class Lexicon {
+    /**
+     * The flag of a word that is a stopword.
+     */
+    static final int STOPWORD = 1;
+    /**
+     * The flag of a word that has a sentiment score.
+     */
+    static final int SCORED = 2;
+    /**
+     * The number of ints that make up a single slot of the table.
+     */
+    static final int SLOT_INTS = 4;
+    /**
+     * The first four bytes of a compiled lexicon file - "SLEX".
+     */
+    static final int MAGIC = 0x58454C53;
+    /**
+     * The version of the compiled lexicon file format.
+     */
+    static final int VERSION = 1;
+    /**
+     * The size of the header of a compiled lexicon file, in bytes.
+     */
+    static final int HEADER_BYTES = 8 * Integer.BYTES;
+
+    /**
+     * The lower-case mapping of 'İ' is two characters long, and the lower-case
+     * mapping of 'Σ' depends on its position in the word - words containing
+     * them are lower-cased by String.toLowerCase instead.
+     */
+    private static final char CAPITAL_I_WITH_DOT = 'İ';
+    private static final char CAPITAL_SIGMA = 'Σ';
+
+    private final IntBuffer table;
+    private final CharBuffer keys;
+    private final int mask;
+    private final int size;
+    /**
+     * The matcher of the phrases, compiled the first time it's needed.
+     */
+    private volatile PhraseMatcher phraseMatcher;
+
+    /**
+     * Constructs a lexicon over an already built table.
+     *
+     * @param table the slots of the table, the number of slots must be a power of two.
+     * @param keys  the character pool holding the words.
+     * @param size  the number of words in the table.
+     */
+    Lexicon(IntBuffer table, CharBuffer keys, int size) {
+        this.table = table;
+        this.keys = keys;
+        this.mask = table.capacity() / SLOT_INTS - 1;
+        this.size = size;
+    }
+
+    /**
+     * Builds a lexicon from the given sentiment map and stopwords.
+     * The words are lower-cased, the words of a phrase are separated by single
+     * spaces, and empty words are ignored because they can never be looked up.
+     *
+     * @param sentimentMap the sentiment scores.
+     * @param stopwords    the stopwords.
+     * @return the lexicon.
+     */
+    public static Lexicon build(Map<String, Integer> sentimentMap, Set<String> stopwords) {
+        Map<String, int[]> entries = new HashMap<>();
+
+        for (Map.Entry<String, Integer> e : sentimentMap.entrySet()) {
+            int[] entry = entries.computeIfAbsent(normalize(e.getKey()), k -> new int[2]);
+            entry[0] |= SCORED;
+            entry[1] = e.getValue();
+        }
+        for (String stopword : stopwords) {
+            entries.computeIfAbsent(normalize(stopword), k -> new int[2])[0] |= STOPWORD;
+        }
+        entries.remove("");
+
+        int slots = tableSlots(entries.size());
+        int mask = slots - 1;
+        int[] table = new int[slots * SLOT_INTS];
+        StringBuilder pool = new StringBuilder();
+
+        for (Map.Entry<String, int[]> e : entries.entrySet()) {
+            String key = e.getKey();
+            int hash = spread(key.hashCode());
+            int slot = hash & mask;
+
+            while (table[slot * SLOT_INTS + 2] != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            int base = slot * SLOT_INTS;
+            table[base] = hash;
+            table[base + 1] = pool.length();
+            table[base + 2] = key.length() << 2 | e.getValue()[0];
+            table[base + 3] = e.getValue()[1];
+            pool.append(key);
+        }
+
+        return new Lexicon(IntBuffer.wrap(table), CharBuffer.wrap(pool.toString().toCharArray()),
+                entries.size());
+    }
+
+    /**
+     * Lower-cases the word, and separates the words of a phrase by single spaces.
+     *
+     * @param word the word or phrase.
+     * @return the normalized word.
+     */
+    private static String normalize(String word) {
+        String lower = word.toLowerCase(Locale.ROOT);
+
+        for (int i = 0; i < lower.length(); i++) {
+            if (Character.isWhitespace(lower.charAt(i))) {
+                return String.join(" ", lower.trim().split("\\s+"));
+            }
+        }
+
+        return lower;
+    }
+
+    /**
+     * Returns the number of slots of a table for the given number of words,
+     * so that the table is at most half full.
+     *
+     * @param words the number of words.
+     * @return the number of slots, a power of two.
+     */
+    static int tableSlots(int words) {
+        return Integer.highestOneBit(Math.max(words, 1) * 2 - 1) << 1;
+    }
+
+    /**
+     * Mixes the high bits of the hash into the low bits, which select the slot.
+     *
+     * @param hash the hash of the word.
+     * @return the spread hash.
+     */
+    static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the number of words in the lexicon.
+     *
+     * @return the number of words.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the size of the table and the words of the lexicon, in bytes.
+     *
+     * @return the size in bytes.
+     */
+    public long byteSize() {
+        return (long) table.capacity() * Integer.BYTES + (long) keys.capacity() * Character.BYTES;
+    }
+
+    /**
+     * Returns whether the lexicon is memory-mapped from a compiled lexicon file,
+     * rather than held on the heap.
+     *
+     * @return true if it's memory-mapped.
+     */
+    public boolean isMapped() {
+        return table.isDirect();
+    }
+
+    /**
+     * Looks up the word between the given indexes of the text, ignoring case.
+     *
+     * @param text  the text holding the word.
+     * @param start the index of the first character of the word (inclusive).
+     * @param end   the index of the last character of the word (exclusive).
+     * @return the entry of the word, or -1 if it isn't in the lexicon.
+     */
+    public int lookup(CharSequence text, int start, int end) {
+        int h = 0;
+
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+
+            // ASCII fast path
+            if (c < 0x80) {
+                h = 31 * h + ((c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c);
+            } else if (c == CAPITAL_I_WITH_DOT || c == CAPITAL_SIGMA) {
+                String word = text.subSequence(start, end).toString().toLowerCase(Locale.ROOT);
+                return lookup(word, 0, word.length(), word.hashCode(), false);
+            } else {
+                int cp = codePointAt(text, i, end);
+                int folded = Character.toLowerCase(cp);
+
+                if (Character.isBmpCodePoint(folded)) {
+                    h = 31 * h + folded;
+                } else {
+                    h = 31 * h + Character.highSurrogate(folded);
+                    h = 31 * h + Character.lowSurrogate(folded);
+                }
+                i += Character.charCount(cp) - 1;
+            }
+        }
+
+        return lookup(text, start, end, h, true);
+    }
+
+    /**
+     * Finds the slot of the word with the given hash.
+     *
+     * @param text  the text holding the word.
+     * @param start the index of the first character of the word (inclusive).
+     * @param end   the index of the last character of the word (exclusive).
+     * @param hash  the hash of the lower-cased word.
+     * @param fold  whether the word still has to be lower-cased while it's compared.
+     * @return the slot of the word, or -1 if it isn't in the lexicon.
+     */
+    private int lookup(CharSequence text, int start, int end, int hash, boolean fold) {
+        hash = spread(hash);
+        int slot = hash & mask;
+
+        while (true) {
+            int base = slot * SLOT_INTS;
+            int info = table.get(base + 2);
+
+            if (info == 0) {
+                return -1;
+            }
+            if (table.get(base) == hash && matches(text, start, end, table.get(base + 1), info >>> 2, fold)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Compares the word between the given indexes of the text with a word of the pool.
+     *
+     * @param text      the text holding the word.
+     * @param start     the index of the first character of the word (inclusive).
+     * @param end       the index of the last character of the word (exclusive).
+     * @param keyOffset the offset of the word in the pool.
+     * @param keyLength the length of the word in the pool.
+     * @param fold      whether the word of the text has to be lower-cased while it's compared.
+     * @return true, if the words are equal, false otherwise.
+     */
+    private boolean matches(CharSequence text, int start, int end, int keyOffset, int keyLength, boolean fold) {
+        int k = keyOffset;
+        int keyEnd = keyOffset + keyLength;
+
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+
+            if (!fold) {
+                if (k == keyEnd || keys.get(k++) != c) {
+                    return false;
+                }
+            } else if (c < 0x80) {
+                char lower = (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+                if (k == keyEnd || keys.get(k++) != lower) {
+                    return false;
+                }
+            } else {
+                int cp = codePointAt(text, i, end);
+                int folded = Character.toLowerCase(cp);
+
+                if (Character.isBmpCodePoint(folded)) {
+                    if (k == keyEnd || keys.get(k++) != folded) {
+                        return false;
+                    }
+                } else if (k + 1 >= keyEnd
+                        || keys.get(k++) != Character.highSurrogate(folded)
+                        || keys.get(k++) != Character.lowSurrogate(folded)) {
+                    return false;
+                }
+                i += Character.charCount(cp) - 1;
+            }
+        }
+
+        return k == keyEnd;
+    }
+
+    /**
+     * Returns the code point at the given index, without pairing a high surrogate
+     * with a low surrogate that lies past the end of the word.
+     *
+     * @param text  the text holding the word.
+     * @param index the index of the code point.
+     * @param end   the index of the last character of the word (exclusive).
+     * @return the code point.
+     */
+    private static int codePointAt(CharSequence text, int index, int end) {
+        char high = text.charAt(index);
+
+        if (Character.isHighSurrogate(high) && index + 1 < end) {
+            char low = text.charAt(index + 1);
+            if (Character.isLowSurrogate(low)) {
+                return Character.toCodePoint(high, low);
+            }
+        }
+
+        return high;
+    }
+
+    /**
+     * Returns the lower-cased word of the entry.
+     *
+     * @param entry the entry returned by lookup.
+     * @return the word.
+     */
+    public String word(int entry) {
+        int base = entry * SLOT_INTS;
+        int offset = table.get(base + 1);
+
+        return keys.subSequence(offset, offset + (table.get(base + 2) >>> 2)).toString();
+    }
+
+    /**
+     * Checks whether the entry is a stopword.
+     *
+     * @param entry the entry returned by lookup.
+     * @return true, if it's a stopword, false otherwise.
+     */
+    public boolean isStopword(int entry) {
+        return (table.get(entry * SLOT_INTS + 2) & STOPWORD) != 0;
+    }
+
+    /**
+     * Checks whether the entry has a sentiment score.
+     *
+     * @param entry the entry returned by lookup.
+     * @return true, if it has a score, false otherwise.
+     */
+    public boolean isScored(int entry) {
+        return (table.get(entry * SLOT_INTS + 2) & SCORED) != 0;
+    }
+
+    /**
+     * Returns the sentiment score of the entry.
+     *
+     * @param entry the entry returned by lookup.
+     * @return the score, or 0 if the entry has no score.
+     */
+    public int score(int entry) {
+        return table.get(entry * SLOT_INTS + 3);
+    }
+
+    /**
+     * Returns the scored entries made of several words (phrases), with their scores.
+     * Walks the whole table, so it's only meant to be called when the lexicon is loaded.
+     *
+     * @return the phrases.
+     */
+    public Map<String, Integer> phrases() {
+        Map<String, Integer> phrases = new HashMap<>();
+
+        for (int slot = 0; slot <= mask; slot++) {
+            int base = slot * SLOT_INTS;
+            int info = table.get(base + 2);
+
+            if (info != 0 && (info & SCORED) != 0 && (info & STOPWORD) == 0) {
+                int offset = table.get(base + 1);
+                int end = offset + (info >>> 2);
+
+                for (int k = offset; k < end; k++) {
+                    if (keys.get(k) == ' ') {
+                        phrases.put(word(slot), score(slot));
+                        break;
+                    }
+                }
+            }
+        }
+
+        return phrases;
+    }
+
+    /**
+     * Returns the matcher of the phrases of the lexicon and of the negation and intensifier rules.
+     * It's compiled the first time it's asked for, and then shared by all the analyses.
+     *
+     * @return the matcher.
+     */
+    public PhraseMatcher phraseMatcher() {
+        PhraseMatcher matcher = phraseMatcher;
+
+        // two threads may compile it at the same time - both results are the same
+        if (matcher == null) {
+            matcher = PhraseMatcher.forLexicon(this);
+            phraseMatcher = matcher;
+        }
+
+        return matcher;
+    }
+
+    /**
+     * Writes the lexicon to the given file in the compiled format.
+     * The file is written to a temporary file first, and then moved into place,
+     * so a reader never maps a half-written file.
+     *
+     * @param file the file to write to.
+     * @throws IOException if the file couldn't be written.
+     */
+    public void write(Path file) throws IOException {
+        int slots = mask + 1;
+        int keyChars = keys.capacity();
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + slots * SLOT_INTS * Integer.BYTES
+                + keyChars * Character.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(slots).putInt(keyChars)
+                .putInt(0).putInt(0).putInt(0);
+        for (int i = 0; i < table.capacity(); i++) {
+            buffer.putInt(table.get(i));
+        }
+        for (int i = 0; i < keyChars; i++) {
+            buffer.putChar(keys.get(i));
+        }
+        buffer.flip();
+
+        Path parent = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Checks whether the given file is a compiled lexicon, by its magic number.
+     *
+     * @param file the file to check.
+     * @return true, if it's a compiled lexicon, false otherwise.
+     * @throws IOException if the file couldn't be read.
+     */
+    public static boolean isCompiled(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && in.read(header) > 0) {
+                // keep reading until the magic number is read or the file ends
+            }
+
+            return !header.hasRemaining() && header.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Memory-maps a compiled lexicon file. The header and the slots are checked once;
+     * the slots and the words are then used straight from the mapped file.
+     *
+     * @param file the compiled lexicon file.
+     * @return the lexicon.
+     * @throws IOException if the file couldn't be mapped, or isn't a valid compiled lexicon.
+     */
+    public static Lexicon map(Path file) throws IOException {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = in.size();
+            if (fileSize < HEADER_BYTES || fileSize > Integer.MAX_VALUE) {
+                throw new IOException("Not a compiled lexicon: " + file);
+            }
+
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            int magic = buffer.getInt(0);
+            int version = buffer.getInt(4);
+            int size = buffer.getInt(8);
+            int slots = buffer.getInt(12);
+            int keyChars = buffer.getInt(16);
+            long tableBytes = (long) slots * SLOT_INTS * Integer.BYTES;
+
+            if (magic != MAGIC) {
+                throw new IOException("Not a compiled lexicon: " + file);
+            }
+            if (version != VERSION) {
+                throw new IOException("Unsupported compiled lexicon version " + version + ": " + file);
+            }
+            // the table is kept at most half full, and a full one would make a lookup of a missing word probe forever
+            if (slots <= 0 || Integer.bitCount(slots) != 1 || size < 0 || size >= slots || keyChars < 0
+                    || HEADER_BYTES + tableBytes + (long) keyChars * Character.BYTES != fileSize) {
+                throw new IOException("Corrupt compiled lexicon: " + file);
+            }
+
+            IntBuffer table = buffer.slice(HEADER_BYTES, (int) tableBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            CharBuffer keys = buffer.slice(HEADER_BYTES + (int) tableBytes, keyChars * Character.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+
+            // every word must lie within the pool, and the header must count the used slots
+            int used = 0;
+            for (int slot = 0; slot < slots; slot++) {
+                int base = slot * SLOT_INTS;
+                int info = table.get(base + 2);
+                if (info == 0) {
+                    continue;
+                }
+
+                long offset = table.get(base + 1);
+                long length = info >>> 2;
+                if (offset < 0 || length == 0 || offset + length > keyChars) {
+                    throw new IOException("Corrupt compiled lexicon (slot " + slot + "): " + file);
+                }
+                used++;
+            }
+            if (used != size) {
+                throw new IOException("Corrupt compiled lexicon: " + file);
+            }
+
+            return new Lexicon(table, keys, size);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A process-wide cache of loaded lexicons, so that concurrent analyses
+ * over the same files share a single immutable Lexicon.
+ *
+ * Entries are keyed by the paths of the sentiment map and stopwords files together
+ * with their modification times and sizes, so a changed file is loaded again.
+ * A file is loaded only once even when several threads ask for it at the same time:
+ * the first thread loads it, and the others wait for its result.
+ *
+ * Entries are evicted when they haven't been used for longer than the idle time,
+ * and the least recently used entries are evicted when the total size of the
+ * cached lexicons is over the limit. Only the lexicons held on the heap count
+ * towards the limit; memory-mapped (compiled) lexicons are only evicted when idle.
+ * The entries are checked on every get, and whenever evict is called.
+ */
+public class LexiconCache {
+    /**
+     * The default limit of the total size of the cached lexicons, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    /**
+     * The default time after which an unused entry is evicted.
+     */
+    public static final Duration DEFAULT_MAX_IDLE = Duration.ofMinutes(10);
+
+    private static final LexiconCache shared = new LexiconCache(DEFAULT_MAX_BYTES, DEFAULT_MAX_IDLE);
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final long maxBytes;
+    private final long maxIdleNanos;
+
+    /**
+     * Identifies the files a lexicon was loaded from, and the version of each file.
+     */
+    private record Key(Path sentimentMap, long mapModified, long mapSize,
+                       Path stopwords, long stopwordsModified, long stopwordsSize) {
+        /**
+         * Checks whether this key is for the same files as the other key,
+         * whatever the versions of the files.
+         */
+        boolean samePaths(Key other) {
+            return sentimentMap.equals(other.sentimentMap) && stopwords.equals(other.stopwords);
+        }
+    }
+
+    /**
+     * A cached lexicon that may still be loading.
+     */
+    private static final class Entry {
+        private final CompletableFuture<Lexicon> lexicon = new CompletableFuture<>();
+        private volatile long lastAccess = System.nanoTime();
+    }
+
+    /**
+     * Constructs a cache with the given limits.
+     *
+     * @param maxBytes the limit of the total size of the cached lexicons, in bytes.
+     * @param maxIdle  the time after which an unused entry is evicted.
+     */
+    public LexiconCache(long maxBytes, Duration maxIdle) {
+        this.maxBytes = maxBytes;
+        this.maxIdleNanos = maxIdle.toNanos();
+    }
+
+    /**
+     * Returns the cache shared by the whole process.
+     *
+     * @return the shared cache.
+     */
+    public static LexiconCache shared() {
+        return shared;
+    }
+
+    /**
+     * Returns the lexicon for the given files, loading it if it isn't cached yet
+     * or if one of the files has changed since it was loaded.
+     *
+     * @param sentimentMapFile the name of the sentiment map or compiled lexicon file.
+     * @param stopwordsFile    the name of the stopwords file (may be empty with a compiled lexicon).
+     * @return the lexicon.
+     * @throws IOException if the lexicon couldn't be loaded.
+     */
+    public Lexicon get(String sentimentMapFile, String stopwordsFile) throws IOException {
+        Key key = key(sentimentMapFile, stopwordsFile);
+        Entry created = new Entry();
+        Entry entry = entries.putIfAbsent(key, created);
+
+        if (entry == null) {
+            // this thread won the race - load the lexicon outside the map
+            entry = created;
+            try {
+                entry.lexicon.complete(SentimentScoreMapLoader.loadLexicon(sentimentMapFile, stopwordsFile));
+            } catch (IOException | RuntimeException e) {
+                entries.remove(key, entry);
+                entry.lexicon.completeExceptionally(e);
+            }
+
+            // older versions of the same files will never be asked for again
+            entries.keySet().removeIf(k -> k != key && k.samePaths(key));
+        }
+
+        // every lookup evicts, so idle entries go even when no new lexicon is loaded
+        entry.lastAccess = System.nanoTime();
+        evict();
+        return await(entry);
+    }
+
+    /**
+     * Waits for the lexicon of the entry to be loaded.
+     *
+     * @param entry the entry.
+     * @return the lexicon.
+     * @throws IOException if the lexicon couldn't be loaded.
+     */
+    private static Lexicon await(Entry entry) throws IOException {
+        try {
+            return entry.lexicon.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the lexicon", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Evicts the idle entries, and then the least recently used entries
+     * until the total size of the lexicons cached on the heap is within the limit.
+     */
+    public void evict() {
+        long now = System.nanoTime();
+        entries.entrySet().removeIf(e -> e.getValue().lexicon.isDone()
+                && now - e.getValue().lastAccess > maxIdleNanos);
+
+        List<Map.Entry<Key, Entry>> loaded = new ArrayList<>();
+        long total = 0;
+
+        for (Map.Entry<Key, Entry> e : entries.entrySet()) {
+            Lexicon lexicon = e.getValue().lexicon.getNow(null);
+            // a memory-mapped lexicon lives off the heap, in the page cache
+            if (lexicon != null && !lexicon.isMapped()) {
+                loaded.add(e);
+                total += lexicon.byteSize();
+            }
+        }
+
+        loaded.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+        for (Map.Entry<Key, Entry> e : loaded) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (entries.remove(e.getKey(), e.getValue())) {
+                total -= e.getValue().lexicon.join().byteSize();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of cached lexicons, including the ones still loading.
+     *
+     * @return the number of entries.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Removes all the cached lexicons.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Creates the key of the given files from their paths, modification times and sizes.
+     *
+     * @param sentimentMapFile the name of the sentiment map file.
+     * @param stopwordsFile    the name of the stopwords file.
+     * @return the key.
+     * @throws IOException if the attributes of the files couldn't be read.
+     */
+    private static Key key(String sentimentMapFile, String stopwordsFile) throws IOException {
+        Path map = Paths.get(sentimentMapFile).toAbsolutePath().normalize();
+        BasicFileAttributes mapAttributes = Files.readAttributes(map, BasicFileAttributes.class);
+
+        // a compiled lexicon may be given without a stopwords file
+        if (stopwordsFile.isEmpty()) {
+            return new Key(map, mapAttributes.lastModifiedTime().toMillis(), mapAttributes.size(),
+                    Paths.get(""), 0, 0);
+        }
+
+        // the stopwords file isn't read with a compiled lexicon, so it doesn't have to exist
+        Path stop = Paths.get(stopwordsFile).toAbsolutePath().normalize();
+        if (!Files.exists(stop)) {
+            return new Key(map, mapAttributes.lastModifiedTime().toMillis(), mapAttributes.size(),
+                    stop, -1, -1);
+        }
+
+        BasicFileAttributes stopAttributes = Files.readAttributes(stop, BasicFileAttributes.class);
+
+        return new Key(map, mapAttributes.lastModifiedTime().toMillis(), mapAttributes.size(),
+                stop, stopAttributes.lastModifiedTime().toMillis(), stopAttributes.size());
+    }
+}
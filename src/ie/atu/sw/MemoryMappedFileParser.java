@@ -0,0 +1,438 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * This class is responsible for parsing large text files in parallel.
+ *
+ * The file is memory-mapped and split into byte ranges that start right after
+ * a new line, one range per core. Each range is decoded and split into words
+ * on its own virtual thread, straight from the mapped memory.
+ *
+ * Produces exactly the same words as VirtualThreadFileParser: lines end at
+ * '\n', '\r' or "\r\n", are decoded as UTF-8, and are split on whitespace.
+ */
+public class MemoryMappedFileParser implements CorpusParser {
+    /**
+     * The largest range that can be mapped at once.
+     */
+    private static final long MAX_RANGE_SIZE = 1L << 30;
+    /**
+     * The number of bytes read at a time while looking for the end of a line.
+     */
+    private static final int SCAN_BUFFER_SIZE = 8 * 1024;
+
+    private final int ranges;
+    private final int batchSize;
+
+    /**
+     * Is used to receive the lines of a range together with their byte offsets.
+     */
+    @FunctionalInterface
+    public interface LineHandler {
+        /**
+         * Handles a single line.
+         *
+         * @param offset the byte offset of the start of the line in the file.
+         * @param text   the decoded line, without the line terminator.
+         * @throws IOException if the line couldn't be handled.
+         */
+        void line(long offset, String text) throws IOException;
+    }
+
+    /**
+     * Constructs a parser with one range per core and the default batch size.
+     */
+    public MemoryMappedFileParser() {
+        this(Runtime.getRuntime().availableProcessors(), VirtualThreadFileParser.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Constructs a parser with the given number of ranges and batch size.
+     *
+     * @param ranges    the number of ranges the file is split into.
+     * @param batchSize the number of lines in a single batch passed to the sink.
+     */
+    public MemoryMappedFileParser(int ranges, int batchSize) {
+        if (ranges < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("Number of ranges and batch size must be positive");
+        }
+
+        this.ranges = ranges;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Parses the specified file, decoding and splitting each range on its own virtual thread.
+     *
+     * @param book The path to the file to be parsed.
+     * @param sink Receives the words of each batch.
+     * @throws Exception if an I/O error occurs, if an interrupt occurs, or if the sink fails.
+     */
+    @Override
+    public void stream(String book, Consumer<List<String>> sink) throws Exception {
+        parse(book, true, sink);
+    }
+
+    /**
+     * Parses the specified file, passing whole lines to the sink, each range on its own virtual thread.
+     *
+     * @param book The path to the file to be parsed.
+     * @param sink Receives the lines of each batch.
+     * @throws Exception if an I/O error occurs, if an interrupt occurs, or if the sink fails.
+     */
+    @Override
+    public void streamLines(String book, Consumer<List<String>> sink) throws Exception {
+        parse(book, false, sink);
+    }
+
+    /**
+     * Parses the specified file, each range on its own virtual thread.
+     *
+     * @param book  The path to the file to be parsed.
+     * @param split Whether the lines are split into words.
+     * @param sink  Receives the words (or lines) of each batch.
+     * @throws Exception if an I/O error occurs, if an interrupt occurs, or if the sink fails.
+     */
+    private void parse(String book, boolean split, Consumer<List<String>> sink) throws Exception {
+        try (FileChannel channel = FileChannel.open(Paths.get(book), StandardOpenOption.READ)) {
+            long[] bounds = splitRanges(channel, ranges);
+            List<Future<?>> futures = new ArrayList<>(bounds.length - 1);
+
+            try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < bounds.length - 1; i++) {
+                    long start = bounds[i];
+                    long end = bounds[i + 1];
+
+                    futures.add(pool.submit(() -> {
+                        parseRange(book, channel, start, end, split, sink);
+                        return null;
+                    }));
+                }
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception cause) {
+                        throw cause;
+                    }
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits the range into words (or lines), passing them to the sink one batch at a time.
+     *
+     * @param book    the path to the file being parsed.
+     * @param channel the channel of the file.
+     * @param start   the start of the range (inclusive).
+     * @param end     the end of the range (exclusive).
+     * @param split   whether the lines are split into words.
+     * @param sink    receives the words (or lines) of each batch.
+     * @throws IOException if the range couldn't be read or decoded.
+     */
+    private void parseRange(String book, FileChannel channel, long start, long end, boolean split,
+                            Consumer<List<String>> sink) throws IOException {
+        Batcher batcher = new Batcher(book, split, sink);
+        forEachLine(channel, start, end, batcher);
+        batcher.flush();
+    }
+
+    /**
+     * Splits the file into the given number of ranges. Each range but the first
+     * starts right after a '\n', so no line is split between two ranges.
+     * Ranges are never larger than can be mapped at once, so there may be more
+     * ranges than requested; there may also be fewer if the file has few lines.
+     *
+     * @param channel the channel of the file.
+     * @param count   the requested number of ranges.
+     * @return the bounds of the ranges - range i is [bounds[i], bounds[i + 1]).
+     * @throws IOException if the file couldn't be read.
+     */
+    public static long[] splitRanges(FileChannel channel, int count) throws IOException {
+        long size = channel.size();
+        long n = Math.max(count, (size + MAX_RANGE_SIZE - 1) / MAX_RANGE_SIZE);
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+
+        for (long i = 1; i < n; i++) {
+            long tentative = size * i / n;
+            long previous = bounds.get(bounds.size() - 1);
+
+            if (tentative > previous) {
+                long next = nextLineStart(channel, tentative, size);
+                if (next > previous && next < size) {
+                    bounds.add(next);
+                }
+            }
+        }
+        bounds.add(size);
+
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Finds the start of the first line that starts at or after the given position.
+     *
+     * @param channel  the channel of the file.
+     * @param position the position to start looking from.
+     * @param size     the size of the file.
+     * @return the position right after the next '\n', or the size of the file if there's none.
+     * @throws IOException if the file couldn't be read.
+     */
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        // a line starts at the position if the byte before it ends a line
+        if (position == 0) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long pos = position - 1;
+
+        while (pos < size) {
+            buffer.clear();
+            int read = channel.read(buffer, pos);
+            if (read <= 0) {
+                break;
+            }
+
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += read;
+        }
+
+        return size;
+    }
+
+    /**
+     * Maps the given range and passes each of its lines to the handler, in order.
+     * The range must start at the start of a line.
+     *
+     * @param channel the channel of the file.
+     * @param start   the start of the range (inclusive).
+     * @param end     the end of the range (exclusive).
+     * @param handler receives each line with its byte offset.
+     * @throws IOException if the range couldn't be mapped or decoded.
+     */
+    public static void forEachLine(FileChannel channel, long start, long end,
+                                   LineHandler handler) throws IOException {
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("Range is too large to be mapped: " + (end - start) + " bytes");
+        }
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        forEachLine(buffer, start, handler);
+    }
+
+    /**
+     * Counts the lines of the given range, the same way forEachLine splits them,
+     * without decoding them. The range must start at the start of a line.
+     *
+     * @param channel the channel of the file.
+     * @param start   the start of the range (inclusive).
+     * @param end     the end of the range (exclusive).
+     * @return the number of lines.
+     * @throws IOException if the range couldn't be mapped.
+     */
+    public static long countLines(FileChannel channel, long start, long end) throws IOException {
+        if (end - start > Integer.MAX_VALUE) {
+            throw new IOException("Range is too large to be mapped: " + (end - start) + " bytes");
+        }
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int limit = buffer.limit();
+        long lines = 0;
+        int lineStart = 0;
+
+        for (int i = 0; i < limit; i++) {
+            byte b = buffer.get(i);
+
+            if (b == '\n' || b == '\r') {
+                lines++;
+
+                if (b == '\r' && i + 1 < limit && buffer.get(i + 1) == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+            }
+        }
+
+        return lineStart < limit ? lines + 1 : lines;
+    }
+
+    /**
+     * Reads the single line that starts at the given offset, e.g. to show a tweet that
+     * was kept only by the offset of its line.
+     *
+     * @param channel the channel of the file.
+     * @param offset  the byte offset of the start of the line.
+     * @return the line, without its line terminator.
+     * @throws IOException if the file couldn't be read, or the line isn't valid UTF-8.
+     */
+    public static String readLine(FileChannel channel, long offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long pos = offset;
+
+        while (true) {
+            buffer.limit(buffer.capacity());
+            int read = channel.read(buffer, pos);
+
+            for (int i = buffer.position() - Math.max(read, 0); i < buffer.position(); i++) {
+                byte b = buffer.get(i);
+                if (b == '\n' || b == '\r') {
+                    return decode(StandardCharsets.UTF_8.newDecoder(), buffer, 0, i);
+                }
+            }
+
+            if (read <= 0) {
+                return decode(StandardCharsets.UTF_8.newDecoder(), buffer, 0, buffer.position());
+            }
+            pos += read;
+
+            // a long line: keep what's been read, and read on
+            if (!buffer.hasRemaining()) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+            }
+        }
+    }
+
+    /**
+     * Passes each line of the buffer to the handler, in order.
+     * The buffer must start at the start of a line.
+     *
+     * @param buffer  the bytes to split into lines.
+     * @param base    the byte offset of the start of the buffer in the file.
+     * @param handler receives each line with its byte offset.
+     * @throws IOException if a line couldn't be decoded.
+     */
+    public static void forEachLine(ByteBuffer buffer, long base, LineHandler handler) throws IOException {
+        // reports malformed input, the same way Files.lines does
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        int limit = buffer.limit();
+        int lineStart = 0;
+        int i = 0;
+
+        while (i < limit) {
+            byte b = buffer.get(i);
+
+            if (b == '\n' || b == '\r') {
+                handler.line(base + lineStart, decode(decoder, buffer, lineStart, i));
+
+                // "\r\n" is a single line terminator
+                if (b == '\r' && i + 1 < limit && buffer.get(i + 1) == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+            }
+            i++;
+        }
+
+        // the last line doesn't have to end with a line terminator
+        if (lineStart < limit) {
+            handler.line(base + lineStart, decode(decoder, buffer, lineStart, limit));
+        }
+    }
+
+    /**
+     * Decodes the bytes between the given indexes without copying them first.
+     *
+     * @param decoder the UTF-8 decoder.
+     * @param buffer  the buffer holding the bytes.
+     * @param from    the index of the first byte (inclusive).
+     * @param to      the index of the last byte (exclusive).
+     * @return the decoded text.
+     * @throws IOException if the bytes aren't valid UTF-8.
+     */
+    private static String decode(CharsetDecoder decoder, ByteBuffer buffer, int from, int to) throws IOException {
+        if (from == to) {
+            return "";
+        }
+
+        CharBuffer chars = decoder.reset().decode(buffer.slice(from, to - from));
+        return chars.toString();
+    }
+
+    /**
+     * Splits lines into words (unless only the lines are wanted), and passes the words
+     * to the sink one batch of lines at a time.
+     */
+    private class Batcher implements LineHandler {
+        private final String book;
+        private final boolean split;
+        private final Consumer<List<String>> sink;
+        private List<String> words = new ArrayList<>(batchSize * 8);
+        private int lines = 0;
+        private AnalysisMetrics.Timer timer;
+
+        private Batcher(String book, boolean split, Consumer<List<String>> sink) {
+            this.book = book;
+            this.split = split;
+            this.sink = sink;
+        }
+
+        @Override
+        public void line(long offset, String text) {
+            if (lines == 0) {
+                timer = AnalysisMetrics.shared().startStage();
+            }
+
+            if (split) {
+                words.addAll(Arrays.asList(text.split("\\s+")));
+            } else {
+                words.add(text);
+            }
+
+            if (++lines == batchSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Passes the words of the current batch to the sink, if there are any lines in it.
+         */
+        private void flush() {
+            if (lines > 0) {
+                AnalysisMetrics metrics = AnalysisMetrics.shared();
+                // without splitting, the words are counted as they're looked up
+                metrics.recordParsed(lines, split ? words.size() : 0);
+                metrics.recordStage(AnalysisMetrics.Stage.PARSE, book, timer, lines);
+
+                metrics.addParserBatches(1);
+                try {
+                    sink.accept(words);
+                } finally {
+                    metrics.addParserBatches(-1);
+                }
+
+                words = new ArrayList<>(batchSize * 8);
+                lines = 0;
+            }
+        }
+    }
+}
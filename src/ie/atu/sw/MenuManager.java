@@ -51,8 +51,11 @@ public class MenuManager {
                 "(2) Specify a Sentiment Map File\n" +
                 "(3) Specify a Stopwords File\n" +
                 "(4) Perform Sentiment Analysis\n" +
-                "(5) Quit\n" +
-                "Select Option [1-5]>";
+                "(5) Compile the Lexicon\n" +
+                "(6) View the Jobs\n" +
+                "(7) Cancel a Job\n" +
+                "(8) Quit\n" +
+                "Select Option [1-8]>";
 
         String input;
         boolean isValidOption;
@@ -88,10 +91,29 @@ public class MenuManager {
         }
     }
 
+    /**
+     * Gets a whole number from the user, such as the id of a job.
+     *
+     * @param prompt the prompt message.
+     *
+     * @return the number.
+     */
+    public long getNumber(String prompt) {
+        while (true) {
+            String input = getNotEmptyInput(prompt);
+
+            try {
+                return Long.parseLong(input);
+            } catch (NumberFormatException e) {
+                System.out.println("Is not a valid number!");
+            }
+        }
+    }
+
     /**
      * Checks whether the given option is valid.
      *
-     * An option is valid if it's a number in 1 - 5 range.
+     * An option is valid if it's a number in 1 - 8 range.
      *
      * @param option the option String.
      * @return true, if valid, false otherwise.
@@ -104,6 +126,9 @@ public class MenuManager {
             case "3":
             case "4":
             case "5":
+            case "6":
+            case "7":
+            case "8":
                 return true;
             // is invalid option
             default:
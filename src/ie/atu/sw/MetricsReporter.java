@@ -0,0 +1,238 @@
+package ie.atu.sw;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * Periodically dumps the AnalysisMetrics as a line of text or JSON, with the rates
+ * (lines and tokens per second) over the last interval.
+ *
+ * Creating a reporter enables the metrics. Closing it stops the dumps and writes a final one.
+ */
+public final class MetricsReporter implements AutoCloseable {
+    /**
+     * The format of the dumps.
+     */
+    public enum Format {
+        TEXT, JSON
+    }
+
+    private final AnalysisMetrics metrics;
+    private final Duration interval;
+    private final Format format;
+    private final PrintStream out;
+    private final boolean closeOut;
+    private final Thread thread;
+
+    /**
+     * The snapshot of the previous dump, to compute the rates from.
+     */
+    private AnalysisMetrics.Snapshot previous;
+
+    /**
+     * Starts dumping the metrics at the given interval.
+     *
+     * @param metrics  the metrics to dump.
+     * @param interval the time between two dumps.
+     * @param format   the format of the dumps.
+     * @param out      where the dumps are written to.
+     */
+    public MetricsReporter(AnalysisMetrics metrics, Duration interval, Format format, PrintStream out) {
+        this(metrics, interval, format, out, false);
+    }
+
+    private MetricsReporter(AnalysisMetrics metrics, Duration interval, Format format, PrintStream out,
+                            boolean closeOut) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("The interval must be positive");
+        }
+
+        AnalysisMetrics.setEnabled(true);
+
+        this.metrics = metrics;
+        this.interval = interval;
+        this.format = format;
+        this.out = out;
+        this.closeOut = closeOut;
+        this.previous = metrics.snapshot();
+        this.thread = Thread.ofVirtual().name("metrics-reporter").start(this::reportLoop);
+    }
+
+    /**
+     * Starts dumping the metrics at the given interval, appending the dumps to a file.
+     *
+     * @param metrics  the metrics to dump.
+     * @param interval the time between two dumps.
+     * @param format   the format of the dumps.
+     * @param file     the file the dumps are appended to.
+     * @return the reporter.
+     * @throws IOException if the file couldn't be opened.
+     */
+    public static MetricsReporter toFile(AnalysisMetrics metrics, Duration interval, Format format, Path file)
+            throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        PrintStream out = new PrintStream(new FileOutputStream(file.toFile(), true), true, StandardCharsets.UTF_8);
+        return new MetricsReporter(metrics, interval, format, out, true);
+    }
+
+    /**
+     * Starts a reporter of the shared metrics as configured by the system properties
+     * sentiment.metrics.interval (in seconds), sentiment.metrics.format (text or json)
+     * and sentiment.metrics.file (standard error if not set).
+     *
+     * @return the reporter, or null if sentiment.metrics.interval isn't set.
+     * @throws IOException if the file couldn't be opened.
+     */
+    public static MetricsReporter fromSystemProperties() throws IOException {
+        String seconds = System.getProperty("sentiment.metrics.interval");
+        if (seconds == null) {
+            return null;
+        }
+
+        Duration interval = Duration.ofMillis(Math.round(Double.parseDouble(seconds) * 1000));
+        Format format = Format.valueOf(System.getProperty("sentiment.metrics.format", "text")
+                .toUpperCase(Locale.ROOT));
+        String file = System.getProperty("sentiment.metrics.file");
+
+        return file == null
+                ? new MetricsReporter(AnalysisMetrics.shared(), interval, format, System.err)
+                : toFile(AnalysisMetrics.shared(), interval, format, Paths.get(file));
+    }
+
+    /**
+     * Is run by the reporter thread: dumps the metrics at every interval until closed.
+     */
+    private void reportLoop() {
+        try {
+            while (true) {
+                Thread.sleep(interval);
+                report();
+            }
+        } catch (InterruptedException e) {
+            // the reporter is closed
+        }
+    }
+
+    /**
+     * Dumps the metrics now.
+     */
+    public synchronized void report() {
+        AnalysisMetrics.Snapshot current = metrics.snapshot();
+        out.println(format == Format.JSON ? toJson(current, previous) : toText(current, previous));
+        previous = current;
+    }
+
+    /**
+     * Stops the dumps, and writes a final one.
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        report();
+        if (closeOut) {
+            out.close();
+        }
+    }
+
+    /**
+     * Formats the metrics as a line of text.
+     *
+     * @param current  the current metrics.
+     * @param previous the metrics of the previous dump.
+     * @return the line.
+     */
+    private static String toText(AnalysisMetrics.Snapshot current, AnalysisMetrics.Snapshot previous) {
+        StringBuilder text = new StringBuilder();
+        text.append("[metrics ").append(Instant.now()).append(']');
+
+        for (AnalysisMetrics.Stage stage : AnalysisMetrics.Stage.values()) {
+            int i = stage.ordinal();
+            text.append(String.format(Locale.ROOT, " %s=%.3fs/%d/%d", stage.name().toLowerCase(Locale.ROOT),
+                    current.stageNanos()[i] / 1e9, current.stageCalls()[i], current.stageItems()[i]));
+        }
+
+        long[] latency = current.scoringLatency();
+        text.append(String.format(Locale.ROOT,
+                " lines=%d (%.0f/s) tokens=%d (%.0f/s) hit-rate=%.1f%%"
+                        + " queues[parser=%d scoring=%d output=%d]"
+                        + " scoring-latency[n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms]",
+                current.lines(), rate(current.lines(), previous.lines(), current, previous),
+                current.tokens(), rate(current.tokens(), previous.tokens(), current, previous),
+                current.hitRate() * 100,
+                current.parserBatches(), current.scoringCalls(), current.outputRecords(),
+                latency[0], latency[1] / 1e6, latency[2] / 1e6, latency[3] / 1e6, latency[4] / 1e6,
+                latency[5] / 1e6));
+
+        return text.toString();
+    }
+
+    /**
+     * Formats the metrics as a single line JSON object.
+     *
+     * @param current  the current metrics.
+     * @param previous the metrics of the previous dump.
+     * @return the line.
+     */
+    private static String toJson(AnalysisMetrics.Snapshot current, AnalysisMetrics.Snapshot previous) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"time\":\"").append(Instant.now()).append("\",\"stages\":{");
+
+        for (AnalysisMetrics.Stage stage : AnalysisMetrics.Stage.values()) {
+            int i = stage.ordinal();
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.ROOT, "\"%s\":{\"nanos\":%d,\"calls\":%d,\"items\":%d}",
+                    stage.name().toLowerCase(Locale.ROOT), current.stageNanos()[i], current.stageCalls()[i],
+                    current.stageItems()[i]));
+        }
+
+        long[] latency = current.scoringLatency();
+        json.append(String.format(Locale.ROOT,
+                "},\"lines\":%d,\"linesPerSecond\":%.1f,\"tokens\":%d,\"tokensPerSecond\":%.1f,"
+                        + "\"lookups\":%d,\"hits\":%d,\"hitRate\":%.4f,"
+                        + "\"queues\":{\"parserBatches\":%d,\"scoringCalls\":%d,\"outputRecords\":%d},"
+                        + "\"scoringLatencyNanos\":{\"count\":%d,\"mean\":%d,\"p50\":%d,\"p90\":%d,\"p99\":%d,"
+                        + "\"max\":%d}}",
+                current.lines(), rate(current.lines(), previous.lines(), current, previous),
+                current.tokens(), rate(current.tokens(), previous.tokens(), current, previous),
+                current.lookups(), current.hits(), current.hitRate(),
+                current.parserBatches(), current.scoringCalls(), current.outputRecords(),
+                latency[0], latency[1], latency[2], latency[3], latency[4], latency[5]));
+
+        return json.toString();
+    }
+
+    /**
+     * Returns the rate of a counter between two snapshots.
+     *
+     * @param count         the current value of the counter.
+     * @param previousCount the previous value of the counter.
+     * @param current       the current snapshot.
+     * @param previous      the previous snapshot.
+     * @return the change per second.
+     */
+    private static double rate(long count, long previousCount, AnalysisMetrics.Snapshot current,
+                               AnalysisMetrics.Snapshot previous) {
+        long nanos = current.nanoTime() - previous.nanoTime();
+        return nanos <= 0 ? 0 : (count - previousCount) * 1e9 / nanos;
+    }
+}
@@ -0,0 +1,451 @@
+package ie.atu.sw;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * This class is responsible for analyzing many corpus files at once - all the files
+ * of a directory, or all the files matching a glob pattern (e.g. "shards/day-*.txt").
+ *
+ * Every file is split into chunks that start right after a new line, and the chunks
+ * of all the files are scored on a work-stealing ForkJoinPool: a worker that runs out
+ * of chunks takes chunks queued by the other workers, so one huge file is shared by
+ * all the workers instead of holding up the whole run. A gzip-compressed file can't be
+ * split, so it's scored as a single task, as it's inflated on threads of its own.
+ *
+ * All the files are scored by the same analyzer, so the lexicon is loaded only once.
+ */
+public class MultiFileAnalyzer {
+    /**
+     * The default size (in bytes) of the chunks the files are split into.
+     */
+    public static final long DEFAULT_CHUNK_SIZE = 4L * 1024 * 1024;
+
+    /**
+     * The number of tweets of a chunk scored together.
+     */
+    private static final int TWEET_BATCH_SIZE = 1024;
+
+    private final TweetSentimentAnalyzer analyzer;
+    private final int threads;
+    private final int parallelism;
+    private final long chunkSize;
+
+    /**
+     * The total score of a single file.
+     *
+     * @param file   the path to the file.
+     * @param tweets the number of tweets (lines) of the file.
+     * @param score  the total score of the file.
+     */
+    public record FileScore(String file, long tweets, long score) {
+    }
+
+    /**
+     * The total scores of all the files, and the overall total.
+     *
+     * @param files  the total score of each file, in the order of the file names.
+     * @param tweets the number of tweets of all the files.
+     * @param score  the total score of all the files.
+     */
+    public record Result(List<FileScore> files, long tweets, long score) {
+    }
+
+    /**
+     * Constructs an analyzer with one worker per core and the default chunk size.
+     *
+     * @param analyzer    the analyzer shared by all the files.
+     * @param parallelism the number of virtual threads each batch of a chunk is scored on,
+     *                    or 1 to score each batch on the worker itself.
+     */
+    public MultiFileAnalyzer(TweetSentimentAnalyzer analyzer, int parallelism) {
+        this(analyzer, Runtime.getRuntime().availableProcessors(), parallelism, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructs an analyzer with the given number of workers and chunk size.
+     *
+     * @param analyzer    the analyzer shared by all the files.
+     * @param threads     the number of workers of the pool.
+     * @param parallelism the number of virtual threads each batch of a chunk is scored on,
+     *                    or 1 to score each batch on the worker itself.
+     * @param chunkSize   the size (in bytes) of the chunks the files are split into.
+     */
+    public MultiFileAnalyzer(TweetSentimentAnalyzer analyzer, int threads, int parallelism, long chunkSize) {
+        if (threads < 1 || parallelism < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("Threads, parallelism and chunk size must be positive");
+        }
+
+        this.analyzer = analyzer;
+        this.threads = threads;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Checks whether the input names many files - a directory or a glob pattern -
+     * rather than a single file.
+     *
+     * @param input the input given by the user.
+     * @return true, if the input is a directory or a glob pattern, false otherwise.
+     */
+    public static boolean isMultiFile(String input) {
+        return isGlob(input) || Files.isDirectory(Paths.get(input));
+    }
+
+    /**
+     * Lists the files named by the input, sorted by name.
+     *
+     * A directory names all the regular files under it (hidden files are skipped),
+     * a glob pattern names the files that match it, for example "shards/*.txt"
+     * or "shards/**&#47;day-*.txt".
+     *
+     * @param input a directory or a glob pattern.
+     * @return the files.
+     * @throws NoSuchFileException if no file matches the input.
+     * @throws IOException if a directory couldn't be listed.
+     */
+    public static List<Path> resolve(String input) throws IOException {
+        Path base;
+        PathMatcher matcher;
+        int depth;
+
+        if (isGlob(input)) {
+            // the directories before the first component with a wildcard are listed
+            String normalized = input.replace('\\', '/');
+            int wildcard = indexOfWildcard(normalized);
+            int slash = normalized.lastIndexOf('/', wildcard);
+            String pattern = normalized.substring(slash + 1);
+
+            base = slash < 0 ? Paths.get("") : Paths.get(slash == 0 ? "/" : normalized.substring(0, slash));
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            depth = pattern.contains("**") ? Integer.MAX_VALUE : pattern.split("/").length;
+        } else {
+            base = Paths.get(input);
+            matcher = path -> true;
+            depth = Integer.MAX_VALUE;
+        }
+
+        if (!Files.isDirectory(base)) {
+            throw new NoSuchFileException(input);
+        }
+
+        Path root = base;
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(base, depth)) {
+            files = paths.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().startsWith("."))
+                    .filter(path -> matcher.matches(root.relativize(path)))
+                    .sorted()
+                    .toList();
+        }
+
+        if (files.isEmpty()) {
+            throw new NoSuchFileException(input, null, "No files match");
+        }
+
+        return files;
+    }
+
+    /**
+     * Analyzes all the files named by the input.
+     *
+     * @param input a directory or a glob pattern.
+     * @return the total score of each file, and the overall total.
+     * @throws IOException if no file matches, or a file couldn't be read.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public Result analyze(String input) throws IOException, InterruptedException {
+        return analyze(resolve(input));
+    }
+
+    /**
+     * Analyzes the given files, splitting them into chunks that are shared by the workers.
+     * If the calling thread is interrupted, the chunks that are still queued are cancelled,
+     * and the running ones stop at their next tweet.
+     *
+     * @param files the files.
+     * @return the total score of each file, and the overall total.
+     * @throws IOException if a file couldn't be read.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public Result analyze(List<Path> files) throws IOException, InterruptedException {
+        List<FileTask> tasks = new ArrayList<>(files.size());
+        for (Path file : files) {
+            tasks.add(new FileTask(file));
+        }
+
+        try (ForkJoinPool pool = new ForkJoinPool(threads)) {
+            try {
+                pool.submit(() -> ForkJoinTask.invokeAll(tasks)).get();
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                throw e;
+            } catch (ExecutionException e) {
+                pool.shutdownNow();
+                throw unwrap(e.getCause());
+            }
+        }
+
+        List<FileScore> scores = new ArrayList<>(tasks.size());
+        long tweets = 0;
+        long score = 0;
+
+        for (FileTask task : tasks) {
+            FileScore fileScore = task.join();
+            scores.add(fileScore);
+            tweets += fileScore.tweets();
+            score += fileScore.score();
+        }
+
+        return new Result(scores, tweets, score);
+    }
+
+    /**
+     * Splits a file into chunks, and scores the chunks as subtasks that idle workers can steal.
+     */
+    private class FileTask extends RecursiveTask<FileScore> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path file;
+
+        private FileTask(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        protected FileScore compute() {
+            AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+            List<RecursiveTask<long[]>> chunks = new ArrayList<>();
+
+            try {
+                if (GzipFileParser.isCompressed(file)) {
+                    // a compressed file can't be split into byte ranges, so it's read whole
+                    chunks.add(new CompressedFileTask(file));
+                } else {
+                    long[] bounds;
+                    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                        long count = Math.max(1, (channel.size() + chunkSize - 1) / chunkSize);
+                        bounds = MemoryMappedFileParser.splitRanges(channel, (int) Math.min(count, Integer.MAX_VALUE));
+                    }
+
+                    for (int i = 0; i < bounds.length - 1; i++) {
+                        chunks.add(new ChunkTask(file, bounds[i], bounds[i + 1]));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            invokeAll(chunks);
+
+            long tweets = 0;
+            long score = 0;
+            for (RecursiveTask<long[]> chunk : chunks) {
+                long[] result = chunk.join();
+                tweets += result[0];
+                score += result[1];
+            }
+
+            AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.ANALYSIS, file.toString(), timer, 1);
+            return new FileScore(file.toString(), tweets, score);
+        }
+    }
+
+    /**
+     * Scores the tweets of a single chunk of a file, one batch at a time.
+     * The result is the number of tweets and their total score.
+     */
+    private class ChunkTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path file;
+        private final long start;
+        private final long end;
+
+        private ChunkTask(Path file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected long[] compute() {
+            long[] result = new long[2];
+            if (start == end) {
+                return result;
+            }
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                List<String> tweets = new ArrayList<>(TWEET_BATCH_SIZE);
+                AnalysisMetrics.Timer[] batchTimer = {null};
+
+                MemoryMappedFileParser.forEachLine(channel, start, end, (offset, text) -> {
+                    if (tweets.isEmpty()) {
+                        batchTimer[0] = AnalysisMetrics.shared().startStage();
+                    }
+                    tweets.add(text);
+
+                    if (tweets.size() == TWEET_BATCH_SIZE) {
+                        scoreBatch(file, tweets, batchTimer[0], result);
+                    }
+                });
+
+                if (!tweets.isEmpty()) {
+                    scoreBatch(file, tweets, batchTimer[0], result);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Scores the tweets of a whole gzip-compressed file, one batch at a time, while the
+     * file is inflated on threads of its own. The result is the number of tweets and their
+     * total score.
+     */
+    private class CompressedFileTask extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path file;
+
+        private CompressedFileTask(Path file) {
+            this.file = file;
+        }
+
+        @Override
+        protected long[] compute() {
+            long[] result = new long[2];
+
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new ParallelGzipInputStream(file, threads), StandardCharsets.UTF_8.newDecoder()))) {
+                List<String> tweets = new ArrayList<>(TWEET_BATCH_SIZE);
+                AnalysisMetrics.Timer batchTimer = null;
+                String text;
+
+                while ((text = in.readLine()) != null) {
+                    if (tweets.isEmpty()) {
+                        batchTimer = AnalysisMetrics.shared().startStage();
+                    }
+                    tweets.add(text);
+
+                    if (tweets.size() == TWEET_BATCH_SIZE) {
+                        scoreBatch(file, tweets, batchTimer, result);
+                    }
+                }
+
+                if (!tweets.isEmpty()) {
+                    scoreBatch(file, tweets, batchTimer, result);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Scores a batch of tweets, adds it to the result, and clears the batch.
+     *
+     * @param file       the file of the batch.
+     * @param tweets     the tweets of the batch.
+     * @param batchTimer the timer started with the batch.
+     * @param result     the number of tweets and the total score of the chunk (or file) so far.
+     */
+    private void scoreBatch(Path file, List<String> tweets, AnalysisMetrics.Timer batchTimer,
+            long[] result) {
+        AnalysisMetrics.shared().recordParsed(tweets.size(), 0);
+        AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.PARSE, file.toString(), batchTimer,
+                tweets.size());
+
+        float score;
+        if (parallelism == 1) {
+            score = analyzer.analyzeTweets(tweets);
+        } else {
+            try {
+                score = analyzer.analyzeTweets(tweets, parallelism, null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("The analysis was interrupted");
+            } catch (TimeoutException e) {
+                // there's no deadline
+                throw new IllegalStateException(e);
+            }
+        }
+
+        result[0] += tweets.size();
+        result[1] += (long) score;
+        tweets.clear();
+    }
+
+    /**
+     * Checks whether the input is a glob pattern, rather than the name of a file or directory.
+     *
+     * @param input the input given by the user.
+     * @return true, if the input has a wildcard, false otherwise.
+     */
+    private static boolean isGlob(String input) {
+        return indexOfWildcard(input) >= 0;
+    }
+
+    /**
+     * Finds the first wildcard of a glob pattern.
+     *
+     * @param input the input given by the user.
+     * @return the index of the first wildcard, or -1 if there's none.
+     */
+    private static int indexOfWildcard(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Rethrows the failure of a task as an IOException, or as the unchecked exception it was.
+     *
+     * @param cause the failure of the task.
+     * @return never returns normally - the return type lets the caller throw it.
+     * @throws IOException if a file couldn't be read.
+     */
+    private static IOException unwrap(Throwable cause) throws IOException {
+        if (cause instanceof UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (cause instanceof RuntimeException e) {
+            throw e;
+        }
+        if (cause instanceof Error e) {
+            throw e;
+        }
+
+        return new IOException(cause);
+    }
+}
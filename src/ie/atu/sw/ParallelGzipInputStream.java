@@ -0,0 +1,725 @@
+package ie.atu.sw;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a gzip file - of one member, or of many members one after the other, as written
+ * by cat-ing gzip files together or by bgzip - as the bytes it inflates to.
+ *
+ * The inflating runs on its own threads, ahead of the reader: the inflated bytes are
+ * handed over in pooled buffers, and a reader that's busy (e.g. splitting lines and
+ * handing them to the scoring threads) doesn't hold up the inflating. Each region may have
+ * a few buffers waiting for the reader, and more out of a byte budget shared by all the
+ * regions, so the regions after the one being read can inflate most (or all) of their
+ * range ahead; a region waits for the reader to free some of the budget when it's used up.
+ *
+ * A file of many members is inflated in parallel. The members can't be found without
+ * inflating the file, so the file is split into regions that start at a byte sequence
+ * that looks like the header of a member, and each region is inflated member by member
+ * on its own thread, up to the first member that ends at or past the start of the next
+ * region. The regions are read in order: a region that starts where the one before it
+ * ended is used as it is; one that starts inside a member (the sequence was part of the
+ * compressed data) is dropped, and any gap (up to the next region, or the end of the
+ * file) is inflated from the end of the region before it, on a thread of its own. Every
+ * member is checked against the CRC-32 and length of its trailer, so the bytes read are
+ * the same as GZIPInputStream's.
+ */
+public final class ParallelGzipInputStream extends InputStream {
+    /**
+     * The size of the pooled buffers the inflated bytes are handed over in.
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The number of inflated buffers a region may have waiting for the reader besides the
+     * shared budget, so the region being read never waits for the others.
+     */
+    private static final int BUFFERS_PER_REGION = 4;
+
+    /**
+     * The bytes of inflated buffers, per thread, the regions may have waiting for the
+     * reader out of the shared budget (at most a quarter of the heap in all).
+     */
+    private static final long BUDGET_BYTES_PER_THREAD = 64L * 1024 * 1024;
+
+    /**
+     * The smallest region of the compressed file inflated on its own thread.
+     */
+    private static final long MIN_REGION_SIZE = 4L * 1024 * 1024;
+
+    /**
+     * The number of compressed bytes read at a time.
+     */
+    private static final int INPUT_SIZE = 64 * 1024;
+
+    /**
+     * A buffer of inflated bytes, and whether it's counted in the shared budget.
+     */
+    private record Inflated(ByteBuffer buffer, boolean budgeted) {
+    }
+
+    /**
+     * The end of a region, the offset it ended at, and whether it ended at data that isn't
+     * a member (the rest of the file is ignored, as GZIPInputStream does).
+     */
+    private record End(long offset, boolean trailing) {
+    }
+
+    /**
+     * The failure of a region.
+     */
+    private record Failure(IOException cause) {
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private final long[] starts;
+    private final int threads;
+    private final ExecutorService inflaters;
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final Deque<Region> regions = new ArrayDeque<>();
+
+    /**
+     * The number of buffers of the shared budget, and the number of them waiting for the reader.
+     */
+    private final int budget;
+    private final ReentrantLock budgetLock = new ReentrantLock();
+    private final Condition budgetFreed = budgetLock.newCondition();
+    private int budgeted;
+
+    private int nextRegion;
+    private long expected;
+    private boolean trailing;
+    private ByteBuffer current;
+    private boolean closed;
+
+    /**
+     * Opens a gzip file, to be inflated on the given number of threads.
+     *
+     * @param file    the gzip file.
+     * @param threads the number of threads inflating the regions of the file; with 1,
+     *                the file is inflated from start to end on a single thread.
+     * @throws IOException if the file couldn't be opened.
+     */
+    public ParallelGzipInputStream(Path file, int threads) throws IOException {
+        this(file, threads, MIN_REGION_SIZE, BUDGET_BYTES_PER_THREAD);
+    }
+
+    /**
+     * Opens a gzip file, to be inflated on the given number of threads, with regions and a
+     * budget of the given sizes - e.g. to split a small file into many regions.
+     *
+     * @param file                 the gzip file.
+     * @param threads              the number of threads inflating the regions of the file.
+     * @param minRegionSize        the smallest region of the file inflated on its own thread.
+     * @param budgetBytesPerThread the bytes of inflated buffers, per thread, in the shared budget.
+     * @throws IOException if the file couldn't be opened.
+     */
+    ParallelGzipInputStream(Path file, int threads, long minRegionSize, long budgetBytesPerThread)
+            throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        }
+
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.threads = threads;
+
+        try {
+            this.size = channel.size();
+            this.starts = threads == 1 ? new long[] {0} : findRegions(channel, size, threads, minRegionSize);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        long budgetBytes = Math.min(threads * budgetBytesPerThread, Runtime.getRuntime().maxMemory() / 4);
+        this.budget = (int) Math.max(1, budgetBytes / BUFFER_SIZE);
+        this.inflaters = Executors.newFixedThreadPool(Math.min(threads, starts.length),
+                Thread.ofPlatform().daemon().name("gzip-inflater-", 0).factory());
+    }
+
+    /**
+     * Returns the number of regions the file was split into.
+     *
+     * @return the number of regions.
+     */
+    public int getRegions() {
+        return starts.length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer buffer = buffer();
+        return buffer == null ? -1 : buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        ByteBuffer buffer = buffer();
+        if (buffer == null) {
+            return -1;
+        }
+
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, count);
+        return count;
+    }
+
+    /**
+     * Stops the inflating threads, and closes the file.
+     *
+     * @throws IOException if the file couldn't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+        for (Region region : regions) {
+            region.cancel();
+        }
+        regions.clear();
+        inflaters.shutdown();
+        channel.close();
+    }
+
+    /**
+     * Returns the buffer with the next inflated bytes, waiting for them if needed.
+     *
+     * @return the buffer, with bytes remaining, or null at the end of the file.
+     * @throws IOException if the file couldn't be read or inflated, or the stream is closed.
+     */
+    private ByteBuffer buffer() throws IOException {
+        if (closed) {
+            throw new IOException("The stream is closed");
+        }
+
+        while (current == null || !current.hasRemaining()) {
+            if (current != null) {
+                pool.add(current.clear());
+            }
+            current = next();
+
+            if (current == null) {
+                return null;
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Takes the next buffer of the region that continues where the last one ended.
+     *
+     * @return the buffer, ready to be read, or null at the end of the file.
+     * @throws IOException if the file couldn't be read or inflated.
+     */
+    private ByteBuffer next() throws IOException {
+        while (true) {
+            // keeps every thread busy with a region, besides the one being read
+            while (regions.size() <= threads && nextRegion < starts.length) {
+                int index = nextRegion++;
+                regions.add(submit(starts[index], index + 1 < starts.length ? starts[index + 1] : size));
+            }
+
+            Region region = regions.peekFirst();
+            if (region == null) {
+                if (expected >= size || trailing) {
+                    return null;
+                }
+
+                // the members after a last region that started inside a member inflated already
+                regions.add(submitGap(expected, size));
+                continue;
+            }
+
+            if (region.start < expected) {
+                // the region started inside a member inflated already
+                regions.removeFirst().cancel();
+                continue;
+            }
+            if (region.start > expected) {
+                // the members between the last region and this one
+                regions.addFirst(submitGap(expected, region.start));
+                continue;
+            }
+
+            Object message;
+            try {
+                message = region.output.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while inflating");
+            }
+
+            if (message instanceof Inflated inflated) {
+                release(inflated);
+                return inflated.buffer();
+            }
+
+            regions.removeFirst();
+            if (message instanceof Failure failure) {
+                throw new IOException(failure.cause().getMessage(), failure.cause());
+            }
+
+            End end = (End) message;
+            expected = end.offset();
+            trailing = end.trailing();
+        }
+    }
+
+    /**
+     * Takes a buffer off a region's output, giving it back to the shared budget if it was
+     * counted in it, and wakes up the regions waiting for room: either in the budget, or
+     * among their own few buffers.
+     *
+     * @param inflated the buffer taken.
+     */
+    private void release(Inflated inflated) {
+        budgetLock.lock();
+        try {
+            if (inflated.budgeted()) {
+                budgeted--;
+            }
+            budgetFreed.signalAll();
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    /**
+     * Starts inflating a region on a thread of its own.
+     *
+     * @param start  the offset of the first member of the region.
+     * @param stopAt the offset the last member of the region ends at or after.
+     * @return the region.
+     */
+    private Region submit(long start, long stopAt) {
+        Region region = new Region(start, stopAt);
+        region.future = inflaters.submit(region::inflate);
+        return region;
+    }
+
+    /**
+     * Starts inflating the members after the last region read, up to the next region or
+     * the end of the file, on a thread outside the pool: the pool's threads may all be
+     * waiting for the reader to free some of the budget, and the reader waits for the gap.
+     *
+     * @param start  the offset the last region ended at.
+     * @param stopAt the start of the next region, or the size of the file.
+     * @return the region of the gap.
+     */
+    private Region submitGap(long start, long stopAt) {
+        Region region = new Region(start, stopAt);
+        FutureTask<Void> task = new FutureTask<>(region::inflate, null);
+        region.future = task;
+        Thread.ofPlatform().daemon().name("gzip-gap-inflater").start(task);
+        return region;
+    }
+
+    /**
+     * The members of a region of the file, and the buffers they're inflated into.
+     */
+    private final class Region {
+        private final long start;
+        private final long stopAt;
+        private final BlockingQueue<Object> output = new LinkedBlockingQueue<>();
+        private volatile boolean cancelled;
+        private Future<?> future;
+
+        private Region(long start, long stopAt) {
+            this.start = start;
+            this.stopAt = stopAt;
+        }
+
+        /**
+         * Stops inflating the region, and drops its buffers. The thread isn't interrupted,
+         * as an interrupted read would close the file for the other regions too; if it's
+         * waiting for room in the budget, it's woken up instead.
+         */
+        private void cancel() {
+            cancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+
+            budgetLock.lock();
+            try {
+                budgetFreed.signalAll();
+            } finally {
+                budgetLock.unlock();
+            }
+            drop();
+        }
+
+        /**
+         * Drops the buffers waiting for the reader, giving them back to the budget.
+         */
+        private void drop() {
+            Object message;
+            while ((message = output.poll()) != null) {
+                if (message instanceof Inflated inflated) {
+                    release(inflated);
+                }
+            }
+        }
+
+        /**
+         * Hands a full buffer to the reader. Past the few buffers of its own, the region
+         * waits for room in the shared budget, unless it's cancelled.
+         *
+         * @param buffer the buffer, ready to be read.
+         * @throws CancellationException if the region was cancelled.
+         * @throws InterruptedException if the thread was interrupted while waiting.
+         */
+        private void hand(ByteBuffer buffer) throws InterruptedException {
+            boolean fromBudget;
+
+            budgetLock.lock();
+            try {
+                // the reader may take this region's own buffers while the budget is used up
+                while (output.size() >= BUFFERS_PER_REGION && budgeted >= budget) {
+                    if (cancelled) {
+                        throw new CancellationException();
+                    }
+                    budgetFreed.await();
+                }
+
+                // only this thread adds to the output, so it can only have shrunk since
+                fromBudget = output.size() >= BUFFERS_PER_REGION;
+                if (fromBudget) {
+                    budgeted++;
+                }
+            } finally {
+                budgetLock.unlock();
+            }
+
+            output.add(new Inflated(buffer, fromBudget));
+
+            // cancelled meanwhile: the buffer may have been added after cancel dropped the others
+            if (cancelled) {
+                drop();
+            }
+        }
+
+        /**
+         * Inflates the members of the region, handing each full buffer to the reader, and
+         * then the offset the last member ended at (or the failure).
+         */
+        private void inflate() {
+            Inflater inflater = new Inflater(true);
+            try {
+                output.add(inflateMembers(inflater));
+            } catch (CancellationException | InterruptedException e) {
+                // the region was cancelled, or the stream closed
+            } catch (IOException e) {
+                output.add(new Failure(e));
+            } catch (DataFormatException | RuntimeException e) {
+                output.add(new Failure(new ZipException("Invalid gzip data: " + e.getMessage())));
+            } finally {
+                inflater.end();
+            }
+        }
+
+        /**
+         * Inflates members from the start of the region, up to the first member that ends
+         * at or past stopAt, or up to data that isn't a member.
+         *
+         * @param inflater the inflater.
+         * @return the end of the region, right after the last member inflated.
+         */
+        private End inflateMembers(Inflater inflater) throws IOException, DataFormatException, InterruptedException {
+            Input input = new Input(channel, size, start);
+            CRC32 crc = new CRC32();
+            ByteBuffer out = take();
+            boolean trailing = false;
+
+            do {
+                if (!input.skipHeader()) {
+                    if (input.position == start) {
+                        throw new ZipException("Not in GZIP format at offset " + start);
+                    }
+                    trailing = true;
+                    break;
+                }
+
+                inflater.reset();
+                crc.reset();
+                ByteBuffer in = input.chunk();
+                inflater.setInput(in);
+
+                while (!inflater.finished()) {
+                    if (cancelled) {
+                        throw new CancellationException();
+                    }
+
+                    if (inflater.needsInput()) {
+                        input.advance(in.position());
+                        in = input.chunk();
+                        if (!in.hasRemaining()) {
+                            throw new EOFException("Unexpected end of the gzip file at offset " + input.position);
+                        }
+                        inflater.setInput(in);
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new ZipException("A gzip member needs a dictionary");
+                    }
+
+                    int before = out.position();
+                    int inflated = inflater.inflate(out);
+                    if (inflated > 0) {
+                        crc.update(out.duplicate().limit(before + inflated).position(before));
+                    }
+
+                    if (!out.hasRemaining()) {
+                        hand(out.flip());
+                        out = take();
+                    }
+                }
+
+                input.advance(in.position());
+                long expectedCrc = input.readInt() & 0xFFFFFFFFL;
+                long expectedSize = input.readInt() & 0xFFFFFFFFL;
+                if (expectedCrc != crc.getValue() || expectedSize != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+                    throw new ZipException("Corrupt gzip member (CRC or size mismatch)");
+                }
+            } while (input.position < stopAt && input.position < size);
+
+            if (out.position() > 0) {
+                hand(out.flip());
+            } else {
+                pool.add(out);
+            }
+
+            return new End(input.position, trailing);
+        }
+
+        /**
+         * Takes a free buffer from the pool, or allocates one.
+         *
+         * @return the empty buffer.
+         */
+        private ByteBuffer take() {
+            ByteBuffer buffer = pool.poll();
+            return buffer != null ? buffer : ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Reads the compressed file from a position onward, a chunk at a time.
+     */
+    private static final class Input {
+        private final FileChannel channel;
+        private final long size;
+        private final ByteBuffer buffer = ByteBuffer.allocate(INPUT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long bufferStart;
+        private long position;
+
+        private Input(FileChannel channel, long size, long position) {
+            this.channel = channel;
+            this.size = size;
+            this.position = position;
+            buffer.limit(0);
+            this.bufferStart = position;
+        }
+
+        /**
+         * Returns the bytes from the position onward, for the inflater; it moves the
+         * position of the returned buffer as it consumes them.
+         *
+         * @return the bytes, none at the end of the file.
+         * @throws IOException if the file couldn't be read.
+         */
+        private ByteBuffer chunk() throws IOException {
+            fill(1);
+            return buffer.slice((int) (position - bufferStart), (int) (bufferStart + buffer.limit() - position));
+        }
+
+        private void advance(long bytes) {
+            position += bytes;
+        }
+
+        private int readByte() throws IOException {
+            if (!fill(1)) {
+                throw new EOFException("Unexpected end of the gzip file at offset " + position);
+            }
+            return buffer.get((int) (position++ - bufferStart)) & 0xFF;
+        }
+
+        private int readInt() throws IOException {
+            if (!fill(4)) {
+                throw new EOFException("Unexpected end of the gzip file at offset " + position);
+            }
+            int value = buffer.getInt((int) (position - bufferStart));
+            position += 4;
+            return value;
+        }
+
+        /**
+         * Skips the header of the member at the position.
+         *
+         * @return true, or false if there's no member header at the position.
+         * @throws IOException if the file couldn't be read, or the header is cut short.
+         */
+        private boolean skipHeader() throws IOException {
+            if (!fill(10) || !isHeader(buffer, (int) (position - bufferStart))) {
+                return false;
+            }
+
+            int flags = buffer.get((int) (position - bufferStart) + 3);
+            position += 10;
+
+            // FEXTRA, FNAME, FCOMMENT and FHCRC
+            if ((flags & 4) != 0) {
+                int length = readByte() | readByte() << 8;
+                position += length;
+            }
+            if ((flags & 8) != 0) {
+                while (readByte() != 0) {
+                    // the file name
+                }
+            }
+            if ((flags & 16) != 0) {
+                while (readByte() != 0) {
+                    // the comment
+                }
+            }
+            if ((flags & 2) != 0) {
+                position += 2;
+            }
+
+            if (position > size) {
+                throw new EOFException("Unexpected end of the gzip file in a member header");
+            }
+            return true;
+        }
+
+        /**
+         * Makes sure the buffer holds the given number of bytes from the position onward.
+         *
+         * @param bytes the number of bytes needed.
+         * @return false if the file ends before them.
+         * @throws IOException if the file couldn't be read.
+         */
+        private boolean fill(int bytes) throws IOException {
+            if (position >= bufferStart && position + bytes <= bufferStart + buffer.limit()) {
+                return true;
+            }
+            if (position + bytes > size) {
+                return false;
+            }
+
+            buffer.clear();
+            bufferStart = position;
+            while (buffer.hasRemaining() && bufferStart + buffer.position() < size) {
+                if (channel.read(buffer, bufferStart + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+
+            return position + bytes <= bufferStart + buffer.limit();
+        }
+    }
+
+    /**
+     * Splits a file into regions that start at what looks like the header of a member,
+     * about one region per thread several times over.
+     *
+     * @param channel       the channel of the file.
+     * @param size          the size of the file.
+     * @param threads       the number of threads inflating the regions.
+     * @param minRegionSize the smallest region.
+     * @return the starts of the regions, the first at 0.
+     * @throws IOException if the file couldn't be read.
+     */
+    private static long[] findRegions(FileChannel channel, long size, int threads, long minRegionSize)
+            throws IOException {
+        long regionSize = Math.max(minRegionSize, size / (threads * 4L));
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+
+        ByteBuffer buffer = ByteBuffer.allocate(INPUT_SIZE);
+        long from = regionSize;
+
+        while (from < size) {
+            long found = -1;
+            long limit = Math.min(size, from + regionSize);
+
+            // the headers can span two reads, so each read overlaps the last one
+            for (long pos = from; pos < limit && found < 0; pos += INPUT_SIZE - 16) {
+                buffer.clear();
+                channel.read(buffer, pos);
+                buffer.flip();
+
+                for (int i = 0; i + 10 <= buffer.limit() && pos + i < limit; i++) {
+                    if (isHeader(buffer, i)) {
+                        found = pos + i;
+                        break;
+                    }
+                }
+            }
+
+            if (found < 0) {
+                from = limit;
+            } else {
+                starts.add(found);
+                from = found + regionSize;
+            }
+        }
+
+        return starts.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * Checks whether the ten bytes at the index look like the header of a gzip member:
+     * the magic number, the deflate method, no reserved flags, and a known XFL and OS.
+     *
+     * @param buffer the bytes.
+     * @param i      the index of the first byte.
+     * @return true if they do.
+     */
+    private static boolean isHeader(ByteBuffer buffer, int i) {
+        if (buffer.get(i) != (byte) 0x1f || buffer.get(i + 1) != (byte) 0x8b || buffer.get(i + 2) != 8
+                || (buffer.get(i + 3) & 0xE0) != 0) {
+            return false;
+        }
+
+        int xfl = buffer.get(i + 8) & 0xFF;
+        int os = buffer.get(i + 9) & 0xFF;
+        return (xfl == 0 || xfl == 2 || xfl == 4) && (os <= 13 || os == 255);
+    }
+}
@@ -0,0 +1,444 @@
+package ie.atu.sw;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the multi-word entries (phrases) of a lexicon in a tweet, and the words that
+ * negate ("not", "never", "don't") or intensify ("very", "really") the words after them.
+ *
+ * The phrases are compiled into an Aho-Corasick automaton whose alphabet is the words of
+ * the phrases rather than their characters. The words of a tweet are fed to the automaton
+ * one at a time, and the longest phrase ending at each word is known from the state the
+ * automaton is in, so every phrase is found in a single pass over the tweet. The cost
+ * per tweet is proportional to its number of words, whatever the number of phrases.
+ *
+ * The phrase words and the rule words are held in a small Lexicon of their own, so each
+ * word of a tweet is looked up straight from the tweet's characters, without a copy.
+ * A bitset of the first and last characters of those words is checked first, so most
+ * words of a tweet are never looked up.
+ *
+ * An instance is immutable and thread-safe; the state of a pass over a tweet is an int
+ * held by the caller.
+ */
+public final class PhraseMatcher {
+    /**
+     * The number of words after a negator whose score it negates.
+     */
+    public static final int NEGATION_WINDOW = 3;
+
+    /**
+     * The words that negate the score of the words after them. Words ending in "n't"
+     * (e.g. "don't", "isn't") are negators too.
+     */
+    public static final Set<String> DEFAULT_NEGATORS = Set.of("not", "no", "never", "none", "nobody",
+            "nothing", "neither", "nor", "nowhere", "cannot", "without");
+
+    /**
+     * The words that intensify the score of the word right after them.
+     */
+    public static final Set<String> DEFAULT_INTENSIFIERS = Set.of("very", "really", "extremely", "so", "too",
+            "totally", "absolutely", "incredibly", "super", "highly", "especially", "particularly");
+
+    /**
+     * The modifier of a match whose score is negated.
+     */
+    public static final int NEGATED = 1;
+    /**
+     * The modifier of a match whose score is intensified.
+     */
+    public static final int INTENSIFIED = 2;
+
+    /**
+     * The flags of a word of the vocabulary. The id of a phrase word, plus one, is
+     * stored above them, so a word that is only a rule word has an id of zero.
+     */
+    private static final int NEGATOR = 1;
+    private static final int INTENSIFIER = 2;
+    private static final int FLAG_BITS = 2;
+
+    /**
+     * The key of an empty slot of the transition table.
+     */
+    private static final long EMPTY = -1L;
+
+    private final Lexicon vocabulary;
+    private final int maxWordLength;
+    /**
+     * Has a bit set for the (lower-case ASCII) first and last characters of every word
+     * of the vocabulary.
+     */
+    private final long[] ends = new long[128 * 128 / Long.SIZE];
+    private final long[] transitionKeys;
+    private final int[] transitionTargets;
+    private final int transitionMask;
+    private final int[] fail;
+    private final int[] phraseWords;
+    private final int[] phraseScores;
+    private final String[] phraseTexts;
+    private final int phrases;
+    private final int maxPhraseWords;
+
+    /**
+     * Compiles the automaton of the given phrases, with the given rule words.
+     * Phrases are lower-cased, and split into words on whitespace; entries of a single
+     * word are skipped, as the lexicon already scores them.
+     *
+     * @param phrases      the scores of the phrases.
+     * @param negators     the words that negate the words after them.
+     * @param intensifiers the words that intensify the word right after them.
+     */
+    public PhraseMatcher(Map<String, Integer> phrases, Set<String> negators, Set<String> intensifiers) {
+        Map<String, Integer> wordIds = new LinkedHashMap<>();
+        Map<Long, Integer> transitions = new HashMap<>();
+        List<List<int[]>> children = new ArrayList<>();
+        List<int[]> terminals = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        children.add(new ArrayList<>());
+        terminals.add(null);
+        texts.add(null);
+        int longest = 0;
+        int count = 0;
+
+        // build the trie of the phrases, one word per edge
+        for (Map.Entry<String, Integer> e : phrases.entrySet()) {
+            String[] words = e.getKey().toLowerCase(Locale.ROOT).trim().split("\\s+");
+            if (words.length < 2) {
+                continue;
+            }
+
+            int state = 0;
+            for (String word : words) {
+                int id = wordIds.computeIfAbsent(word, k -> wordIds.size());
+                long key = (long) state << 32 | id;
+                Integer target = transitions.get(key);
+
+                if (target == null) {
+                    target = children.size();
+                    transitions.put(key, target);
+                    children.get(state).add(new int[]{id, target});
+                    children.add(new ArrayList<>());
+                    terminals.add(null);
+                    texts.add(null);
+                }
+                state = target;
+            }
+
+            if (terminals.get(state) == null) {
+                count++;
+            }
+            terminals.set(state, new int[]{words.length, e.getValue()});
+            texts.set(state, String.join(" ", words));
+            longest = Math.max(longest, words.length);
+        }
+
+        int states = children.size();
+        this.phrases = count;
+        this.maxPhraseWords = longest;
+        this.fail = new int[states];
+        this.phraseWords = new int[states];
+        this.phraseScores = new int[states];
+        this.phraseTexts = new String[states];
+
+        int slots = Lexicon.tableSlots(Math.max(transitions.size(), 1));
+        this.transitionKeys = new long[slots];
+        this.transitionTargets = new int[slots];
+        this.transitionMask = slots - 1;
+        Arrays.fill(transitionKeys, EMPTY);
+        for (Map.Entry<Long, Integer> e : transitions.entrySet()) {
+            putTransition(e.getKey(), e.getValue());
+        }
+
+        /*
+         link every state to the state of its longest proper suffix that is in the trie,
+         breadth first, so the states of the shorter suffixes are linked first
+         */
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int[] child : children.get(0)) {
+            queue.add(child[1]);
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+
+            // the longest phrase ending at a state is its own, or else the one of its suffix
+            int[] terminal = terminals.get(state);
+            if (terminal != null) {
+                phraseWords[state] = terminal[0];
+                phraseScores[state] = terminal[1];
+                phraseTexts[state] = texts.get(state);
+            } else {
+                phraseWords[state] = phraseWords[fail[state]];
+                phraseScores[state] = phraseScores[fail[state]];
+                phraseTexts[state] = phraseTexts[fail[state]];
+            }
+
+            for (int[] child : children.get(state)) {
+                int suffix = fail[state];
+                int target;
+                while ((target = transition(suffix, child[0])) < 0 && suffix != 0) {
+                    suffix = fail[suffix];
+                }
+
+                fail[child[1]] = target >= 0 ? target : 0;
+                queue.add(child[1]);
+            }
+        }
+
+        // the vocabulary maps each word to its id and its rules
+        Map<String, Integer> vocabularyInfo = new HashMap<>();
+        for (Map.Entry<String, Integer> e : wordIds.entrySet()) {
+            vocabularyInfo.put(e.getKey(), (e.getValue() + 1) << FLAG_BITS);
+        }
+        for (String negator : negators) {
+            vocabularyInfo.merge(negator.toLowerCase(Locale.ROOT), NEGATOR, (a, b) -> a | b);
+        }
+        for (String intensifier : intensifiers) {
+            vocabularyInfo.merge(intensifier.toLowerCase(Locale.ROOT), INTENSIFIER, (a, b) -> a | b);
+        }
+
+        this.vocabulary = Lexicon.build(vocabularyInfo, Set.of());
+        this.maxWordLength = vocabularyInfo.keySet().stream().mapToInt(String::length).max().orElse(0);
+
+        // words with a character outside ASCII at either end are always looked up, so they aren't in the bitset
+        for (String word : vocabularyInfo.keySet()) {
+            if (!word.isEmpty() && word.charAt(0) < 0x80 && word.charAt(word.length() - 1) < 0x80) {
+                int bit = word.charAt(0) << 7 | word.charAt(word.length() - 1);
+                ends[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * Compiles the automaton of the phrases of the lexicon, with the default rule words.
+     *
+     * @param lexicon the lexicon.
+     * @return the matcher.
+     */
+    public static PhraseMatcher forLexicon(Lexicon lexicon) {
+        return new PhraseMatcher(lexicon.phrases(), DEFAULT_NEGATORS, DEFAULT_INTENSIFIERS);
+    }
+
+    /**
+     * Returns the number of phrases of the automaton.
+     *
+     * @return the number of phrases.
+     */
+    public int size() {
+        return phrases;
+    }
+
+    /**
+     * Returns the number of words of the longest phrase.
+     *
+     * @return the number of words, or 0 if there are no phrases.
+     */
+    public int getMaxPhraseWords() {
+        return maxPhraseWords;
+    }
+
+    /**
+     * Looks up the word between the given indexes of the tweet, ignoring case.
+     *
+     * @param text  the text holding the word.
+     * @param start the index of the first character of the word (inclusive).
+     * @param end   the index of the last character of the word (exclusive).
+     * @return the word as passed to next, isNegator and isIntensifier - 0 if it's
+     *         neither a phrase word nor a rule word.
+     */
+    public int word(CharSequence text, int start, int end) {
+        int info = 0;
+
+        if (end - start <= maxWordLength && mayBeWord(text.charAt(start), text.charAt(end - 1))) {
+            int entry = vocabulary.lookup(text, start, end);
+            if (entry >= 0) {
+                info = vocabulary.score(entry);
+            }
+        }
+
+        return isContraction(text, start, end) ? info | NEGATOR : info;
+    }
+
+    /**
+     * Checks the bitset of the first and last characters of the vocabulary.
+     *
+     * @param first the first character of the word.
+     * @param last  the last character of the word.
+     * @return false, if the word can't be in the vocabulary, true if it may be.
+     */
+    private boolean mayBeWord(char first, char last) {
+        if (first >= 0x80 || last >= 0x80) {
+            return true;
+        }
+
+        int bit = lowerAscii(first) << 7 | lowerAscii(last);
+        return (ends[bit >>> 6] & 1L << bit) != 0;
+    }
+
+    /**
+     * Lower-cases an ASCII character.
+     *
+     * @param c the character.
+     * @return the lower-case character.
+     */
+    private static int lowerAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * Checks whether the word ends in "n't", e.g. "don't" or "isn’t".
+     *
+     * @param text  the text holding the word.
+     * @param start the index of the first character of the word (inclusive).
+     * @param end   the index of the last character of the word (exclusive).
+     * @return true, if it's a negated contraction, false otherwise.
+     */
+    private static boolean isContraction(CharSequence text, int start, int end) {
+        if (end - start < 4) {
+            return false;
+        }
+
+        char t = text.charAt(end - 1);
+        char apostrophe = text.charAt(end - 2);
+        char n = text.charAt(end - 3);
+
+        return (t == 't' || t == 'T') && (apostrophe == '\'' || apostrophe == '’') && (n == 'n' || n == 'N');
+    }
+
+    /**
+     * Checks whether the word negates the words after it.
+     *
+     * @param word the word returned by word().
+     * @return true, if it's a negator, false otherwise.
+     */
+    public static boolean isNegator(int word) {
+        return (word & NEGATOR) != 0;
+    }
+
+    /**
+     * Checks whether the word intensifies the word right after it.
+     *
+     * @param word the word returned by word().
+     * @return true, if it's an intensifier, false otherwise.
+     */
+    public static boolean isIntensifier(int word) {
+        return (word & INTENSIFIER) != 0;
+    }
+
+    /**
+     * Moves the automaton past the next word of the tweet.
+     *
+     * @param state the state after the previous word, or 0 at the start of the tweet.
+     * @param word  the word returned by word().
+     * @return the state after the word.
+     */
+    public int next(int state, int word) {
+        int id = (word >>> FLAG_BITS) - 1;
+        if (id < 0) {
+            return 0;
+        }
+
+        int target;
+        while ((target = transition(state, id)) < 0) {
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+
+        return target;
+    }
+
+    /**
+     * Returns the number of words of the longest phrase ending at the word that led to the state.
+     *
+     * @param state the state returned by next.
+     * @return the number of words, or 0 if no phrase ends there.
+     */
+    public int phraseWords(int state) {
+        return phraseWords[state];
+    }
+
+    /**
+     * Returns the score of the longest phrase ending at the word that led to the state.
+     *
+     * @param state the state returned by next.
+     * @return the score.
+     */
+    public int phraseScore(int state) {
+        return phraseScores[state];
+    }
+
+    /**
+     * Returns the longest phrase ending at the word that led to the state, lower-cased,
+     * with its words separated by single spaces - as the lexicon holds it.
+     *
+     * @param state the state returned by next.
+     * @return the phrase, or null if no phrase ends there.
+     */
+    public String phrase(int state) {
+        return phraseTexts[state];
+    }
+
+    /**
+     * Applies the modifiers of a match to its score. A negated score changes its sign,
+     * an intensified score grows by one in the direction of its sign.
+     *
+     * @param score     the score of the word or phrase.
+     * @param modifiers NEGATED and/or INTENSIFIED, or 0.
+     * @return the modified score.
+     */
+    public static int apply(int score, int modifiers) {
+        if ((modifiers & INTENSIFIED) != 0) {
+            score += Integer.signum(score);
+        }
+
+        return (modifiers & NEGATED) != 0 ? -score : score;
+    }
+
+    /**
+     * Returns the target of the transition of the state on the word.
+     *
+     * @param state the state.
+     * @param id    the id of the word.
+     * @return the target state, or -1 if there's no such transition.
+     */
+    private int transition(int state, int id) {
+        long key = (long) state << 32 | id;
+        int slot = Lexicon.spread(Long.hashCode(key)) & transitionMask;
+
+        while (true) {
+            long k = transitionKeys[slot];
+            if (k == key) {
+                return transitionTargets[slot];
+            }
+            if (k == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & transitionMask;
+        }
+    }
+
+    /**
+     * Adds a transition to the table.
+     *
+     * @param key    the state and the id of the word.
+     * @param target the target state.
+     */
+    private void putTransition(long key, int target) {
+        int slot = Lexicon.spread(Long.hashCode(key)) & transitionMask;
+
+        while (transitionKeys[slot] != EMPTY) {
+            slot = (slot + 1) & transitionMask;
+        }
+        transitionKeys[slot] = key;
+        transitionTargets[slot] = target;
+    }
+}
@@ -0,0 +1,31 @@
+package ie.atu.sw;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * A periodic JFR event with the depths of the queues between the stages of the analyses.
+ *
+ * Is only emitted while a JFR recording has the event enabled.
+ */
+@Name("ie.atu.sw.QueueDepth")
+@Label("Analysis Queue Depths")
+@Category("Sentiment Analyzer")
+@Description("The depths of the queues between the stages of the analyses")
+@Period("1 s")
+@StackTrace(false)
+class QueueDepthEvent extends Event {
+    @Label("Parser Batches In Flight")
+    long parserBatches;
+
+    @Label("Scoring Calls In Flight")
+    long scoringCalls;
+
+    @Label("Queued Output Records")
+    long outputRecords;
+}
@@ -0,0 +1,285 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A long-lived writer that appends records (lines) to a file in batches (group commit).
+ *
+ * Writers add records to a lock-free queue and return straight away. A single flusher
+ * thread keeps the file open, and writes all the queued records with one write call
+ * once enough records are queued or the maximum delay has passed, whichever comes first.
+ * Optionally each batch is forced to the disk (fsync) before it counts as written.
+ *
+ * It's thread-safe.
+ */
+public final class ResultsWriter implements AutoCloseable {
+    /**
+     * The default number of queued records that triggers a flush.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+    /**
+     * The default maximum time a record waits in the queue.
+     */
+    public static final Duration DEFAULT_MAX_DELAY = Duration.ofMillis(50);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final boolean fsync;
+    private final Thread flusher;
+
+    /**
+     * The number of records added so far, and the number of records written so far.
+     */
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    /**
+     * Is used to wait until the records are written.
+     */
+    private final ReentrantLock writtenLock = new ReentrantLock();
+    private final Condition writtenCondition = writtenLock.newCondition();
+
+    /**
+     * The number of threads adding a record. A writer counts itself in before it checks that
+     * the writer is running, and the writer stops by clearing running before it waits for the
+     * count to drop to 0 - so either the record is rejected, or it's queued before the
+     * flusher's last look at the queue, without a lock on the way in.
+     */
+    private final AtomicInteger adding = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    /**
+     * Is set once running is cleared and no record is being added any more, so the flusher's
+     * next look at an empty queue can be its last.
+     */
+    private volatile boolean stopped;
+    private volatile IOException failure;
+
+    /**
+     * Opens the given file for appending, with the default batch size and delay, and without fsync.
+     *
+     * @param path the file to append to.
+     * @throws IOException if the file couldn't be opened.
+     */
+    public ResultsWriter(Path path) throws IOException {
+        this(path, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY, false);
+    }
+
+    /**
+     * Opens the given file for appending.
+     *
+     * @param path      the file to append to.
+     * @param batchSize the number of queued records that triggers a flush.
+     * @param maxDelay  the maximum time a record waits in the queue.
+     * @param fsync     whether each batch is forced to the disk.
+     * @throws IOException if the file couldn't be opened.
+     */
+    public ResultsWriter(Path path, int batchSize, Duration maxDelay, boolean fsync) throws IOException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+
+        Path parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.fsync = fsync;
+        this.flusher = Thread.ofPlatform().daemon().name("results-writer").start(this::flushLoop);
+    }
+
+    /**
+     * Adds a record to be written as a line of the file. Doesn't wait for it to be written.
+     *
+     * @param record the record, without the line terminator.
+     */
+    public void write(String record) {
+        long pending;
+
+        adding.incrementAndGet();
+        try {
+            if (!running) {
+                throw new IllegalStateException("The writer is closed");
+            }
+
+            queue.add(record);
+            AnalysisMetrics.shared().addOutputRecords(1);
+            pending = queued.incrementAndGet() - written.get();
+        } finally {
+            adding.decrementAndGet();
+        }
+
+        // wake the flusher up once a whole batch is waiting
+        if (pending >= batchSize) {
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    /**
+     * Waits until all the records added before this call are written.
+     *
+     * @throws IOException if the records couldn't be written.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void flush() throws IOException, InterruptedException {
+        long target = queued.get();
+        LockSupport.unpark(flusher);
+
+        writtenLock.lock();
+        try {
+            while (written.get() < target && failure == null) {
+                writtenCondition.await();
+            }
+        } finally {
+            writtenLock.unlock();
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writes the remaining records, and closes the file. Records added by other threads
+     * at the same time are either written or rejected, never dropped, and it waits for the
+     * flusher even if it's interrupted.
+     *
+     * @throws IOException if the records couldn't be written, or the file couldn't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        stop();
+        LockSupport.unpark(flusher);
+
+        // the queued records are written even if this thread is interrupted while waiting
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Is run by the flusher thread: waits for a full batch or the maximum delay,
+     * and writes the queued records, until the writer is closed and the queue is empty.
+     */
+    private void flushLoop() {
+        while (!stopped || !queue.isEmpty()) {
+            if (running && queued.get() - written.get() < batchSize) {
+                LockSupport.parkNanos(this, maxDelayNanos);
+            }
+
+            try {
+                writeQueued();
+            } catch (IOException e) {
+                e.printStackTrace();
+                failure = e;
+                stop();
+
+                // the dropped records are no longer waiting to be written
+                long dropped = 0;
+                while (queue.poll() != null) {
+                    dropped++;
+                }
+                AnalysisMetrics.shared().addOutputRecords(-dropped);
+            }
+
+            writtenLock.lock();
+            try {
+                writtenCondition.signalAll();
+            } finally {
+                writtenLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Stops the writer from taking records, once the records being added are queued.
+     */
+    private void stop() {
+        running = false;
+
+        // a writer is only ever between its check and its add for an instant, unless it's descheduled
+        while (adding.get() != 0) {
+            Thread.yield();
+        }
+        stopped = true;
+    }
+
+    /**
+     * Writes all the queued records with a single write (and force) call.
+     *
+     * @throws IOException if the records couldn't be written.
+     */
+    private void writeQueued() throws IOException {
+        AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+        StringBuilder batch = new StringBuilder();
+        long records = 0;
+        String record;
+
+        while ((record = queue.poll()) != null) {
+            batch.append(record).append(System.lineSeparator());
+            records++;
+        }
+
+        if (records == 0) {
+            return;
+        }
+
+        AnalysisMetrics metrics = AnalysisMetrics.shared();
+        metrics.addOutputRecords(-records);
+
+        ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        if (fsync) {
+            channel.force(false);
+        }
+
+        written.addAndGet(records);
+        metrics.recordStage(AnalysisMetrics.Stage.WRITE, path.toString(), timer, records);
+    }
+
+    /**
+     * Returns the number of records written so far.
+     *
+     * @return the number of records.
+     */
+    public long getWritten() {
+        return written.get();
+    }
+}
@@ -2,10 +2,13 @@ package ie.atu.sw;
 
 import javax.swing.*;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * The driver class.
@@ -16,7 +19,10 @@ import java.util.concurrent.LinkedBlockingQueue;
  *
  * The producer thread (the first virtual thread) adds a chosen menu option to the
  * pendingOptions thread-safe queue, while the consumer thread (the second virtual thread)
- * polls the available options from the queue, and executes the corresponding menu action.
+ * blocks on the queue until an option is available, and executes the corresponding menu action.
+ *
+ * The analyses themselves are run as jobs by the JobScheduler, which limits how many
+ * of them run at the same time, and lets the user view and cancel them.
  *
  * Launches the menu, analyses the tweets, writes the scores to output file.
  */
@@ -48,10 +54,28 @@ public class Runner {
     private static final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
 
     /**
-     * Is used to create virtual threads on which performSentimentAnalysis would be run.
-     * For each call of menu option (4) a new virtual thread is launched.
+     * The maximum number of analyses running at the same time.
+     */
+    private static final int MAX_RUNNING_ANALYSES = 4;
+    /**
+     * The maximum number of analyses waiting to run.
+     */
+    private static final int MAX_QUEUED_ANALYSES = 16;
+    /**
+     * The time the running analyses are given to finish when quitting.
+     */
+    private static final Duration SHUTDOWN_GRACE = Duration.ofSeconds(30);
+
+    /**
+     * Is used to run performSentimentAnalysis as jobs, each on its own virtual thread.
+     * For each call of menu option (4) a new job is submitted.
+     */
+    private static final JobScheduler scheduler = new JobScheduler(MAX_RUNNING_ANALYSES, MAX_QUEUED_ANALYSES);
+
+    /**
+     * The number of virtual threads each batch of words is scored on.
      */
-    private static final ExecutorService analyzerExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private static final int SCORING_PARALLELISM = 64;
 
     /**
      * Stores the name of the input file with the tweets.
@@ -77,9 +101,24 @@ public class Runner {
     /**
      * The driver method.
      *
-     * @param args not used.
+     * @param args none for the interactive menu, or the arguments of a headless
+     *             (batch) run - see BatchRunner.
      */
     public static void main(String[] args) {
+        // with arguments, run headless - without the menu and the dialogs
+        if (args.length > 0) {
+            BatchRunner.main(args);
+            return;
+        }
+
+        // dumps the stage metrics periodically, if the sentiment.metrics.interval property is set
+        MetricsReporter reporter = null;
+        try {
+            reporter = MetricsReporter.fromSystemProperties();
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+
         try (executor) {
             // create the menu virtual thread
             executor.submit(() -> {
@@ -111,12 +150,15 @@ public class Runner {
                 }
             });
 
-            // create a virtual thread for polling pending menu options
+            // create a virtual thread for taking pending menu options
             executor.submit(() -> {
                 try {
                     while (shouldRun) {
-                        if (!pendingOptions.isEmpty()) {
-                            int nextOption = pendingOptions.poll();
+                        // blocks until an option is available, instead of spinning
+                        int nextOption = pendingOptions.take();
+
+                        // the quit option is only added to wake this thread up
+                        if (shouldRun) {
                             menuAction(nextOption);
                         }
                     }
@@ -127,6 +169,20 @@ public class Runner {
                 }
             });
         }
+
+        // let the running analyses finish, then write the scores that are still queued
+        try {
+            if (!scheduler.shutdown(SHUTDOWN_GRACE)) {
+                System.out.println("Cancelled the analyses that were still running");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        fileManager.close();
+
+        if (reporter != null) {
+            reporter.close();
+        }
     }
 
     /**
@@ -159,17 +215,43 @@ public class Runner {
                  file names have been passed to the method
                  */
                 synchronized (menuManager.getUserInputLock()) {
-                    // each user's analysis is executed on its own thread
-                    analyzerExecutor.execute(() -> {
-                        performSentimentAnalysis(inputFilePath, sentimentMapFilePath, stopwordsFilePath);
-                    });
+                    String input = inputFilePath;
+                    String map = sentimentMapFilePath;
+                    String stopwords = stopwordsFilePath;
+
+                    // each user's analysis is executed as a job on its own thread
+                    try {
+                        JobScheduler.Job job = scheduler.submit(String.format("(%s, %s, %s)", input, map, stopwords),
+                                () -> performSentimentAnalysis(input, map, stopwords));
+                        System.out.println("Submitted job " + job.getId());
+                    } catch (RejectedExecutionException e) {
+                        System.out.println("The analysis wasn't submitted: " + e.getMessage());
+                    }
                 }
 
                 break;
             case 5:
+                System.out.println("\nOption 5 Selected: Compile the Lexicon");
+                compileLexicon(menuManager.getFileName("Enter the path of the compiled lexicon file: "));
+
+                break;
+            case 6:
+                System.out.println("\nOption 6 Selected: View the Jobs");
+                viewJobs();
+
+                break;
+            case 7:
+                System.out.println("\nOption 7 Selected: Cancel a Job");
+                long id = menuManager.getNumber("Enter the id of the job: ");
+                System.out.println(scheduler.cancel(id) ? "Cancelling job " + id : "No running or queued job " + id);
+
+                break;
+            case 8:
                 System.out.println("Quitting the application");
                 // update the volatile variable
                 shouldRun = false;
+                // wake the pending options thread up, so that it can finish
+                pendingOptions.add(option);
 
                 break;
             default:
@@ -180,30 +262,46 @@ public class Runner {
     }
 
     /**
-     * This method creates a new parser, and a new twitter analyzer.
+     * This method creates a new parser, and a new twitter analyzer over the cached lexicon.
      *
      * Uses JOptionPane to display the results, so that the output from
      * this method does not interfere with menu output.
      *
-     * @param inputFilePath        the name of the file with the tweets.
+     * Is run as a job - the returned score message is the result of the job, and a
+     * thrown exception marks the job as failed (or cancelled, if it was interrupted).
+     *
+     * The file with the tweets may also be a directory or a glob pattern, in which case
+     * the score of every file is written, and only the overall score is displayed.
+     *
+     * @param inputFilePath        the name of the file (or directory, or glob pattern) with the tweets.
      * @param sentimentMapFilePath the name of the file with the lexicon.
      * @param stopwordsFilePath    the name of the file with the stopwords.
+     * @return the score message.
+     * @throws Exception if the analysis failed, or was cancelled.
      */
-    private static void performSentimentAnalysis(String inputFilePath, String sentimentMapFilePath, String stopwordsFilePath) {
+    private static String performSentimentAnalysis(String inputFilePath, String sentimentMapFilePath,
+                                                   String stopwordsFilePath) throws Exception {
         try {
-            // create a brand-new parser
-            VirtualThreadFileParser parser = new VirtualThreadFileParser();
-            parser.clear();
+            /*
+             a compiled lexicon already holds the stopwords, so the stopwords
+             file isn't needed with one
+             */
+            boolean hasStopwords = !stopwordsFilePath.isEmpty()
+                    || (!sentimentMapFilePath.isEmpty() && SentimentScoreMapLoader.isCompiledLexicon(sentimentMapFilePath));
 
-            if (!inputFilePath.isEmpty() && !sentimentMapFilePath.isEmpty() && !stopwordsFilePath.isEmpty()) {
-                parser.go(inputFilePath);
+            if (!inputFilePath.isEmpty() && !sentimentMapFilePath.isEmpty() && hasStopwords
+                    && MultiFileAnalyzer.isMultiFile(inputFilePath)) {
+                return analyzeFiles(inputFilePath, sentimentMapFilePath, stopwordsFilePath);
+            } else if (!inputFilePath.isEmpty() && !sentimentMapFilePath.isEmpty() && hasStopwords) {
+                // create a brand-new parser
+                CorpusParser parser = CorpusParser.forFile(inputFilePath);
 
-                // Assuming getWords() returns List<String> of tweets
-                List<String> tweets = parser.getWords();
+                // the lexicon is shared with the other analyses over the same files
+                Lexicon lexicon = LexiconCache.shared().get(sentimentMapFilePath, stopwordsFilePath);
+                TweetSentimentAnalyzer analyzer = new TweetSentimentAnalyzer(lexicon);
 
-                // create a brand-new analyzer
-                TweetSentimentAnalyzer analyzer = new TweetSentimentAnalyzer(sentimentMapFilePath, stopwordsFilePath);
-                float totalScore = analyzer.analyzeTweets(tweets);
+                // the words are scored batch by batch while the file is being parsed
+                float totalScore = analyzer.analyzeStream(parser, inputFilePath, SCORING_PARALLELISM, null);
 
                 // only display the score when the user is not typing a file name
                 String scoreData = String.format("Total score: %,.2f (%s, %s, %s)", totalScore,
@@ -211,18 +309,104 @@ public class Runner {
 
                 JOptionPane.showMessageDialog(null, scoreData);
 
-                // is executed on a brand new virtual thread
+                // is queued, and written together with the other scores
                 fileManager.writeScoreToFile(scoreData);
+
+                return scoreData;
             } else {
-                JOptionPane.showMessageDialog(null,
-                        "Please ensure all file paths (text, sentiment map, stopwords) are specified.");
+                String message = "Please ensure all file paths (text, sentiment map, stopwords) are specified.";
+                JOptionPane.showMessageDialog(null, message);
+
+                throw new IllegalArgumentException(message);
             }
+        } catch (IllegalArgumentException | InterruptedException | CancellationException e) {
+            throw e;
         } catch (IOException e) {
             JOptionPane.showMessageDialog(null, "Error loading files: " + e.getMessage());
             e.printStackTrace();
+            throw e;
         } catch (Exception e) {
-            JOptionPane.showMessageDialog(null, "An error occurred: " + e.getMessage());
-            e.printStackTrace();
+            // a cancelled job may fail in other ways on its way out
+            if (!Thread.currentThread().isInterrupted()) {
+                JOptionPane.showMessageDialog(null, "An error occurred: " + e.getMessage());
+                e.printStackTrace();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Analyzes all the files of a directory, or all the files matching a glob pattern, sharing
+     * their chunks among the workers of a work-stealing pool. The score of every file and the
+     * overall score are written, and the overall score is displayed.
+     *
+     * @param input                a directory or a glob pattern.
+     * @param sentimentMapFilePath the name of the file with the lexicon.
+     * @param stopwordsFilePath    the name of the file with the stopwords.
+     * @return the overall score message.
+     * @throws Exception if the analysis failed, or was cancelled.
+     */
+    private static String analyzeFiles(String input, String sentimentMapFilePath,
+                                       String stopwordsFilePath) throws Exception {
+        // the lexicon is loaded once, and shared by all the files
+        Lexicon lexicon = LexiconCache.shared().get(sentimentMapFilePath, stopwordsFilePath);
+        MultiFileAnalyzer analyzer = new MultiFileAnalyzer(new TweetSentimentAnalyzer(lexicon), SCORING_PARALLELISM);
+        MultiFileAnalyzer.Result result = analyzer.analyze(input);
+
+        for (MultiFileAnalyzer.FileScore file : result.files()) {
+            fileManager.writeScoreToFile(String.format("Total score: %,.2f (%s, %s, %s)", (float) file.score(),
+                    file.file(), sentimentMapFilePath, stopwordsFilePath));
+        }
+
+        String scoreData = String.format("Overall score: %,d over %,d files and %,d tweets (%s, %s, %s)",
+                result.score(), result.files().size(), result.tweets(), input, sentimentMapFilePath,
+                stopwordsFilePath);
+
+        JOptionPane.showMessageDialog(null, scoreData);
+        fileManager.writeScoreToFile(scoreData);
+
+        return scoreData;
+    }
+
+    /**
+     * Prints the submitted analysis jobs, with their status and result.
+     */
+    private static void viewJobs() {
+        List<JobScheduler.Job> jobs = scheduler.list();
+
+        if (jobs.isEmpty()) {
+            System.out.println("No jobs have been submitted.");
+        }
+        for (JobScheduler.Job job : jobs) {
+            System.out.println(job);
+        }
+    }
+
+    /**
+     * Compiles the current sentiment map and stopwords files into a binary lexicon file,
+     * which can then be specified as the sentiment map file (option 2).
+     *
+     * @param outputFilePath the name of the compiled lexicon file.
+     */
+    private static void compileLexicon(String outputFilePath) {
+        String mapFile;
+        String stopFile;
+
+        synchronized (menuManager.getUserInputLock()) {
+            mapFile = sentimentMapFilePath;
+            stopFile = stopwordsFilePath;
+        }
+
+        if (mapFile.isEmpty() || stopFile.isEmpty()) {
+            System.out.println("Please specify the sentiment map and stopwords files first.");
+            return;
+        }
+
+        try {
+            int words = SentimentScoreMapLoader.compileLexicon(mapFile, stopFile, outputFilePath);
+            System.out.printf("Compiled %,d words into %s%n", words, outputFilePath);
+        } catch (IOException e) {
+            System.out.println("Error compiling the lexicon: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,22 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Is used to look up the sentiment scores of words in an external scoring service.
+ *
+ * A single call is a single request to the service, so the words of a whole
+ * tweet (or of several tweets) are looked up together.
+ */
+public interface ScoringBackend {
+    /**
+     * Looks up the sentiment scores of the given words.
+     *
+     * @param words the lower-cased words to look up.
+     * @return the score of each word, in the same order as the words.
+     * @throws IOException if the request failed.
+     * @throws InterruptedException if interrupted while waiting for the response.
+     */
+    int[] score(List<String> words) throws IOException, InterruptedException;
+}
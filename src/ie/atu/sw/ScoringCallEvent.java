@@ -0,0 +1,31 @@
+package ie.atu.sw;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JFR event recorded for each call of the scoring client, hedges and retries included.
+ * Its duration is the latency of the call.
+ *
+ * Is only committed while a JFR recording has the event enabled.
+ */
+@Name("ie.atu.sw.ScoringCall")
+@Label("Scoring Call")
+@Category("Sentiment Analyzer")
+@Description("A call of the scoring client has finished")
+@StackTrace(false)
+class ScoringCallEvent extends Event {
+    @Label("Words")
+    int words;
+
+    @Label("Requests")
+    @Description("The number of requests sent for the call (hedges and retries included)")
+    int requests;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
@@ -0,0 +1,252 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calls a ScoringBackend on behalf of the analyzers, so that thousands of virtual
+ * threads can score tweets without overwhelming the backend.
+ *
+ * The calls in flight are limited by an AdaptiveConcurrencyLimiter. A call that
+ * takes longer than the hedge delay is hedged: a second request is sent (if the
+ * limiter has capacity to spare), and whichever response comes first is used.
+ * A call that fails is retried right away, up to the maximum number of attempts.
+ *
+ * The analyzer groups the words of several tweets into a single call; the number
+ * of tweets per call is part of the client's configuration.
+ */
+public class ScoringClient {
+    /**
+     * The default number of tweets whose words are looked up in a single call.
+     */
+    public static final int DEFAULT_BATCH_TWEETS = 1;
+    /**
+     * The default maximum number of requests sent for a single call (the first request included).
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 2;
+
+    private final ScoringBackend backend;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final long hedgeDelayNanos;
+    private final int maxAttempts;
+    private final int batchTweets;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    /**
+     * Constructs a client with the default settings for a backend with the given usual latency:
+     * calls are hedged after twice the latency, and the limiter treats calls slower than
+     * four times the latency as overload.
+     *
+     * @param backend the backend to call.
+     * @param latency the usual latency of the backend.
+     */
+    public ScoringClient(ScoringBackend backend, Duration latency) {
+        this(backend,
+                new AdaptiveConcurrencyLimiter(64, 4, 4096, latency.multipliedBy(4).plusMillis(1), 0.5),
+                latency.multipliedBy(2).plusMillis(1), DEFAULT_MAX_ATTEMPTS, DEFAULT_BATCH_TWEETS);
+    }
+
+    /**
+     * Constructs a client.
+     *
+     * @param backend     the backend to call.
+     * @param limiter     limits the calls in flight.
+     * @param hedgeDelay  the time after which a slow call is hedged.
+     * @param maxAttempts the maximum number of requests sent for a single call.
+     * @param batchTweets the number of tweets whose words are looked up in a single call.
+     */
+    public ScoringClient(ScoringBackend backend, AdaptiveConcurrencyLimiter limiter, Duration hedgeDelay,
+                         int maxAttempts, int batchTweets) {
+        if (maxAttempts < 1 || batchTweets < 1) {
+            throw new IllegalArgumentException("Attempts and tweets per call must be positive");
+        }
+
+        this.backend = backend;
+        this.limiter = limiter;
+        this.hedgeDelayNanos = hedgeDelay.toNanos();
+        this.maxAttempts = maxAttempts;
+        this.batchTweets = batchTweets;
+    }
+
+    /**
+     * Returns the number of tweets whose words are looked up in a single call.
+     *
+     * @return the number of tweets.
+     */
+    public int getBatchTweets() {
+        return batchTweets;
+    }
+
+    /**
+     * Returns the limiter of the calls in flight.
+     *
+     * @return the limiter.
+     */
+    public AdaptiveConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Returns the number of calls made so far.
+     *
+     * @return the number of calls.
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * Returns the number of hedged requests sent so far.
+     *
+     * @return the number of hedges.
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * Returns the number of requests sent so far to retry a failed request.
+     *
+     * @return the number of retries.
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * Looks up the sentiment scores of the given words in the backend.
+     *
+     * @param words the lower-cased words to look up.
+     * @return the score of each word, in the same order as the words.
+     * @throws IOException if every attempt failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public int[] score(List<String> words) throws IOException, InterruptedException {
+        if (words.isEmpty()) {
+            return new int[0];
+        }
+
+        calls.increment();
+        Call call = new Call(words);
+        AnalysisMetrics metrics = AnalysisMetrics.shared();
+        AnalysisMetrics.Timer timer = metrics.startScoringCall();
+        int launched = 0;
+        boolean succeeded = false;
+        // a permit acquired but not handed to a request yet (a request releases its own when it ends)
+        boolean holdingPermit = false;
+
+        try {
+            metrics.addScoringCalls(1);
+            limiter.acquire();
+            holdingPermit = true;
+            call.start();
+            holdingPermit = false;
+
+            Throwable lastFailure = null;
+            int running = 1;
+            launched = 1;
+
+            while (true) {
+                // only wait for the hedge delay while another request may still be sent
+                Object outcome = launched < maxAttempts
+                        ? call.outcomes.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS)
+                        : call.outcomes.take();
+
+                if (outcome == null) {
+                    // the call is slow - hedge it if the backend has capacity to spare
+                    if (limiter.tryAcquire()) {
+                        holdingPermit = true;
+                        hedges.increment();
+                        call.start();
+                        holdingPermit = false;
+                        launched++;
+                        running++;
+                    }
+                } else if (outcome instanceof int[] scores) {
+                    succeeded = true;
+                    return scores;
+                } else {
+                    lastFailure = (Throwable) outcome;
+                    running--;
+
+                    if (launched < maxAttempts) {
+                        retries.increment();
+                        limiter.acquire();
+                        holdingPermit = true;
+                        call.start();
+                        holdingPermit = false;
+                        launched++;
+                        running++;
+                    } else if (running == 0) {
+                        throw new IOException("Scoring failed after " + launched + " attempts", lastFailure);
+                    }
+                }
+            }
+        } finally {
+            if (holdingPermit) {
+                limiter.releaseIgnored();
+            }
+            call.cancel();
+            metrics.addScoringCalls(-1);
+            metrics.recordScoringCall(timer, words.size(), launched, succeeded);
+        }
+    }
+
+    /**
+     * The requests sent for a single call, each running on its own virtual thread.
+     */
+    private final class Call {
+        private final List<String> words;
+        private final BlockingQueue<Object> outcomes = new LinkedBlockingQueue<>();
+        private final List<Thread> requests = new ArrayList<>(maxAttempts);
+        private volatile boolean cancelled = false;
+
+        private Call(List<String> words) {
+            this.words = words;
+        }
+
+        /**
+         * Sends a request on a new virtual thread. The caller must have acquired a permit.
+         * The outcome (the scores, or the failure) is added to the outcomes queue.
+         */
+        private void start() {
+            requests.add(Thread.ofVirtual().start(() -> {
+                long start = System.nanoTime();
+                boolean succeeded = false;
+
+                try {
+                    outcomes.add(backend.score(words));
+                    succeeded = true;
+                } catch (Throwable t) {
+                    outcomes.add(t);
+                } finally {
+                    // a request cancelled because another one won tells nothing about the backend
+                    if (cancelled && !succeeded) {
+                        limiter.releaseIgnored();
+                    } else {
+                        limiter.release(System.nanoTime() - start, succeeded);
+                    }
+                }
+            }));
+        }
+
+        /**
+         * Interrupts the requests that are still running.
+         */
+        private void cancel() {
+            cancelled = true;
+            for (Thread request : requests) {
+                request.interrupt();
+            }
+        }
+    }
+}
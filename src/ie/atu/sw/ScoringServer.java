@@ -0,0 +1,499 @@
+package ie.atu.sw;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the analyzer as a long-lived local HTTP service, so the JVM stays warm and the
+ * lexicon is loaded only once, instead of on every run.
+ *
+ * Every request is handled on its own virtual thread, and all the requests share one
+ * analyzer (and its score cache). The endpoints are:
+ * <pre>
+ *   POST   /score         the body is a tweet; returns its score
+ *   POST   /score/batch   the body is one tweet per line; returns the score of each and the total
+ *   POST   /jobs          the body is the path of a file, directory or glob pattern on the server;
+ *                         queues its analysis and returns the job
+ *   GET    /jobs          lists the jobs
+ *   GET    /jobs/{id}     returns a job, with its result once it's done
+ *   DELETE /jobs/{id}     cancels a job
+ *   GET    /stats         the number of requests, the p50/p99/max latencies and the throughput
+ *                         of every endpoint, and the hit rate of the score cache
+ * </pre>
+ * The responses are JSON. The server only listens on the loopback address, as a job
+ * may read any file the server can.
+ */
+public final class ScoringServer implements AutoCloseable {
+    /**
+     * The default port.
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    /**
+     * The largest request body accepted.
+     */
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * The number of requests waiting to be accepted before new connections are refused.
+     */
+    private static final int BACKLOG = 1024;
+
+    /**
+     * A response: its status code and its JSON body.
+     */
+    private record Response(int status, String json) {
+    }
+
+    /**
+     * The work of an endpoint.
+     */
+    @FunctionalInterface
+    private interface Endpoint {
+        Response handle(HttpExchange exchange) throws Exception;
+    }
+
+    /**
+     * The latencies and the failed requests of an endpoint.
+     */
+    private record EndpointStats(LatencyHistogram latencies, LongAdder errors) {
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final JobScheduler scheduler;
+    private final TweetSentimentAnalyzer analyzer;
+    private final String lexiconFile;
+    private final String stopwordsFile;
+    private final int parallelism;
+    private final Map<String, EndpointStats> stats = new LinkedHashMap<>();
+    private final LongAdder tweets = new LongAdder();
+    private final long started = System.nanoTime();
+
+    /**
+     * Constructs a server and starts it.
+     *
+     * @param port          the port to listen on, or 0 for any free port.
+     * @param analyzer      the analyzer shared by all the requests.
+     * @param lexiconFile   the sentiment map (or compiled lexicon) file of the analyzer, for the job descriptions.
+     * @param stopwordsFile the stopwords file of the analyzer, for the job descriptions.
+     * @param parallelism   the number of threads scoring each batch or file.
+     * @param maxJobs       the maximum number of file jobs running at the same time.
+     * @throws IOException if the server couldn't listen on the port.
+     */
+    public ScoringServer(int port, TweetSentimentAnalyzer analyzer, String lexiconFile, String stopwordsFile,
+                         int parallelism, int maxJobs) throws IOException {
+        this.analyzer = analyzer;
+        this.lexiconFile = lexiconFile;
+        this.stopwordsFile = stopwordsFile;
+        this.parallelism = parallelism;
+        this.scheduler = new JobScheduler(maxJobs, 4 * maxJobs);
+
+        for (String endpoint : List.of("/score", "/score/batch", "/jobs", "/stats")) {
+            stats.put(endpoint, new EndpointStats(new LatencyHistogram(), new LongAdder()));
+        }
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        server.setExecutor(executor);
+        server.createContext("/score", e -> handle(e, "/score", this::score));
+        server.createContext("/score/batch", e -> handle(e, "/score/batch", this::scoreBatch));
+        server.createContext("/jobs", e -> handle(e, "/jobs", this::jobs));
+        server.createContext("/stats", e -> handle(e, "/stats", this::stats));
+        server.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return the port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Handles a request, times it, and sends the response.
+     *
+     * @param exchange the request and response.
+     * @param name     the name of the endpoint, for the stats.
+     * @param endpoint the work of the endpoint.
+     */
+    private void handle(HttpExchange exchange, String name, Endpoint endpoint) {
+        long start = System.nanoTime();
+        Response response;
+
+        // a context also receives the paths below it that no other context takes
+        String path = exchange.getRequestURI().getPath();
+        if (!path.equals(name) && !(name.equals("/jobs") && path.startsWith("/jobs/"))) {
+            response = error(404, "No such endpoint: " + path);
+        } else {
+            try {
+                response = endpoint.handle(exchange);
+            } catch (IllegalArgumentException e) {
+                response = error(400, e.getMessage());
+            } catch (NoSuchFileException e) {
+                response = error(404, "No such file: " + e.getMessage());
+            } catch (RejectedExecutionException e) {
+                response = error(503, e.getMessage());
+            } catch (TimeoutException e) {
+                response = error(504, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                response = error(503, "The server is shutting down");
+            } catch (Exception e) {
+                e.printStackTrace();
+                response = error(500, e.toString());
+            }
+        }
+
+        try (exchange) {
+            byte[] body = response.json().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(response.status(), body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (IOException e) {
+            // the client went away
+        }
+
+        EndpointStats endpointStats = stats.get(name);
+        endpointStats.latencies().record(System.nanoTime() - start);
+        if (response.status() >= 400) {
+            endpointStats.errors().increment();
+        }
+    }
+
+    /**
+     * Scores the tweet in the body of the request.
+     *
+     * @param exchange the request.
+     * @return the score.
+     * @throws Exception if the tweet couldn't be scored.
+     */
+    private Response score(HttpExchange exchange) throws Exception {
+        if (!hasMethod(exchange, "POST")) {
+            return methodNotAllowed(exchange);
+        }
+        String tweet = readBody(exchange);
+
+        int score = analyzer.analyzeEach(List.of(tweet), 1, null)[0];
+        tweets.increment();
+
+        return new Response(200, "{\"score\":" + score + "}");
+    }
+
+    /**
+     * Scores the tweets in the body of the request, one per line.
+     *
+     * @param exchange the request.
+     * @return the score of each tweet, and the total score.
+     * @throws Exception if the tweets couldn't be scored.
+     */
+    private Response scoreBatch(HttpExchange exchange) throws Exception {
+        if (!hasMethod(exchange, "POST")) {
+            return methodNotAllowed(exchange);
+        }
+        List<String> batch = readBody(exchange).lines().toList();
+
+        int[] scores = analyzer.analyzeEach(batch, parallelism, null);
+        tweets.add(batch.size());
+
+        StringBuilder json = new StringBuilder(16 + 4 * scores.length);
+        long total = 0;
+        json.append("{\"scores\":[");
+        for (int i = 0; i < scores.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(scores[i]);
+            total += scores[i];
+        }
+        json.append("],\"tweets\":").append(scores.length).append(",\"score\":").append(total).append('}');
+
+        return new Response(200, json.toString());
+    }
+
+    /**
+     * Submits, lists, returns or cancels the file jobs.
+     *
+     * @param exchange the request.
+     * @return the job or the jobs.
+     * @throws Exception if the job couldn't be submitted.
+     */
+    private Response jobs(HttpExchange exchange) throws Exception {
+        String path = exchange.getRequestURI().getPath();
+
+        if (path.equals("/jobs")) {
+            return switch (exchange.getRequestMethod()) {
+                case "GET" -> {
+                    StringBuilder json = new StringBuilder("[");
+                    for (JobScheduler.Job job : scheduler.list()) {
+                        if (json.length() > 1) {
+                            json.append(',');
+                        }
+                        json.append(toJson(job));
+                    }
+                    yield new Response(200, json.append(']').toString());
+                }
+                case "POST" -> new Response(202, toJson(submit(readBody(exchange).strip())));
+                default -> methodNotAllowed(exchange);
+            };
+        }
+
+        long id;
+        try {
+            id = Long.parseLong(path.substring("/jobs/".length()));
+        } catch (NumberFormatException e) {
+            return error(404, "No such job: " + path);
+        }
+
+        JobScheduler.Job job = scheduler.get(id);
+        if (job == null) {
+            return error(404, "No such job: " + id);
+        }
+
+        return switch (exchange.getRequestMethod()) {
+            case "GET" -> new Response(200, toJson(job));
+            case "DELETE" -> scheduler.cancel(id)
+                    ? new Response(202, toJson(job))
+                    : error(409, "The job has already finished: " + id);
+            default -> methodNotAllowed(exchange);
+        };
+    }
+
+    /**
+     * Queues the analysis of a file, or of the files of a directory or glob pattern.
+     *
+     * @param input the file, directory or glob pattern.
+     * @return the job.
+     * @throws IOException if the file is missing, or nothing matches the pattern.
+     */
+    private JobScheduler.Job submit(String input) throws IOException {
+        if (input.isEmpty()) {
+            throw new IllegalArgumentException("The body must be the path of a file");
+        }
+
+        // fail now, rather than in the job, if there's nothing to analyze
+        boolean multiFile = MultiFileAnalyzer.isMultiFile(input);
+        if (multiFile) {
+            MultiFileAnalyzer.resolve(input);
+        } else if (!Files.isReadable(Paths.get(input))) {
+            throw new NoSuchFileException(input);
+        }
+
+        return scheduler.submit(String.format("(%s, %s, %s)", input, lexiconFile, stopwordsFile), () -> {
+            if (multiFile) {
+                MultiFileAnalyzer.Result result = new MultiFileAnalyzer(analyzer, parallelism).analyze(input);
+                return String.format("Overall score: %,d over %,d files and %,d tweets", result.score(),
+                        result.files().size(), result.tweets());
+            }
+
+            float totalScore = analyzer.analyzeStream(CorpusParser.forFile(input), input, parallelism, null);
+            return String.format("Total score: %,.2f", totalScore);
+        });
+    }
+
+    /**
+     * Returns the stats of every endpoint.
+     *
+     * @param exchange the request.
+     * @return the stats.
+     */
+    private Response stats(HttpExchange exchange) {
+        if (!hasMethod(exchange, "GET")) {
+            return methodNotAllowed(exchange);
+        }
+        return new Response(200, statsJson());
+    }
+
+    /**
+     * Formats the stats of every endpoint as JSON: the number of requests and failed requests,
+     * the p50, p99 and maximum latencies in milliseconds, and the requests per second since the
+     * server started. The number of tweets scored by the score endpoints per second, and the
+     * cache stats, are added too.
+     *
+     * @return the stats.
+     */
+    public String statsJson() {
+        double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+        StringBuilder json = new StringBuilder();
+
+        json.append(String.format(Locale.ROOT, "{\"uptimeSeconds\":%.1f,\"tweets\":%d,\"tweetsPerSecond\":%.1f",
+                seconds, tweets.sum(), tweets.sum() / seconds));
+        json.append(",\"endpoints\":{");
+
+        boolean first = true;
+        for (Map.Entry<String, EndpointStats> entry : stats.entrySet()) {
+            LatencyHistogram latencies = entry.getValue().latencies();
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+
+            json.append(String.format(Locale.ROOT,
+                    "%s:{\"requests\":%d,\"errors\":%d,\"requestsPerSecond\":%.1f,"
+                            + "\"p50Millis\":%.3f,\"p99Millis\":%.3f,\"maxMillis\":%.3f}",
+                    quote(entry.getKey()), latencies.getCount(), entry.getValue().errors().sum(),
+                    latencies.getCount() / seconds, latencies.getPercentile(50) / 1e6,
+                    latencies.getPercentile(99) / 1e6, latencies.getMax() / 1e6));
+        }
+        json.append('}');
+
+        TweetScoreCache cache = analyzer.getCache();
+        if (cache != null) {
+            json.append(String.format(Locale.ROOT,
+                    ",\"cache\":{\"hits\":%d,\"misses\":%d,\"hitRate\":%.3f,\"entries\":%d,\"evictions\":%d}",
+                    cache.getHits(), cache.getMisses(), cache.getHitRate(), cache.size(), cache.getEvictions()));
+        }
+
+        return json.append('}').toString();
+    }
+
+    /**
+     * Checks the method of the request.
+     *
+     * @param exchange the request.
+     * @param method   the expected method.
+     * @return true, if the request has the method.
+     */
+    private static boolean hasMethod(HttpExchange exchange, String method) {
+        return exchange.getRequestMethod().equals(method);
+    }
+
+    /**
+     * Creates the response to a request with a method the endpoint doesn't support.
+     *
+     * @param exchange the request.
+     * @return the response.
+     */
+    private static Response methodNotAllowed(HttpExchange exchange) {
+        return error(405, "Method not allowed: " + exchange.getRequestMethod());
+    }
+
+    /**
+     * Reads the body of the request as UTF-8 text.
+     *
+     * @param exchange the request.
+     * @return the body.
+     * @throws IOException if the body couldn't be read.
+     * @throws IllegalArgumentException if the body is too large.
+     */
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (body.length > MAX_BODY_BYTES) {
+                throw new IllegalArgumentException("The body is larger than " + MAX_BODY_BYTES + " bytes");
+            }
+
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Formats a job as JSON.
+     *
+     * @param job the job.
+     * @return the JSON object.
+     */
+    private static String toJson(JobScheduler.Job job) {
+        JobScheduler.Status status = job.getStatus();
+        StringBuilder json = new StringBuilder();
+
+        json.append("{\"id\":").append(job.getId())
+                .append(",\"status\":").append(quote(status.name()))
+                .append(",\"description\":").append(quote(job.getDescription()))
+                .append(",\"submitted\":").append(quote(job.getSubmitted().toString()));
+
+        if (status == JobScheduler.Status.SUCCEEDED) {
+            json.append(",\"result\":").append(quote(job.getResult()));
+        } else if (status == JobScheduler.Status.FAILED) {
+            json.append(",\"failure\":").append(quote(String.valueOf(job.getFailure())));
+        }
+
+        return json.append('}').toString();
+    }
+
+    /**
+     * Creates an error response.
+     *
+     * @param status  the status code.
+     * @param message the error message.
+     * @return the response.
+     */
+    private static Response error(int status, String message) {
+        return new Response(status, "{\"error\":" + quote(String.valueOf(message)) + "}");
+    }
+
+    /**
+     * Quotes a String as a JSON string.
+     *
+     * @param text the text.
+     * @return the JSON string.
+     */
+    static String quote(String text) {
+        StringBuilder json = new StringBuilder(text.length() + 2).append('"');
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> json.append("\\\"");
+                case '\\' -> json.append("\\\\");
+                case '\n' -> json.append("\\n");
+                case '\r' -> json.append("\\r");
+                case '\t' -> json.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+                }
+            }
+        }
+
+        return json.append('"').toString();
+    }
+
+    /**
+     * Stops the server: new connections are refused, and the requests being handled
+     * and the running jobs are given the grace time to finish before they're interrupted.
+     *
+     * @param grace the time the requests and the jobs are given.
+     */
+    public void stop(Duration grace) {
+        server.stop((int) Math.min(Integer.MAX_VALUE, grace.toSeconds()));
+        executor.shutdownNow();
+
+        try {
+            scheduler.shutdown(grace);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        stop(Duration.ZERO);
+    }
+}
@@ -3,11 +3,19 @@ package ie.atu.sw;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Is used to load the sentiment score map (lexicon) from the input file.
+ *
+ * The sentiment map and the stopwords can also be compiled into a single binary
+ * lexicon file, which is memory-mapped instead of being parsed when it's loaded.
  */
 public class SentimentScoreMapLoader {
     /**
@@ -29,7 +37,7 @@ public class SentimentScoreMapLoader {
                 String[] parts = line.split(",");
 
                 if (parts.length >= 2) {
-                    map.put(parts[0].toLowerCase(), Integer.parseInt(parts[1]));
+                    map.put(parts[0].toLowerCase(Locale.ROOT), Integer.parseInt(parts[1]));
                 } else {
                     System.out.println("Invalid line format: " + line);
                 }
@@ -38,4 +46,85 @@ public class SentimentScoreMapLoader {
 
         return map;
     }
-}
\ No newline at end of file
+
+    /**
+     * Loads the stopwords from the input file, one stopword per line.
+     *
+     * @param fileName the name of the input file.
+     *
+     * @return the stopwords.
+     *
+     * @throws IOException if the stopwords couldn't be read.
+     */
+    public static Set<String> loadStopwords(String fileName) throws IOException {
+        Set<String> stopwords = new HashSet<>();
+
+        try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                stopwords.add(line.toLowerCase(Locale.ROOT));
+            }
+        }
+
+        return stopwords;
+    }
+
+    /**
+     * Loads the lexicon. The sentiment map file is either a CSV file, which is
+     * parsed together with the stopwords file, or a compiled lexicon file, which
+     * is memory-mapped and already holds the stopwords (the stopwords file is
+     * then not read, and may be empty).
+     *
+     * @param sentimentMapFile the name of the sentiment map or compiled lexicon file.
+     * @param stopwordsFile    the name of the stopwords file.
+     *
+     * @return the lexicon.
+     *
+     * @throws IOException if the lexicon couldn't be read.
+     */
+    public static Lexicon loadLexicon(String sentimentMapFile, String stopwordsFile) throws IOException {
+        AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+        Path path = Paths.get(sentimentMapFile);
+
+        Lexicon lexicon = Lexicon.isCompiled(path)
+                ? Lexicon.map(path)
+                : Lexicon.build(loadSentimentScoreMap(sentimentMapFile), loadStopwords(stopwordsFile));
+
+        AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.LEXICON_LOAD, sentimentMapFile, timer,
+                lexicon.size());
+
+        return lexicon;
+    }
+
+    /**
+     * Compiles the sentiment map and the stopwords into a binary lexicon file.
+     *
+     * @param sentimentMapFile the name of the sentiment map file.
+     * @param stopwordsFile    the name of the stopwords file.
+     * @param outputFile       the name of the compiled lexicon file.
+     *
+     * @return the number of words in the compiled lexicon.
+     *
+     * @throws IOException if the files couldn't be read, or the output file couldn't be written.
+     */
+    public static int compileLexicon(String sentimentMapFile, String stopwordsFile,
+                                     String outputFile) throws IOException {
+        Lexicon lexicon = Lexicon.build(loadSentimentScoreMap(sentimentMapFile), loadStopwords(stopwordsFile));
+        lexicon.write(Paths.get(outputFile));
+
+        return lexicon.size();
+    }
+
+    /**
+     * Checks whether the given file is a compiled lexicon file.
+     *
+     * @param fileName the name of the file.
+     *
+     * @return true, if it's a compiled lexicon, false otherwise.
+     *
+     * @throws IOException if the file couldn't be read.
+     */
+    public static boolean isCompiledLexicon(String fileName) throws IOException {
+        return Lexicon.isCompiled(Paths.get(fileName));
+    }
+}
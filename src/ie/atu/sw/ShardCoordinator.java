@@ -0,0 +1,674 @@
+package ie.atu.sw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Splits the files of an analysis into byte-range shards, sends the shards to several
+ * ShardWorker processes over local sockets, and merges their totals (and the scores
+ * of their tweets) - so one analysis can use the heap and the cores of many JVMs.
+ *
+ * The workers are either started by the coordinator, as child JVMs with the same class
+ * path, or already running (see BatchRunner --worker). Each worker is sent a few shards
+ * at a time, over several connections. A shard that fails - its worker died, hung or
+ * couldn't read it - is sent again, to the same worker once it's restarted or to any
+ * other, up to MAX_ATTEMPTS times.
+ *
+ * The scores of the tweets of each shard are spooled to a temporary part file as they
+ * arrive, so a shard that's sent again simply overwrites its part. Once every shard is
+ * done, the parts are copied into the sections of the output in order.
+ */
+public final class ShardCoordinator implements AutoCloseable {
+    /**
+     * The default size (in bytes) of the shards the files are split into.
+     */
+    public static final long DEFAULT_SHARD_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * The default number of shards sent to each worker at a time.
+     */
+    public static final int DEFAULT_CONNECTIONS_PER_WORKER = 2;
+
+    /**
+     * The number of times a shard is sent before the analysis fails.
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The number of times a worker started by the coordinator is restarted.
+     */
+    private static final int MAX_RESTARTS = 3;
+
+    /**
+     * The longest a connection to a worker may take.
+     */
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+
+    /**
+     * The longest a worker may take to send the next message of a shard.
+     */
+    private static final Duration READ_TIMEOUT = Duration.ofMinutes(2);
+
+
+    private final List<Worker> workers;
+    private final int connectionsPerWorker;
+    private final long shardSize;
+
+    /**
+     * A byte range of a file.
+     *
+     * @param index the index of the shard, in the order of the files and of the ranges.
+     * @param file  the index of the file.
+     * @param path  the file.
+     * @param start the start of the range (inclusive).
+     * @param end   the end of the range (exclusive).
+     */
+    private record Shard(int index, int file, Path path, long start, long end) {
+    }
+
+    /**
+     * Is put in front of the pending shards, once per connection, when the analysis is over,
+     * to wake the connections waiting for a shard.
+     */
+    private static final Shard DONE = new Shard(-1, -1, null, 0, 0);
+
+    /**
+     * A worker: its address, and its process if the coordinator started it.
+     * It's guarded by a ReentrantLock, as restarting it blocks (and would pin a virtual thread).
+     */
+    private static final class Worker {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final List<String> command;
+        private InetSocketAddress address;
+        private Process process;
+        private int restarts;
+
+        private Worker(InetSocketAddress address) {
+            this.command = null;
+            this.address = address;
+        }
+
+        private Worker(List<String> command) throws IOException {
+            this.command = command;
+            start();
+        }
+
+        /**
+         * Starts the worker process, and waits until it's listening.
+         *
+         * @throws IOException if the process couldn't be started, or exited before listening.
+         */
+        private void start() throws IOException {
+            process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null && !line.startsWith(ShardWorker.LISTENING)) {
+                // skip anything printed before the port
+            }
+            if (line == null) {
+                process.destroyForcibly();
+                throw new IOException("The worker exited before it was listening: " + command);
+            }
+
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(line.substring(ShardWorker.LISTENING.length()).trim()));
+
+            // keep the pipe from filling up
+            Thread.ofVirtual().start(() -> {
+                try {
+                    while (reader.readLine() != null) {
+                        // discard
+                    }
+                } catch (IOException e) {
+                    // the worker exited
+                }
+            });
+        }
+
+        /**
+         * Returns the address of the worker.
+         *
+         * @return the address.
+         */
+        private InetSocketAddress address() {
+            lock.lock();
+            try {
+                return address;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Checks whether the worker can still be used after a shard failed on it,
+         * restarting its process if it died.
+         *
+         * @return true, if the worker is running, false otherwise.
+         */
+        private boolean recover() {
+            lock.lock();
+            try {
+                if (process == null) {
+                    try (Socket socket = new Socket()) {
+                        socket.connect(address, (int) CONNECT_TIMEOUT.toMillis());
+                        return true;
+                    } catch (IOException e) {
+                        return false;
+                    }
+                }
+
+                if (process.isAlive()) {
+                    return true;
+                }
+                if (restarts == MAX_RESTARTS) {
+                    return false;
+                }
+
+                restarts++;
+                System.err.println("Restarting the worker at " + address + " (exit code " + process.exitValue() + ")");
+                start();
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Stops the worker process, if the coordinator started it.
+         */
+        private void stop() {
+            lock.lock();
+            try {
+                if (process == null) {
+                    return;
+                }
+
+                process.destroy();
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private ShardCoordinator(List<Worker> workers, int connectionsPerWorker, long shardSize) {
+        if (connectionsPerWorker < 1 || shardSize < 1) {
+            throw new IllegalArgumentException("Connections and shard size must be positive");
+        }
+
+        this.workers = workers;
+        this.connectionsPerWorker = connectionsPerWorker;
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * Starts the given number of worker JVMs on this machine, with the same Java runtime
+     * and class path as this one. The workers exit when this JVM exits.
+     *
+     * @param count                the number of workers.
+     * @param workerOptions        the options of the workers (e.g. --no-latency, --parallelism 64).
+     * @param connectionsPerWorker the number of shards sent to each worker at a time.
+     * @param shardSize            the size (in bytes) of the shards.
+     * @return the coordinator.
+     * @throws IOException if a worker couldn't be started.
+     */
+    public static ShardCoordinator spawn(int count, List<String> workerOptions, int connectionsPerWorker,
+                                         long shardSize) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BatchRunner.class.getName());
+        command.addAll(List.of("--worker", "--port", "0",
+                "--parent-pid", String.valueOf(ProcessHandle.current().pid())));
+        command.addAll(workerOptions);
+
+        List<Worker> workers = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) {
+                workers.add(new Worker(command));
+            }
+        } catch (IOException e) {
+            workers.forEach(Worker::stop);
+            throw e;
+        }
+
+        return new ShardCoordinator(workers, connectionsPerWorker, shardSize);
+    }
+
+    /**
+     * Uses workers that are already running.
+     *
+     * @param addresses            the addresses of the workers.
+     * @param connectionsPerWorker the number of shards sent to each worker at a time.
+     * @param shardSize            the size (in bytes) of the shards.
+     * @return the coordinator.
+     */
+    public static ShardCoordinator connect(List<InetSocketAddress> addresses, int connectionsPerWorker,
+                                           long shardSize) {
+        return new ShardCoordinator(addresses.stream().map(Worker::new).toList(), connectionsPerWorker, shardSize);
+    }
+
+    /**
+     * Returns the number of workers.
+     *
+     * @return the number of workers.
+     */
+    public int getWorkerCount() {
+        return workers.size();
+    }
+
+    /**
+     * Analyzes the files on the workers.
+     *
+     * @param files       the files.
+     * @param lexicon     the sentiment map (or compiled lexicon) file, as the workers see it.
+     * @param stopwords   the stopwords file, as the workers see it.
+     * @param tweetScores the per-tweet output file (only for a single file), or null for none.
+     * @param format      the format of the per-tweet output file.
+     * @return the total score of each file, and the overall total.
+     * @throws IOException if a shard failed MAX_ATTEMPTS times, no worker is left, or the
+     *                     files couldn't be read or the output written.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public MultiFileAnalyzer.Result analyze(List<Path> files, String lexicon, String stopwords, Path tweetScores,
+                                            TweetScoreOutput.Format format) throws IOException, InterruptedException {
+        if (tweetScores != null && files.size() != 1) {
+            throw new IllegalArgumentException("Tweet scores can only be written for a single file");
+        }
+
+        AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+        List<Shard> shards = split(files);
+        int count = shards.size();
+        long[] tweets = new long[count];
+        long[] scores = new long[count];
+        Path[] parts = new Path[count];
+        int[] attempts = new int[count];
+
+        LinkedBlockingDeque<Shard> pending = new LinkedBlockingDeque<>(shards);
+        AtomicInteger remaining = new AtomicInteger(count);
+        AtomicInteger liveConnections = new AtomicInteger(workers.size() * connectionsPerWorker);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+
+        try {
+            if (tweetScores != null) {
+                Path directory = tweetScores.toAbsolutePath().getParent();
+                Files.createDirectories(directory);
+                for (int i = 0; i < count; i++) {
+                    parts[i] = Files.createTempFile(directory, ".shard-", ".part");
+                }
+            }
+
+            try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (Worker worker : workers) {
+                    for (int c = 0; c < connectionsPerWorker; c++) {
+                        pool.submit(() -> {
+                            sendShards(worker, lexicon, stopwords, pending, remaining, liveConnections, failure,
+                                    attempts, tweets, scores, parts);
+                            return null;
+                        });
+                    }
+                }
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException("The analysis was interrupted");
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+
+            if (tweetScores != null) {
+                merge(tweetScores, format, tweets, parts);
+            }
+        } finally {
+            for (Path part : parts) {
+                if (part != null) {
+                    Files.deleteIfExists(part);
+                }
+            }
+        }
+
+        List<MultiFileAnalyzer.FileScore> fileScores = new ArrayList<>(files.size());
+        long totalTweets = 0;
+        long totalScore = 0;
+
+        for (int f = 0; f < files.size(); f++) {
+            long fileTweets = 0;
+            long fileScore = 0;
+            for (Shard shard : shards) {
+                if (shard.file() == f) {
+                    fileTweets += tweets[shard.index()];
+                    fileScore += scores[shard.index()];
+                }
+            }
+
+            fileScores.add(new MultiFileAnalyzer.FileScore(files.get(f).toString(), fileTweets, fileScore));
+            totalTweets += fileTweets;
+            totalScore += fileScore;
+        }
+
+        AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.ANALYSIS,
+                files.size() == 1 ? files.get(0).toString() : null, timer, count);
+        return new MultiFileAnalyzer.Result(fileScores, totalTweets, totalScore);
+    }
+
+    /**
+     * Splits the files into shards of about the shard size, and into at least as many
+     * shards as the workers take at a time, so every worker gets a share.
+     *
+     * @param files the files.
+     * @return the shards.
+     * @throws IOException if a file couldn't be read.
+     */
+    private List<Shard> split(List<Path> files) throws IOException {
+        long totalSize = 0;
+        for (Path file : files) {
+            totalSize += Files.size(file);
+        }
+
+        long minShards = (long) workers.size() * connectionsPerWorker;
+        List<Shard> shards = new ArrayList<>();
+
+        for (int f = 0; f < files.size(); f++) {
+            Path file = files.get(f);
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                long bySize = (size + shardSize - 1) / shardSize;
+                long byWorkers = totalSize == 0 ? 1 : (minShards * size + totalSize - 1) / totalSize;
+                long[] bounds = MemoryMappedFileParser.splitRanges(channel,
+                        (int) Math.min(Integer.MAX_VALUE, Math.max(1, Math.max(bySize, byWorkers))));
+
+                for (int r = 0; r + 1 < bounds.length; r++) {
+                    shards.add(new Shard(shards.size(), f, file.toAbsolutePath(), bounds[r], bounds[r + 1]));
+                }
+            }
+        }
+
+        return shards;
+    }
+
+    /**
+     * Sends shards to a worker over a single connection, one at a time, until there are
+     * none left, the analysis failed, or the worker can't be used anymore. A failed shard
+     * is put back for any connection to take. The connection that finishes the last shard,
+     * or fails the analysis, wakes the others up.
+     *
+     * @param worker          the worker.
+     * @param lexicon         the sentiment map (or compiled lexicon) file.
+     * @param stopwords       the stopwords file.
+     * @param pending         the shards waiting to be sent.
+     * @param remaining       the number of shards not done yet.
+     * @param liveConnections the number of connections still sending shards.
+     * @param failure         receives the failure of the analysis.
+     * @param attempts        the number of times each shard failed.
+     * @param tweets          receives the number of tweets of each shard.
+     * @param scores          receives the total score of each shard.
+     * @param parts           the part file of each shard, or nulls if the tweet scores aren't kept.
+     * @throws InterruptedException if the thread is interrupted while waiting for a shard.
+     */
+    private void sendShards(Worker worker, String lexicon, String stopwords, LinkedBlockingDeque<Shard> pending,
+                            AtomicInteger remaining, AtomicInteger liveConnections,
+                            AtomicReference<IOException> failure, int[] attempts, long[] tweets, long[] scores,
+                            Path[] parts) throws InterruptedException {
+        Socket socket = null;
+        DataInputStream in = null;
+        DataOutputStream out = null;
+
+        try {
+            while (failure.get() == null && remaining.get() > 0) {
+                Shard shard = pending.take();
+                if (shard == DONE) {
+                    return;
+                }
+
+                try {
+                    if (socket == null) {
+                        socket = new Socket();
+                        socket.connect(worker.address(), (int) CONNECT_TIMEOUT.toMillis());
+                        socket.setSoTimeout((int) READ_TIMEOUT.toMillis());
+                        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    }
+
+                    long[] result = sendShard(shard, lexicon, stopwords, in, out, parts[shard.index()]);
+                    tweets[shard.index()] = result[0];
+                    scores[shard.index()] = result[1];
+                    if (remaining.decrementAndGet() == 0) {
+                        wakeAll(pending);
+                    }
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                    socket = null;
+
+                    synchronized (attempts) {
+                        if (++attempts[shard.index()] >= MAX_ATTEMPTS) {
+                            failure.compareAndSet(null, new IOException("Shard " + shard.index() + " of "
+                                    + shard.path() + " failed " + MAX_ATTEMPTS + " times", e));
+                            wakeAll(pending);
+                            return;
+                        }
+                    }
+
+                    System.err.println("Retrying shard " + shard.index() + " of " + shard.path() + " (bytes "
+                            + shard.start() + "-" + shard.end() + ") after: " + e);
+                    pending.addLast(shard);
+
+                    if (!worker.recover()) {
+                        System.err.println("Giving up on the worker at " + worker.address());
+                        return;
+                    }
+                }
+            }
+        } finally {
+            closeQuietly(socket);
+
+            if (liveConnections.decrementAndGet() == 0 && remaining.get() > 0) {
+                failure.compareAndSet(null, new IOException("No worker is left to analyze the remaining shards"));
+            }
+        }
+    }
+
+    /**
+     * Wakes up every connection waiting for a shard, as the analysis is over.
+     *
+     * @param pending the shards waiting to be sent.
+     */
+    private void wakeAll(LinkedBlockingDeque<Shard> pending) {
+        for (int i = 0; i < workers.size() * connectionsPerWorker; i++) {
+            pending.addFirst(DONE);
+        }
+    }
+
+    /**
+     * Sends a shard to a worker, and receives its totals, spooling its tweet scores to its part.
+     *
+     * @param shard     the shard.
+     * @param lexicon   the sentiment map (or compiled lexicon) file.
+     * @param stopwords the stopwords file.
+     * @param in        the connection from the worker.
+     * @param out       the connection to the worker.
+     * @param part      the part file of the shard, or null if the tweet scores aren't kept.
+     * @return the number of tweets and the total score of the shard.
+     * @throws IOException if the shard failed, or the connection broke.
+     */
+    private static long[] sendShard(Shard shard, String lexicon, String stopwords, DataInputStream in,
+                                    DataOutputStream out, Path part) throws IOException {
+        out.writeByte(ShardWorker.SHARD);
+        out.writeUTF(shard.path().toString());
+        out.writeUTF(lexicon);
+        out.writeUTF(stopwords);
+        out.writeLong(shard.start());
+        out.writeLong(shard.end());
+        out.writeBoolean(part != null);
+        out.flush();
+
+        // a shard that's sent again starts its part over
+        try (DataOutputStream spool = part == null ? null : new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(part, StandardOpenOption.TRUNCATE_EXISTING)))) {
+            long received = 0;
+
+            while (true) {
+                byte message = in.readByte();
+
+                switch (message) {
+                    case ShardWorker.TWEETS -> {
+                        int n = in.readInt();
+                        if (spool == null) {
+                            throw new IOException("Unexpected tweet scores from the worker");
+                        }
+                        for (int i = 0; i < n; i++) {
+                            spool.writeLong(in.readLong());
+                            spool.writeInt(in.readInt());
+                            spool.writeInt(in.readInt());
+                        }
+                        received += n;
+                    }
+                    case ShardWorker.DONE -> {
+                        long tweets = in.readLong();
+                        long score = in.readLong();
+                        if (spool != null && received != tweets) {
+                            throw new IOException("The worker sent " + received + " of " + tweets + " tweet scores");
+                        }
+                        return new long[]{tweets, score};
+                    }
+                    case ShardWorker.ERROR -> throw new IOException("The worker failed: " + in.readUTF());
+                    default -> throw new IOException("Unknown message from the worker: " + message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the tweet scores spooled to the parts into the output, numbering the tweets
+     * in the order of the shards.
+     *
+     * @param tweetScores the output file.
+     * @param format      the format of the output file.
+     * @param tweets      the number of tweets of each shard.
+     * @param parts       the part file of each shard.
+     * @throws IOException if a part couldn't be read, or the output written.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    private static void merge(Path tweetScores, TweetScoreOutput.Format format, long[] tweets, Path[] parts)
+            throws IOException, InterruptedException {
+        long[] firstTweets = new long[tweets.length + 1];
+        firstTweets[0] = 1;
+        for (int i = 0; i < tweets.length; i++) {
+            firstTweets[i + 1] = firstTweets[i] + tweets[i];
+        }
+
+        try (TweetScoreOutput output = TweetScoreOutput.open(tweetScores, format, firstTweets[tweets.length] - 1,
+                tweets.length)) {
+            List<Future<Void>> copies = new ArrayList<>(parts.length);
+
+            try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int i = 0; i < parts.length; i++) {
+                    int index = i;
+                    copies.add(pool.submit(() -> {
+                        copyPart(parts[index], output.section(index, firstTweets[index], tweets[index]),
+                                firstTweets[index], tweets[index]);
+                        return null;
+                    }));
+                }
+            }
+
+            for (Future<Void> copy : copies) {
+                try {
+                    copy.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException cause) {
+                        throw cause;
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the tweet scores of a part into its section.
+     *
+     * @param part       the part file.
+     * @param section    the section of the output.
+     * @param firstTweet the id of the first tweet of the part.
+     * @param tweets     the number of tweets of the part.
+     * @throws IOException if the part couldn't be read, or the section written.
+     */
+    private static void copyPart(Path part, TweetScoreOutput.Section section, long firstTweet, long tweets)
+            throws IOException {
+        try (section;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(part)))) {
+            for (long i = 0; i < tweets; i++) {
+                try {
+                    section.write(firstTweet + i, in.readLong(), in.readInt(), in.readInt());
+                } catch (EOFException e) {
+                    throw new IOException("The part of the shard is too short: " + part, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a socket, ignoring any failure.
+     *
+     * @param socket the socket, or null.
+     */
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing more can be done
+        }
+    }
+
+    /**
+     * Stops the workers the coordinator started.
+     */
+    @Override
+    public void close() {
+        workers.forEach(Worker::stop);
+    }
+}
@@ -0,0 +1,260 @@
+package ie.atu.sw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A worker process of a sharded analysis: it scores the byte-range shards that a
+ * ShardCoordinator sends it over a local socket, and streams back the score of every
+ * tweet of the shard (if asked for) and the total of the shard.
+ *
+ * Each connection is handled on its own virtual thread, and its shards are scored one
+ * after the other; a coordinator sends several shards at a time over several connections.
+ * A lexicon is loaded the first time a shard needs it, and kept for the later shards.
+ *
+ * The protocol (big-endian, as DataOutputStream writes it), for each shard:
+ * <pre>
+ *   request:   'S', path (UTF), lexicon (UTF), stopwords (UTF), start (long), end (long), scores (boolean)
+ *   responses: 'T', count (int), count x [offset (long), score (int), matches (int)]   - the tweet scores
+ *              'D', tweets (long), score (long)                                        - the shard is done
+ *              'E', message (UTF)                                                      - the shard failed
+ * </pre>
+ * The coordinator closes the connection when it has no more shards to send.
+ */
+public final class ShardWorker implements AutoCloseable {
+    /**
+     * The request to score a shard.
+     */
+    static final byte SHARD = 'S';
+    /**
+     * A batch of tweet scores of a shard.
+     */
+    static final byte TWEETS = 'T';
+    /**
+     * The end of a shard, with its totals.
+     */
+    static final byte DONE = 'D';
+    /**
+     * The failure of a shard.
+     */
+    static final byte ERROR = 'E';
+
+    /**
+     * The line a worker prints when it's listening, followed by its port.
+     */
+    static final String LISTENING = "Worker listening on port ";
+
+    /**
+     * The number of tweet scores sent in a single message.
+     */
+    private static final int TWEETS_PER_MESSAGE = 1024;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<List<String>, TweetSentimentAnalyzer> analyzers = new ConcurrentHashMap<>();
+    private final boolean noLatency;
+    private final int parallelism;
+    private final int cacheSize;
+
+    /**
+     * Constructs a worker listening on the given local port.
+     *
+     * @param port        the port to listen on, or 0 for any free port.
+     * @param noLatency   whether to score straight from the lexicon, without the simulated service.
+     * @param parallelism the number of threads scoring each batch of a shard.
+     * @param cacheSize   the number of tweet scores cached per lexicon, or 0 for no cache.
+     * @throws IOException if the worker couldn't listen on the port.
+     */
+    public ShardWorker(int port, boolean noLatency, int parallelism, int cacheSize) throws IOException {
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        this.noLatency = noLatency;
+        this.parallelism = parallelism;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Returns the port the worker listens on.
+     *
+     * @return the port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the worker is closed.
+     */
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.submit(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Scores the shards sent over a connection, until the coordinator closes it.
+     *
+     * @param socket the connection.
+     */
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                byte request;
+                try {
+                    request = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                if (request != SHARD) {
+                    throw new IOException("Unknown request: " + request);
+                }
+
+                String path = in.readUTF();
+                String lexicon = in.readUTF();
+                String stopwords = in.readUTF();
+                long start = in.readLong();
+                long end = in.readLong();
+                boolean scores = in.readBoolean();
+
+                try {
+                    scoreShard(path, lexicon, stopwords, start, end, scores, out);
+                } catch (IOException | RuntimeException e) {
+                    // the shard failed, but the connection is still usable
+                    out.writeByte(ERROR);
+                    out.writeUTF(String.valueOf(e));
+                }
+                out.flush();
+            }
+        } catch (SocketException | EOFException e) {
+            // the coordinator went away
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Scores a shard, and sends the tweet scores (if asked for) and the totals.
+     *
+     * @param path      the file of the shard.
+     * @param lexicon   the sentiment map (or compiled lexicon) file.
+     * @param stopwords the stopwords file.
+     * @param start     the start of the shard (inclusive).
+     * @param end       the end of the shard (exclusive).
+     * @param scores    whether to send the score of every tweet.
+     * @param out       the connection to the coordinator.
+     * @throws IOException if the shard couldn't be read, or the scores couldn't be sent.
+     */
+    private void scoreShard(String path, String lexicon, String stopwords, long start, long end,
+                            boolean scores, DataOutputStream out) throws IOException {
+        TweetSentimentAnalyzer analyzer = analyzer(lexicon, stopwords);
+        long[] tweets = {0};
+        long[] batch = new long[TWEETS_PER_MESSAGE];
+        int[] batchScores = new int[TWEETS_PER_MESSAGE];
+        int[] batchMatches = new int[TWEETS_PER_MESSAGE];
+        int[] count = {0};
+
+        TweetScoreOutput.Section section = new TweetScoreOutput.Section() {
+            @Override
+            public void write(long tweetId, long offset, int score, int matches) throws IOException {
+                tweets[0]++;
+                if (!scores) {
+                    return;
+                }
+
+                batch[count[0]] = offset;
+                batchScores[count[0]] = score;
+                batchMatches[count[0]] = matches;
+                if (++count[0] == TWEETS_PER_MESSAGE) {
+                    close();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (count[0] == 0) {
+                    return;
+                }
+
+                out.writeByte(TWEETS);
+                out.writeInt(count[0]);
+                for (int i = 0; i < count[0]; i++) {
+                    out.writeLong(batch[i]);
+                    out.writeInt(batchScores[i]);
+                    out.writeInt(batchMatches[i]);
+                }
+                count[0] = 0;
+            }
+        };
+
+        long score;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            score = analyzer.analyzeRange(channel, start, Math.min(end, channel.size()), 1, parallelism, section);
+        }
+
+        out.writeByte(DONE);
+        out.writeLong(tweets[0]);
+        out.writeLong(score);
+    }
+
+    /**
+     * Returns the analyzer of a lexicon, creating it the first time.
+     *
+     * @param lexicon   the sentiment map (or compiled lexicon) file.
+     * @param stopwords the stopwords file.
+     * @return the analyzer.
+     * @throws IOException if the lexicon couldn't be loaded.
+     */
+    private TweetSentimentAnalyzer analyzer(String lexicon, String stopwords) throws IOException {
+        List<String> key = List.of(lexicon, stopwords);
+        TweetSentimentAnalyzer analyzer = analyzers.get(key);
+
+        if (analyzer == null) {
+            Lexicon loaded = LexiconCache.shared().get(lexicon, stopwords);
+            analyzer = analyzers.computeIfAbsent(key, k -> new TweetSentimentAnalyzer(loaded,
+                    noLatency ? null : TweetSentimentAnalyzer.simulatedScoringClient(loaded),
+                    cacheSize == 0 ? null : new TweetScoreCache(cacheSize)));
+        }
+
+        return analyzer;
+    }
+
+    /**
+     * Stops accepting connections, and interrupts the shards being scored.
+     */
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        executor.shutdownNow();
+    }
+}
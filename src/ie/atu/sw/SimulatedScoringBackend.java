@@ -0,0 +1,64 @@
+package ie.atu.sw;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An in-process stand-in for the external scoring service.
+ *
+ * Scores the words with the lexicon, after sleeping for the latency of a single
+ * request. A fraction of the requests can be made to take longer, to simulate
+ * the tail latency of a real service.
+ */
+public class SimulatedScoringBackend implements ScoringBackend {
+    private final Lexicon lexicon;
+    private final long latencyNanos;
+    private final long tailLatencyNanos;
+    private final double tailProbability;
+
+    /**
+     * Constructs a backend where every request takes the same time.
+     *
+     * @param lexicon the lexicon holding the scores.
+     * @param latency the time a single request takes.
+     */
+    public SimulatedScoringBackend(Lexicon lexicon, Duration latency) {
+        this(lexicon, latency, latency, 0);
+    }
+
+    /**
+     * Constructs a backend where some requests take longer than the others.
+     *
+     * @param lexicon         the lexicon holding the scores.
+     * @param latency         the time a usual request takes.
+     * @param tailLatency     the time a slow request takes.
+     * @param tailProbability the probability of a request being slow, between 0 and 1.
+     */
+    public SimulatedScoringBackend(Lexicon lexicon, Duration latency, Duration tailLatency, double tailProbability) {
+        this.lexicon = lexicon;
+        this.latencyNanos = latency.toNanos();
+        this.tailLatencyNanos = tailLatency.toNanos();
+        this.tailProbability = tailProbability;
+    }
+
+    @Override
+    public int[] score(List<String> words) throws InterruptedException {
+        long latency = ThreadLocalRandom.current().nextDouble() < tailProbability ? tailLatencyNanos : latencyNanos;
+
+        // simulate the round trip to the service
+        if (latency > 0) {
+            Thread.sleep(Duration.ofNanos(latency));
+        }
+
+        int[] scores = new int[words.size()];
+        for (int i = 0; i < scores.length; i++) {
+            String word = words.get(i);
+            int entry = lexicon.lookup(word, 0, word.length());
+
+            scores[i] = entry >= 0 ? lexicon.score(entry) : 0;
+        }
+
+        return scores;
+    }
+}
@@ -0,0 +1,33 @@
+package ie.atu.sw;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A JFR event recorded each time a stage of an analysis (a batch of parsing, a chunk
+ * of scoring, a lexicon load, a batch of output, or a whole run) has finished. Its
+ * duration is the time the stage took.
+ *
+ * Is only committed while a JFR recording has the event enabled.
+ */
+@Name("ie.atu.sw.Stage")
+@Label("Analysis Stage")
+@Category("Sentiment Analyzer")
+@Description("A stage of a sentiment analysis has finished")
+@StackTrace(false)
+class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Source")
+    @Description("The file the stage worked on, if known")
+    String source;
+
+    @Label("Items")
+    @Description("The number of lines, tweets, words or records the stage handled")
+    long items;
+}
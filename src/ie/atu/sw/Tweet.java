@@ -0,0 +1,10 @@
+package ie.atu.sw;
+
+/**
+ * A single tweet of a corpus file - one line of the file.
+ *
+ * @param line the number of the line, starting at 1.
+ * @param text the text of the line, without the line terminator.
+ */
+public record Tweet(long line, String text) {
+}
@@ -0,0 +1,494 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Follows a growing file of tweets (like tail -f), and scores only the lines appended
+ * since the last time it looked.
+ *
+ * A WatchService on the directory of the file wakes the follower up when the file changes
+ * (it also checks every second, as some file systems don't report changes). Only complete
+ * lines - ending with '\n' - are read, from the byte offset where the previous read stopped.
+ *
+ * The follower keeps a running total, and reports the total of every window (a fixed
+ * period of time) to a listener. After every scored batch, the offset and the running
+ * total are saved to a checkpoint file, so a restarted follower resumes where it stopped
+ * without reading the file again. If the file is truncated or replaced, it's read from the start.
+ */
+public final class TweetFollower implements AutoCloseable {
+    /**
+     * The number of tweets scored together.
+     */
+    private static final int BATCH_SIZE = 1024;
+    /**
+     * The number of bytes mapped at a time.
+     */
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+    /**
+     * The longest time between two checks of the file.
+     */
+    private static final long POLL_MILLIS = 1000;
+
+    /**
+     * The totals of a window.
+     *
+     * @param start       the start of the window.
+     * @param end         the end of the window.
+     * @param tweets      the number of tweets scored in the window.
+     * @param score       the total score of the tweets scored in the window.
+     * @param totalTweets the number of tweets scored so far.
+     * @param totalScore  the total score of the tweets scored so far.
+     */
+    public record Window(Instant start, Instant end, long tweets, long score, long totalTweets, long totalScore) {
+    }
+
+    private final Path book;
+    private final Path checkpointFile;
+    private final TweetSentimentAnalyzer analyzer;
+    private final long windowMillis;
+    private final int parallelism;
+    private final Consumer<Window> listener;
+    private final WatchService watcher;
+
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean running = true;
+    private volatile boolean started = false;
+
+    /**
+     * The file being read, and its identity (to notice it being replaced).
+     */
+    private FileChannel channel;
+    private String fileKey;
+
+    /**
+     * The byte offset after the last scored line, and the running totals.
+     */
+    private volatile long offset;
+    private volatile long totalTweets;
+    private volatile long totalScore;
+
+    /**
+     * The current window.
+     */
+    private long windowStart;
+    private long windowTweets;
+    private long windowScore;
+
+    /**
+     * Constructs a follower of the given file. The checkpoint is loaded, if there's one.
+     *
+     * @param book           the path to the file of tweets.
+     * @param checkpointFile the path to the checkpoint file.
+     * @param analyzer       scores the tweets.
+     * @param window         the length of a window.
+     * @param parallelism    the number of virtual threads each batch is scored on.
+     * @param listener       receives the totals of each window when it ends.
+     * @throws IOException if the checkpoint couldn't be read, or the file couldn't be watched.
+     */
+    public TweetFollower(String book, String checkpointFile, TweetSentimentAnalyzer analyzer, Duration window,
+                         int parallelism, Consumer<Window> listener) throws IOException {
+        if (window.toMillis() < 1 || parallelism < 1) {
+            throw new IllegalArgumentException("Window and parallelism must be positive");
+        }
+
+        this.book = Paths.get(book).toAbsolutePath().normalize();
+        this.checkpointFile = Paths.get(checkpointFile);
+        this.analyzer = analyzer;
+        this.windowMillis = window.toMillis();
+        this.parallelism = parallelism;
+        this.listener = listener;
+
+        loadCheckpoint();
+
+        this.watcher = this.book.getFileSystem().newWatchService();
+        this.book.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Follows the file until the follower is closed: scores the lines appended to it,
+     * and reports the totals of each window.
+     *
+     * @throws IOException if the file couldn't be read, or the checkpoint couldn't be saved.
+     * @throws InterruptedException if interrupted while scoring.
+     */
+    public void run() throws IOException, InterruptedException {
+        started = true;
+
+        try {
+            long now = System.currentTimeMillis();
+            windowStart = now - now % windowMillis;
+
+            try {
+                while (running) {
+                    readAppended();
+                    endWindows();
+
+                    // wake up when the file changes, at the end of the window, or after a second at most
+                    long untilWindowEnd = windowStart + windowMillis - System.currentTimeMillis();
+                    WatchKey key = watcher.poll(Math.max(1, Math.min(untilWindowEnd, POLL_MILLIS)),
+                            TimeUnit.MILLISECONDS);
+
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                }
+            } catch (ClosedWatchServiceException e) {
+                // the follower is closed
+            }
+
+            // report the window cut short by closing, if anything was scored in it
+            if (windowTweets > 0) {
+                listener.accept(new Window(Instant.ofEpochMilli(windowStart), Instant.now(), windowTweets,
+                        windowScore, totalTweets, totalScore));
+            }
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Stops following the file. Waits for the batch being scored to be checkpointed.
+     */
+    @Override
+    public void close() {
+        running = false;
+
+        try {
+            watcher.close();
+
+            if (started) {
+                finished.await();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the byte offset after the last scored line.
+     *
+     * @return the offset.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Returns the number of tweets scored so far, before a restart included.
+     *
+     * @return the number of tweets.
+     */
+    public long getTotalTweets() {
+        return totalTweets;
+    }
+
+    /**
+     * Returns the total score of the tweets scored so far, before a restart included.
+     *
+     * @return the total score.
+     */
+    public long getTotalScore() {
+        return totalScore;
+    }
+
+    /**
+     * Reads and scores the complete lines appended since the last read.
+     *
+     * @throws IOException if the file couldn't be read, or the checkpoint couldn't be saved.
+     * @throws InterruptedException if interrupted while scoring.
+     */
+    private void readAppended() throws IOException, InterruptedException {
+        if (!openFile()) {
+            return;
+        }
+
+        long size = channel.size();
+
+        while (running && offset < size) {
+            long length = Math.min(CHUNK_SIZE, size - offset);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            int end = lastLineEnd(buffer);
+
+            if (end < 0) {
+                // a line longer than the chunk - map all of it, once it's complete
+                long lineEnd = findLineEnd(offset + length, size);
+                if (lineEnd < 0) {
+                    return;
+                }
+                if (lineEnd - offset > Integer.MAX_VALUE) {
+                    System.out.println("Skipped a line of " + (lineEnd - offset) + " bytes at offset " + offset
+                            + " of " + book + " - it's too long to score");
+                    offset = lineEnd;
+                    saveCheckpoint();
+                    continue;
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, lineEnd - offset);
+                end = buffer.limit();
+            }
+
+            scoreLines(buffer.slice(0, end), offset);
+        }
+    }
+
+    /**
+     * Finds the end of the line that continues at an offset, a chunk at a time.
+     *
+     * @param from the offset to search from.
+     * @param size the size of the file.
+     * @return the offset right after the next '\n', or -1 if the line isn't complete yet.
+     * @throws IOException if the file couldn't be read.
+     */
+    private long findLineEnd(long from, long size) throws IOException {
+        while (running && from < size) {
+            long length = Math.min(CHUNK_SIZE, size - from);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return from + i + 1;
+                }
+            }
+
+            from += length;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Opens the file, or opens it again if it has been truncated or replaced.
+     *
+     * @return true, if the file is open, false if it doesn't exist (yet).
+     * @throws IOException if the file couldn't be opened.
+     */
+    private boolean openFile() throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(book, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+
+        String key = String.valueOf(attributes.fileKey());
+        if (channel != null && key.equals(fileKey) && attributes.size() >= offset) {
+            return true;
+        }
+
+        if (channel != null) {
+            channel.close();
+        }
+
+        // the offset of another file (or of a longer version of this one) doesn't apply
+        if ((fileKey != null && !key.equals(fileKey)) || attributes.size() < offset) {
+            System.out.println("The file " + book + " was truncated or replaced - reading it from the start");
+            offset = 0;
+        }
+
+        channel = FileChannel.open(book, StandardOpenOption.READ);
+        fileKey = key;
+
+        return true;
+    }
+
+    /**
+     * Finds the end of the last complete line of the buffer.
+     *
+     * @param buffer the bytes.
+     * @return the index right after the last '\n', or -1 if there's none.
+     */
+    private static int lastLineEnd(MappedByteBuffer buffer) {
+        for (int i = buffer.limit() - 1; i >= 0; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Scores the complete lines of the buffer in batches, checkpointing after every batch.
+     *
+     * @param lines the bytes of the lines, ending with a '\n'.
+     * @param base  the byte offset of the lines in the file.
+     * @throws IOException if a line couldn't be decoded, or the checkpoint couldn't be saved.
+     * @throws InterruptedException if interrupted while scoring.
+     */
+    private void scoreLines(ByteBuffer lines, long base) throws IOException, InterruptedException {
+        List<String> batch = new ArrayList<>(BATCH_SIZE);
+
+        try {
+            MemoryMappedFileParser.forEachLine(lines, base, (lineOffset, text) -> {
+                // a full batch ends where the next line starts
+                if (batch.size() == BATCH_SIZE) {
+                    scoreBatch(batch, lineOffset);
+                    batch.clear();
+                }
+                batch.add(text);
+            });
+
+            if (!batch.isEmpty()) {
+                scoreBatch(batch, base + lines.limit());
+            }
+        } catch (ScoringInterruptedException e) {
+            throw (InterruptedException) e.getCause();
+        }
+    }
+
+    /**
+     * Scores a batch of tweets, adds them to the totals, and saves the checkpoint.
+     *
+     * @param batch the tweets.
+     * @param end   the byte offset right after the last line of the batch.
+     * @throws IOException if the checkpoint couldn't be saved, or scoring was interrupted.
+     */
+    private void scoreBatch(List<String> batch, long end) throws IOException {
+        AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+        long score;
+
+        try {
+            score = (long) analyzer.analyzeTweets(batch, parallelism, null);
+        } catch (InterruptedException e) {
+            throw new ScoringInterruptedException(e);
+        } catch (TimeoutException e) {
+            // there's no deadline
+            throw new IllegalStateException(e);
+        }
+
+        AnalysisMetrics.shared().recordParsed(batch.size(), 0);
+        AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.ANALYSIS, book.toString(), timer, batch.size());
+
+        offset = end;
+        totalTweets += batch.size();
+        totalScore += score;
+        windowTweets += batch.size();
+        windowScore += score;
+
+        saveCheckpoint();
+    }
+
+    /**
+     * Reports the windows that have ended.
+     */
+    private void endWindows() {
+        long now = System.currentTimeMillis();
+
+        while (now >= windowStart + windowMillis) {
+            listener.accept(new Window(Instant.ofEpochMilli(windowStart),
+                    Instant.ofEpochMilli(windowStart + windowMillis), windowTweets, windowScore,
+                    totalTweets, totalScore));
+
+            windowStart += windowMillis;
+            windowTweets = 0;
+            windowScore = 0;
+
+            // don't report every missed window after a long pause (e.g. a suspended machine)
+            if (now >= windowStart + windowMillis) {
+                windowStart = now - now % windowMillis;
+            }
+        }
+    }
+
+    /**
+     * Loads the offset and the totals from the checkpoint file, if there's one for this file.
+     *
+     * @throws IOException if the checkpoint couldn't be read.
+     */
+    private void loadCheckpoint() throws IOException {
+        if (!Files.exists(checkpointFile)) {
+            return;
+        }
+
+        Properties checkpoint = new Properties();
+        try (Reader in = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+            checkpoint.load(in);
+        }
+
+        if (!book.toString().equals(checkpoint.getProperty("file"))) {
+            System.out.println("The checkpoint " + checkpointFile + " is for another file - reading from the start");
+            return;
+        }
+
+        try {
+            offset = Long.parseLong(checkpoint.getProperty("offset"));
+            totalTweets = Long.parseLong(checkpoint.getProperty("tweets"));
+            totalScore = Long.parseLong(checkpoint.getProperty("score"));
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new IOException("Invalid checkpoint file: " + checkpointFile, e);
+        }
+
+        // the file is checked against its key when it's opened
+        String key = checkpoint.getProperty("fileKey", "");
+        fileKey = key.isEmpty() ? null : key;
+    }
+
+    /**
+     * Saves the offset and the totals to the checkpoint file. The file is replaced
+     * atomically, so a crash leaves either the previous or the new checkpoint.
+     *
+     * @throws IOException if the checkpoint couldn't be saved.
+     */
+    private void saveCheckpoint() throws IOException {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("file", book.toString());
+        checkpoint.setProperty("fileKey", fileKey == null ? "" : fileKey);
+        checkpoint.setProperty("offset", Long.toString(offset));
+        checkpoint.setProperty("tweets", Long.toString(totalTweets));
+        checkpoint.setProperty("score", Long.toString(totalScore));
+
+        Path parent = checkpointFile.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        Path temporary = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            checkpoint.store(out, "Tweet follower checkpoint");
+        }
+        Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Carries an interrupt out of a LineHandler, which can only throw IOExceptions.
+     */
+    private static final class ScoringInterruptedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private ScoringInterruptedException(InterruptedException cause) {
+            super(cause);
+        }
+    }
+}
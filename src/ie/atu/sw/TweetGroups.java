@@ -0,0 +1,585 @@
+package ie.atu.sw;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Groups the scored tweets by hashtag, by @mention and by time bucket, keeping the
+ * sum of the scores, the number of tweets and a histogram of the scores of each group.
+ *
+ * The analyzer adds each batch of tweets right after scoring it, so the groups are
+ * built in the same pass over the corpus as the total. Every batch takes a set of
+ * tables that no other thread is using (there are only as many sets as batches scored
+ * at the same time), so adding never locks; the sets are merged when the groups are read.
+ *
+ * A hashtag or mention is a word starting with '#' or '@', up to its first character
+ * that isn't a letter, a digit or '_', and is counted once per tweet, case-insensitively.
+ * The time bucket comes from a timestamp at the start of the line, either a number of
+ * seconds (or, with 12 digits or more, milliseconds) since the epoch, or an ISO-8601
+ * date-time such as 2024-03-01T12:30:00Z; lines without one aren't in any time bucket.
+ */
+public final class TweetGroups {
+    /**
+     * The kinds of groups.
+     */
+    public enum Kind {
+        HASHTAG, MENTION, TIME
+    }
+
+    /**
+     * The default size of the time buckets.
+     */
+    public static final Duration DEFAULT_BUCKET = Duration.ofHours(1);
+
+    /**
+     * The most hashtags and mentions of a tweet that are counted.
+     */
+    private static final int MAX_TAGS_PER_TWEET = 32;
+
+    /**
+     * The seed and the prime of the 64-bit FNV-1a hash.
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long bucketSeconds;
+    private final ConcurrentLinkedQueue<Tables> idle = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Tables> all = new ConcurrentLinkedQueue<>();
+
+    /**
+     * A group, as read from the merged tables.
+     *
+     * @param kind      the kind of the group.
+     * @param key       the hashtag or mention (lower-cased, without its '#' or '@'), or the start of the time bucket.
+     * @param tweets    the number of tweets of the group.
+     * @param score     the sum of the scores of the tweets.
+     * @param histogram the number of tweets per score, from GroupTable.MIN_BIN_SCORE up.
+     */
+    public record Group(Kind kind, String key, long tweets, long score, long[] histogram) {
+        /**
+         * Returns the mean score of the tweets of the group.
+         *
+         * @return the mean score.
+         */
+        public double mean() {
+            return (double) score / tweets;
+        }
+    }
+
+    /**
+     * The tables of a single thread, and the tags of the tweet being added.
+     */
+    private static final class Tables {
+        private final EnumMap<Kind, GroupTable> tables = new EnumMap<>(Kind.class);
+        private final long[] tags = new long[MAX_TAGS_PER_TWEET];
+
+        private Tables() {
+            for (Kind kind : Kind.values()) {
+                tables.put(kind, new GroupTable());
+            }
+        }
+
+        private Tables(Tables other) {
+            other.tables.forEach((kind, table) -> tables.put(kind, table.copy()));
+        }
+    }
+
+    /**
+     * Constructs the groups with time buckets of the given size.
+     *
+     * @param bucket the size of the time buckets (a whole number of seconds).
+     */
+    public TweetGroups(Duration bucket) {
+        if (bucket.getSeconds() < 1) {
+            throw new IllegalArgumentException("The time buckets must be at least a second long");
+        }
+
+        this.bucketSeconds = bucket.getSeconds();
+    }
+
+    /**
+     * Returns the size of the time buckets.
+     *
+     * @return the size of the time buckets.
+     */
+    public Duration getBucket() {
+        return Duration.ofSeconds(bucketSeconds);
+    }
+
+    /**
+     * Adds all the groups of other groups to these, e.g. the groups of the tweets scored
+     * since the last checkpoint. Neither may have tweets added meanwhile.
+     *
+     * @param other the other groups.
+     */
+    public void addAll(TweetGroups other) {
+        Tables tables = idle.poll();
+        if (tables == null) {
+            tables = new Tables();
+            all.add(tables);
+        }
+
+        try {
+            for (Tables otherTables : other.all) {
+                for (Kind kind : Kind.values()) {
+                    tables.tables.get(kind).merge(otherTables.tables.get(kind));
+                }
+            }
+        } finally {
+            idle.add(tables);
+        }
+    }
+
+    /**
+     * Adds a whole group, e.g. a group saved to a checkpoint. It must not be called
+     * while tweets are being added.
+     *
+     * @param kind      the kind of the group.
+     * @param key       the key of the group.
+     * @param name      the name of the group, or null for none.
+     * @param tweets    the number of tweets of the group.
+     * @param score     the sum of the scores of the tweets.
+     * @param histogram the number of tweets per score, from GroupTable.MIN_BIN_SCORE up.
+     */
+    public void add(Kind kind, long key, String name, long tweets, long score, long[] histogram) {
+        Tables tables = idle.poll();
+        if (tables == null) {
+            tables = new Tables();
+            all.add(tables);
+        }
+
+        tables.tables.get(kind).add(key, name, tweets, score, histogram);
+        idle.add(tables);
+    }
+
+    /**
+     * Returns a copy of the groups, e.g. to save them while more are added to these. The
+     * tables are copied as they are, not merged. It must not be called while tweets are
+     * being added.
+     *
+     * @return the copy.
+     */
+    public TweetGroups copy() {
+        TweetGroups copy = new TweetGroups(getBucket());
+        for (Tables tables : all) {
+            Tables copied = new Tables(tables);
+            copy.all.add(copied);
+            copy.idle.add(copied);
+        }
+        return copy;
+    }
+
+    /**
+     * Removes every group. It must not be called while tweets are being added.
+     */
+    public void clear() {
+        for (Tables tables : all) {
+            for (GroupTable table : tables.tables.values()) {
+                table.clear();
+            }
+        }
+    }
+
+    /**
+     * Adds scored tweets to their groups. It may be called by many threads at the same time.
+     *
+     * @param tweets the tweets.
+     * @param scores the score of each tweet.
+     */
+    public void addAll(List<String> tweets, int[] scores) {
+        Tables tables = idle.poll();
+        if (tables == null) {
+            tables = new Tables();
+            all.add(tables);
+        }
+
+        try {
+            for (int i = 0; i < tweets.size(); i++) {
+                add(tables, tweets.get(i), scores[i]);
+            }
+        } finally {
+            idle.add(tables);
+        }
+    }
+
+    /**
+     * Adds a scored tweet to its groups.
+     *
+     * @param tables the tables of the calling thread.
+     * @param tweet  the tweet.
+     * @param score  the score of the tweet.
+     */
+    private void add(Tables tables, String tweet, int score) {
+        int length = tweet.length();
+
+        long timestamp = timestamp(tweet);
+        if (timestamp != Long.MIN_VALUE) {
+            tables.tables.get(Kind.TIME).add(Math.floorDiv(timestamp, bucketSeconds) * bucketSeconds,
+                    null, 0, 0, score);
+        }
+
+        int tagCount = 0;
+        for (int i = 0; i < length; i++) {
+            char sigil = tweet.charAt(i);
+            if ((sigil != '#' && sigil != '@')
+                    || (i > 0 && !TweetSentimentAnalyzer.isWhitespace(tweet.charAt(i - 1)))) {
+                continue;
+            }
+
+            int start = i + 1;
+            int end = start;
+            long hash = FNV_OFFSET;
+            while (end < length && isTagChar(tweet.charAt(end))) {
+                hash = (hash ^ Character.toLowerCase(tweet.charAt(end))) * FNV_PRIME;
+                end++;
+            }
+            i = end - 1;
+
+            if (end == start || tagCount == MAX_TAGS_PER_TWEET) {
+                continue;
+            }
+
+            // a hashtag and a mention with the same text are different groups
+            Kind kind = sigil == '#' ? Kind.HASHTAG : Kind.MENTION;
+            hash = (hash ^ sigil) * FNV_PRIME;
+
+            if (!contains(tables.tags, tagCount, hash)) {
+                tables.tags[tagCount++] = hash;
+                tables.tables.get(kind).add(hash, tweet, start, end, score);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a hash is among the first hashes of an array.
+     *
+     * @param hashes the array.
+     * @param count  the number of hashes to look at.
+     * @param hash   the hash.
+     * @return true, if the hash was found, false otherwise.
+     */
+    private static boolean contains(long[] hashes, int count, long hash) {
+        for (int i = 0; i < count; i++) {
+            if (hashes[i] == hash) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks whether a character may be part of a hashtag or a mention.
+     *
+     * @param c the character.
+     * @return true, if the character is a letter, a digit or '_', false otherwise.
+     */
+    private static boolean isTagChar(char c) {
+        return c < 0x80 ? (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_'
+                : Character.isLetterOrDigit(c);
+    }
+
+    /**
+     * Parses the timestamp at the start of a tweet.
+     *
+     * @param tweet the tweet.
+     * @return the timestamp in seconds since the epoch, or Long.MIN_VALUE if the tweet doesn't start with one.
+     */
+    static long timestamp(CharSequence tweet) {
+        int length = tweet.length();
+        int i = 0;
+        while (i < length && TweetSentimentAnalyzer.isWhitespace(tweet.charAt(i))) {
+            i++;
+        }
+
+        int digitsStart = i;
+        long number = 0;
+        while (i < length && i - digitsStart < 18 && isDigit(tweet.charAt(i))) {
+            number = number * 10 + (tweet.charAt(i++) - '0');
+        }
+        int digits = i - digitsStart;
+
+        if (digits == 0) {
+            return Long.MIN_VALUE;
+        }
+        if (i == length || TweetSentimentAnalyzer.isWhitespace(tweet.charAt(i))) {
+            // epoch seconds, or milliseconds from 12 digits on
+            return digits >= 12 ? number / 1000 : digits >= 9 ? number : Long.MIN_VALUE;
+        }
+        if (digits != 4 || tweet.charAt(i) != '-') {
+            return Long.MIN_VALUE;
+        }
+
+        return isoTimestamp(tweet, digitsStart);
+    }
+
+    /**
+     * Parses an ISO-8601 date-time: yyyy-MM-dd, optionally followed by 'T' (or a space)
+     * and HH:mm[:ss[.fraction]], and by 'Z' or an offset ±HH:mm. Without an offset, it's UTC.
+     *
+     * @param text  the text.
+     * @param start the start of the date-time.
+     * @return the timestamp in seconds since the epoch, or Long.MIN_VALUE if it's not a valid date-time.
+     */
+    private static long isoTimestamp(CharSequence text, int start) {
+        int year = number(text, start, 4);
+        int month = expect(text, start + 4, '-') ? number(text, start + 5, 2) : -1;
+        int day = expect(text, start + 7, '-') ? number(text, start + 8, 2) : -1;
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return Long.MIN_VALUE;
+        }
+
+        long seconds = daysFromCivil(year, month, day) * 86_400;
+        int i = start + 10;
+
+        if (i < text.length() && (text.charAt(i) == 'T' || text.charAt(i) == 't' || text.charAt(i) == ' ')
+                && expect(text, i + 3, ':')) {
+            int hour = number(text, i + 1, 2);
+            int minute = number(text, i + 4, 2);
+            if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+                return Long.MIN_VALUE;
+            }
+            seconds += hour * 3600L + minute * 60L;
+            i += 6;
+
+            if (expect(text, i, ':')) {
+                int second = number(text, i + 1, 2);
+                if (second < 0 || second > 60) {
+                    return Long.MIN_VALUE;
+                }
+                seconds += second;
+                i += 3;
+            }
+            if (expect(text, i, '.')) {
+                i++;
+                while (i < text.length() && isDigit(text.charAt(i))) {
+                    i++;
+                }
+            }
+
+            if (i < text.length() && (text.charAt(i) == '+' || text.charAt(i) == '-') && expect(text, i + 3, ':')) {
+                int offsetHours = number(text, i + 1, 2);
+                int offsetMinutes = number(text, i + 4, 2);
+                if (offsetHours < 0 || offsetMinutes < 0) {
+                    return Long.MIN_VALUE;
+                }
+                int offset = offsetHours * 3600 + offsetMinutes * 60;
+                seconds -= text.charAt(i) == '+' ? offset : -offset;
+            }
+        }
+
+        return seconds;
+    }
+
+    /**
+     * Parses a fixed number of digits.
+     *
+     * @param text   the text.
+     * @param start  the start of the digits.
+     * @param digits the number of digits.
+     * @return the number, or -1 if there aren't that many digits there.
+     */
+    private static int number(CharSequence text, int start, int digits) {
+        if (start + digits > text.length()) {
+            return -1;
+        }
+
+        int number = 0;
+        for (int i = start; i < start + digits; i++) {
+            char c = text.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+        }
+
+        return number;
+    }
+
+    private static boolean expect(CharSequence text, int index, char c) {
+        return index < text.length() && text.charAt(index) == c;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Returns the number of days of a month of the proleptic Gregorian calendar.
+     *
+     * @param year  the year.
+     * @param month the month, from 1 to 12.
+     * @return the number of days.
+     */
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = year % 4 == 0 && (year % 100 != 0 || year % 400 == 0);
+            return leap ? 29 : 28;
+        }
+
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    /**
+     * Returns the number of days from 1970-01-01 to the given date of the proleptic
+     * Gregorian calendar, without creating a LocalDate.
+     *
+     * @param year  the year.
+     * @param month the month, from 1 to 12.
+     * @param day   the day of the month.
+     * @return the number of days.
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+
+        return era * 146_097L + dayOfEra - 719_468;
+    }
+
+    /**
+     * Merges the tables of all the threads. It must not be called while tweets are being added.
+     *
+     * @return the merged table of each kind of group.
+     */
+    public Map<Kind, GroupTable> merge() {
+        EnumMap<Kind, GroupTable> merged = new EnumMap<>(Kind.class);
+
+        for (Kind kind : Kind.values()) {
+            // sized for the largest case, every group in a single thread, so it grows at most once
+            int expected = 0;
+            for (Tables tables : all) {
+                expected = Math.max(expected, tables.tables.get(kind).size());
+            }
+
+            GroupTable table = new GroupTable(expected);
+            for (Tables tables : all) {
+                table.merge(tables.tables.get(kind));
+            }
+            merged.put(kind, table);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Returns the groups of the given kind with the most tweets.
+     *
+     * @param kind  the kind of the groups.
+     * @param limit the largest number of groups returned.
+     * @return the groups, with the most tweets first (and by key for the same number).
+     */
+    public List<Group> top(Kind kind, int limit) {
+        return sorted(kind, merge().get(kind)).stream().limit(limit).toList();
+    }
+
+    /**
+     * Writes all the groups to a CSV file: the kind, the key, the number of tweets,
+     * the total and mean scores, and the histogram of the scores.
+     *
+     * @param file the file.
+     * @return the number of groups of each kind.
+     * @throws IOException if the file couldn't be written.
+     */
+    public Map<Kind, Integer> write(Path file) throws IOException {
+        Map<Kind, GroupTable> merged = merge();
+        Map<Kind, Integer> sizes = new EnumMap<>(Kind.class);
+
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("kind,key,tweets,score,mean");
+            for (int b = 0; b < GroupTable.BINS; b++) {
+                int score = GroupTable.MIN_BIN_SCORE + b;
+                out.write(b == 0 ? ",score<=" + score
+                        : b == GroupTable.BINS - 1 ? ",score>=" + score : ",score=" + score);
+            }
+            out.newLine();
+
+            for (Kind kind : Kind.values()) {
+                List<Group> groups = sorted(kind, merged.get(kind));
+                sizes.put(kind, groups.size());
+
+                StringBuilder line = new StringBuilder();
+                for (Group group : groups) {
+                    line.setLength(0);
+                    line.append(kind.name().toLowerCase(Locale.ROOT)).append(',').append(group.key())
+                            .append(',').append(group.tweets()).append(',').append(group.score()).append(',');
+                    appendMean(line, group.score(), group.tweets());
+                    for (long count : group.histogram()) {
+                        line.append(',').append(count);
+                    }
+                    line.append(System.lineSeparator());
+                    out.append(line);
+                }
+            }
+        }
+
+        return sizes;
+    }
+
+    /**
+     * Appends a mean score with four decimals, rounding halves away from zero - without
+     * the cost of a Formatter, which shows with millions of groups.
+     *
+     * @param line   the line to append to.
+     * @param score  the sum of the scores.
+     * @param tweets the number of tweets.
+     */
+    static void appendMean(StringBuilder line, long score, long tweets) {
+        if (Math.abs(score) > Long.MAX_VALUE / 20_000) {
+            line.append(String.format(Locale.ROOT, "%.4f", (double) score / tweets));
+            return;
+        }
+
+        long scaled = (Math.abs(score) * 20_000 / tweets + 1) / 2;
+        if (score < 0 && scaled != 0) {
+            line.append('-');
+        }
+
+        long fraction = scaled % 10_000;
+        line.append(scaled / 10_000).append('.');
+        for (long digit = 1_000; digit > fraction && digit > 1; digit /= 10) {
+            line.append('0');
+        }
+        line.append(fraction);
+    }
+
+    /**
+     * Reads the groups of a merged table, with the most tweets first. Time buckets are
+     * in time order instead.
+     *
+     * @param kind  the kind of the groups.
+     * @param table the merged table.
+     * @return the groups.
+     */
+    private static List<Group> sorted(Kind kind, GroupTable table) {
+        Group[] groups = new Group[table.size()];
+        int[] next = {0};
+
+        table.forEach((key, name, tweets, score, histogram) -> groups[next[0]++] = new Group(kind,
+                kind == Kind.TIME ? Instant.ofEpochSecond(key).toString() : name, tweets, score, histogram.clone()));
+
+        if (kind == Kind.TIME) {
+            Arrays.sort(groups, Comparator.comparing(group -> Instant.parse(group.key())));
+        } else {
+            // a plain comparator, sorting in parallel: there may be millions of groups
+            Arrays.parallelSort(groups, (a, b) -> a.tweets() != b.tweets() ? Long.compare(b.tweets(), a.tweets())
+                    : a.key().compareTo(b.key()));
+        }
+
+        return Arrays.asList(groups);
+    }
+}
@@ -0,0 +1,811 @@
+package ie.atu.sw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds the most positive and the most negative tweets of a corpus as it's scored, and
+ * (optionally) the exact percentiles of the scores of all its tweets.
+ *
+ * The ranking is a TweetScoreOutput, so it's filled by the threads that score the
+ * sections of the file. Each section keeps its own two bounded heaps - so the threads never
+ * contend - holding only the id, the line offset and the score of at most top tweets each;
+ * the heaps are merged when the ranking is closed, and the text of a ranked tweet is only
+ * read back from the file when it's asked for.
+ *
+ * For the percentiles every score is kept. Each section buffers its scores in memory until
+ * the buffers of all the sections reach maxBufferedScores; then it sorts its buffer and
+ * spills it to a run file. When the ranking is closed, the runs (and the sorted buffers
+ * left in memory) are merged, and the percentiles are read off the merged order - so they
+ * are exact whatever the size of the corpus, and only the buffers are held in memory. The
+ * parts added (e.g. restored from a checkpoint) only bring the number of tweets per score:
+ * their counts are summed, and read alongside the merged runs, a whole count at a time.
+ */
+public final class TweetRanking implements TweetScoreOutput {
+    /**
+     * The most runs merged at once; with more, they are merged into fewer, longer runs first.
+     */
+    private static final int MAX_MERGE_WIDTH = 64;
+
+    /**
+     * The initial number of scores buffered by each section.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    /**
+     * A ranked tweet.
+     *
+     * @param tweetId the id of the tweet (its line number).
+     * @param offset  the byte offset of the line of the tweet.
+     * @param score   the score of the tweet.
+     * @param matches the number of matched words of the tweet.
+     */
+    public record RankedTweet(long tweetId, long offset, int score, int matches) {
+        /**
+         * Reads the text of the tweet from the file it was scored from.
+         *
+         * @param channel the channel of the file.
+         * @return the text of the tweet.
+         * @throws IOException if the file couldn't be read.
+         */
+        public String text(FileChannel channel) throws IOException {
+            return MemoryMappedFileParser.readLine(channel, offset);
+        }
+    }
+
+    /**
+     * An exact percentile of the scores.
+     *
+     * @param percentile the percentile, from 0 (exclusive) to 100 (inclusive).
+     * @param score      the lowest score that at least that percentage of the tweets is at or below.
+     */
+    public record Percentile(double percentile, int score) {
+    }
+
+    private final int top;
+    private final double[] percentiles;
+    private final Path spillDirectory;
+    private final long maxBufferedScores;
+
+    private final AtomicLong bufferedScores = new AtomicLong();
+    private final AtomicLong tweets = new AtomicLong();
+    private final AtomicInteger spilledRuns = new AtomicInteger();
+    private final Queue<Heap> heaps = new ConcurrentLinkedQueue<>();
+    private final Queue<Run> runs = new ConcurrentLinkedQueue<>();
+    private final TreeMap<Integer, Long> partScoreCounts = new TreeMap<>();
+
+    private List<RankedTweet> mostPositive = List.of();
+    private List<RankedTweet> mostNegative = List.of();
+    private List<Percentile> scorePercentiles = List.of();
+
+    /**
+     * Constructs a ranking of the most positive and most negative tweets, without percentiles.
+     *
+     * @param top the number of tweets kept at each end.
+     */
+    public TweetRanking(int top) {
+        this(top, new double[0], null, 0);
+    }
+
+    /**
+     * Constructs a ranking of the most positive and most negative tweets, with the exact
+     * percentiles of the scores.
+     *
+     * @param top               the number of tweets kept at each end (0 for none).
+     * @param percentiles       the percentiles wanted, each from 0 (exclusive) to 100 (inclusive).
+     * @param spillDirectory    the directory of the run files, or null for the default temporary directory.
+     * @param maxBufferedScores the number of scores held in memory before sorted runs are spilled to disk.
+     * @throws IllegalArgumentException if top is negative, or a percentile is out of range.
+     */
+    public TweetRanking(int top, double[] percentiles, Path spillDirectory, long maxBufferedScores) {
+        if (top < 0) {
+            throw new IllegalArgumentException("The number of tweets must not be negative: " + top);
+        }
+        for (double percentile : percentiles) {
+            if (!(percentile > 0 && percentile <= 100)) {
+                throw new IllegalArgumentException("A percentile must be above 0 and at most 100: " + percentile);
+            }
+        }
+
+        this.top = top;
+        this.percentiles = percentiles.clone();
+        this.spillDirectory = spillDirectory;
+        this.maxBufferedScores = Math.max(INITIAL_BUFFER_SIZE, maxBufferedScores);
+    }
+
+    @Override
+    public Section section(int index, long firstTweet, long tweets) {
+        Heap positive = new Heap(top, true);
+        Heap negative = new Heap(top, false);
+        ScoreBuffer buffer = percentiles.length == 0 ? null : new ScoreBuffer();
+
+        return new Section() {
+            private long count;
+
+            @Override
+            public void write(long tweetId, long offset, int score, int matches) throws IOException {
+                count++;
+                positive.offer(tweetId, offset, score, matches);
+                negative.offer(tweetId, offset, score, matches);
+
+                if (buffer != null) {
+                    buffer.add(score);
+                }
+            }
+
+            @Override
+            public void close() {
+                heaps.add(positive);
+                heaps.add(negative);
+                TweetRanking.this.tweets.addAndGet(count);
+
+                if (buffer != null) {
+                    buffer.keep();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the number of tweets kept at each end.
+     *
+     * @return the number of tweets.
+     */
+    public int getTop() {
+        return top;
+    }
+
+    /**
+     * Returns whether the scores of all the tweets are kept, for the percentiles.
+     *
+     * @return true, if percentiles were asked for.
+     */
+    public boolean keepsScores() {
+        return percentiles.length > 0;
+    }
+
+    /**
+     * Creates an empty part of the ranking.
+     *
+     * @return the part.
+     */
+    public Part part() {
+        return new Part();
+    }
+
+    /**
+     * Adds a part to the ranking, as if its tweets were written to a section. It must be
+     * added before the ranking is closed.
+     *
+     * @param part the part.
+     */
+    public void add(Part part) {
+        Heap positive = new Heap(top, true);
+        Heap negative = new Heap(top, false);
+        positive.offerAll(part.positive);
+        negative.offerAll(part.negative);
+        heaps.add(positive);
+        heaps.add(negative);
+        tweets.addAndGet(part.tweets);
+
+        synchronized (partScoreCounts) {
+            part.scoreCounts.forEach((score, count) -> partScoreCounts.merge(score, count, Long::sum));
+        }
+    }
+
+    /**
+     * The ranking of a part of the tweets - its most positive and most negative tweets,
+     * and the number of tweets per score - that can be saved and restored, e.g. by a
+     * checkpoint. The counts take the place of the scores, so a part stays small whatever
+     * the number of its tweets. It's not thread-safe.
+     */
+    public final class Part {
+        private final Heap positive = new Heap(top, true);
+        private final Heap negative = new Heap(top, false);
+        private final Map<Integer, Long> scoreCounts = new HashMap<>();
+        private long tweets;
+
+        private Part() {
+        }
+
+        /**
+         * Adds a scored tweet.
+         *
+         * @param tweetId the id of the tweet.
+         * @param offset  the byte offset of the line of the tweet.
+         * @param score   the score of the tweet.
+         * @param matches the number of matched words of the tweet.
+         */
+        public void add(long tweetId, long offset, int score, int matches) {
+            positive.offer(tweetId, offset, score, matches);
+            negative.offer(tweetId, offset, score, matches);
+            add(score, 1);
+        }
+
+        /**
+         * Adds a ranked tweet, without counting it - e.g. a tweet saved to a checkpoint,
+         * whose score is restored with the counts.
+         *
+         * @param tweet the tweet.
+         */
+        public void add(RankedTweet tweet) {
+            positive.offer(tweet.tweetId(), tweet.offset(), tweet.score(), tweet.matches());
+            negative.offer(tweet.tweetId(), tweet.offset(), tweet.score(), tweet.matches());
+        }
+
+        /**
+         * Counts tweets of the given score; the score itself is only kept for the percentiles.
+         *
+         * @param score the score.
+         * @param count the number of tweets.
+         */
+        public void add(int score, long count) {
+            tweets += count;
+            if (percentiles.length > 0) {
+                scoreCounts.merge(score, count, Long::sum);
+            }
+        }
+
+        /**
+         * Adds all the tweets of another part to this one.
+         *
+         * @param other the other part.
+         */
+        public void addAll(Part other) {
+            positive.offerAll(other.positive);
+            negative.offerAll(other.negative);
+            tweets += other.tweets;
+            other.scoreCounts.forEach((score, count) -> scoreCounts.merge(score, count, Long::sum));
+        }
+
+        /**
+         * Removes every tweet.
+         */
+        public void clear() {
+            positive.size = 0;
+            negative.size = 0;
+            scoreCounts.clear();
+            tweets = 0;
+        }
+
+        /**
+         * Returns the most positive tweets of the part, the most positive first.
+         *
+         * @return the tweets.
+         */
+        public List<RankedTweet> getMostPositive() {
+            return positive.sorted();
+        }
+
+        /**
+         * Returns the most negative tweets of the part, the most negative first.
+         *
+         * @return the tweets.
+         */
+        public List<RankedTweet> getMostNegative() {
+            return negative.sorted();
+        }
+
+        /**
+         * Returns the number of tweets per score, if the scores are kept.
+         *
+         * @return the counts, in no particular order (empty if the scores aren't kept).
+         */
+        public Map<Integer, Long> getScoreCounts() {
+            return Collections.unmodifiableMap(scoreCounts);
+        }
+
+        /**
+         * Returns the number of tweets of the part.
+         *
+         * @return the number of tweets.
+         */
+        public long getTweets() {
+            return tweets;
+        }
+    }
+
+    /**
+     * Merges the heaps of the sections, and the runs of the scores into the percentiles,
+     * once every section is closed. The run files are deleted.
+     *
+     * @throws IOException if the runs couldn't be merged.
+     */
+    @Override
+    public void close() throws IOException {
+        Heap positive = new Heap(top, true);
+        Heap negative = new Heap(top, false);
+
+        for (Heap heap : heaps) {
+            (heap.positive ? positive : negative).offerAll(heap);
+        }
+
+        mostPositive = positive.sorted();
+        mostNegative = negative.sorted();
+
+        try {
+            if (percentiles.length > 0) {
+                scorePercentiles = mergeRuns();
+            }
+        } finally {
+            for (Run run : runs) {
+                run.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the most positive tweets, the most positive first. Tweets with the same score
+     * are in the order of the file.
+     *
+     * @return the tweets, once the ranking is closed.
+     */
+    public List<RankedTweet> getMostPositive() {
+        return mostPositive;
+    }
+
+    /**
+     * Returns the most negative tweets, the most negative first. Tweets with the same score
+     * are in the order of the file.
+     *
+     * @return the tweets, once the ranking is closed.
+     */
+    public List<RankedTweet> getMostNegative() {
+        return mostNegative;
+    }
+
+    /**
+     * Returns the exact percentiles of the scores, in the order they were asked for.
+     *
+     * @return the percentiles, once the ranking is closed (none if no tweets were scored).
+     */
+    public List<Percentile> getPercentiles() {
+        return scorePercentiles;
+    }
+
+    /**
+     * Returns the number of tweets ranked.
+     *
+     * @return the number of tweets, once the ranking is closed.
+     */
+    public long getTweets() {
+        return tweets.get();
+    }
+
+    /**
+     * Returns the number of sorted runs spilled to disk.
+     *
+     * @return the number of runs.
+     */
+    public int getSpilledRuns() {
+        return spilledRuns.get();
+    }
+
+    /**
+     * Merges all the runs of the scores, and reads the percentiles off the merged order
+     * together with the counts of the parts.
+     *
+     * @return the percentiles.
+     * @throws IOException if a run couldn't be read or written.
+     */
+    private List<Percentile> mergeRuns() throws IOException {
+        List<Run> all = new ArrayList<>(runs);
+        long total = sum(all);
+        synchronized (partScoreCounts) {
+            for (long count : partScoreCounts.values()) {
+                total += count;
+            }
+        }
+        if (total == 0) {
+            return List.of();
+        }
+
+        // too many runs to read at once: merge them into longer ones first
+        while (all.size() > MAX_MERGE_WIDTH) {
+            List<Run> merged = new ArrayList<>();
+            for (int i = 0; i < all.size(); i += MAX_MERGE_WIDTH) {
+                List<Run> group = all.subList(i, Math.min(all.size(), i + MAX_MERGE_WIDTH));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                } else {
+                    Run run = spill(merge(group), sum(group));
+                    runs.add(run);
+                    merged.add(run);
+                }
+            }
+            all = merged;
+        }
+
+        // the nearest rank of each percentile, in increasing order
+        long[] ranks = new long[percentiles.length];
+        Integer[] order = new Integer[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            ranks[i] = rank(percentiles[i], total);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> ranks[i]));
+
+        // the runs are read a score at a time, the counts of the parts as many ranks at a time as needed
+        int[] scores = new int[percentiles.length];
+        PrimitiveIterator.OfInt merged = merge(all);
+        boolean hasRunScore = merged.hasNext();
+        int runScore = hasRunScore ? merged.nextInt() : 0;
+        Iterator<Map.Entry<Integer, Long>> counts = partScoreCounts.entrySet().iterator();
+        Map.Entry<Integer, Long> count = counts.hasNext() ? counts.next() : null;
+        long countLeft = count == null ? 0 : count.getValue();
+        long rank = 0;
+        int score = 0;
+
+        for (Integer i : order) {
+            while (rank < ranks[i]) {
+                if (count != null && (!hasRunScore || count.getKey() <= runScore)) {
+                    long taken = Math.min(countLeft, ranks[i] - rank);
+                    score = count.getKey();
+                    rank += taken;
+                    countLeft -= taken;
+                    if (countLeft == 0) {
+                        count = counts.hasNext() ? counts.next() : null;
+                        countLeft = count == null ? 0 : count.getValue();
+                    }
+                } else {
+                    score = runScore;
+                    rank++;
+                    hasRunScore = merged.hasNext();
+                    runScore = hasRunScore ? merged.nextInt() : 0;
+                }
+            }
+            scores[i] = score;
+        }
+
+        List<Percentile> result = new ArrayList<>(percentiles.length);
+        for (int i = 0; i < percentiles.length; i++) {
+            result.add(new Percentile(percentiles[i], scores[i]));
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the nearest rank of a percentile: the smallest rank at or below which at least
+     * that percentage of the scores is. It's worked out in decimal, as the percentile was
+     * given, so e.g. the 7th percentile of 100 scores is the 7th score, not the 8th.
+     *
+     * @param percentile the percentile, from 0 (exclusive) to 100 (inclusive).
+     * @param total      the number of scores.
+     * @return the rank, from 1 to total.
+     */
+    static long rank(double percentile, long total) {
+        long rank = BigDecimal.valueOf(percentile).multiply(BigDecimal.valueOf(total))
+                .divide(BigDecimal.valueOf(100), 0, RoundingMode.CEILING).longValueExact();
+        return Math.max(1, rank);
+    }
+
+    /**
+     * Returns the total number of scores of some runs.
+     *
+     * @param group the runs.
+     * @return the number of scores.
+     */
+    private static long sum(List<Run> group) {
+        long count = 0;
+        for (Run run : group) {
+            count += run.count;
+        }
+        return count;
+    }
+
+    /**
+     * Merges sorted runs into a single sorted sequence, read lazily.
+     *
+     * @param group the runs.
+     * @return the merged scores.
+     * @throws IOException if a run couldn't be opened.
+     */
+    private static PrimitiveIterator.OfInt merge(List<Run> group) throws IOException {
+        // each cursor is the next score of a run, followed by the rest of the run
+        record Cursor(int score, PrimitiveIterator.OfInt rest) {
+        }
+
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(Math.max(1, group.size()),
+                Comparator.comparingInt(Cursor::score));
+        for (Run run : group) {
+            PrimitiveIterator.OfInt scores = run.open();
+            if (scores.hasNext()) {
+                queue.add(new Cursor(scores.nextInt(), scores));
+            }
+        }
+
+        return new PrimitiveIterator.OfInt() {
+            @Override
+            public boolean hasNext() {
+                return !queue.isEmpty();
+            }
+
+            @Override
+            public int nextInt() {
+                Cursor cursor = queue.poll();
+                if (cursor == null) {
+                    throw new NoSuchElementException();
+                }
+                if (cursor.rest().hasNext()) {
+                    queue.add(new Cursor(cursor.rest().nextInt(), cursor.rest()));
+                }
+                return cursor.score();
+            }
+        };
+    }
+
+    /**
+     * Writes sorted scores to a new run file.
+     *
+     * @param scores the scores, in increasing order.
+     * @param count  the number of scores.
+     * @return the run.
+     * @throws IOException if the run file couldn't be written.
+     */
+    private Run spill(PrimitiveIterator.OfInt scores, long count) throws IOException {
+        Path file = spillDirectory == null ? Files.createTempFile("scores", ".run")
+                : Files.createTempFile(spillDirectory, "scores", ".run");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            for (long i = 0; i < count; i++) {
+                out.writeInt(scores.nextInt());
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        spilledRuns.incrementAndGet();
+        return new Run(file, null, count);
+    }
+
+    /**
+     * A sorted run of scores, either in a file or still in memory.
+     */
+    private static final class Run {
+        private final Path file;
+        private final int[] scores;
+        private final long count;
+        private DataInputStream in;
+
+        private Run(Path file, int[] scores, long count) {
+            this.file = file;
+            this.scores = scores;
+            this.count = count;
+        }
+
+        /**
+         * Opens the run, to read its scores in order.
+         *
+         * @return the scores.
+         * @throws IOException if the run file couldn't be opened.
+         */
+        private PrimitiveIterator.OfInt open() throws IOException {
+            if (file == null) {
+                return Arrays.stream(scores, 0, (int) count).iterator();
+            }
+
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            return new PrimitiveIterator.OfInt() {
+                private long read;
+
+                @Override
+                public boolean hasNext() {
+                    return read < count;
+                }
+
+                @Override
+                public int nextInt() {
+                    if (read == count) {
+                        throw new NoSuchElementException();
+                    }
+
+                    try {
+                        int score = in.readInt();
+                        if (++read == count) {
+                            in.close();
+                        }
+                        return score;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Closes the run file, if it's still being read, and deletes it.
+         */
+        private void delete() {
+            if (file == null) {
+                return;
+            }
+
+            try {
+                if (in != null) {
+                    in.close();
+                }
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * The scores of a section not spilled yet. Buffers grow while all the buffers together
+     * stay within maxBufferedScores; past that, a full buffer is sorted and spilled instead.
+     */
+    private final class ScoreBuffer {
+        private int[] scores = new int[INITIAL_BUFFER_SIZE];
+        private int count;
+
+        private ScoreBuffer() {
+            bufferedScores.addAndGet(scores.length);
+        }
+
+        private void add(int score) throws IOException {
+            if (count == scores.length) {
+                if (bufferedScores.addAndGet(scores.length) <= maxBufferedScores) {
+                    scores = Arrays.copyOf(scores, scores.length * 2);
+                } else {
+                    bufferedScores.addAndGet(-scores.length);
+                    Arrays.sort(scores);
+                    runs.add(spill(Arrays.stream(scores).iterator(), count));
+                    count = 0;
+                }
+            }
+
+            scores[count++] = score;
+        }
+
+        /**
+         * Sorts what's left in the buffer, and keeps it as an in-memory run.
+         */
+        private void keep() {
+            Arrays.sort(scores, 0, count);
+            runs.add(new Run(null, scores, count));
+        }
+    }
+
+    /**
+     * A bounded heap of the most positive (or most negative) tweets, with the tweet that
+     * would be dropped first at the root. The tweets are kept in parallel arrays.
+     */
+    private static final class Heap {
+        private final boolean positive;
+        private final long[] tweetIds;
+        private final long[] offsets;
+        private final int[] scores;
+        private final int[] matches;
+        private int size;
+
+        private Heap(int capacity, boolean positive) {
+            this.positive = positive;
+            this.tweetIds = new long[capacity];
+            this.offsets = new long[capacity];
+            this.scores = new int[capacity];
+            this.matches = new int[capacity];
+        }
+
+        /**
+         * Keeps the tweet if the heap isn't full, or if it ranks above the lowest tweet kept.
+         *
+         * @param tweetId the id of the tweet.
+         * @param offset  the byte offset of the line of the tweet.
+         * @param score   the score of the tweet.
+         * @param matched the number of matched words of the tweet.
+         */
+        private void offer(long tweetId, long offset, int score, int matched) {
+            if (size < tweetIds.length) {
+                set(size, tweetId, offset, score, matched);
+                siftUp(size++);
+            } else if (size > 0 && ranksAbove(score, tweetId, scores[0], tweetIds[0])) {
+                set(0, tweetId, offset, score, matched);
+                siftDown(0);
+            }
+        }
+
+        private void offerAll(Heap other) {
+            for (int i = 0; i < other.size; i++) {
+                offer(other.tweetIds[i], other.offsets[i], other.scores[i], other.matches[i]);
+            }
+        }
+
+        /**
+         * Returns the tweets of the heap, the highest ranked first.
+         *
+         * @return the tweets.
+         */
+        private List<RankedTweet> sorted() {
+            List<RankedTweet> sorted = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                sorted.add(new RankedTweet(tweetIds[i], offsets[i], scores[i], matches[i]));
+            }
+
+            sorted.sort((a, b) -> ranksAbove(a.score(), a.tweetId(), b.score(), b.tweetId()) ? -1
+                    : ranksAbove(b.score(), b.tweetId(), a.score(), a.tweetId()) ? 1 : 0);
+            return sorted;
+        }
+
+        /**
+         * Returns whether a tweet ranks above another: it has a higher (or lower) score,
+         * or the same score and comes first in the file.
+         */
+        private boolean ranksAbove(int score, long tweetId, int otherScore, long otherTweetId) {
+            if (score != otherScore) {
+                return positive ? score > otherScore : score < otherScore;
+            }
+            return tweetId < otherTweetId;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!ranksAbove(scores[parent], tweetIds[parent], scores[i], tweetIds[i])) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int lowest = i;
+                for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                    if (ranksAbove(scores[lowest], tweetIds[lowest], scores[child], tweetIds[child])) {
+                        lowest = child;
+                    }
+                }
+                if (lowest == i) {
+                    return;
+                }
+                swap(i, lowest);
+                i = lowest;
+            }
+        }
+
+        private void set(int i, long tweetId, long offset, int score, int matched) {
+            tweetIds[i] = tweetId;
+            offsets[i] = offset;
+            scores[i] = score;
+            matches[i] = matched;
+        }
+
+        private void swap(int i, int j) {
+            long tweetId = tweetIds[i];
+            long offset = offsets[i];
+            int score = scores[i];
+            int matched = matches[i];
+            set(i, tweetIds[j], offsets[j], scores[j], matches[j]);
+            set(j, tweetId, offset, score, matched);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package ie.atu.sw;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of tweet scores, so that retweets and other duplicate tweets
+ * are scored (and looked up in the scoring service) only once.
+ *
+ * Tweets are keyed by a 64-bit hash of their normalized text: the text is lower-cased
+ * the same way the lexicon lower-cases words, and runs of whitespace count as a single
+ * separator, so two tweets with the same key always get the same score. The text itself
+ * isn't kept - with a 64-bit hash, a collision between two different tweets is so unlikely
+ * that it's ignored.
+ *
+ * The cache is split into shards by the hash, each an LRU map guarded by its own
+ * ReentrantLock (rather than synchronized, which pins a virtual thread to its carrier
+ * while it waits), so many virtual threads can use it at once.
+ *
+ * The scores depend on the lexicon and the scoring service, so a cache must only be
+ * shared by analyzers over the same lexicon.
+ */
+public final class TweetScoreCache {
+    /**
+     * Returned by get when the tweet isn't in the cache. A cached result never has
+     * all its bits set, as its number of matches is never negative.
+     */
+    public static final long ABSENT = -1L;
+
+    /**
+     * The largest number of shards.
+     */
+    private static final int MAX_SHARDS = 64;
+
+    /**
+     * The seed and the prime of the 64-bit FNV-1a hash.
+     */
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Shard[] shards;
+    private final int shardShift;
+    private final long maxEntries;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * A single LRU shard of the cache.
+     */
+    private final class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LinkedHashMap<Long, Long> entries;
+
+        private Shard(int capacity) {
+            // access-ordered, so the eldest entry is the least recently used one
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    /**
+     * Constructs a cache that holds at most the given number of tweets, rounded up
+     * to a multiple of the number of shards.
+     *
+     * @param maxEntries the largest number of cached tweets.
+     */
+    public TweetScoreCache(long maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("The size of the cache must be positive");
+        }
+
+        // small caches have fewer shards, so every shard holds a few entries
+        int count = (int) Math.min(MAX_SHARDS, Long.highestOneBit(Math.max(1, maxEntries / 16)));
+        int capacity = (int) Math.min(Integer.MAX_VALUE, (maxEntries + count - 1) / count);
+
+        this.shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(capacity);
+        }
+        this.shardShift = Long.SIZE - Integer.numberOfTrailingZeros(count);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Calculates the key of a tweet - a 64-bit hash of its normalized text. The text
+     * is lower-cased code point by code point, as the lexicon does, and is split into
+     * words the way the analyzer splits it, so that only the words and their order count.
+     *
+     * @param tweet the text of the tweet.
+     * @return the key.
+     */
+    public static long hash(CharSequence tweet) {
+        long h = FNV_OFFSET;
+        boolean separator = false;
+        boolean started = false;
+        int length = tweet.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = tweet.charAt(i);
+
+            if (TweetSentimentAnalyzer.isWhitespace(c)) {
+                separator = started;
+                continue;
+            }
+            if (separator) {
+                h = (h ^ ' ') * FNV_PRIME;
+                separator = false;
+            }
+            started = true;
+
+            int folded;
+            if (c < 0x80) {
+                folded = (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+            } else if (c == 'İ' || c == 'Σ') {
+                // the lexicon lower-cases these depending on the whole word, so they're kept as they are
+                folded = c;
+            } else {
+                int cp = Character.codePointAt(tweet, i);
+                folded = Character.toLowerCase(cp);
+                i += Character.charCount(cp) - 1;
+            }
+
+            h = (h ^ folded) * FNV_PRIME;
+        }
+
+        // mix the bits, so the top bits (which select the shard) depend on every character
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    /**
+     * Returns the cached result of the tweet with the given key, and counts a hit or a miss.
+     *
+     * @param key the key of the tweet.
+     * @return the score and the number of matches of the tweet, packed into a long
+     *         as the analyzer packs them, or ABSENT if the tweet isn't cached.
+     */
+    public long get(long key) {
+        Shard shard = shard(key);
+        Long value;
+
+        shard.lock.lock();
+        try {
+            value = shard.entries.get(key);
+        } finally {
+            shard.lock.unlock();
+        }
+
+        if (value == null) {
+            misses.increment();
+            return ABSENT;
+        }
+
+        hits.increment();
+        return value;
+    }
+
+    /**
+     * Caches the result of the tweet with the given key, evicting the least recently
+     * used tweet of its shard if the shard is full.
+     *
+     * @param key    the key of the tweet.
+     * @param result the score and the number of matches of the tweet, packed into a long.
+     */
+    public void put(long key, long result) {
+        Shard shard = shard(key);
+
+        shard.lock.lock();
+        try {
+            shard.entries.put(key, result);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the shard of the given key.
+     *
+     * @param key the key of the tweet.
+     * @return the shard.
+     */
+    private Shard shard(long key) {
+        return shards.length == 1 ? shards[0] : shards[(int) (key >>> shardShift)];
+    }
+
+    /**
+     * Returns the number of lookups that found the tweet.
+     *
+     * @return the number of hits.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that didn't find the tweet.
+     *
+     * @return the number of misses.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of tweets evicted to make room for others.
+     *
+     * @return the number of evictions.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the fraction of the lookups that found the tweet.
+     *
+     * @return the hit rate, between 0 and 1, or 0 if there were no lookups.
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Returns the number of cached tweets.
+     *
+     * @return the number of tweets.
+     */
+    public long size() {
+        long size = 0;
+
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                size += shard.entries.size();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns the largest number of cached tweets.
+     *
+     * @return the number of tweets.
+     */
+    public long getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,d hits, %,d misses (%.1f%% hit rate), %,d of %,d entries, %,d evictions",
+                getHits(), getMisses(), getHitRate() * 100, size(), maxEntries, getEvictions());
+    }
+}
@@ -0,0 +1,127 @@
+package ie.atu.sw;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * An output file of per-tweet scores: for each tweet, its id (its line number,
+ * starting at 1), the byte offset of its line, its score and its number of matched words.
+ *
+ * The tweets are written in sections - one contiguous run of tweets per section - so
+ * that several threads can write their own sections at the same time. Whatever order
+ * the sections are written in, the tweets end up in the file in the order of their ids.
+ */
+public interface TweetScoreOutput extends AutoCloseable {
+    /**
+     * The formats of the output file.
+     */
+    enum Format {
+        /**
+         * A fixed-width, little-endian, columnar binary file that can be memory-mapped.
+         */
+        BINARY,
+        /**
+         * A CSV text file with a header line.
+         */
+        CSV
+    }
+
+    /**
+     * Is used to write the tweets of a single section, in order.
+     */
+    interface Section extends AutoCloseable {
+        /**
+         * Writes the score of the next tweet of the section.
+         *
+         * @param tweetId the id of the tweet.
+         * @param offset  the byte offset of the line of the tweet.
+         * @param score   the score of the tweet.
+         * @param matches the number of matched words of the tweet.
+         * @throws IOException if the score couldn't be written.
+         */
+        void write(long tweetId, long offset, int score, int matches) throws IOException;
+
+        /**
+         * Writes the remaining buffered scores of the section.
+         *
+         * @throws IOException if the scores couldn't be written.
+         */
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Opens a section for a contiguous run of tweets.
+     *
+     * @param index      the index of the section - sections are stored in the order of their indexes.
+     * @param firstTweet the id of the first tweet of the section.
+     * @param tweets     the number of tweets of the section.
+     * @return the section.
+     * @throws IOException if the section couldn't be opened.
+     */
+    Section section(int index, long firstTweet, long tweets) throws IOException;
+
+    /**
+     * Finishes the output file, once every section is closed.
+     *
+     * @throws IOException if the file couldn't be finished.
+     */
+    @Override
+    void close() throws IOException;
+
+    /**
+     * Creates an output file in the given format.
+     *
+     * @param path     the output file.
+     * @param format   the format of the file.
+     * @param tweets   the total number of tweets.
+     * @param sections the number of sections.
+     * @return the output.
+     * @throws IOException if the file couldn't be created.
+     */
+    static TweetScoreOutput open(Path path, Format format, long tweets, int sections) throws IOException {
+        return switch (format) {
+            case BINARY -> new ColumnarTweetScoreOutput(path, tweets);
+            case CSV -> new CsvTweetScoreOutput(path, sections);
+        };
+    }
+
+    /**
+     * Returns an output that writes every tweet to two outputs, e.g. a file and a ranking.
+     *
+     * @param first  the first output.
+     * @param second the second output.
+     * @return the output.
+     */
+    static TweetScoreOutput both(TweetScoreOutput first, TweetScoreOutput second) {
+        return new TweetScoreOutput() {
+            @Override
+            public Section section(int index, long firstTweet, long tweets) throws IOException {
+                Section a = first.section(index, firstTweet, tweets);
+                Section b = second.section(index, firstTweet, tweets);
+
+                return new Section() {
+                    @Override
+                    public void write(long tweetId, long offset, int score, int matches) throws IOException {
+                        a.write(tweetId, offset, score, matches);
+                        b.write(tweetId, offset, score, matches);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        try (b) {
+                            a.close();
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public void close() throws IOException {
+                try (second) {
+                    first.close();
+                }
+            }
+        };
+    }
+}
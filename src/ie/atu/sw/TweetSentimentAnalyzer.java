@@ -1,51 +1,155 @@
 package ie.atu.sw;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashSet;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 /**
  * This class is responsible for analyzing the sentiment of tweets.
  * It uses a sentiment map and a set of stopwords to compute sentiment scores.
+ *
+ * Multi-word entries of the lexicon (phrases) are matched too, and take the place of
+ * the words they cover, and negators and intensifiers change the scores of the words
+ * after them - see PhraseMatcher.
+ *
+ * With a TweetScoreCache, duplicate tweets (e.g. retweets) are scored only once.
+ * With TweetGroups, every scored batch is also grouped by hashtag, mention and time bucket.
  */
 public class TweetSentimentAnalyzer {
 
-    private final Map<String, Integer> sentimentMap;
-    private final Set<String> stopwords;
+    /**
+     * The latency of the simulated scoring service used by default.
+     */
+    public static final Duration SIMULATED_LATENCY = Duration.ofMillis(200);
+
+    /**
+     * The number of tweets scored together when writing per-tweet scores.
+     */
+    private static final int TWEET_BATCH_SIZE = 1024;
+
+    private final Lexicon lexicon;
+    private final PhraseMatcher phraseMatcher;
+    private final ScoringClient scoringClient;
+    private final TweetScoreCache cache;
+    private final TweetGroups groups;
 
     /**
      * Constructs a TweetSentimentAnalyzer with specified files for sentiment map and stopwords.
-     * Each instance of TweetSentimentAnalyzer is intended to be used within a single thread.
+     * The lexicon is immutable, so an instance can be shared by the threads of a streaming analysis.
      *
-     * @param sentimentMapFile The file path for the sentiment map.
+     * The sentiment map file may also be a compiled lexicon, which already holds the stopwords.
+     *
+     * @param sentimentMapFile The file path for the sentiment map, or for the compiled lexicon.
      * @param stopwordsFile The file path for the stopwords.
      * @throws IOException If there is an error reading the files.
      */
     public TweetSentimentAnalyzer(String sentimentMapFile, String stopwordsFile) throws IOException {
-        this.sentimentMap = SentimentScoreMapLoader.loadSentimentScoreMap(sentimentMapFile);
-        this.stopwords = loadStopwords(stopwordsFile);
+        this(SentimentScoreMapLoader.loadLexicon(sentimentMapFile, stopwordsFile));
     }
 
     /**
-     * Loads stopwords from a given file.
+     * Constructs a TweetSentimentAnalyzer over an already loaded lexicon,
+     * for example one shared through the LexiconCache. The scores of the matched
+     * words are looked up in a simulated scoring service.
      *
-     * @param fileName The name of the file containing stopwords.
-     * @return A set of stopwords.
-     * @throws IOException If there is an error reading the file.
+     * @param lexicon The lexicon holding the sentiment scores and the stopwords.
      */
-    private Set<String> loadStopwords(String fileName) throws IOException {
-        Set<String> stopwords = new HashSet<>();
-        try (BufferedReader stop = new BufferedReader(new FileReader(fileName))) {
-            String line;
-            while ((line = stop.readLine()) != null) {
-                stopwords.add(line.toLowerCase());
-            }
-        }
-        return stopwords;
+    public TweetSentimentAnalyzer(Lexicon lexicon) {
+        this(lexicon, simulatedScoringClient(lexicon));
+    }
+
+    /**
+     * Constructs a TweetSentimentAnalyzer over an already loaded lexicon, which looks up
+     * the scores of the matched words through the given scoring client.
+     *
+     * @param lexicon The lexicon holding the sentiment scores and the stopwords.
+     * @param scoringClient The client of the scoring service, or null to take the scores
+     *                      straight from the lexicon, without any latency.
+     */
+    public TweetSentimentAnalyzer(Lexicon lexicon, ScoringClient scoringClient) {
+        this(lexicon, scoringClient, null);
+    }
+
+    /**
+     * Constructs a TweetSentimentAnalyzer over an already loaded lexicon, which looks up
+     * the scores of the matched words through the given scoring client, and caches the
+     * scores of the tweets, so duplicate tweets are scored only once.
+     *
+     * @param lexicon The lexicon holding the sentiment scores and the stopwords.
+     * @param scoringClient The client of the scoring service, or null to take the scores
+     *                      straight from the lexicon, without any latency.
+     * @param cache The cache of the tweet scores, or null for none. It must only be shared
+     *              with analyzers over the same lexicon.
+     */
+    public TweetSentimentAnalyzer(Lexicon lexicon, ScoringClient scoringClient, TweetScoreCache cache) {
+        this(lexicon, scoringClient, cache, null);
+    }
+
+    /**
+     * Constructs a TweetSentimentAnalyzer over an already loaded lexicon, which also
+     * groups every tweet it scores by hashtag, mention and time bucket.
+     *
+     * @param lexicon The lexicon holding the sentiment scores and the stopwords.
+     * @param scoringClient The client of the scoring service, or null to take the scores
+     *                      straight from the lexicon, without any latency.
+     * @param cache The cache of the tweet scores, or null for none. It must only be shared
+     *              with analyzers over the same lexicon.
+     * @param groups Receives every scored tweet, or null to keep only the totals.
+     */
+    public TweetSentimentAnalyzer(Lexicon lexicon, ScoringClient scoringClient, TweetScoreCache cache,
+                                  TweetGroups groups) {
+        this.lexicon = lexicon;
+        this.phraseMatcher = lexicon.phraseMatcher();
+        this.scoringClient = scoringClient;
+        this.cache = cache;
+        this.groups = groups;
+    }
+
+    /**
+     * Creates a client of the simulated scoring service over the given lexicon,
+     * the one the analyzer uses by default.
+     *
+     * @param lexicon The lexicon holding the sentiment scores.
+     * @return The client.
+     */
+    public static ScoringClient simulatedScoringClient(Lexicon lexicon) {
+        return new ScoringClient(new SimulatedScoringBackend(lexicon, SIMULATED_LATENCY), SIMULATED_LATENCY);
+    }
+
+    /**
+     * Returns the cache of the tweet scores.
+     *
+     * @return The cache, or null if the scores aren't cached.
+     */
+    public TweetScoreCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the groups the scored tweets are added to.
+     *
+     * @return The groups, or null if the tweets aren't grouped.
+     */
+    public TweetGroups getGroups() {
+        return groups;
     }
 
     /**
@@ -55,40 +159,987 @@ public class TweetSentimentAnalyzer {
      * @return The total sentiment score of the list of tweets.
      */
     public float analyzeTweets(List<String> tweets) {
-        float total = 0;
-        for (String tweet : tweets) {
-            total += processTweet(tweet);
+        return scoreTweets(tweets);
+    }
+
+    /**
+     * Analyzes a list of tweets in parallel and calculates their total sentiment score.
+     *
+     * The tweets are split into contiguous chunks, and each chunk is scored on its own
+     * virtual thread. The partial sums are whole numbers, so adding them up at the end
+     * gives the same total whatever the order the chunks finish in.
+     *
+     * If the deadline passes, or the calling thread is interrupted, the chunks
+     * that are still running are cancelled.
+     *
+     * @param tweets The list of tweets to analyze.
+     * @param parallelism The maximum number of chunks scored at the same time.
+     * @param deadline The time the analysis may take, or null for no limit.
+     * @return The total sentiment score of the list of tweets.
+     * @throws InterruptedException If the calling thread is interrupted.
+     * @throws TimeoutException If the deadline passes before all the tweets are scored.
+     */
+    public float analyzeTweets(List<String> tweets, int parallelism, Duration deadline)
+            throws InterruptedException, TimeoutException {
+        return scoreTweets(tweets, parallelism, deadlineNanos(deadline));
+    }
+
+    /**
+     * Scores each of the tweets in parallel, through the scoring client if there is one.
+     *
+     * @param tweets The list of tweets to score.
+     * @param parallelism The maximum number of chunks scored at the same time.
+     * @param deadline The time the scoring may take, or null for no limit.
+     * @return The score of each tweet, in the order of the list.
+     * @throws InterruptedException If the calling thread is interrupted.
+     * @throws TimeoutException If the deadline passes before all the tweets are scored.
+     */
+    public int[] analyzeEach(List<String> tweets, int parallelism, Duration deadline)
+            throws InterruptedException, TimeoutException {
+        int[] scores = new int[tweets.size()];
+        scoreEach(tweets, scores, new int[tweets.size()], parallelism, deadlineNanos(deadline));
+
+        return scores;
+    }
+
+    /**
+     * Analyzes a range of lines of a file, and writes the score of every tweet (line)
+     * of the range to the section. Each batch of tweets is scored in parallel.
+     *
+     * @param channel The channel of the file.
+     * @param start The start of the range (inclusive) - the start of a line.
+     * @param end The end of the range (exclusive).
+     * @param firstTweet The id of the first tweet of the range.
+     * @param parallelism The maximum number of chunks of a batch scored at the same time.
+     * @param section Receives the score of every tweet of the range, in order; it's closed at the end.
+     * @return The total sentiment score of the range.
+     * @throws IOException If the range couldn't be read, or the scores couldn't be written.
+     */
+    public long analyzeRange(FileChannel channel, long start, long end, long firstTweet, int parallelism,
+                             TweetScoreOutput.Section section) throws IOException {
+        return scoreRange(channel, start, end, firstTweet, parallelism, section, null);
+    }
+
+    /**
+     * Analyzes the given file as it's being parsed, and calculates its total sentiment score.
+     * The tweets (lines) are scored one batch at a time, so the whole file is never
+     * held in memory at once.
+     *
+     * @param parser The parser that reads the file.
+     * @param book The path to the file to analyze.
+     * @return The total sentiment score of the file.
+     * @throws Exception If the file couldn't be parsed.
+     */
+    public float analyzeStream(CorpusParser parser, String book) throws Exception {
+        AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+        LongAdder total = new LongAdder();
+        parser.streamLines(book, batch -> total.add(scoreTweets(batch)));
+
+        AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.ANALYSIS, book, timer, 1);
+        return total.sum();
+    }
+
+    /**
+     * Analyzes the given file as it's being parsed, scoring each batch in parallel.
+     * The deadline is for the whole file, not for each batch.
+     *
+     * @param parser The parser that reads the file.
+     * @param book The path to the file to analyze.
+     * @param parallelism The maximum number of chunks of a batch scored at the same time.
+     * @param deadline The time the analysis may take, or null for no limit.
+     * @return The total sentiment score of the file.
+     * @throws TimeoutException If the deadline passes before the whole file is scored.
+     * @throws Exception If the file couldn't be parsed, or the analysis was interrupted.
+     */
+    public float analyzeStream(CorpusParser parser, String book, int parallelism, Duration deadline)
+            throws Exception {
+        AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+        long deadlineNanos = deadlineNanos(deadline);
+        LongAdder total = new LongAdder();
+
+        try {
+            parser.streamLines(book, batch -> {
+                try {
+                    total.add(scoreTweets(batch, parallelism, deadlineNanos));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("The analysis was interrupted");
+                } catch (TimeoutException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof TimeoutException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+
+        AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.ANALYSIS, book, timer, 1);
+        return total.sum();
+    }
+
+    /**
+     * Analyzes the given file one line (tweet) at a time, and writes the score of every
+     * tweet to the output file: its id (line number), the byte offset of its line,
+     * its score, and its number of matched words.
+     *
+     * The file is memory-mapped and split into ranges that are scored in parallel.
+     * The lines of each range are counted first, so every range knows the ids of its
+     * tweets and writes them straight to their place in the output. Only one batch
+     * of tweets per range is held in memory at a time.
+     *
+     * @param book The path to the file to analyze.
+     * @param outputFile The path to the per-tweet output file.
+     * @param format The format of the output file.
+     * @param parallelism The number of ranges the file is split into.
+     * @return The total sentiment score of the file.
+     * @throws Exception If the file couldn't be parsed, or the output couldn't be written.
+     */
+    public float analyzeTweetScores(String book, String outputFile, TweetScoreOutput.Format format,
+                                    int parallelism) throws Exception {
+        return analyzeTweetScores(book, outputFile, format, parallelism, null);
+    }
+
+    /**
+     * Analyzes the given file one line (tweet) at a time, the same way as the method above,
+     * and passes the score of every tweet to a ranking as well (or instead of writing them).
+     * Each range of the file fills its own section of the ranking.
+     *
+     * @param book The path to the file to analyze.
+     * @param outputFile The path to the per-tweet output file, or null for none.
+     * @param format The format of the output file.
+     * @param parallelism The number of ranges the file is split into.
+     * @param ranking The ranking of the tweets, or null for none; it's closed at the end.
+     * @return The total sentiment score of the file.
+     * @throws Exception If the file couldn't be parsed, or the output couldn't be written.
+     */
+    public float analyzeTweetScores(String book, String outputFile, TweetScoreOutput.Format format,
+                                    int parallelism, TweetRanking ranking) throws Exception {
+        if (outputFile == null && ranking == null) {
+            throw new IllegalArgumentException("Neither an output file nor a ranking was given");
+        }
+
+        AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+
+        try (FileChannel channel = FileChannel.open(Paths.get(book), StandardOpenOption.READ)) {
+            long[] bounds = MemoryMappedFileParser.splitRanges(channel, parallelism);
+            int ranges = bounds.length - 1;
+            long[] firstTweets = new long[ranges + 1];
+            firstTweets[0] = 1;
+
+            // count the lines of each range, to know the id of its first tweet
+            try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<Long>> counts = new ArrayList<>(ranges);
+                for (int r = 0; r < ranges; r++) {
+                    long start = bounds[r];
+                    long end = bounds[r + 1];
+                    counts.add(pool.submit(() -> MemoryMappedFileParser.countLines(channel, start, end)));
+                }
+
+                for (int r = 0; r < ranges; r++) {
+                    firstTweets[r + 1] = firstTweets[r] + getResult(counts.get(r));
+                }
+            }
+
+            LongAdder total = new LongAdder();
+
+            TweetScoreOutput file = outputFile == null ? null
+                    : TweetScoreOutput.open(Paths.get(outputFile), format, firstTweets[ranges] - 1, ranges);
+
+            try (TweetScoreOutput output = ranking == null ? file
+                    : file == null ? ranking : TweetScoreOutput.both(file, ranking);
+                 ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                List<Future<Long>> results = new ArrayList<>(ranges);
+
+                for (int r = 0; r < ranges; r++) {
+                    int index = r;
+                    results.add(pool.submit(() -> scoreRange(channel, bounds[index], bounds[index + 1],
+                            firstTweets[index], 1, output.section(index, firstTweets[index],
+                                    firstTweets[index + 1] - firstTweets[index]), null)));
+                }
+
+                for (Future<Long> result : results) {
+                    total.add(getResult(result));
+                }
+            }
+
+            AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.ANALYSIS, book, timer, 1);
+            return total.sum();
+        }
+    }
+
+    /**
+     * Analyzes the given file, resuming from (and saving its progress to) a checkpoint.
+     * The ranges of the checkpoint are scored in parallel, each from its first line not
+     * scored yet; the ranges scored completely are skipped. Each batch of tweets of a range
+     * is scored in parallel too.
+     *
+     * Each range reports its progress after every batch of tweets, with the groups and the
+     * ranked part of the tweets of the batch if the checkpoint aggregates them. The ranking
+     * of the checkpoint, if any, is closed at the end.
+     *
+     * @param checkpoint The checkpoint of the analysis of the file.
+     * @param parallelism The maximum number of chunks of a batch scored at the same time.
+     * @return The total sentiment score of the file, the same as without the checkpoint.
+     * @throws Exception If the file couldn't be parsed, or the checkpoint couldn't be saved.
+     */
+    public float analyzeResumable(AnalysisCheckpoint checkpoint, int parallelism) throws Exception {
+        AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+
+        try (FileChannel channel = FileChannel.open(checkpoint.getInput(), StandardOpenOption.READ)) {
+            try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+                int ranges = checkpoint.getRanges();
+                long[] firstTweets = new long[ranges];
+
+                // the ranking tells tweets of the same score apart by their ids, so the lines are counted
+                if (checkpoint.getRanking() != null) {
+                    List<Future<Long>> counts = new ArrayList<>(ranges);
+                    for (int r = 0; r < ranges; r++) {
+                        long start = checkpoint.getStart(r);
+                        long end = checkpoint.getEnd(r);
+                        counts.add(pool.submit(() -> MemoryMappedFileParser.countLines(channel, start, end)));
+                    }
+
+                    long firstTweet = 1;
+                    for (int r = 0; r < ranges; r++) {
+                        firstTweets[r] = firstTweet;
+                        firstTweet += getResult(counts.get(r));
+                    }
+                }
+
+                List<Future<Long>> results = new ArrayList<>();
+
+                for (int r = 0; r < ranges; r++) {
+                    int range = r;
+                    long start = checkpoint.getNext(range);
+                    long end = checkpoint.getEnd(range);
+                    long nextTweet = firstTweets[range] + checkpoint.getTweets(range);
+                    if (start == end) {
+                        continue;
+                    }
+
+                    results.add(pool.submit(() -> {
+                        CheckpointSection section = new CheckpointSection(checkpoint, range, end);
+                        long score = scoreRange(channel, start, end, nextTweet, parallelism, section,
+                                section.groups);
+                        section.complete();
+                        return score;
+                    }));
+                }
+
+                for (Future<Long> result : results) {
+                    getResult(result);
+                }
+            }
+
+            checkpoint.save();
+            checkpoint.closeRanking();
+            AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.ANALYSIS, checkpoint.getInput().toString(),
+                    timer, 1);
+            return checkpoint.getScore();
+        }
+    }
+
+    /**
+     * A section that reports the progress of a range to its checkpoint. When a tweet is
+     * written, every line before it is scored (and the tweets of the batch before it are
+     * grouped), so its offset is where the range would resume.
+     */
+    private static final class CheckpointSection implements TweetScoreOutput.Section {
+        private final AnalysisCheckpoint checkpoint;
+        private final int range;
+        private final long end;
+        private final TweetGroups groups;
+        private final TweetRanking.Part ranked;
+        private long tweets;
+        private long score;
+
+        private CheckpointSection(AnalysisCheckpoint checkpoint, int range, long end) {
+            this.checkpoint = checkpoint;
+            this.range = range;
+            this.end = end;
+            this.groups = checkpoint.newGroups();
+            this.ranked = checkpoint.newRanked();
+        }
+
+        @Override
+        public void write(long tweetId, long offset, int tweetScore, int matches) throws IOException {
+            if (tweets == TWEET_BATCH_SIZE) {
+                report(offset);
+            }
+
+            tweets++;
+            score += tweetScore;
+            if (ranked != null) {
+                ranked.add(tweetId, offset, tweetScore, matches);
+            }
+        }
+
+        /**
+         * Does nothing: the section is also closed when the range fails, and the tweets
+         * written since the last report are scored again when the range is resumed.
+         */
+        @Override
+        public void close() {
+        }
+
+        /**
+         * Reports the range as scored to its end.
+         *
+         * @throws IOException if the checkpoint couldn't be saved.
+         */
+        private void complete() throws IOException {
+            report(end);
+        }
+
+        private void report(long nextLine) throws IOException {
+            checkpoint.progress(range, nextLine, tweets, score, groups, ranked);
+            tweets = 0;
+            score = 0;
+        }
+    }
+
+    /**
+     * Scores the tweets of a range one batch at a time, and writes their scores to the section.
+     *
+     * @param channel The channel of the file.
+     * @param start The start of the range (inclusive).
+     * @param end The end of the range (exclusive).
+     * @param firstTweet The id of the first tweet of the range.
+     * @param parallelism The maximum number of chunks of a batch scored at the same time.
+     * @param section The section of the output for the tweets of the range.
+     * @param batchGroups Receives each batch once its scores are written, or null for none.
+     * @return The total score of the range.
+     * @throws IOException If the range couldn't be read, or the scores couldn't be written.
+     */
+    private long scoreRange(FileChannel channel, long start, long end, long firstTweet, int parallelism,
+                            TweetScoreOutput.Section section, TweetGroups batchGroups) throws IOException {
+        try (section) {
+            List<String> tweets = new ArrayList<>(TWEET_BATCH_SIZE);
+            long[] offsets = new long[TWEET_BATCH_SIZE];
+            long[] nextId = {firstTweet};
+            long[] total = {0};
+            AnalysisMetrics.Timer[] batchTimer = {null};
+
+            MemoryMappedFileParser.LineHandler handler = (offset, text) -> {
+                if (tweets.isEmpty()) {
+                    batchTimer[0] = AnalysisMetrics.shared().startStage();
+                }
+                offsets[tweets.size()] = offset;
+                tweets.add(text);
+
+                if (tweets.size() == TWEET_BATCH_SIZE) {
+                    recordParsed(tweets.size(), batchTimer[0]);
+                    total[0] += writeScores(tweets, offsets, nextId[0], parallelism, section, batchGroups);
+                    nextId[0] += tweets.size();
+                    tweets.clear();
+                }
+            };
+            MemoryMappedFileParser.forEachLine(channel, start, end, handler);
+
+            if (!tweets.isEmpty()) {
+                recordParsed(tweets.size(), batchTimer[0]);
+                total[0] += writeScores(tweets, offsets, nextId[0], parallelism, section, batchGroups);
+            }
+
+            return total[0];
+        }
+    }
+
+    /**
+     * Records a batch of lines read straight from the file as parsed.
+     * Their words are counted as they're looked up, not here.
+     *
+     * @param lines The number of lines of the batch.
+     * @param timer The timer started with the batch.
+     */
+    private static void recordParsed(int lines, AnalysisMetrics.Timer timer) {
+        AnalysisMetrics.shared().recordParsed(lines, 0);
+        AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.PARSE, null, timer, lines);
+    }
+
+    /**
+     * Scores a batch of tweets, and writes their scores to the section.
+     *
+     * @param tweets The tweets of the batch.
+     * @param offsets The byte offsets of the lines of the tweets.
+     * @param firstId The id of the first tweet of the batch.
+     * @param parallelism The maximum number of chunks of the batch scored at the same time.
+     * @param section The section of the output.
+     * @param batchGroups Receives the batch once its scores are written, or null for none.
+     * @return The total score of the batch.
+     * @throws IOException If the scores couldn't be written, or the thread was interrupted.
+     */
+    private long writeScores(List<String> tweets, long[] offsets, long firstId, int parallelism,
+                             TweetScoreOutput.Section section, TweetGroups batchGroups) throws IOException {
+        int[] scores = new int[tweets.size()];
+        int[] matches = new int[tweets.size()];
+
+        try {
+            scoreEach(tweets, scores, matches, parallelism, Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("The analysis was interrupted");
+        } catch (TimeoutException e) {
+            // there's no deadline
+            throw new IllegalStateException(e);
+        }
+
+        long total = 0;
+        for (int i = 0; i < scores.length; i++) {
+            section.write(firstId + i, offsets[i], scores[i], matches[i]);
+            total += scores[i];
+        }
+
+        // after the writes: the first write of a batch is when a checkpoint section reports the batch before
+        if (batchGroups != null) {
+            batchGroups.addAll(tweets, scores);
         }
 
         return total;
     }
 
+    /**
+     * Waits for the result of a task, and rethrows its failure.
+     *
+     * @param <T> The type of the result.
+     * @param future The future of the task.
+     * @return The result of the task.
+     * @throws Exception The failure of the task.
+     */
+    private static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Converts the time the analysis may take into a deadline on the System.nanoTime clock.
+     *
+     * @param deadline The time the analysis may take, or null for no limit.
+     * @return The deadline, or Long.MAX_VALUE for no limit.
+     */
+    private static long deadlineNanos(Duration deadline) {
+        if (deadline == null) {
+            return Long.MAX_VALUE;
+        }
+
+        long now = System.nanoTime();
+        long nanos = deadline.toNanos();
+
+        // don't overflow for very long deadlines
+        return nanos > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + nanos;
+    }
+
+    /**
+     * Adds up the scores of the tweets on the calling thread.
+     * Stops early if the thread is interrupted.
+     *
+     * @param tweets The tweets to score.
+     * @return The total score of the tweets.
+     */
+    private long scoreTweets(List<String> tweets) {
+        int[] scores = new int[tweets.size()];
+        scoreEach(tweets, scores, new int[tweets.size()]);
+
+        long total = 0;
+        for (int score : scores) {
+            total += score;
+        }
+
+        return total;
+    }
+
+    /**
+     * Scores each of the tweets on the calling thread.
+     * Stops early if the thread is interrupted.
+     *
+     * The tweets found in the cache aren't scored again, and the others are cached.
+     * The scored tweets are then added to the groups, if any.
+     *
+     * With a scoring client, the matched words of every few tweets (as many as the
+     * client batches together) are looked up in a single call, and the scores of
+     * the words are then added up per tweet.
+     *
+     * @param tweets The tweets to score.
+     * @param scores Receives the score of each tweet.
+     * @param matches Receives the number of matched words of each tweet.
+     */
+    private void scoreEach(List<String> tweets, int[] scores, int[] matches) {
+        AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+
+        if (scoringClient == null) {
+            Matches found = new Matches(phraseMatcher.getMaxPhraseWords(), false);
+
+            for (int i = 0; i < tweets.size(); i++) {
+                checkInterrupted();
+                long key = 0;
+                long result = TweetScoreCache.ABSENT;
+
+                if (cache != null) {
+                    key = TweetScoreCache.hash(tweets.get(i));
+                    result = cache.get(key);
+                }
+                if (result == TweetScoreCache.ABSENT) {
+                    result = processTweet(tweets.get(i), found);
+                    if (cache != null) {
+                        cache.put(key, result);
+                    }
+                }
+
+                scores[i] = scoreOf(result);
+                matches[i] = matchesOf(result);
+            }
+        } else {
+            scoreEachWithClient(tweets, scores, matches);
+        }
+
+        if (groups != null) {
+            groups.addAll(tweets, scores);
+        }
+
+        AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.SCORING, null, timer, tweets.size());
+    }
+
+    /**
+     * Scores each of the tweets, scoring contiguous chunks of them on virtual threads,
+     * or on the calling thread if the parallelism is 1.
+     *
+     * @param tweets The tweets to score.
+     * @param scores Receives the score of each tweet.
+     * @param matches Receives the number of matched words of each tweet.
+     * @param parallelism The maximum number of chunks.
+     * @param deadlineNanos The deadline on the System.nanoTime clock.
+     * @throws InterruptedException If the calling thread is interrupted.
+     * @throws TimeoutException If the deadline passes before all the tweets are scored.
+     */
+    private void scoreEach(List<String> tweets, int[] scores, int[] matches, int parallelism,
+                           long deadlineNanos) throws InterruptedException, TimeoutException {
+        if (parallelism == 1) {
+            scoreEach(tweets, scores, matches);
+            return;
+        }
+
+        int offset = 0;
+
+        for (int[][] chunk : inChunks(tweets, parallelism, deadlineNanos, chunkTweets -> {
+            int[][] each = new int[2][chunkTweets.size()];
+            scoreEach(chunkTweets, each[0], each[1]);
+            return each;
+        })) {
+            System.arraycopy(chunk[0], 0, scores, offset, chunk[0].length);
+            System.arraycopy(chunk[1], 0, matches, offset, chunk[1].length);
+            offset += chunk[0].length;
+        }
+    }
+
+    /**
+     * Scores each of the tweets on the calling thread through the scoring client.
+     *
+     * @param tweets The tweets to score.
+     * @param scores Receives the score of each tweet.
+     * @param matches Receives the number of matched words of each tweet.
+     */
+    private void scoreEachWithClient(List<String> tweets, int[] scores, int[] matches) {
+        Matches found = new Matches(phraseMatcher.getMaxPhraseWords(), true);
+        long[] keys = cache != null ? new long[tweets.size()] : null;
+        boolean[] cached = new boolean[tweets.size()];
+        int batchStart = 0;
+
+        for (int i = 0; i < tweets.size(); i++) {
+            checkInterrupted();
+            long result = TweetScoreCache.ABSENT;
+
+            if (cache != null) {
+                keys[i] = TweetScoreCache.hash(tweets.get(i));
+                result = cache.get(keys[i]);
+            }
+
+            // a cached tweet adds no words to the call
+            if (result != TweetScoreCache.ABSENT) {
+                cached[i] = true;
+                scores[i] = scoreOf(result);
+                matches[i] = matchesOf(result);
+            } else {
+                matches[i] = matchesOf(processTweet(tweets.get(i), found));
+            }
+
+            if (i + 1 - batchStart == scoringClient.getBatchTweets() || i + 1 == tweets.size()) {
+                int[] wordScores = lookUp(found.words);
+                int word = 0;
+
+                for (int t = batchStart; t <= i; t++) {
+                    if (cached[t]) {
+                        continue;
+                    }
+
+                    int score = 0;
+                    for (int end = word + matches[t]; word < end; word++) {
+                        score += PhraseMatcher.apply(wordScores[word], found.modifiers[word]);
+                    }
+                    scores[t] = score;
+
+                    if (cache != null) {
+                        cache.put(keys[t], (long) matches[t] << 32 | (score & 0xFFFFFFFFL));
+                    }
+                }
+
+                found.clearWords();
+                batchStart = i + 1;
+            }
+        }
+    }
+
+    /**
+     * The matches of the tweet being processed: its score and number of matches so far,
+     * and its last few matches, which a longer phrase found later may still replace.
+     * With a scoring client, it also holds the matched words (and phrases) of the tweets
+     * waiting to be looked up, with their modifiers.
+     */
+    private static final class Matches {
+        /**
+         * The last matches of the tweet, as start word, end word and score - a ring of
+         * one more match than the longest phrase can cover.
+         */
+        private final int[] recent;
+        private final int capacity;
+        private int head;
+        private int count;
+        private int score;
+        private int matched;
+
+        private final List<String> words;
+        private int[] modifiers;
+
+        private Matches(int maxPhraseWords, boolean keepWords) {
+            this.capacity = maxPhraseWords + 1;
+            this.recent = new int[capacity * 3];
+            this.words = keepWords ? new ArrayList<>() : null;
+            this.modifiers = keepWords ? new int[64] : null;
+        }
+
+        /**
+         * Starts a new tweet.
+         */
+        private void startTweet() {
+            head = 0;
+            count = 0;
+            score = 0;
+            matched = 0;
+        }
+
+        /**
+         * Adds a match, replacing the earlier matches it covers. A match that overlaps
+         * an earlier match without covering it is skipped - the earlier match wins.
+         *
+         * @param start     the index of the first word of the match in the tweet.
+         * @param end       the index of the last word of the match in the tweet.
+         * @param raw       the score of the match in the lexicon.
+         * @param modifiers the modifiers of the match.
+         * @param word      the matched word or phrase, only needed with a scoring client.
+         */
+        private void add(int start, int end, int raw, int modifiers, String word) {
+            int covered = 0;
+            while (covered < count && recent[slot(count - 1 - covered)] >= start) {
+                covered++;
+            }
+            if (covered < count && recent[slot(count - 1 - covered) + 1] >= start) {
+                return;
+            }
+
+            for (int c = 0; c < covered; c++) {
+                score -= recent[slot(--count) + 2];
+                matched--;
+                if (words != null) {
+                    words.remove(words.size() - 1);
+                }
+            }
+
+            // the oldest match can't be replaced anymore
+            if (count == capacity) {
+                head = (head + 1) % capacity;
+                count--;
+            }
+
+            int applied = PhraseMatcher.apply(raw, modifiers);
+            int slot = slot(count++);
+            recent[slot] = start;
+            recent[slot + 1] = end;
+            recent[slot + 2] = applied;
+            score += applied;
+            matched++;
+
+            if (words != null) {
+                if (words.size() == this.modifiers.length) {
+                    this.modifiers = Arrays.copyOf(this.modifiers, this.modifiers.length * 2);
+                }
+                this.modifiers[words.size()] = modifiers;
+                words.add(word);
+            }
+        }
+
+        /**
+         * Returns the index in the ring of the given match of the tweet.
+         *
+         * @param index the index of the match among the recent matches, 0 for the oldest.
+         * @return the index of its start word in the ring.
+         */
+        private int slot(int index) {
+            return (head + index) % capacity * 3;
+        }
+
+        /**
+         * Clears the words that have been looked up.
+         */
+        private void clearWords() {
+            words.clear();
+        }
+    }
+
+    /**
+     * Looks up the scores of the matched words through the scoring client.
+     *
+     * @param matched The matched words.
+     * @return The score of each word.
+     */
+    private int[] lookUp(List<String> matched) {
+        if (matched.isEmpty()) {
+            return new int[0];
+        }
+
+        try {
+            return scoringClient.score(matched);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("The analysis was interrupted");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Throws a CancellationException if the calling thread has been interrupted.
+     */
+    private static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("The analysis was interrupted");
+        }
+    }
+
+    /**
+     * Adds up the scores of the tweets, scoring contiguous chunks of them on virtual threads.
+     *
+     * @param tweets The tweets to score.
+     * @param parallelism The maximum number of chunks.
+     * @param deadlineNanos The deadline on the System.nanoTime clock.
+     * @return The total score of the tweets.
+     * @throws InterruptedException If the calling thread is interrupted.
+     * @throws TimeoutException If the deadline passes before all the tweets are scored.
+     */
+    private long scoreTweets(List<String> tweets, int parallelism, long deadlineNanos)
+            throws InterruptedException, TimeoutException {
+        long total = 0;
+
+        for (long chunkTotal : inChunks(tweets, parallelism, deadlineNanos, this::scoreTweets)) {
+            total += chunkTotal;
+        }
+
+        return total;
+    }
+
+    /**
+     * Runs the work on contiguous chunks of the tweets, each on its own virtual thread.
+     *
+     * @param tweets The tweets.
+     * @param parallelism The maximum number of chunks.
+     * @param deadlineNanos The deadline on the System.nanoTime clock.
+     * @param work The work done on each chunk.
+     * @return The results of the chunks, in the order of the chunks.
+     * @throws InterruptedException If the calling thread is interrupted.
+     * @throws TimeoutException If the deadline passes before all the chunks are done.
+     */
+    private static <T> List<T> inChunks(List<String> tweets, int parallelism, long deadlineNanos,
+                                        Function<List<String>, T> work)
+            throws InterruptedException, TimeoutException {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+
+        int chunks = Math.min(parallelism, tweets.size());
+        List<Callable<T>> tasks = new ArrayList<>(chunks);
+
+        for (int c = 0; c < chunks; c++) {
+            List<String> chunk = tweets.subList(
+                    (int) ((long) tweets.size() * c / chunks),
+                    (int) ((long) tweets.size() * (c + 1) / chunks));
+            tasks.add(() -> work.apply(chunk));
+        }
+
+        List<T> results = new ArrayList<>(chunks);
+
+        // invokeAll cancels (interrupts) the chunks that are still running on a timeout or an interrupt
+        try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+            long timeout = deadlineNanos == Long.MAX_VALUE ? Long.MAX_VALUE : deadlineNanos - System.nanoTime();
+            if (timeout <= 0) {
+                throw new TimeoutException("The analysis deadline has passed");
+            }
+
+            for (Future<T> future : pool.invokeAll(tasks, timeout, TimeUnit.NANOSECONDS)) {
+                if (future.isCancelled()) {
+                    throw new TimeoutException("The analysis deadline has passed");
+                }
+
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException cause) {
+                        throw cause;
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Calculates the sentiment score of a single tweet straight from the lexicon,
+     * without calling the scoring client.
+     *
+     * @param tweet The tweet to score.
+     * @return The sentiment score of the tweet.
+     */
+    public int scoreTweet(String tweet) {
+        return scoreOf(processTweet(tweet, new Matches(phraseMatcher.getMaxPhraseWords(), false)));
+    }
+
     /**
      * Processes a single tweet and calculates its sentiment score.
      * It splits the tweet into words, and for each word not in the stopwords set,
      * it calculates the sentiment score based on the sentiment map.
      *
+     * The words are found in place and looked up in the lexicon by their character range,
+     * so no word is copied or lower-cased into a new String. In the same pass, each word
+     * moves the phrase automaton along: a phrase ending at the word replaces the matches
+     * of the words it covers. A match is negated if a negator is among the few words
+     * before it, and intensified if an intensifier is right before it.
+     *
      * @param tweet The tweet to be processed.
-     * @return The sentiment score of the tweet.
+     * @param found Receives the matches of the tweet (and, with a scoring client, the matched words).
+     * @return The sentiment score of the tweet according to the lexicon, and the number
+     *         of matches, packed into a long (see scoreOf and matchesOf).
      */
-    private float processTweet(String tweet) {
-        String[] words = tweet.split(" ");
-        float tweetScore = 0;
+    private long processTweet(String tweet, Matches found) {
+        boolean keepWords = found.words != null;
+        int tweetWords = 0;
+        int length = tweet.length();
+        int i = 0;
+        int state = 0;
+        int negatorAt = -PhraseMatcher.NEGATION_WINDOW - 1;
+        int intensifierAt = -2;
 
-        for (String word : words) {
-            word = word.toLowerCase();
-            if (!stopwords.contains(word) && sentimentMap.containsKey(word)) {
-                tweetScore += sentimentMap.get(word);
+        found.startTweet();
 
-                // simulate a longer execution
-                try {
-                    Thread.sleep(200);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        while (i < length) {
+            while (i < length && isWhitespace(tweet.charAt(i))) {
+                i++;
+            }
+
+            int start = i;
+            while (i < length && !isWhitespace(tweet.charAt(i))) {
+                i++;
+            }
+
+            if (start == i) {
+                continue;
             }
+
+            int token = tweetWords++;
+            int word = phraseMatcher.word(tweet, start, i);
+            int entry = lexicon.lookup(tweet, start, i);
+
+            if (entry >= 0 && !lexicon.isStopword(entry) && lexicon.isScored(entry)) {
+                found.add(token, token, lexicon.score(entry), modifiers(token, negatorAt, intensifierAt),
+                        keepWords ? lexicon.word(entry) : null);
+            }
+
+            state = phraseMatcher.next(state, word);
+            int phraseWords = phraseMatcher.phraseWords(state);
+            if (phraseWords > 0) {
+                int phraseStart = token - phraseWords + 1;
+                found.add(phraseStart, token, phraseMatcher.phraseScore(state),
+                        modifiers(phraseStart, negatorAt, intensifierAt), phraseMatcher.phrase(state));
+            }
+
+            if (PhraseMatcher.isNegator(word)) {
+                negatorAt = token;
+            }
+            if (PhraseMatcher.isIntensifier(word)) {
+                intensifierAt = token;
+            }
+        }
+
+        AnalysisMetrics.shared().recordLookups(tweetWords, found.matched);
+
+        return (long) found.matched << 32 | (found.score & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the modifiers of a match, from the last negator and intensifier before it.
+     *
+     * @param start The index of the first word of the match.
+     * @param negatorAt The index of the last negator before the match.
+     * @param intensifierAt The index of the last intensifier before the match.
+     * @return NEGATED and/or INTENSIFIED, or 0.
+     */
+    private static int modifiers(int start, int negatorAt, int intensifierAt) {
+        int modifiers = 0;
+
+        if (negatorAt < start && start - negatorAt <= PhraseMatcher.NEGATION_WINDOW) {
+            modifiers |= PhraseMatcher.NEGATED;
         }
+        if (intensifierAt == start - 1) {
+            modifiers |= PhraseMatcher.INTENSIFIED;
+        }
+
+        return modifiers;
+    }
+
+    /**
+     * Returns the score packed by processTweet.
+     *
+     * @param result The result of processTweet.
+     * @return The score of the tweet.
+     */
+    private static int scoreOf(long result) {
+        return (int) result;
+    }
 
-        return tweetScore;
+    /**
+     * Returns the number of matched words packed by processTweet.
+     *
+     * @param result The result of processTweet.
+     * @return The number of matched words of the tweet.
+     */
+    private static int matchesOf(long result) {
+        return (int) (result >>> 32);
+    }
+
+    /**
+     * Checks whether the character separates words - the same characters
+     * the parsers split the lines on.
+     *
+     * @param c The character.
+     * @return true, if it's whitespace, false otherwise.
+     */
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
     }
 }
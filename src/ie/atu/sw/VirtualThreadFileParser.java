@@ -1,69 +1,466 @@
 package ie.atu.sw;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * This class is responsible for parsing text files using virtual threads.
  * It reads a file line by line, splits each line into words, and stores these words in a list.
+ *
+ * Lines are read in batches, and each batch is tokenized on its own virtual thread.
+ * The number of batches in flight is bounded, so the reader blocks (backpressure)
+ * until a worker is free, and memory use doesn't grow with the size of the file.
+ *
+ * The batches are numbered in the order they're read. go and streamTweets pass the
+ * finished batches through a reordering stage, so the tweets (and the words) come
+ * out in the order of the lines of the file, whichever worker finishes first.
  */
-public class VirtualThreadFileParser {
-    private static int line = 0;
-    private final List<String> words = new CopyOnWriteArrayList<>();
+public class VirtualThreadFileParser implements CorpusParser {
+    /**
+     * The default number of lines in a single batch.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+    /**
+     * The default maximum number of batches being tokenized at the same time.
+     */
+    public static final int DEFAULT_MAX_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    private final List<String> words = Collections.synchronizedList(new ArrayList<>());
+    private final List<Tweet> tweets = Collections.synchronizedList(new ArrayList<>());
+    /**
+     * The number of lines read by the last parse.
+     */
+    private volatile long lines = 0;
+    private final int batchSize;
+    private final int maxWorkers;
+
+    /**
+     * Constructs a parser with the default batch size and number of workers.
+     */
+    public VirtualThreadFileParser() {
+        this(DEFAULT_BATCH_SIZE, DEFAULT_MAX_WORKERS);
+    }
+
+    /**
+     * Constructs a parser with the given batch size and number of workers.
+     *
+     * @param batchSize  the number of lines in a single batch.
+     * @param maxWorkers the maximum number of batches being tokenized at the same time.
+     */
+    public VirtualThreadFileParser(int batchSize, int maxWorkers) {
+        if (batchSize < 1 || maxWorkers < 1) {
+            throw new IllegalArgumentException("Batch size and number of workers must be positive");
+        }
+
+        this.batchSize = batchSize;
+        this.maxWorkers = maxWorkers;
+    }
+
+    /**
+     * Opens the specified file, to be read line by line as UTF-8 text.
+     *
+     * @param book the path to the file.
+     * @return the reader of the lines of the file.
+     * @throws IOException if the file couldn't be opened.
+     */
+    protected BufferedReader openReader(String book) throws IOException {
+        return Files.newBufferedReader(Paths.get(book));
+    }
+
+    /**
+     * The tweets and the words of a single batch.
+     */
+    private record ParsedBatch(List<Tweet> tweets, List<String> words) {
+    }
 
     /**
      * Parses the specified file and processes each line using virtual threads.
-     * Each line is split into words, and these words are stored in a list.
+     * Each line is stored as a tweet, and is split into words, which are stored in a list.
+     * Both lists keep the order of the lines of the file.
      *
      * @param book The path to the file to be parsed.
      * @throws Exception if an I/O error occurs opening the file or if an interrupt occurs.
      */
     public void go(String book) throws Exception {
-        try (var pool = Executors.newVirtualThreadPerTaskExecutor()) {
-            Files.lines(Paths.get(book)).forEach(text -> {
-                pool.execute(() -> {
-                    process(text);
+        parseOrdered(book, (firstLine, batch) -> new ParsedBatch(toTweets(firstLine, batch), process(book, batch)),
+                parsed -> {
+                    tweets.addAll(parsed.tweets());
+                    words.addAll(parsed.words());
                 });
-            });
+    }
+
+    /**
+     * Parses the specified file into tweets - its lines with their line numbers - without
+     * storing them. The batches are built on virtual threads, and passed to the sink in
+     * the order of the lines, one batch at a time, so per-tweet results are deterministic.
+     *
+     * @param book The path to the file to be parsed.
+     * @param sink Receives the tweets of each batch, in order. It's never called by two threads at once.
+     * @throws Exception if an I/O error occurs, if an interrupt occurs, or if the sink fails.
+     */
+    public void streamTweets(String book, Consumer<List<Tweet>> sink) throws Exception {
+        parseOrdered(book, (firstLine, batch) -> {
+            AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+            List<Tweet> batchTweets = toTweets(firstLine, batch);
+
+            // the words are counted as they're looked up, not here
+            AnalysisMetrics.shared().recordParsed(batch.size(), 0);
+            AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.PARSE, book, timer, batch.size());
+
+            return batchTweets;
+        }, sink);
+    }
+
+    /**
+     * Parses the specified file without storing the words. Each batch of lines is split
+     * into words on a virtual thread, and the words of the batch are passed to the sink.
+     *
+     * @param book The path to the file to be parsed.
+     * @param sink Receives the words of each batch.
+     * @throws Exception if an I/O error occurs, if an interrupt occurs, or if the sink fails.
+     */
+    @Override
+    public void stream(String book, Consumer<List<String>> sink) throws Exception {
+        parse(book, batch -> process(book, batch), sink);
+    }
+
+    /**
+     * Parses the specified file without storing the lines. Each batch of lines is passed
+     * to the sink on a virtual thread, as it was read.
+     *
+     * @param book The path to the file to be parsed.
+     * @param sink Receives the lines of each batch.
+     * @throws Exception if an I/O error occurs, if an interrupt occurs, or if the sink fails.
+     */
+    @Override
+    public void streamLines(String book, Consumer<List<String>> sink) throws Exception {
+        parse(book, batch -> {
+            AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+            // the words are counted as they're looked up, not here
+            AnalysisMetrics.shared().recordParsed(batch.size(), 0);
+            AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.PARSE, book, timer, batch.size());
+            return batch;
+        }, sink);
+    }
+
+    /**
+     * Parses the specified file, processing each batch of lines on a virtual thread,
+     * and passes the processed batches to the sink as soon as they're ready.
+     *
+     * @param book    The path to the file to be parsed.
+     * @param process Processes the lines of a batch.
+     * @param sink    Receives each processed batch.
+     * @throws Exception if an I/O error occurs, if an interrupt occurs, or if the sink fails.
+     */
+    private void parse(String book, Function<List<String>, List<String>> process,
+                       Consumer<List<String>> sink) throws Exception {
+        // limits the number of batches in flight - the reader waits for a free permit
+        Semaphore inFlight = new Semaphore(maxWorkers);
+        // the first error thrown by a worker, rethrown once all the workers have finished
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        long lineCount = 0;
+
+        try (var pool = Executors.newVirtualThreadPerTaskExecutor();
+             BufferedReader in = openReader(book)) {
+            List<String> batch = new ArrayList<>(batchSize);
+            String text;
+
+            while (failure.get() == null && (text = in.readLine()) != null) {
+                batch.add(text);
+
+                if (batch.size() == batchSize) {
+                    submit(pool, inFlight, failure, batch, process, sink);
+                    lineCount += batch.size();
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                submit(pool, inFlight, failure, batch, process, sink);
+                lineCount += batch.size();
+            }
         }
+
+        lines = lineCount;
+        rethrow(failure);
     }
 
     /**
-     * Clears the list of words. This can be used to reset the parser.
+     * Parses the specified file, processing each batch of lines on a virtual thread,
+     * and passes the processed batches to the sink in the order they were read.
+     *
+     * A batch holds its permit until it has been passed to the sink, so at most
+     * maxWorkers batches are being processed or waiting for an earlier batch.
+     *
+     * @param <T>     the type of a processed batch.
+     * @param book    the path to the file to be parsed.
+     * @param process processes a batch, given the number of its first line and its lines.
+     * @param sink    receives the processed batches, in order, one at a time.
+     * @throws Exception if an I/O error occurs, if an interrupt occurs, or if the sink fails.
+     */
+    private <T> void parseOrdered(String book, BiFunction<Long, List<String>, T> process,
+                                  Consumer<T> sink) throws Exception {
+        Semaphore inFlight = new Semaphore(maxWorkers);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Reorderer<T> reorderer = new Reorderer<>(sink, inFlight);
+        long lineCount = 0;
+        long sequence = 0;
+
+        try (var pool = Executors.newVirtualThreadPerTaskExecutor();
+             BufferedReader in = openReader(book)) {
+            List<String> batch = new ArrayList<>(batchSize);
+            String text;
+
+            while (failure.get() == null && (text = in.readLine()) != null) {
+                batch.add(text);
+
+                if (batch.size() == batchSize) {
+                    submitOrdered(pool, inFlight, failure, reorderer, process, sequence++, lineCount + 1, batch);
+                    lineCount += batch.size();
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                submitOrdered(pool, inFlight, failure, reorderer, process, sequence, lineCount + 1, batch);
+                lineCount += batch.size();
+            }
+        }
+
+        lines = lineCount;
+        rethrow(failure);
+    }
+
+    /**
+     * Waits for a free worker, processes the batch on a new virtual thread,
+     * and hands it to the reordering stage.
+     *
+     * @param <T>       the type of a processed batch.
+     * @param pool      the executor that runs the workers.
+     * @param inFlight  the permits for the batches in flight.
+     * @param failure   holds the first error thrown by a worker.
+     * @param reorderer passes the processed batches to the sink in order.
+     * @param process   processes a batch.
+     * @param sequence  the number of the batch, starting at 0.
+     * @param firstLine the number of the first line of the batch, starting at 1.
+     * @param batch     the lines of the batch.
+     * @throws InterruptedException if interrupted while waiting for a free worker.
+     */
+    private <T> void submitOrdered(ExecutorService pool, Semaphore inFlight, AtomicReference<Throwable> failure,
+                                   Reorderer<T> reorderer, BiFunction<Long, List<String>, T> process,
+                                   long sequence, long firstLine, List<String> batch) throws InterruptedException {
+        inFlight.acquire();
+        AnalysisMetrics.shared().addParserBatches(1);
+        pool.execute(() -> {
+            try {
+                T processed;
+                try {
+                    processed = process.apply(firstLine, batch);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    reorderer.fail(true);
+                    return;
+                }
+
+                try {
+                    reorderer.complete(sequence, processed);
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    reorderer.fail(false);
+                }
+            } finally {
+                AnalysisMetrics.shared().addParserBatches(-1);
+            }
+        });
+    }
+
+    /**
+     * Passes processed batches to the sink in the order of their sequence numbers.
+     * A batch that finishes before the batches read before it waits here until they're passed on.
+     *
+     * @param <T> the type of a processed batch.
+     */
+    private static final class Reorderer<T> {
+        private final Consumer<T> sink;
+        private final Semaphore inFlight;
+        private final Map<Long, T> pending = new HashMap<>();
+        private long next = 0;
+        private boolean failed = false;
+
+        private Reorderer(Consumer<T> sink, Semaphore inFlight) {
+            this.sink = sink;
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * Adds a processed batch, and passes it on, together with any batches waiting
+         * for it, if it's the next one. Releases the permit of every batch passed on.
+         *
+         * @param sequence the number of the batch.
+         * @param batch    the processed batch.
+         */
+        private synchronized void complete(long sequence, T batch) {
+            // after a failure, the batches are dropped
+            if (failed) {
+                inFlight.release();
+                return;
+            }
+
+            pending.put(sequence, batch);
+
+            T ready;
+            while ((ready = pending.remove(next)) != null) {
+                next++;
+                try {
+                    sink.accept(ready);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        }
+
+        /**
+         * Drops the waiting batches after a failure, and releases their permits,
+         * so the reader never waits for a batch that won't be passed on.
+         *
+         * @param holdsPermit whether the failed batch still holds its permit.
+         */
+        private synchronized void fail(boolean holdsPermit) {
+            failed = true;
+            inFlight.release(pending.size() + (holdsPermit ? 1 : 0));
+            pending.clear();
+        }
+    }
+
+    /**
+     * Rethrows the first error thrown by a worker, if there was one.
+     *
+     * @param failure holds the first error thrown by a worker.
+     * @throws Exception the error.
+     */
+    private static void rethrow(AtomicReference<Throwable> failure) throws Exception {
+        Throwable t = failure.get();
+        if (t instanceof Exception e) {
+            throw e;
+        } else if (t != null) {
+            throw new Exception(t);
+        }
+    }
+
+    /**
+     * Waits for a free worker and processes the batch on a new virtual thread.
+     *
+     * @param pool     the executor that runs the workers.
+     * @param inFlight the permits for the batches in flight.
+     * @param failure  holds the first error thrown by a worker.
+     * @param batch    the lines of the batch.
+     * @param process  processes the lines of the batch.
+     * @param sink     receives the processed batch.
+     * @throws InterruptedException if interrupted while waiting for a free worker.
+     */
+    private void submit(ExecutorService pool, Semaphore inFlight, AtomicReference<Throwable> failure,
+                        List<String> batch, Function<List<String>, List<String>> process,
+                        Consumer<List<String>> sink) throws InterruptedException {
+        inFlight.acquire();
+        AnalysisMetrics.shared().addParserBatches(1);
+        pool.execute(() -> {
+            try {
+                sink.accept(process.apply(batch));
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                AnalysisMetrics.shared().addParserBatches(-1);
+                inFlight.release();
+            }
+        });
+    }
+
+    /**
+     * Clears the lists of words and tweets, and the line count. This can be used to reset the parser.
      */
     public void clear() {
         this.words.clear();
+        this.tweets.clear();
+        this.lines = 0;
     }
 
     /**
-     * Processes a single line of text, splitting it into individual words
-     * and adding them to the words list. Each call to this method increments the line count.
+     * Turns a batch of lines into tweets, numbering them from the given line.
      *
-     * @param text The line of text to process.
+     * @param firstLine The number of the first line of the batch.
+     * @param batch The lines of text.
+     * @return The tweets of the batch.
      */
-    private void process(String text) {
-        Arrays.stream(text.split("\\s+")).forEach(w -> words.add(w));
-        incrementLine();
+    private static List<Tweet> toTweets(long firstLine, List<String> batch) {
+        List<Tweet> batchTweets = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            batchTweets.add(new Tweet(firstLine + i, batch.get(i)));
+        }
+
+        return batchTweets;
     }
 
     /**
-     * Synchronized method to increment the line count.
-     * This method is synchronized to maintain thread safety as it modifies the static line variable.
+     * Processes a batch of lines, splitting each line into individual words.
+     *
+     * @param book The path to the file being parsed.
+     * @param batch The lines of text to process.
+     * @return The words of the batch.
      */
-    private synchronized void incrementLine() {
-        line++;
+    private List<String> process(String book, List<String> batch) {
+        AnalysisMetrics.Timer timer = AnalysisMetrics.shared().startStage();
+        List<String> batchWords = new ArrayList<>(batch.size() * 8);
+
+        for (String text : batch) {
+            batchWords.addAll(Arrays.asList(text.split("\\s+")));
+        }
+
+        AnalysisMetrics.shared().recordParsed(batch.size(), batchWords.size());
+        AnalysisMetrics.shared().recordStage(AnalysisMetrics.Stage.PARSE, book, timer, batch.size());
+
+        return batchWords;
     }
 
     /**
-     * Retrieves the list of words accumulated from the parsed file.
+     * Retrieves the list of words accumulated from the parsed file, in the order of the file.
      *
      * @return A list of words.
      */
     public List<String> getWords() {
         return words;
     }
+
+    /**
+     * Retrieves the list of tweets accumulated from the parsed file, in the order of the file.
+     *
+     * @return A list of tweets.
+     */
+    public List<Tweet> getTweets() {
+        return tweets;
+    }
+
+    /**
+     * Retrieves the number of lines read by the last parse of this parser.
+     *
+     * @return The number of lines.
+     */
+    public long getLineCount() {
+        return lines;
+    }
 }
@@ -0,0 +1,151 @@
+package ie.atu.sw;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that an analysis stopped part of the way through and resumed from its checkpoint
+ * ends with the same totals, groups and ranking as an analysis that was never stopped.
+ */
+class AnalysisCheckpointTest {
+    private static final int TWEETS = 20_000;
+
+    @TempDir
+    Path directory;
+
+    private Path corpus;
+    private Path sentimentMap;
+    private Path stopwords;
+    private Lexicon lexicon;
+
+    @BeforeEach
+    void writeFiles() throws IOException {
+        corpus = directory.resolve("tweets.txt");
+        sentimentMap = directory.resolve("lexicon.csv");
+        stopwords = directory.resolve("stopwords.txt");
+
+        String[] words = {"good", "bad", "happy", "awful", "fine", "meh", "not", "very", "great"};
+        List<String> lines = new ArrayList<>(TWEETS);
+        for (int i = 0; i < TWEETS; i++) {
+            lines.add(String.format("2024-03-01T%02d:%02d:00Z #tag%d @user%d %s %s the %s", i / 1000 % 24,
+                    i % 60, i % 7, i % 11, words[i % words.length], words[i * 7 % words.length],
+                    words[i * 13 % words.length]));
+        }
+        Files.write(corpus, lines);
+        Files.writeString(sentimentMap, "good,3\nbad,-2\nhappy,2\nawful,-3\nfine,1\ngreat,4\n");
+        Files.writeString(stopwords, "the\na\n");
+
+        lexicon = SentimentScoreMapLoader.loadLexicon(sentimentMap.toString(), stopwords.toString());
+    }
+
+    @Test
+    void resumedAnalysisEndsLikeAnUninterruptedOne() throws Exception {
+        String uninterrupted = analyze(directory.resolve("whole.checkpoint"),
+                new TweetSentimentAnalyzer(lexicon, null));
+
+        // the scoring service goes down part of the way through
+        Path checkpointFile = directory.resolve("resumed.checkpoint");
+        AtomicInteger calls = new AtomicInteger();
+        SimulatedScoringBackend service = new SimulatedScoringBackend(lexicon, Duration.ZERO);
+        ScoringBackend failing = words -> {
+            if (calls.incrementAndGet() > TWEETS * 3 / 5) {
+                throw new IOException("The scoring service is down");
+            }
+            return service.score(words);
+        };
+        TweetSentimentAnalyzer stopped = new TweetSentimentAnalyzer(lexicon,
+                new ScoringClient(failing, Duration.ofMillis(1)));
+        assertThrows(Exception.class, () -> analyze(checkpointFile, stopped));
+
+        AnalysisCheckpoint checkpoint = open(checkpointFile, new TweetGroups(Duration.ofHours(1)), ranking());
+        assertTrue(checkpoint.isResumed());
+        assertTrue(checkpoint.getTweets() > 0 && checkpoint.getTweets() < TWEETS, "tweets=" + checkpoint.getTweets());
+
+        assertEquals(uninterrupted, analyze(checkpointFile, new TweetSentimentAnalyzer(lexicon, null)));
+    }
+
+    @Test
+    void startsOverWhenTheLexiconChanged() throws Exception {
+        Path checkpointFile = directory.resolve("lexicon.checkpoint");
+        analyze(checkpointFile, new TweetSentimentAnalyzer(lexicon, null));
+        assertTrue(open(checkpointFile, new TweetGroups(Duration.ofHours(1)), ranking()).isResumed());
+
+        Files.writeString(sentimentMap, "good,3\nbad,-2\nhappy,2\nawful,-3\nfine,1\ngreat,5\n");
+        assertFalse(open(checkpointFile, new TweetGroups(Duration.ofHours(1)), ranking()).isResumed());
+    }
+
+    @Test
+    void startsOverFromAFileThatIsNotACheckpoint() throws Exception {
+        Path checkpointFile = directory.resolve("text.checkpoint");
+        Files.writeString(checkpointFile, "file=" + corpus.toAbsolutePath() + "\nranges=4\n");
+        assertFalse(open(checkpointFile, new TweetGroups(Duration.ofHours(1)), ranking()).isResumed());
+
+        Files.write(checkpointFile, new byte[0]);
+        assertFalse(open(checkpointFile, new TweetGroups(Duration.ofHours(1)), ranking()).isResumed());
+    }
+
+    @Test
+    void rejectsATruncatedCheckpoint() throws Exception {
+        Path checkpointFile = directory.resolve("truncated.checkpoint");
+        analyze(checkpointFile, new TweetSentimentAnalyzer(lexicon, null));
+        assertFalse(Files.exists(checkpointFile.resolveSibling("truncated.checkpoint.tmp")));
+
+        byte[] bytes = Files.readAllBytes(checkpointFile);
+        Files.write(checkpointFile, Arrays.copyOf(bytes, bytes.length - 10));
+        IOException e = assertThrows(IOException.class,
+                () -> open(checkpointFile, new TweetGroups(Duration.ofHours(1)), ranking()));
+        assertTrue(e.getMessage().startsWith("Invalid checkpoint file"), e.getMessage());
+    }
+
+    /**
+     * Analyzes the corpus with a checkpoint saved after every batch, and describes the results.
+     */
+    private String analyze(Path checkpointFile, TweetSentimentAnalyzer analyzer) throws Exception {
+        TweetGroups groups = new TweetGroups(Duration.ofHours(1));
+        TweetRanking ranking = ranking();
+        AnalysisCheckpoint checkpoint = open(checkpointFile, groups, ranking);
+
+        float score = analyzer.analyzeResumable(checkpoint, 2);
+
+        StringBuilder results = new StringBuilder();
+        results.append("score=").append(score).append(" tweets=").append(checkpoint.getTweets())
+                .append(" ranked=").append(ranking.getTweets()).append('\n')
+                .append(ranking.getMostPositive()).append('\n')
+                .append(ranking.getMostNegative()).append('\n')
+                .append(ranking.getPercentiles()).append('\n');
+        for (TweetGroups.Kind kind : TweetGroups.Kind.values()) {
+            for (TweetGroups.Group group : groups.top(kind, Integer.MAX_VALUE)) {
+                results.append(kind).append(' ').append(group.key()).append(' ').append(group.tweets())
+                        .append(' ').append(group.score()).append(' ').append(Arrays.toString(group.histogram()))
+                        .append('\n');
+            }
+        }
+
+        return results.toString();
+    }
+
+    private AnalysisCheckpoint open(Path checkpointFile, TweetGroups groups, TweetRanking ranking)
+            throws IOException {
+        return AnalysisCheckpoint.open(checkpointFile, corpus, List.of(sentimentMap, stopwords), 4, Duration.ZERO,
+                groups, ranking);
+    }
+
+    private TweetRanking ranking() {
+        return new TweetRanking(5, new double[] {10, 50, 90, 100}, directory, 1024);
+    }
+}
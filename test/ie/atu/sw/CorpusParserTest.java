@@ -0,0 +1,150 @@
+package ie.atu.sw;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that the parsers read every line of a file exactly as it is - in order, with its
+ * number, and the same whichever parser reads it - with multi-byte characters, "\r\n" and
+ * "\r" line terminators, empty lines and a last line without a terminator.
+ */
+class CorpusParserTest {
+    private static final int LINES = 5000;
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+    private List<String> lines;
+
+    @BeforeEach
+    void writeCorpus() throws IOException {
+        file = directory.resolve("tweets.txt");
+        lines = new ArrayList<>(LINES);
+        StringBuilder text = new StringBuilder();
+
+        for (int i = 0; i < LINES; i++) {
+            String line = switch (i % 7) {
+                case 0 -> "";
+                case 1 -> "café naïve 😀 tweet " + i;
+                case 2 -> "  leading and trailing spaces " + i + "  ";
+                case 3 -> "#tag" + i + " @user" + i % 13 + " not so good";
+                default -> "tweet " + i + " " + "word ".repeat(i % 50);
+            };
+            lines.add(line);
+            text.append(line);
+
+            // the last line has no terminator, and a lone '\r' isn't followed by an empty line
+            if (i + 1 < LINES) {
+                text.append(i % 5 == 0 ? "\r\n" : i % 7 == 3 ? "\r" : "\n");
+            }
+        }
+
+        Files.writeString(file, text, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void streamTweetsPassesTheLinesInOrderWithTheirNumbers() throws Exception {
+        VirtualThreadFileParser parser = new VirtualThreadFileParser(7, 4);
+        List<Tweet> tweets = new ArrayList<>();
+        parser.streamTweets(file.toString(), tweets::addAll);
+
+        List<Tweet> expected = new ArrayList<>(LINES);
+        for (int i = 0; i < LINES; i++) {
+            expected.add(new Tweet(i + 1, lines.get(i)));
+        }
+
+        assertEquals(expected, tweets);
+        assertEquals(LINES, parser.getLineCount());
+    }
+
+    @Test
+    void goKeepsTheTweetsAndTheWordsInOrder() throws Exception {
+        VirtualThreadFileParser parser = new VirtualThreadFileParser(7, 4);
+        parser.go(file.toString());
+
+        assertEquals(lines, parser.getTweets().stream().map(Tweet::text).toList());
+        assertEquals(words(lines), parser.getWords());
+
+        // a second parse counts its own lines only
+        parser.clear();
+        parser.go(file.toString());
+        assertEquals(LINES, parser.getLineCount());
+    }
+
+    @Test
+    void mappedRangesHoldEveryLineOnceAtItsOffset() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] bounds = MemoryMappedFileParser.splitRanges(channel, 7);
+            List<String> read = new ArrayList<>();
+            long counted = 0;
+
+            for (int r = 0; r + 1 < bounds.length; r++) {
+                MemoryMappedFileParser.forEachLine(channel, bounds[r], bounds[r + 1], (offset, text) -> {
+                    read.add(text);
+                    assertEquals(text, MemoryMappedFileParser.readLine(channel, offset));
+                });
+                counted += MemoryMappedFileParser.countLines(channel, bounds[r], bounds[r + 1]);
+            }
+
+            assertEquals(lines, read);
+            assertEquals(LINES, counted);
+        }
+    }
+
+    @Test
+    void everyParserReadsTheSameLinesAndWords() throws Exception {
+        Path compressed = directory.resolve("tweets.txt.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(compressed))) {
+            Files.copy(file, out);
+        }
+
+        List<String> expectedLines = sorted(lines);
+        List<String> expectedWords = sorted(words(lines));
+        CorpusParser[] parsers = {new VirtualThreadFileParser(7, 4), new MemoryMappedFileParser(5, 13),
+                new GzipFileParser(7, 4, 2)};
+
+        for (CorpusParser parser : parsers) {
+            Path input = parser instanceof GzipFileParser ? compressed : file;
+
+            // the batches may come in any order, from several threads
+            List<String> streamedLines = Collections.synchronizedList(new ArrayList<>());
+            parser.streamLines(input.toString(), streamedLines::addAll);
+            assertEquals(expectedLines, sorted(streamedLines), parser.getClass().getSimpleName());
+
+            List<String> streamedWords = Collections.synchronizedList(new ArrayList<>());
+            parser.stream(input.toString(), streamedWords::addAll);
+            assertEquals(expectedWords, sorted(streamedWords), parser.getClass().getSimpleName());
+        }
+    }
+
+    private static List<String> words(List<String> lines) {
+        List<String> words = new ArrayList<>();
+        for (String line : lines) {
+            words.addAll(Arrays.asList(line.split("\\s+")));
+        }
+        return words;
+    }
+
+    private static List<String> sorted(List<String> strings) {
+        List<String> sorted = new ArrayList<>(strings);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
@@ -0,0 +1,186 @@
+package ie.atu.sw;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that a ParallelGzipInputStream reads the same bytes as GZIPInputStream, whatever
+ * the number of threads and however the regions fall - including regions that start at a
+ * byte sequence inside a member that only looks like a header.
+ */
+class ParallelGzipInputStreamTest {
+    /**
+     * The header of a member, as it could appear inside the compressed data of another.
+     */
+    private static final byte[] FALSE_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 3};
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsTheSameBytesAsGzipInputStream() throws IOException {
+        Path file = directory.resolve("members.gz");
+        writeMembers(file, text(20_000), 40, false);
+
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            assertArrayEquals(gunzip(file), readAll(file, threads), "threads=" + threads);
+        }
+    }
+
+    @Test
+    void readsMembersWithFalseHeadersInside() throws IOException {
+        Path file = directory.resolve("false-headers.gz");
+        writeMembers(file, random(100_000), 40, true);
+
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            assertArrayEquals(gunzip(file), readAll(file, threads), "threads=" + threads);
+        }
+    }
+
+    @Test
+    void doesNotHangOnAGapWhenTheBudgetIsUsedUp() throws IOException {
+        // only the third member has false headers, so the regions after the gap are all real, and large
+        Path file = directory.resolve("gap.gz");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int m = 0; m < 40; m++) {
+                byte[] data = random(1_000_000);
+                if (m == 2) {
+                    addFalseHeaders(data);
+                }
+                writeMember(out, data, Deflater.NO_COMPRESSION);
+            }
+        }
+
+        byte[] expected = gunzip(file);
+        assertTimeoutPreemptively(Duration.ofSeconds(10),
+                () -> assertArrayEquals(expected, readAll(file, 4)));
+    }
+
+    @Test
+    void ignoresTrailingDataAfterTheLastMember() throws IOException {
+        Path file = directory.resolve("trailing.gz");
+        writeMembers(file, text(20_000), 8, false);
+        Files.write(file, new byte[1000], StandardOpenOption.APPEND);
+
+        for (int threads : new int[] {1, 4}) {
+            assertArrayEquals(gunzip(file), readAll(file, threads), "threads=" + threads);
+        }
+    }
+
+    @Test
+    void failsOnATruncatedFile() throws IOException {
+        Path file = directory.resolve("truncated.gz");
+        writeMembers(file, text(20_000), 8, false);
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 100));
+
+        for (int threads : new int[] {1, 4}) {
+            IOException e = assertThrows(IOException.class, () -> readAll(file, threads));
+            assertTrue(e.getMessage().contains("Unexpected end"), e.getMessage());
+        }
+    }
+
+    @Test
+    void failsOnAFileThatIsNotGzip() throws IOException {
+        Path file = directory.resolve("plain.gz");
+        Files.write(file, text(1000));
+
+        assertThrows(IOException.class, () -> readAll(file, 1));
+    }
+
+    /**
+     * Reads a file with small regions (many per member) and a budget of a single buffer
+     * per thread, so every region runs out of room.
+     */
+    private static byte[] readAll(Path file, int threads) throws IOException {
+        try (InputStream in = new ParallelGzipInputStream(file, threads, 16 * 1024, 256 * 1024)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] gunzip(Path file) throws IOException {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Writes the data as many members. Random data (with false headers) is stored rather
+     * than compressed: it wouldn't compress anyway, and the false headers stay as they are.
+     */
+    private static void writeMembers(Path file, byte[] data, int members, boolean falseHeaders) throws IOException {
+        int level = falseHeaders ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION;
+        if (falseHeaders) {
+            addFalseHeaders(data);
+        }
+
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int m = 0; m < members; m++) {
+                // each member differs a little, so a member read twice or skipped shows
+                data[0] = (byte) m;
+                writeMember(out, data, level);
+            }
+        }
+    }
+
+    private static void writeMember(OutputStream out, byte[] data, int level) throws IOException {
+        // closing the member mustn't close the file
+        try (GZIPOutputStream member = new GZIPOutputStream(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        }) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            member.write(data);
+        }
+    }
+
+    private static void addFalseHeaders(byte[] data) {
+        for (int at = 5000; at + FALSE_HEADER.length < data.length; at += data.length / 3) {
+            System.arraycopy(FALSE_HEADER, 0, data, at, FALSE_HEADER.length);
+        }
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] text(int lines) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < lines; i++) {
+            out.writeBytes(("tweet " + i + " is good, or not so bad #tag" + i % 17 + "\n").getBytes());
+        }
+        return out.toByteArray();
+    }
+}
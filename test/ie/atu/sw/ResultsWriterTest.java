@@ -0,0 +1,83 @@
+package ie.atu.sw;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that a ResultsWriter writes every record it accepts exactly once, including the
+ * records added by other threads while it's being closed.
+ */
+class ResultsWriterTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void flushWaitsUntilTheRecordsAreWritten() throws Exception {
+        Path file = directory.resolve("results.txt");
+        try (ResultsWriter writer = new ResultsWriter(file, 1000, Duration.ofMinutes(1), false)) {
+            writer.write("first");
+            writer.write("second");
+            writer.flush();
+
+            assertEquals(List.of("first", "second"), Files.readAllLines(file));
+            assertEquals(2, writer.getWritten());
+        }
+    }
+
+    @Test
+    void rejectsRecordsOnceClosed() throws Exception {
+        ResultsWriter writer = new ResultsWriter(directory.resolve("closed.txt"));
+        writer.close();
+
+        assertThrows(IllegalStateException.class, () -> writer.write("too late"));
+    }
+
+    @Test
+    void writesEveryAcceptedRecordWhenClosedWhileRecordsAreAdded() throws Exception {
+        Path file = directory.resolve("racing.txt");
+        ResultsWriter writer = new ResultsWriter(file, 64, Duration.ofMillis(1), false);
+        AtomicLong accepted = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(4);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(Thread.ofPlatform().start(() -> {
+                started.countDown();
+                for (int i = 0; ; i++) {
+                    try {
+                        writer.write(thread + ":" + i);
+                    } catch (IllegalStateException e) {
+                        return;
+                    }
+                    accepted.incrementAndGet();
+                }
+            }));
+        }
+
+        started.await();
+        Thread.sleep(50);
+        writer.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        Set<String> distinct = new HashSet<>(lines);
+        assertEquals(accepted.get(), lines.size());
+        assertEquals(lines.size(), distinct.size());
+    }
+}
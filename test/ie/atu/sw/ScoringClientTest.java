@@ -0,0 +1,98 @@
+package ie.atu.sw;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a ScoringClient retries failed requests up to its limit, and gives every
+ * permit it took back to the limiter however a call ends.
+ */
+class ScoringClientTest {
+    private static final List<String> WORDS = List.of("good", "bad");
+
+    @Test
+    void retriesAFailedRequest() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        AdaptiveConcurrencyLimiter limiter = limiter(4);
+        ScoringClient client = new ScoringClient(words -> {
+            if (requests.incrementAndGet() < 3) {
+                throw new IOException("Unavailable");
+            }
+            return new int[] {3, -2};
+        }, limiter, Duration.ofMinutes(1), 3, 100);
+
+        assertArrayEquals(new int[] {3, -2}, client.score(WORDS));
+        assertEquals(2, client.getRetries());
+        awaitNoneInFlight(limiter);
+    }
+
+    @Test
+    void failsAfterTheLastAttempt() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = limiter(4);
+        ScoringClient client = new ScoringClient(words -> {
+            throw new IOException("Unavailable");
+        }, limiter, Duration.ofMinutes(1), 3, 100);
+
+        IOException e = assertThrows(IOException.class, () -> client.score(WORDS));
+        assertTrue(e.getMessage().contains("after 3 attempts"), e.getMessage());
+        awaitNoneInFlight(limiter);
+    }
+
+    @Test
+    void aCallInterruptedWhileWaitingForAPermitTakesNone() throws Exception {
+        AdaptiveConcurrencyLimiter limiter = limiter(1);
+        CountDownLatch called = new CountDownLatch(1);
+        CountDownLatch answer = new CountDownLatch(1);
+        ScoringClient client = new ScoringClient(words -> {
+            called.countDown();
+            answer.await();
+            return new int[] {1, 1};
+        }, limiter, Duration.ofMinutes(1), 1, 100);
+
+        // the first call takes the only permit, so the second one waits for it
+        FutureTask<int[]> first = new FutureTask<>(() -> client.score(WORDS));
+        Thread.ofVirtual().start(first);
+        called.await();
+
+        FutureTask<int[]> second = new FutureTask<>(() -> client.score(WORDS));
+        Thread waiting = Thread.ofVirtual().start(second);
+        while (waiting.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        waiting.interrupt();
+        ExecutionException e = assertThrows(ExecutionException.class, second::get);
+        assertTrue(e.getCause() instanceof InterruptedException, String.valueOf(e.getCause()));
+        assertEquals(1, limiter.getInFlight());
+
+        answer.countDown();
+        assertArrayEquals(new int[] {1, 1}, first.get());
+        awaitNoneInFlight(limiter);
+    }
+
+    private static AdaptiveConcurrencyLimiter limiter(int limit) {
+        return new AdaptiveConcurrencyLimiter(limit, 1, limit, Duration.ofMinutes(1), 0.5);
+    }
+
+    /**
+     * Waits until the requests that ended have given their permits back.
+     */
+    private static void awaitNoneInFlight(AdaptiveConcurrencyLimiter limiter) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (limiter.getInFlight() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,186 @@
+package ie.atu.sw;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks that the shards that fail on a worker are sent again, and that the retried
+ * analysis ends with the same totals and tweet scores as one where nothing failed.
+ */
+class ShardCoordinatorTest {
+    private static final long SHARD_SIZE = 64 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private Path corpus;
+    private Path lexicon;
+    private Path stopwords;
+    private ShardWorker worker;
+
+    @BeforeEach
+    void startWorker() throws IOException {
+        corpus = directory.resolve("tweets.txt");
+        lexicon = directory.resolve("lexicon.csv");
+        stopwords = directory.resolve("stopwords.txt");
+
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 20_000; i++) {
+            lines.add("tweet " + i + (i % 3 == 0 ? " is good" : i % 3 == 1 ? " is not bad" : " is awful"));
+        }
+        Files.write(corpus, lines);
+        Files.writeString(lexicon, "good,3\nbad,-2\nawful,-3\n");
+        Files.writeString(stopwords, "is\n");
+
+        worker = new ShardWorker(0, true, 2, 0);
+        Thread.ofVirtual().start(worker::run);
+    }
+
+    @AfterEach
+    void stopWorker() {
+        worker.close();
+    }
+
+    @Test
+    void retriesTheShardsThatFailed() throws Exception {
+        Path expectedScores = directory.resolve("expected.csv");
+        MultiFileAnalyzer.Result expected = analyze(worker.getPort(), expectedScores);
+
+        Path scores = directory.resolve("retried.csv");
+        try (FlakyWorker flaky = new FlakyWorker(worker.getPort(), 2)) {
+            MultiFileAnalyzer.Result result = analyze(flaky.getPort(), scores);
+
+            assertEquals(2, flaky.failed.get());
+            assertEquals(expected.tweets(), result.tweets());
+            assertEquals(expected.score(), result.score());
+        }
+
+        assertEquals(20_000, expected.tweets());
+        assertArrayEquals(Files.readAllBytes(expectedScores), Files.readAllBytes(scores));
+    }
+
+    @Test
+    void givesUpOnAShardThatKeepsFailing() throws Exception {
+        try (FlakyWorker flaky = new FlakyWorker(worker.getPort(), Integer.MAX_VALUE)) {
+            IOException e = assertThrows(IOException.class,
+                    () -> analyze(flaky.getPort(), directory.resolve("failed.csv")));
+            assertTrue(e.getMessage().contains("failed " + ShardCoordinator.MAX_ATTEMPTS + " times"), e.getMessage());
+        }
+    }
+
+    private MultiFileAnalyzer.Result analyze(int port, Path tweetScores) throws Exception {
+        try (ShardCoordinator coordinator = ShardCoordinator.connect(
+                List.of(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)), 2, SHARD_SIZE)) {
+            return coordinator.analyze(List.of(corpus), lexicon.toString(), stopwords.toString(), tweetScores,
+                    TweetScoreOutput.Format.CSV);
+        }
+    }
+
+    /**
+     * A worker that fails the first shards it's sent, and passes the others on to a real worker.
+     */
+    private static final class FlakyWorker implements AutoCloseable {
+        private final ServerSocket serverSocket;
+        private final int failures;
+        private final AtomicInteger failed = new AtomicInteger();
+
+        private FlakyWorker(int workerPort, int failures) throws IOException {
+            this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.failures = failures;
+
+            Thread.ofVirtual().start(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        Thread.ofVirtual().start(() -> serve(socket, workerPort));
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void serve(Socket socket, int workerPort) {
+            try (socket; Socket upstream = new Socket(InetAddress.getLoopbackAddress(), workerPort)) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataOutputStream forward = new DataOutputStream(new BufferedOutputStream(upstream.getOutputStream()));
+
+                // the worker's answers go straight back, in the order of the shards passed on
+                Thread.ofVirtual().start(() -> {
+                    try {
+                        upstream.getInputStream().transferTo(socket.getOutputStream());
+                    } catch (IOException e) {
+                        // either side closed
+                    }
+                });
+
+                while (true) {
+                    byte request;
+                    try {
+                        request = in.readByte();
+                    } catch (EOFException e) {
+                        return;
+                    }
+                    String path = in.readUTF();
+                    String lexicon = in.readUTF();
+                    String stopwords = in.readUTF();
+                    long start = in.readLong();
+                    long end = in.readLong();
+                    boolean scores = in.readBoolean();
+
+                    if (failed.getAndUpdate(n -> n < failures ? n + 1 : n) < failures) {
+                        // a failed shard leaves the connection usable, with nothing else in flight on it
+                        out.writeByte(ShardWorker.ERROR);
+                        out.writeUTF("java.io.IOException: The disk is on fire");
+                        out.flush();
+                        continue;
+                    }
+
+                    forward.writeByte(request);
+                    forward.writeUTF(path);
+                    forward.writeUTF(lexicon);
+                    forward.writeUTF(stopwords);
+                    forward.writeLong(start);
+                    forward.writeLong(end);
+                    forward.writeBoolean(scores);
+                    forward.flush();
+                }
+            } catch (IOException e) {
+                // the coordinator went away
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
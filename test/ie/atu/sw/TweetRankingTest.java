@@ -0,0 +1,153 @@
+package ie.atu.sw;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the most positive and most negative tweets and the nearest-rank percentiles of
+ * small known sets of scores, whether they're buffered, spilled or added as counted parts.
+ */
+class TweetRankingTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void nearestRankIsWorkedOutInDecimal() {
+        assertEquals(7, TweetRanking.rank(7, 100));
+        assertEquals(999, TweetRanking.rank(99.9, 1000));
+        assertEquals(7, TweetRanking.rank(14, 50));
+        assertEquals(1, TweetRanking.rank(0.5, 100));
+        assertEquals(34, TweetRanking.rank(33.3, 100));
+        assertEquals(100, TweetRanking.rank(100, 100));
+        assertEquals(1, TweetRanking.rank(0.001, 3));
+    }
+
+    @Test
+    void percentilesOfOneToAHundred() throws IOException {
+        TweetRanking ranking = new TweetRanking(3, new double[] {7, 50, 0.5, 33.3, 100}, directory, 0);
+        int[] scores = new int[100];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = 100 - i;
+        }
+        write(ranking, scores, 1);
+        ranking.close();
+
+        assertEquals(List.of(new TweetRanking.Percentile(7, 7), new TweetRanking.Percentile(50, 50),
+                new TweetRanking.Percentile(0.5, 1), new TweetRanking.Percentile(33.3, 34),
+                new TweetRanking.Percentile(100, 100)), ranking.getPercentiles());
+        assertEquals(100, ranking.getTweets());
+    }
+
+    @Test
+    void keepsTheTopTweetsAtEachEndInTheOrderOfTheFile() throws IOException {
+        TweetRanking ranking = new TweetRanking(2);
+        write(ranking, new int[] {1, 5, -3, 5, 0, -3, 2}, 3);
+        ranking.close();
+
+        assertEquals(List.of(2L, 4L), ranking.getMostPositive().stream().map(TweetRanking.RankedTweet::tweetId)
+                .toList());
+        assertEquals(List.of(3L, 6L), ranking.getMostNegative().stream().map(TweetRanking.RankedTweet::tweetId)
+                .toList());
+        assertTrue(ranking.getPercentiles().isEmpty());
+    }
+
+    @Test
+    void spilledRunsGiveTheSamePercentilesAsSortingEveryScore() throws IOException {
+        double[] percentiles = {1, 10, 25, 50, 75, 90, 99, 99.9, 100};
+        int[] scores = new int[50_000];
+        Random random = new Random(42);
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = random.nextInt(201) - 100;
+        }
+
+        TweetRanking ranking = new TweetRanking(0, percentiles, directory, 0);
+        write(ranking, scores, 8);
+        ranking.close();
+
+        assertTrue(ranking.getSpilledRuns() > 0);
+        assertEquals(expected(percentiles, scores), ranking.getPercentiles());
+    }
+
+    @Test
+    void countedPartsGiveTheSamePercentilesAsTheTweetsThemselves() throws IOException {
+        double[] percentiles = {5, 33, 50, 66.6, 95, 100};
+        int[] scores = new int[10_000];
+        Random random = new Random(7);
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = random.nextInt(21) - 10;
+        }
+
+        // half the tweets are written to sections, the other half only counted in parts
+        TweetRanking ranking = new TweetRanking(5, percentiles, directory, 0);
+        write(ranking, Arrays.copyOf(scores, scores.length / 2), 2);
+        for (int p = 0; p < 3; p++) {
+            TweetRanking.Part part = ranking.part();
+            for (int i = scores.length / 2 + p; i < scores.length; i += 3) {
+                part.add(i + 1, i, scores[i], 1);
+            }
+            ranking.add(part);
+        }
+        ranking.close();
+
+        assertEquals(expected(percentiles, scores), ranking.getPercentiles());
+        assertEquals(scores.length, ranking.getTweets());
+    }
+
+    @Test
+    void largeCountsAreNotExpandedIntoScores() {
+        TweetRanking ranking = new TweetRanking(0, new double[] {10, 50, 90}, directory, 0);
+        TweetRanking.Part part = ranking.part();
+        part.add(-1, 1_000_000_000L);
+        part.add(3, 8_000_000_000L);
+        part.add(9, 1_000_000_000L);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            ranking.add(part);
+            ranking.close();
+        });
+
+        assertEquals(List.of(new TweetRanking.Percentile(10, -1), new TweetRanking.Percentile(50, 3),
+                new TweetRanking.Percentile(90, 3)), ranking.getPercentiles());
+        assertEquals(0, ranking.getSpilledRuns());
+    }
+
+    /**
+     * Writes the scores to the sections of a ranking, the tweets of each section in turn,
+     * without closing it.
+     */
+    private static void write(TweetRanking ranking, int[] scores, int sections) throws IOException {
+        int perSection = (scores.length + sections - 1) / sections;
+        for (int s = 0; s < sections; s++) {
+            int from = s * perSection;
+            int to = Math.min(scores.length, from + perSection);
+            try (TweetScoreOutput.Section section = ranking.section(s, from + 1, to - from)) {
+                for (int i = from; i < to; i++) {
+                    section.write(i + 1, i, scores[i], 1);
+                }
+            }
+        }
+    }
+
+    private static List<TweetRanking.Percentile> expected(double[] percentiles, int[] scores) {
+        int[] sorted = scores.clone();
+        Arrays.sort(sorted);
+        List<TweetRanking.Percentile> expected = new ArrayList<>();
+        for (double percentile : percentiles) {
+            expected.add(new TweetRanking.Percentile(percentile,
+                    sorted[(int) TweetRanking.rank(percentile, sorted.length) - 1]));
+        }
+        return expected;
+    }
+}
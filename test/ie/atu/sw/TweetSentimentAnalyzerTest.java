@@ -0,0 +1,57 @@
+package ie.atu.sw;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the scoring rules of a tweet: the negation window, the intensifiers, and the
+ * phrases that take the place of the words they cover.
+ */
+class TweetSentimentAnalyzerTest {
+    private final TweetSentimentAnalyzer analyzer = new TweetSentimentAnalyzer(
+            Lexicon.build(Map.of("good", 3, "bad", -2, "like", 2, "well", 1, "well done", 4, "top notch", 5),
+                    Set.of("the", "a")),
+            null);
+
+    @Test
+    void scoresTheWordsOfTheLexicon() {
+        assertEquals(3, analyzer.scoreTweet("good"));
+        assertEquals(1, analyzer.scoreTweet("Good and BAD"));
+        assertEquals(0, analyzer.scoreTweet("nothing to see here"));
+    }
+
+    @Test
+    void negatesTheWordsWithinTheWindowAfterANegator() {
+        assertEquals(-3, analyzer.scoreTweet("not good"));
+        assertEquals(-3, analyzer.scoreTweet("not at all good"));
+        assertEquals(-2, analyzer.scoreTweet("I don't like it"));
+        assertEquals(2, analyzer.scoreTweet("never bad"));
+    }
+
+    @Test
+    void doesNotNegateTheWordsPastTheWindow() {
+        // the window is the PhraseMatcher.NEGATION_WINDOW words after the negator
+        assertEquals(3, analyzer.scoreTweet("not one bit of it good"));
+        assertEquals(-3 + 3, analyzer.scoreTweet("not good and then some more good"));
+    }
+
+    @Test
+    void intensifiesTheWordRightAfterAnIntensifier() {
+        assertEquals(4, analyzer.scoreTweet("very good"));
+        assertEquals(-3, analyzer.scoreTweet("really bad"));
+        assertEquals(-4, analyzer.scoreTweet("not very good"));
+        assertEquals(3, analyzer.scoreTweet("very much good"));
+    }
+
+    @Test
+    void scoresAPhraseInPlaceOfItsWords() {
+        assertEquals(4, analyzer.scoreTweet("well done"));
+        assertEquals(1, analyzer.scoreTweet("well then"));
+        assertEquals(5 + 3, analyzer.scoreTweet("Top Notch and good"));
+        assertEquals(-4, analyzer.scoreTweet("not well done"));
+    }
+}